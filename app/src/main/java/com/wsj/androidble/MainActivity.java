@@ -19,6 +19,8 @@ public class MainActivity extends AppCompatActivity implements BleListener {
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
+        // 正式版只输出警告和错误.
+        LogUtil.setLevel(BuildConfig.DEBUG ? LogUtil.DEBUG : LogUtil.WARN);
         BleManager.getInstance()
                 .setListener(this)
                 .initializeBle(this);
@@ -46,12 +48,12 @@ public class MainActivity extends AppCompatActivity implements BleListener {
     // 测试机
     final String address = "87:83:01:15:98:25";
     public void connectBle(View view) {
-        LogUtil.d(TAG,"连接设备 : " + address);
+        LogUtil.d(TAG,"连接设备 : %s", address);
         BleManager.getInstance().connectBleDevice(address);
     }
 
     public void disconnectBle(View view) {
-        LogUtil.d(TAG,"断开设备 : " + address);
+        LogUtil.d(TAG,"断开设备 : %s", address);
         BleManager.getInstance().disconnectBleDevice();
     }
     public void discoverServices(View view) {
@@ -66,51 +68,47 @@ public class MainActivity extends AppCompatActivity implements BleListener {
 
     @Override
     public void onBleDiscover(String name, String address) {
-        LogUtil.d(TAG,"发现设备 : " + address);
+        LogUtil.d(TAG,"发现设备 : %s", address);
     }
 
     @Override
     public void onBleConnected(String address) {
-        LogUtil.d(TAG,"设备已连接 : " + address);
+        LogUtil.d(TAG,"设备已连接 : %s", address);
     }
 
     @Override
     public void onBleDisconnected(String address) {
-        LogUtil.d(TAG,"设备已断开 : " + address);
+        LogUtil.d(TAG,"设备已断开 : %s", address);
     }
 
     @Override
     public void onBleDiscoverServices(String address) {
         LogUtil.d(TAG,"查找服务成功");
 
-        new Thread(new Runnable() {
-            @Override
-            public void run() {
-                LogUtil.d(TAG,"查询服务");
-                List<BluetoothGattService> bleServices = BleManager.getInstance().getBleServices();
-                if (bleServices == null)
-                    LogUtil.e(TAG,"服务列表为空");
-                else
-                    for (BluetoothGattService service :bleServices) {
-                        LogUtil.d(TAG,"服务 : " + service.getUuid().toString());
-                        List<BluetoothGattCharacteristic> bleCharacteristics =
-                                BleManager.getInstance()
-                                        .getBleCharacteristics(service.getUuid().toString());
-                        if (bleCharacteristics == null){
-                            LogUtil.e(TAG,"没有特征值");
-                        }else {
-                            for (BluetoothGattCharacteristic ch : bleCharacteristics) {
-                                LogUtil.d(TAG,"CH : " + ch.getUuid().toString());
-                            }
-                        }
+        // 服务列表在服务发现时已建立, 直接在回调线程查询.
+        LogUtil.d(TAG,"查询服务");
+        List<BluetoothGattService> bleServices = BleManager.getInstance().getBleServices();
+        if (bleServices == null)
+            LogUtil.e(TAG,"服务列表为空");
+        else
+            for (BluetoothGattService service :bleServices) {
+                LogUtil.d(TAG,"服务 : %s", service.getUuid());
+                List<BluetoothGattCharacteristic> bleCharacteristics =
+                        BleManager.getInstance()
+                                .getBleCharacteristics(service.getUuid().toString());
+                if (bleCharacteristics == null){
+                    LogUtil.e(TAG,"没有特征值");
+                }else {
+                    for (BluetoothGattCharacteristic ch : bleCharacteristics) {
+                        LogUtil.d(TAG,"CH : %s", ch.getUuid());
                     }
+                }
             }
-        }).start();
     }
 
     @Override
     public void onBleError(int code) {
-        LogUtil.e(TAG,"发生错误 : " + String.format("%x",code));
+        LogUtil.e(TAG,"发生错误 : %x", code);
     }
 
 
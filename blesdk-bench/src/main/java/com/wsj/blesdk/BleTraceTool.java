@@ -0,0 +1,31 @@
+package com.wsj.blesdk;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 跟踪文件的命令行工具, 在 PC 上把 BleTraceRecorder 的文件输出为时间线.<br>
+ *     参数为跟踪文件或目录, 时间线输出到标准输出:
+ *     ./gradlew :blesdk-bench:traceDump -PtraceFiles="ble_trace/"
+ */
+
+public class BleTraceTool {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("usage: BleTraceTool <dir|file>...");
+            System.exit(1);
+        }
+        final List<File> files = new ArrayList<>();
+        for (String arg : args) {
+            final File file = new File(arg);
+            if (file.isDirectory())
+                files.addAll(BleTraceDecoder.listFiles(file));
+            else
+                files.add(file);
+        }
+        BleTraceDecoder.writeTimeline(files, System.out);
+    }
+}
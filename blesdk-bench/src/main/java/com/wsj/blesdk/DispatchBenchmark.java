@@ -0,0 +1,92 @@
+package com.wsj.blesdk;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 通知分发: 模拟外设在调用线程直接回调 onCharacteristicChanged, 经 BleConnection 分发.<br>
+ *     (1) stream: 已订阅, 写入 BleNotificationStream 的环形缓冲区 (每 64 条读出一次).
+ *     (2) callback: 未订阅, 回调 BleConnection.Callback (BleManager 由此通知 BleListener).
+ *     每 64 条清空一次记录, 避免测试期间占用的内存持续增长.
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class DispatchBenchmark {
+    private static final int DRAIN_INTERVAL = 64;
+    // 未订阅的特征值.
+    private static final UUID READ_UUID = UUID.fromString("0000fff3-0000-1000-8000-00805f9b34fb");
+
+    private final BleNotificationStream.Consumer mConsumer = new BleNotificationStream.Consumer() {
+        @Override
+        public void onNotification(byte[] buffer, int offset, int length, long timestampNanos) {
+            mReceived += length;
+        }
+    };
+
+    private SimulatedLink mLink;
+    private BleNotificationStream mStream;
+    private byte[] mValue;
+    private UUID mService;
+    private UUID mNotify;
+    private UUID mRead;
+    private int mCount;
+    private long mReceived;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        mLink = new SimulatedLink();
+        mLink.peripheral.setGattTable(SimulatedLink.defaultTable()
+                .addCharacteristic(READ_UUID, BleConstants.BLE_PROPERTY_READ, null)
+                .build());
+        if (!mLink.connect() || !mLink.discover())
+            throw new IllegalStateException("simulated link not ready");
+        mStream = mLink.connection.subscribe(SimulatedLink.SERVICE_UUID,
+                SimulatedLink.NOTIFY_UUID, BleNotificationStream.DEFAULT_CAPACITY, 20);
+        if (mStream == null || !mLink.idle())
+            throw new IllegalStateException("subscribe failed");
+        mValue = new byte[20];
+        // 回调中的 UUID 与订阅时的不是同一个实例.
+        mService = copy(SimulatedLink.SERVICE_UUID);
+        mNotify = copy(SimulatedLink.NOTIFY_UUID);
+        mRead = copy(READ_UUID);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mLink.release();
+    }
+
+    @Benchmark
+    public long stream() {
+        mLink.peripheral.notifyNow(mService, mNotify, mValue);
+        if (++mCount % DRAIN_INTERVAL == 0)
+            mStream.drain(mConsumer, DRAIN_INTERVAL);
+        return mReceived;
+    }
+
+    @Benchmark
+    public int callback() {
+        mLink.peripheral.notifyNow(mService, mRead, mValue);
+        final int count = mLink.recorder.notifications.size();
+        if (++mCount % DRAIN_INTERVAL == 0)
+            mLink.recorder.notifications.clear();
+        return count;
+    }
+
+    private static UUID copy(UUID uuid) {
+        return new UUID(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+    }
+}
@@ -0,0 +1,126 @@
+package com.wsj.blesdk;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static com.wsj.blesdk.BleConstants.BLE_CCCD_UUID;
+import static com.wsj.blesdk.BleConstants.BLE_PROPERTY_NOTIFY;
+import static com.wsj.blesdk.BleConstants.BLE_PROPERTY_READ;
+import static com.wsj.blesdk.BleConstants.BLE_PROPERTY_WRITE;
+
+/**
+ * 服务表查找: BleManager.getService/getBleCharacteristics 和每次读写定位特征值的路径.<br>
+ *     (1) 服务表有 SERVICES 个服务, 每个服务 CHARACTERISTICS 个特征值, 查找最后一个服务的最后一个特征值.
+ *     (2) linear* 按 BluetoothGatt.getService / BluetoothGattService.getCharacteristic 的方式遍历列表,
+ *         作为对照.
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class GattTableBenchmark {
+    private static final int SERVICES        = 8;
+    private static final int CHARACTERISTICS = 6;
+
+    /**
+     * 对照: 与 BluetoothGattService 相同的列表结构.
+     */
+    private static final class Node {
+        final UUID uuid;
+        final List<Node> children = new ArrayList<>();
+
+        Node(UUID uuid) {
+            this.uuid = uuid;
+        }
+
+        Node find(UUID child) {
+            for (int i = 0; i < children.size(); i++) {
+                final Node node = children.get(i);
+                if (node.uuid.equals(child))
+                    return node;
+            }
+            return null;
+        }
+    }
+
+    private BleGattTable mTable;
+    private final Node mRoot = new Node(null);
+    private UUID mService;
+    private UUID mCharacteristic;
+    private UUID mMissing;
+
+    @Setup
+    public void setup() {
+        final BleGattTable.Builder builder = new BleGattTable.Builder();
+        for (int s = 0; s < SERVICES; s++) {
+            final UUID service = uuid(0x1800 + s);
+            final Node serviceNode = new Node(service);
+            mRoot.children.add(serviceNode);
+            builder.addService(service, 0, serviceNode);
+            for (int c = 0; c < CHARACTERISTICS; c++) {
+                final UUID characteristic = uuid(0x2a00 + s * CHARACTERISTICS + c);
+                final Node node = new Node(characteristic);
+                serviceNode.children.add(node);
+                builder.addCharacteristic(characteristic,
+                        BLE_PROPERTY_READ | BLE_PROPERTY_WRITE | BLE_PROPERTY_NOTIFY, node);
+                builder.addDescriptor(BLE_CCCD_UUID, null);
+                node.children.add(new Node(BLE_CCCD_UUID));
+            }
+        }
+        mTable = builder.build();
+        // 新建 UUID 对象, 与回调中拿到的 UUID 一样不是同一个实例.
+        mService = new UUID(uuid(0x1800 + SERVICES - 1).getMostSignificantBits(),
+                uuid(0x1800 + SERVICES - 1).getLeastSignificantBits());
+        final UUID last = uuid(0x2a00 + SERVICES * CHARACTERISTICS - 1);
+        mCharacteristic = new UUID(last.getMostSignificantBits(), last.getLeastSignificantBits());
+        mMissing = uuid(0xfe00);
+    }
+
+    @Benchmark
+    public Object getServiceTag() {
+        return mTable.getServiceTag(mService);
+    }
+
+    @Benchmark
+    public Object getCharacteristicTag() {
+        return mTable.getCharacteristicTag(mService, mCharacteristic);
+    }
+
+    @Benchmark
+    public int getPropertiesMissing() {
+        return mTable.getProperties(mService, mMissing);
+    }
+
+    @Benchmark
+    public boolean hasDescriptor() {
+        return mTable.hasDescriptor(mService, mCharacteristic, BLE_CCCD_UUID);
+    }
+
+    @Benchmark
+    public Object linearService() {
+        return mRoot.find(mService);
+    }
+
+    @Benchmark
+    public Object linearCharacteristic() {
+        final Node service = mRoot.find(mService);
+        return service == null ? null : service.find(mCharacteristic);
+    }
+
+    /**
+     * 蓝牙基础 UUID 上的 16 位 UUID.
+     */
+    private static UUID uuid(int shortUuid) {
+        return new UUID(0x0000000000001000L | ((long) shortUuid << 32), 0x800000805f9b34fbL);
+    }
+}
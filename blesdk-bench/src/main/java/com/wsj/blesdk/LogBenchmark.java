@@ -0,0 +1,83 @@
+package com.wsj.blesdk;
+
+import com.wsj.blesdk.utils.LogUtil;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * LogUtil 的开销 (android.util.Log 为空实现).<br>
+ *     (1) logFunc: 查调用栈取方法名 (已废弃), trace: 显式方法名.
+ *     (2) concat: 调用处拼接消息, 级别关闭时仍然分配.
+ *     (3) format/message: 格式化参数和延迟消息, 级别关闭时不分配.
+ *     level 为 2 (VERBOSE) 时全部输出, 为 4 (INFO) 时 DEBUG 及以下关闭.
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class LogBenchmark {
+    private static final String TAG = "LogBenchmark";
+    private static final String ADDRESS = "00:11:22:33:44:55";
+
+    @Param({"2", "4"})
+    public int level;
+
+    private int mState = BleConnection.STATE_CONNECTED;
+    private final LogUtil.Message mMessage = new LogUtil.Message() {
+        @Override
+        public String get() {
+            return "state " + mState + " : " + ADDRESS;
+        }
+    };
+
+    @Setup
+    public void setup() {
+        LogUtil.setLevel(level);
+    }
+
+    @TearDown
+    public void tearDown() {
+        LogUtil.setLevel(LogUtil.DEBUG);
+    }
+
+    @Benchmark
+    @SuppressWarnings("deprecation")
+    public void logFunc() {
+        LogUtil.logFunc(TAG);
+    }
+
+    @Benchmark
+    public void trace() {
+        LogUtil.trace(TAG, "trace");
+    }
+
+    @Benchmark
+    public void concat() {
+        LogUtil.d(TAG, "state " + mState + " : " + ADDRESS);
+    }
+
+    @Benchmark
+    public void format() {
+        LogUtil.d(TAG, "state %d : %s", mState, ADDRESS);
+    }
+
+    @Benchmark
+    public void message() {
+        LogUtil.d(TAG, mMessage);
+    }
+
+    @Benchmark
+    public void constant() {
+        LogUtil.d(TAG, "state changed");
+    }
+}
@@ -0,0 +1,74 @@
+package com.wsj.blesdk;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * BleMetrics 的记录与快照开销.<br>
+ *     (1) roundTrip / contended: 回调线程记录一次往返时间 (单线程 / 4 个线程).
+ *     (2) advertisement: 扫描回调计数.
+ *     (3) snapshot / poll: 复制全部直方图, 导出器还要计算区间差值.
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MetricsBenchmark {
+    private final long[] mValues = new long[1024];
+    private int mNext;
+
+    private BleMetrics mMetrics;
+    private BleMetricsSnapshot mSnapshot;
+    private BleMetricsExporter mExporter;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        mMetrics = new BleMetrics(new VirtualScheduler());
+        mSnapshot = new BleMetricsSnapshot();
+        mExporter = new BleMetricsExporter(mMetrics);
+        // 往返时间大多在几十毫秒, 少数长尾.
+        final Random random = new Random(42);
+        for (int i = 0; i < mValues.length; i++) {
+            mValues[i] = 15 + (long) Math.abs(random.nextGaussian() * 30)
+                    + (random.nextInt(100) == 0 ? 2000 : 0);
+            mMetrics.onOperationComplete(mValues[i]);
+        }
+    }
+
+    @Benchmark
+    public void roundTrip() {
+        mMetrics.onOperationComplete(mValues[mNext++ & (mValues.length - 1)]);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void contended() {
+        mMetrics.onOperationComplete(mValues[(int) (Thread.currentThread().getId() & 1023)]);
+    }
+
+    @Benchmark
+    public void advertisement() {
+        mMetrics.onAdvertisement();
+    }
+
+    @Benchmark
+    public long snapshot() {
+        mMetrics.snapshot(mSnapshot);
+        return mSnapshot.roundTrip.getPercentile(99);
+    }
+
+    @Benchmark
+    public long poll() {
+        return mExporter.poll().roundTrip.getPercentile(99);
+    }
+}
@@ -0,0 +1,68 @@
+package com.wsj.blesdk;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * BleTraceRecorder.record 的开销: 回调线程写入环形缓冲区, 后台线程同时写文件.<br>
+ *     (1) notification: 一个线程记录 20 字节通知.
+ *     (2) contended: 4 个线程同时记录 (多个连接的 Binder 线程).
+ *     缓冲区满时记录被丢弃, 丢弃路径同样计入耗时.
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TraceBenchmark {
+    private static final long ADDRESS = 0x001122334455L;
+    private static final UUID NOTIFY_UUID = UUID.fromString("0000fff1-0000-1000-8000-00805f9b34fb");
+
+    private final byte[] mValue = new byte[20];
+    private File mDir;
+    private BleTraceRecorder mRecorder;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        mDir = File.createTempFile("ble_trace", "");
+        if (!mDir.delete() || !mDir.mkdirs())
+            throw new IOException("mkdirs failed : " + mDir);
+        mRecorder = new BleTraceRecorder(mDir).setFlushInterval(10);
+        if (!mRecorder.start())
+            throw new IOException("start failed : " + mDir);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mRecorder.stop();
+        for (File file : BleTraceRecorder.listFiles(mDir)) {
+            file.delete();
+        }
+        mDir.delete();
+    }
+
+    @Benchmark
+    public void notification() {
+        mRecorder.record(ADDRESS, BleTraceRecorder.OP_CHARACTERISTIC_CHANGED, 0, 0,
+                NOTIFY_UUID, mValue);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void contended() {
+        mRecorder.record(ADDRESS, BleTraceRecorder.OP_CHARACTERISTIC_CHANGED, 0, 0,
+                NOTIFY_UUID, mValue);
+    }
+}
@@ -0,0 +1,104 @@
+package com.wsj.blesdk;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayDeque;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 分包与重组.<br>
+ *     (1) chunk: BleWritePipeline 按 MTU 切分 SIZE 字节, 写入接口排队后逐包确认.
+ *     (2) reassemble: 分包经 BleNotificationStream 的环形缓冲区读出并拼回连续的数组,
+ *         即通知接收一侧的开销.
+ *     两者都不经过链路, 只测 SDK 自身的 CPU 开销.
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class TransferBenchmark {
+    private static final int SIZE   = 64 * 1024;
+    private static final int WINDOW = 8;
+    private static final UUID SERVICE_UUID = UUID.fromString("0000fff0-0000-1000-8000-00805f9b34fb");
+    private static final UUID NOTIFY_UUID  = UUID.fromString("0000fff1-0000-1000-8000-00805f9b34fb");
+
+    @Param({"23", "247"})
+    public int mtu;
+
+    private final VirtualScheduler mScheduler = new VirtualScheduler();
+    private final ArrayDeque<byte[]> mWritten = new ArrayDeque<>();
+    private final BleBufferPool mPool = new BleBufferPool();
+    private final BleWritePipeline.ChunkWriter mWriter = new BleWritePipeline.ChunkWriter() {
+        @Override
+        public boolean writeChunk(byte[] chunk, boolean withResponse) {
+            mWritten.addLast(chunk);
+            return true;
+        }
+    };
+    private final BleNotificationStream.Consumer mConsumer = new BleNotificationStream.Consumer() {
+        @Override
+        public void onNotification(byte[] buffer, int offset, int length, long timestampNanos) {
+            System.arraycopy(buffer, offset, mAssembled, mAssembledLength, length);
+            mAssembledLength += length;
+        }
+    };
+
+    private byte[] mData;
+    private byte[][] mChunks;
+    private BleNotificationStream mStream;
+    private byte[] mAssembled;
+    private int mAssembledLength;
+
+    @Setup
+    public void setup() {
+        mData = new byte[SIZE];
+        for (int i = 0; i < mData.length; i++) {
+            mData[i] = (byte) i;
+        }
+        final int chunkSize = mtu - BleConstants.BLE_ATT_WRITE_HEADER;
+        mChunks = new byte[(SIZE + chunkSize - 1) / chunkSize][];
+        for (int i = 0; i < mChunks.length; i++) {
+            final int len = Math.min(chunkSize, SIZE - i * chunkSize);
+            mChunks[i] = new byte[len];
+            System.arraycopy(mData, i * chunkSize, mChunks[i], 0, len);
+        }
+        mStream = new BleNotificationStream("00:11:22:33:44:55", SERVICE_UUID, NOTIFY_UUID,
+                BleNotificationStream.DEFAULT_CAPACITY, BleNotificationStream.DEFAULT_SLOT_SIZE);
+        mAssembled = new byte[SIZE];
+    }
+
+    @Benchmark
+    public boolean chunk() {
+        final BleWritePipeline pipeline = new BleWritePipeline(mScheduler, "00:11:22:33:44:55",
+                mData, mtu, WINDOW, false, mPool, mWriter, null);
+        pipeline.start();
+        byte[] chunk;
+        while ((chunk = mWritten.pollFirst()) != null) {
+            mPool.release(chunk);
+            pipeline.onChunkWritten(true);
+        }
+        return pipeline.isFinished();
+    }
+
+    @Benchmark
+    public int reassemble() {
+        mAssembledLength = 0;
+        final int batch = BleNotificationStream.DEFAULT_CAPACITY;
+        for (int i = 0; i < mChunks.length; i += batch) {
+            final int end = Math.min(mChunks.length, i + batch);
+            for (int j = i; j < end; j++) {
+                mStream.offer(mChunks[j]);
+            }
+            mStream.drain(mConsumer, batch);
+        }
+        return mAssembledLength;
+    }
+}
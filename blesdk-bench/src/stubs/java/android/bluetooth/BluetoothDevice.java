@@ -0,0 +1,23 @@
+package android.bluetooth;
+
+/**
+ * 基准测试用的 android.bluetooth.BluetoothDevice, 只有地址和名称.
+ */
+
+public class BluetoothDevice {
+    private final String mAddress;
+    private final String mName;
+
+    public BluetoothDevice(String address, String name) {
+        mAddress = address;
+        mName = name;
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    public String getName() {
+        return mName;
+    }
+}
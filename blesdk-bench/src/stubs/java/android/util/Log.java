@@ -0,0 +1,39 @@
+package android.util;
+
+/**
+ * 基准测试用的 android.util.Log, 只保留最后一条消息, 不输出.<br>
+ *     测得的是 SDK 一侧的开销 (拼接字符串, 查调用栈等), 不含 logd 写入.
+ */
+
+public final class Log {
+    // 保留消息, 避免拼接被 JIT 当作无用代码消除.
+    private static String sLast;
+
+    private Log() {
+    }
+
+    public static int v(String tag, String msg) {
+        return println(msg);
+    }
+
+    public static int d(String tag, String msg) {
+        return println(msg);
+    }
+
+    public static int i(String tag, String msg) {
+        return println(msg);
+    }
+
+    public static int w(String tag, String msg) {
+        return println(msg);
+    }
+
+    public static int e(String tag, String msg) {
+        return println(msg);
+    }
+
+    private static int println(String msg) {
+        sLast = msg;
+        return msg == null ? 0 : msg.length();
+    }
+}
@@ -0,0 +1,324 @@
+package com.wsj.blesdk;
+
+import java.util.UUID;
+
+/**
+ * 广播数据 (AD structures) 解析结果.<br>
+ *     (1) 解析 Flags, 服务 UUID, 厂商数据, 服务数据, 发射功率.
+ *     (2) 原始数据拷贝到内部数组, UUID 以两个 long 保存, 解析时不为每个条目分配对象.
+ *     (3) 对象解析一次后不再修改, 可以在任意线程读取. 内容变化时 BluetoothInfo 换成新解析的对象,
+ *         内容相同的广播不重复解析, 也不分配.
+ */
+
+public class BleAdvertisement {
+    // 无发射功率字段.
+    public static final int TX_POWER_UNKNOWN = Integer.MIN_VALUE;
+
+    /* AD 类型. */
+    private static final int AD_FLAGS                 = 0x01;
+    private static final int AD_UUID16_INCOMPLETE     = 0x02;
+    private static final int AD_UUID16_COMPLETE       = 0x03;
+    private static final int AD_UUID32_INCOMPLETE     = 0x04;
+    private static final int AD_UUID32_COMPLETE       = 0x05;
+    private static final int AD_UUID128_INCOMPLETE    = 0x06;
+    private static final int AD_UUID128_COMPLETE      = 0x07;
+    private static final int AD_TX_POWER              = 0x0A;
+    private static final int AD_SERVICE_DATA_UUID16   = 0x16;
+    private static final int AD_SERVICE_DATA_UUID32   = 0x20;
+    private static final int AD_SERVICE_DATA_UUID128  = 0x21;
+    private static final int AD_MANUFACTURER_DATA     = 0xFF;
+
+    // 蓝牙基础 UUID 0000xxxx-0000-1000-8000-00805F9B34FB.
+    static final long BASE_UUID_MSB = 0x0000000000001000L;
+    static final long BASE_UUID_LSB = 0x800000805F9B34FBL;
+
+    // 每类条目最多保存的个数.
+    private static final int MAX_ENTRIES = 8;
+
+    private byte[] mRaw = new byte[0];
+    private int mRawLength;
+
+    private int mFlags;
+    private int mTxPower = TX_POWER_UNKNOWN;
+
+    private final long[] mServiceMsb = new long[MAX_ENTRIES];
+    private final long[] mServiceLsb = new long[MAX_ENTRIES];
+    private int mServiceCount;
+
+    private final int[] mManufacturerId = new int[MAX_ENTRIES];
+    private final int[] mManufacturerOffset = new int[MAX_ENTRIES];
+    private final int[] mManufacturerLength = new int[MAX_ENTRIES];
+    private int mManufacturerCount;
+
+    private final long[] mServiceDataMsb = new long[MAX_ENTRIES];
+    private final long[] mServiceDataLsb = new long[MAX_ENTRIES];
+    private final int[] mServiceDataOffset = new int[MAX_ENTRIES];
+    private final int[] mServiceDataLength = new int[MAX_ENTRIES];
+    private int mServiceDataCount;
+
+    /**
+     * 解析广播数据, 只在对象发布之前调用一次.
+     * @param record  onLeScan 的 scanRecord
+     */
+    void parse(byte[] record) {
+        final int length = effectiveLength(record);
+        mRaw = new byte[length];
+        System.arraycopy(record, 0, mRaw, 0, length);
+        mRawLength = length;
+        final byte[] raw = mRaw;
+        int pos = 0;
+        while (pos < length) {
+            final int len = raw[pos] & 0xFF;
+            if (len == 0 || pos + 1 + len > length)
+                break;
+            final int type = raw[pos + 1] & 0xFF;
+            final int start = pos + 2;
+            final int dataLength = len - 1;
+            switch (type) {
+                case AD_FLAGS:
+                    if (dataLength >= 1)
+                        mFlags = raw[start] & 0xFF;
+                    break;
+                case AD_UUID16_INCOMPLETE:
+                case AD_UUID16_COMPLETE:
+                    for (int i = 0; i + 2 <= dataLength; i += 2) {
+                        addServiceUuid(shortUuidMsb(readLE(raw, start + i, 2)), BASE_UUID_LSB);
+                    }
+                    break;
+                case AD_UUID32_INCOMPLETE:
+                case AD_UUID32_COMPLETE:
+                    for (int i = 0; i + 4 <= dataLength; i += 4) {
+                        addServiceUuid(shortUuidMsb(readLE(raw, start + i, 4)), BASE_UUID_LSB);
+                    }
+                    break;
+                case AD_UUID128_INCOMPLETE:
+                case AD_UUID128_COMPLETE:
+                    for (int i = 0; i + 16 <= dataLength; i += 16) {
+                        addServiceUuid(readLE(raw, start + i + 8, 8), readLE(raw, start + i, 8));
+                    }
+                    break;
+                case AD_TX_POWER:
+                    if (dataLength >= 1)
+                        mTxPower = raw[start];
+                    break;
+                case AD_SERVICE_DATA_UUID16:
+                    addServiceData(raw, start, dataLength, 2);
+                    break;
+                case AD_SERVICE_DATA_UUID32:
+                    addServiceData(raw, start, dataLength, 4);
+                    break;
+                case AD_SERVICE_DATA_UUID128:
+                    addServiceData(raw, start, dataLength, 16);
+                    break;
+                case AD_MANUFACTURER_DATA:
+                    if (dataLength >= 2 && mManufacturerCount < MAX_ENTRIES) {
+                        mManufacturerId[mManufacturerCount] = (int) readLE(raw, start, 2);
+                        mManufacturerOffset[mManufacturerCount] = start + 2;
+                        mManufacturerLength[mManufacturerCount] = dataLength - 2;
+                        mManufacturerCount++;
+                    }
+                    break;
+                default:
+                    break;
+            }
+            pos += len + 1;
+        }
+    }
+
+    /**
+     * 是否与 record 的内容相同 (忽略尾部填充).
+     */
+    boolean hasSameRecord(byte[] record) {
+        final int length = effectiveLength(record);
+        return length == mRawLength && regionEquals(record, length);
+    }
+
+    public int getFlags() {
+        return mFlags;
+    }
+
+    /**
+     * 发射功率 (dBm), 没有该字段时返回 TX_POWER_UNKNOWN.
+     */
+    public int getTxPower() {
+        return mTxPower;
+    }
+
+    public int getServiceUuidCount() {
+        return mServiceCount;
+    }
+
+    public UUID getServiceUuid(int index) {
+        return new UUID(mServiceMsb[index], mServiceLsb[index]);
+    }
+
+    long getServiceUuidMsb(int index) {
+        return mServiceMsb[index];
+    }
+
+    long getServiceUuidLsb(int index) {
+        return mServiceLsb[index];
+    }
+
+    /**
+     * 是否广播了指定服务.
+     */
+    public boolean hasServiceUuid(UUID uuid) {
+        return hasServiceUuid(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+    }
+
+    boolean hasServiceUuid(long msb, long lsb) {
+        for (int i = 0; i < mServiceCount; i++) {
+            if (mServiceMsb[i] == msb && mServiceLsb[i] == lsb)
+                return true;
+        }
+        return false;
+    }
+
+    public int getManufacturerCount() {
+        return mManufacturerCount;
+    }
+
+    public int getManufacturerId(int index) {
+        return mManufacturerId[index];
+    }
+
+    /**
+     * 是否包含指定厂商的数据.
+     */
+    public boolean hasManufacturerId(int id) {
+        return indexOfManufacturer(id) >= 0;
+    }
+
+    /**
+     * 厂商数据 (不含厂商 ID), 不存在时返回 null.
+     */
+    public byte[] getManufacturerData(int id) {
+        final int index = indexOfManufacturer(id);
+        if (index < 0)
+            return null;
+        return copy(mManufacturerOffset[index], mManufacturerLength[index]);
+    }
+
+    /**
+     * 厂商数据是否以 data 开头 (按 mask 比较), 不分配对象.
+     */
+    boolean matchesManufacturerData(int id, byte[] data, byte[] mask) {
+        final int index = indexOfManufacturer(id);
+        if (index < 0)
+            return false;
+        if (data == null)
+            return true;
+        if (data.length > mManufacturerLength[index])
+            return false;
+        final int offset = mManufacturerOffset[index];
+        for (int i = 0; i < data.length; i++) {
+            final int m = mask == null ? 0xFF : mask[i];
+            if ((mRaw[offset + i] & m) != (data[i] & m))
+                return false;
+        }
+        return true;
+    }
+
+    public int getServiceDataCount() {
+        return mServiceDataCount;
+    }
+
+    /**
+     * 服务数据 (不含服务 UUID), 不存在时返回 null.
+     */
+    public byte[] getServiceData(UUID uuid) {
+        final long msb = uuid.getMostSignificantBits();
+        final long lsb = uuid.getLeastSignificantBits();
+        for (int i = 0; i < mServiceDataCount; i++) {
+            if (mServiceDataMsb[i] == msb && mServiceDataLsb[i] == lsb)
+                return copy(mServiceDataOffset[i], mServiceDataLength[i]);
+        }
+        return null;
+    }
+
+    /**
+     * 原始广播数据 (去掉尾部填充).
+     */
+    public byte[] getBytes() {
+        return copy(0, mRawLength);
+    }
+
+    /**
+     * 16/32 位 UUID 转为 128 位 UUID 的高 64 位.
+     */
+    static long shortUuidMsb(long shortUuid) {
+        return (shortUuid << 32) | BASE_UUID_MSB;
+    }
+
+    private int indexOfManufacturer(int id) {
+        for (int i = 0; i < mManufacturerCount; i++) {
+            if (mManufacturerId[i] == id)
+                return i;
+        }
+        return -1;
+    }
+
+    private void addServiceUuid(long msb, long lsb) {
+        if (mServiceCount >= MAX_ENTRIES || hasServiceUuid(msb, lsb))
+            return;
+        mServiceMsb[mServiceCount] = msb;
+        mServiceLsb[mServiceCount] = lsb;
+        mServiceCount++;
+    }
+
+    private void addServiceData(byte[] raw, int start, int dataLength, int uuidLength) {
+        if (dataLength < uuidLength || mServiceDataCount >= MAX_ENTRIES)
+            return;
+        final int i = mServiceDataCount;
+        if (uuidLength == 16) {
+            mServiceDataMsb[i] = readLE(raw, start + 8, 8);
+            mServiceDataLsb[i] = readLE(raw, start, 8);
+        } else {
+            mServiceDataMsb[i] = shortUuidMsb(readLE(raw, start, uuidLength));
+            mServiceDataLsb[i] = BASE_UUID_LSB;
+        }
+        mServiceDataOffset[i] = start + uuidLength;
+        mServiceDataLength[i] = dataLength - uuidLength;
+        mServiceDataCount++;
+    }
+
+    private byte[] copy(int offset, int length) {
+        final byte[] data = new byte[length];
+        System.arraycopy(mRaw, offset, data, 0, length);
+        return data;
+    }
+
+    private boolean regionEquals(byte[] record, int length) {
+        for (int i = 0; i < length; i++) {
+            if (mRaw[i] != record[i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * 去掉尾部的 0 填充 (onLeScan 的 scanRecord 固定为 62 字节).
+     */
+    private static int effectiveLength(byte[] record) {
+        int pos = 0;
+        while (pos < record.length) {
+            final int len = record[pos] & 0xFF;
+            if (len == 0 || pos + 1 + len > record.length)
+                break;
+            pos += len + 1;
+        }
+        return pos;
+    }
+
+    /**
+     * 读取小端整数.
+     */
+    private static long readLE(byte[] data, int offset, int length) {
+        long value = 0;
+        for (int i = length - 1; i >= 0; i--) {
+            value = (value << 8) | (data[offset + i] & 0xFF);
+        }
+        return value;
+    }
+}
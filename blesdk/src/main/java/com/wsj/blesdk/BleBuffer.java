@@ -0,0 +1,89 @@
+package com.wsj.blesdk;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 缓冲池数组上的只读视图.<br>
+ *     (1) 数据不拷贝, 只能通过下面的方法读取.
+ *     (2) 用完后调用 release 归还缓冲池, 之后不能再访问; 需要保留数据时先 toByteArray.
+ *     (3) 只允许一个线程使用.
+ */
+
+public final class BleBuffer {
+
+    /**
+     * 视图释放时回收数组.
+     */
+    interface Owner {
+        void onRelease(BleBuffer buffer);
+    }
+
+    private byte[] mArray;
+    private final int mOffset;
+    private final int mLength;
+    private final Owner mOwner;
+
+    BleBuffer(byte[] array, int offset, int length, Owner owner) {
+        mArray = array;
+        mOffset = offset;
+        mLength = length;
+        mOwner = owner;
+    }
+
+    public int length() {
+        return mLength;
+    }
+
+    public byte get(int index) {
+        if (index < 0 || index >= mLength)
+            throw new IndexOutOfBoundsException("index " + index + ", length " + mLength);
+        return array()[mOffset + index];
+    }
+
+    /**
+     * 拷贝 [index, index + length) 到 dst.
+     */
+    public void copyTo(int index, byte[] dst, int dstOffset, int length) {
+        if (index < 0 || length < 0 || index + length > mLength)
+            throw new IndexOutOfBoundsException("range " + index + "+" + length
+                    + ", length " + mLength);
+        System.arraycopy(array(), mOffset + index, dst, dstOffset, length);
+    }
+
+    public byte[] toByteArray() {
+        final byte[] data = new byte[mLength];
+        System.arraycopy(array(), mOffset, data, 0, mLength);
+        return data;
+    }
+
+    /**
+     * 只读 ByteBuffer, 与视图共享数据, 同样在 release 之后失效.
+     */
+    public ByteBuffer asByteBuffer() {
+        return ByteBuffer.wrap(array(), mOffset, mLength).slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * 归还缓冲池, 重复调用无效.
+     */
+    public void release() {
+        if (mArray == null)
+            return;
+        mOwner.onRelease(this);
+        mArray = null;
+    }
+
+    public boolean isReleased() {
+        return mArray == null;
+    }
+
+    /**
+     * 底层数组, 由 Owner 回收.
+     */
+    byte[] array() {
+        final byte[] array = mArray;
+        if (array == null)
+            throw new IllegalStateException("buffer released");
+        return array;
+    }
+}
@@ -0,0 +1,139 @@
+package com.wsj.blesdk;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 按大小分级的字节数组缓冲池, 所有连接共享.<br>
+ *     (1) 不超过 ATT 属性值最大长度 (512) 的数组按实际长度分级: 写特征值要求数组长度等于数据长度,
+ *         分包写和消息通道的帧使用 acquireExact.
+ *     (2) 更大的数组按 2 的幂分级, 最大 64KB, 用于消息重组; 超出时直接分配, 归还时丢弃.
+ *     (3) 每级保留的数组数有上限, 多余的交给 GC.
+ *     (4) 每级一个锁, 只保护取出和放回, 可在 Binder 线程和 SDK 线程中同时使用.
+ */
+
+final class BleBufferPool {
+    // 按实际长度分级的上限 (ATT 属性值最大长度).
+    static final int MAX_EXACT_SIZE  = 512;
+    // 按 2 的幂分级的上限.
+    static final int MAX_CLASS_SIZE  = 64 * 1024;
+    // 最小分级.
+    private static final int MIN_CLASS_SIZE = 16;
+    // 每级最多保留的字节数和数组数.
+    private static final int MAX_LEVEL_BYTES = 64 * 1024;
+    private static final int MAX_LEVEL_COUNT = 64;
+
+    private static final byte[] EMPTY = new byte[0];
+
+    // 下标 0 ~ MAX_EXACT_SIZE 为实际长度, 之后依次为 1KB, 2KB ... MAX_CLASS_SIZE.
+    private final Level[] mLevels;
+
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+    private final AtomicLong mRecycled = new AtomicLong();
+    private final AtomicLong mDiscarded = new AtomicLong();
+
+    private static final class Level {
+        final int size;
+        final int capacity;
+        final ArrayDeque<byte[]> free = new ArrayDeque<>();
+
+        Level(int size) {
+            this.size = size;
+            this.capacity = Math.min(MAX_LEVEL_COUNT, Math.max(2, MAX_LEVEL_BYTES / size));
+        }
+    }
+
+    BleBufferPool() {
+        final int classes = Integer.numberOfTrailingZeros(MAX_CLASS_SIZE)
+                - Integer.numberOfTrailingZeros(MAX_EXACT_SIZE);
+        mLevels = new Level[MAX_EXACT_SIZE + 1 + classes];
+        for (int i = 1; i < mLevels.length; i++) {
+            mLevels[i] = new Level(i <= MAX_EXACT_SIZE ? i : MAX_EXACT_SIZE << (i - MAX_EXACT_SIZE));
+        }
+    }
+
+    /**
+     * 取一个长度不小于 minLength 的数组, 内容未清零.
+     */
+    byte[] acquire(int minLength) {
+        if (minLength <= 0)
+            return EMPTY;
+        final int size = minLength <= MIN_CLASS_SIZE ? MIN_CLASS_SIZE
+                : Integer.highestOneBit(minLength - 1) << 1;
+        return take(size > MAX_CLASS_SIZE ? null : level(size), minLength);
+    }
+
+    /**
+     * 取一个长度恰好为 length 的数组, 内容未清零.
+     */
+    byte[] acquireExact(int length) {
+        if (length <= 0)
+            return EMPTY;
+        return take(length <= MAX_EXACT_SIZE ? mLevels[length] : null, length);
+    }
+
+    /**
+     * 归还数组, 之后不能再访问. 不属于任何分级或该级已满时丢弃.
+     */
+    void release(byte[] buffer) {
+        if (buffer == null || buffer.length == 0)
+            return;
+        final Level level = level(buffer.length);
+        if (level != null) {
+            synchronized (level) {
+                if (level.free.size() < level.capacity) {
+                    level.free.addLast(buffer);
+                    mRecycled.incrementAndGet();
+                    return;
+                }
+            }
+        }
+        mDiscarded.incrementAndGet();
+    }
+
+    void getStats(BleBufferPoolStats stats) {
+        stats.hits = mHits.get();
+        stats.misses = mMisses.get();
+        stats.recycled = mRecycled.get();
+        stats.discarded = mDiscarded.get();
+        int count = 0;
+        long bytes = 0;
+        for (int i = 1; i < mLevels.length; i++) {
+            final Level level = mLevels[i];
+            synchronized (level) {
+                count += level.free.size();
+                bytes += (long) level.free.size() * level.size;
+            }
+        }
+        stats.pooledBuffers = count;
+        stats.pooledBytes = bytes;
+    }
+
+    private byte[] take(Level level, int length) {
+        if (level != null) {
+            final byte[] buffer;
+            synchronized (level) {
+                buffer = level.free.pollLast();
+            }
+            if (buffer != null) {
+                mHits.incrementAndGet();
+                return buffer;
+            }
+        }
+        mMisses.incrementAndGet();
+        return new byte[level == null ? length : level.size];
+    }
+
+    /**
+     * 长度对应的分级, 不属于任何分级时返回 null.
+     */
+    private Level level(int length) {
+        if (length <= MAX_EXACT_SIZE)
+            return mLevels[length];
+        if (length > MAX_CLASS_SIZE || Integer.bitCount(length) != 1)
+            return null;
+        return mLevels[MAX_EXACT_SIZE + Integer.numberOfTrailingZeros(length)
+                - Integer.numberOfTrailingZeros(MAX_EXACT_SIZE)];
+    }
+}
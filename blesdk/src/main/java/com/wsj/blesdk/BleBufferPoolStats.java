@@ -0,0 +1,37 @@
+package com.wsj.blesdk;
+
+/**
+ * 缓冲池统计.
+ */
+
+public class BleBufferPoolStats {
+    // 从缓冲池取到数组的次数.
+    public long hits;
+    // 缓冲池中没有合适的数组, 新分配的次数.
+    public long misses;
+    // 归还并保留的次数.
+    public long recycled;
+    // 归还时因该级已满或大小不属于任何分级而丢弃的次数.
+    public long discarded;
+    // 缓冲池中保留的数组数及总字节数.
+    public int pooledBuffers;
+    public long pooledBytes;
+
+    /**
+     * 命中率, 0 ~ 1.
+     */
+    public double hitRate() {
+        final long total = hits + misses;
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    @Override
+    public String toString() {
+        return "BleBufferPoolStats{hits=" + hits
+                + ", misses=" + misses
+                + ", recycled=" + recycled
+                + ", discarded=" + discarded
+                + ", pooled=" + pooledBuffers
+                + ", pooledBytes=" + pooledBytes + "}";
+    }
+}
@@ -0,0 +1,353 @@
+package com.wsj.blesdk;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+
+/**
+ * 监听回调分发.<br>
+ *     (1) SDK 线程和 Binder 线程产生的事件都经这里回调 BleListener, BleGattListener,
+ *         BleScanListener, BleDeviceLostListener 和 BleTransmitListener.
+ *     (2) 指定 Executor 时 (主线程或调用者的 Executor) 投递后回调, 否则在产生事件的线程直接回调.
+ *     (3) 监听在回调时读取, 取消监听后已投递的事件不再回调.
+ *     (4) 投递时扫描批次和丢失设备的列表会复制, SDK 继续复用自己的列表.
+ */
+
+final class BleCallbackDispatcher implements BleListener, BleGattListener, BleScanListener,
+        BleDeviceLostListener {
+    private volatile Executor mExecutor;
+
+    private volatile BleListener mListener;
+    private volatile BleGattListener mGattListener;
+    private volatile BleScanListener mScanListener;
+    private volatile BleDeviceLostListener mLostListener;
+
+    BleCallbackDispatcher(Executor executor) {
+        mExecutor = executor;
+    }
+
+    /**
+     * @param executor 回调线程, null 表示直接回调
+     */
+    void setExecutor(Executor executor) {
+        mExecutor = executor;
+    }
+
+    void setListener(BleListener listener) {
+        mListener = listener;
+    }
+
+    void setGattListener(BleGattListener listener) {
+        mGattListener = listener;
+    }
+
+    void setScanListener(BleScanListener listener) {
+        mScanListener = listener;
+    }
+
+    void setDeviceLostListener(BleDeviceLostListener listener) {
+        mLostListener = listener;
+    }
+
+    private void execute(Runnable task) {
+        execute(mExecutor, task);
+    }
+
+    private static void execute(Executor executor, Runnable task) {
+        if (executor == null)
+            task.run();
+        else
+            executor.execute(task);
+    }
+
+    @Override
+    public void onBleDiscover(final String name, final String address) {
+        if (mListener == null)
+            return;
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                final BleListener listener = mListener;
+                if (listener != null)
+                    listener.onBleDiscover(name, address);
+            }
+        });
+    }
+
+    @Override
+    public void onBleConnected(final String address) {
+        if (mListener == null)
+            return;
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                final BleListener listener = mListener;
+                if (listener != null)
+                    listener.onBleConnected(address);
+            }
+        });
+    }
+
+    @Override
+    public void onBleDisconnected(final String address) {
+        if (mListener == null)
+            return;
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                final BleListener listener = mListener;
+                if (listener != null)
+                    listener.onBleDisconnected(address);
+            }
+        });
+    }
+
+    @Override
+    public void onBleDiscoverServices(final String address) {
+        if (mListener == null)
+            return;
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                final BleListener listener = mListener;
+                if (listener != null)
+                    listener.onBleDiscoverServices(address);
+            }
+        });
+    }
+
+    @Override
+    public void onBleError(final int code) {
+        if (mListener == null)
+            return;
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                final BleListener listener = mListener;
+                if (listener != null)
+                    listener.onBleError(code);
+            }
+        });
+    }
+
+    @Override
+    public void onBleCharacteristicRead(final String address, final UUID uuid,
+                                        final byte[] value, final int status) {
+        if (mGattListener == null)
+            return;
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                final BleGattListener listener = mGattListener;
+                if (listener != null)
+                    listener.onBleCharacteristicRead(address, uuid, value, status);
+            }
+        });
+    }
+
+    @Override
+    public void onBleCharacteristicWrite(final String address, final UUID uuid,
+                                         final int status) {
+        if (mGattListener == null)
+            return;
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                final BleGattListener listener = mGattListener;
+                if (listener != null)
+                    listener.onBleCharacteristicWrite(address, uuid, status);
+            }
+        });
+    }
+
+    @Override
+    public void onBleCharacteristicChanged(final String address, final UUID uuid,
+                                           final byte[] value) {
+        if (mGattListener == null)
+            return;
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                final BleGattListener listener = mGattListener;
+                if (listener != null)
+                    listener.onBleCharacteristicChanged(address, uuid, value);
+            }
+        });
+    }
+
+    @Override
+    public void onBleDescriptorWrite(final String address, final UUID uuid, final int status) {
+        if (mGattListener == null)
+            return;
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                final BleGattListener listener = mGattListener;
+                if (listener != null)
+                    listener.onBleDescriptorWrite(address, uuid, status);
+            }
+        });
+    }
+
+    @Override
+    public void onBleReadRemoteRssi(final String address, final int rssi, final int status) {
+        if (mGattListener == null)
+            return;
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                final BleGattListener listener = mGattListener;
+                if (listener != null)
+                    listener.onBleReadRemoteRssi(address, rssi, status);
+            }
+        });
+    }
+
+    @Override
+    public void onBleMtuChanged(final String address, final int mtu, final int status) {
+        if (mGattListener == null)
+            return;
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                final BleGattListener listener = mGattListener;
+                if (listener != null)
+                    listener.onBleMtuChanged(address, mtu, status);
+            }
+        });
+    }
+
+    @Override
+    public void onBleError(final String address, final int code) {
+        if (mGattListener == null)
+            return;
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                final BleGattListener listener = mGattListener;
+                if (listener != null)
+                    listener.onBleError(address, code);
+            }
+        });
+    }
+
+    @Override
+    public void onBleScanBatch(List<BluetoothInfo> discovered, List<BluetoothInfo> updated) {
+        if (mScanListener == null)
+            return;
+        final Executor executor = mExecutor;
+        final List<BluetoothInfo> d = executor == null ? discovered : new ArrayList<>(discovered);
+        final List<BluetoothInfo> u = executor == null ? updated : new ArrayList<>(updated);
+        execute(executor, new Runnable() {
+            @Override
+            public void run() {
+                final BleScanListener listener = mScanListener;
+                if (listener != null)
+                    listener.onBleScanBatch(d, u);
+            }
+        });
+    }
+
+    @Override
+    public void onBleDevicesLost(List<BluetoothInfo> lost) {
+        if (mLostListener == null)
+            return;
+        final Executor executor = mExecutor;
+        final List<BluetoothInfo> l = executor == null ? lost : new ArrayList<>(lost);
+        execute(executor, new Runnable() {
+            @Override
+            public void run() {
+                final BleDeviceLostListener listener = mLostListener;
+                if (listener != null)
+                    listener.onBleDevicesLost(l);
+            }
+        });
+    }
+
+    /**
+     * 发送进度监听按同样的方式回调.
+     * @return
+     *      listener 为 null 时返回 null.
+     */
+    BleTransmitListener wrap(final BleTransmitListener listener) {
+        if (listener == null)
+            return null;
+        return new BleTransmitListener() {
+            @Override
+            public void onTransmitProgress(final String address, final int sentBytes,
+                                           final int totalBytes, final long bytesPerSecond) {
+                execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onTransmitProgress(address, sentBytes, totalBytes,
+                                bytesPerSecond);
+                    }
+                });
+            }
+
+            @Override
+            public void onTransmitComplete(final String address, final int totalBytes,
+                                           final long bytesPerSecond) {
+                execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onTransmitComplete(address, totalBytes, bytesPerSecond);
+                    }
+                });
+            }
+
+            @Override
+            public void onTransmitError(final String address, final int code) {
+                execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onTransmitError(address, code);
+                    }
+                });
+            }
+        };
+    }
+
+    BleFanoutListener wrap(final BleFanoutListener listener) {
+        if (listener == null)
+            return null;
+        return new BleFanoutListener() {
+            @Override
+            public void onDeviceFinished(final BleFanoutJob job, final BleFanoutResult result) {
+                execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onDeviceFinished(job, result);
+                    }
+                });
+            }
+
+            @Override
+            public void onJobFinished(final BleFanoutJob job, final BleFanoutStats stats) {
+                execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onJobFinished(job, stats);
+                    }
+                });
+            }
+        };
+    }
+
+    BleTransactionListener wrap(final BleTransactionListener listener) {
+        if (listener == null)
+            return null;
+        return new BleTransactionListener() {
+            @Override
+            public void onTransactionComplete(final BleTransactionResult result) {
+                execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onTransactionComplete(result);
+                    }
+                });
+            }
+        };
+    }
+}
@@ -0,0 +1,1263 @@
+package com.wsj.blesdk;
+
+import com.wsj.blesdk.utils.LogUtil;
+import com.wsj.blesdk.utils.MacAddress;
+
+import java.nio.ByteBuffer;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.wsj.blesdk.BleConstants.BLE_CCCD_UUID;
+import static com.wsj.blesdk.BleConstants.BLE_DEFAULT_MTU;
+import static com.wsj.blesdk.BleConstants.BLE_ERROR_BUSY;
+import static com.wsj.blesdk.BleConstants.BLE_ERROR_CONNECT;
+import static com.wsj.blesdk.BleConstants.BLE_ERROR_DISCONNECT;
+import static com.wsj.blesdk.BleConstants.BLE_ERROR_NO_CHARACTERISTIC;
+import static com.wsj.blesdk.BleConstants.BLE_ERROR_SUBSCRIBE;
+import static com.wsj.blesdk.BleConstants.BLE_ERROR_WRITE;
+import static com.wsj.blesdk.BleConstants.BLE_GATT_SUCCESS;
+import static com.wsj.blesdk.BleConstants.BLE_GENERIC_ATTRIBUTE_SERVICE_UUID;
+import static com.wsj.blesdk.BleConstants.BLE_PRIORITY_HIGH;
+import static com.wsj.blesdk.BleConstants.BLE_PRIORITY_BULK;
+import static com.wsj.blesdk.BleConstants.BLE_PROPERTY_INDICATE;
+import static com.wsj.blesdk.BleConstants.BLE_PROPERTY_NOTIFY;
+import static com.wsj.blesdk.BleConstants.BLE_PROPERTY_WRITE;
+import static com.wsj.blesdk.BleConstants.BLE_SERVICE_CHANGED_UUID;
+
+/**
+ * 单个设备的 GATT 连接.<br>
+ *     每个连接拥有独立的 BleTransport 链路和连接状态机:
+ *     DISCONNECTED -> CONNECTING -> CONNECTED -> DISCONNECTING -> DISCONNECTED.
+ *     连接状态和协商结果为不可变的 BleConnectionState, 按转换表以 CAS 修改,
+ *     UI 线程和 Binder 线程读写都不加锁.
+ *     所有 GATT 操作经 BleOperationQueue 串行执行.
+ *     服务发现结果保存为 BleGattTable 并放入 BleGattCache, 收到 Service Changed 后重新发现.
+ *     连接建立后按 BleThroughputProfile 协商连接优先级, PHY 和 MTU, 排在服务发现之前.
+ *     自动重连时 (setResumable) 断线不关闭订阅, 重连后恢复 MTU, 重新发现服务并恢复订阅.
+ *     可在写特征值和通知特征值之上打开一个 BleMessageChannel, 断线时关闭.
+ *     分包写和通道帧的写入数据取自 BleBufferPool, 写操作结束 (完成, 失败或断开) 时归还.
+ *     固件升级 (BleOtaSession) 在自动重连时跨断线保留, 重连后从检查点继续.
+ *     不直接依赖 Android 蓝牙接口, 时间和定时任务取自 BleScheduler.
+ */
+
+final class BleConnection {
+    // TAG
+    private static final String TAG = "BleConnection";
+
+    /* 蓝牙连接状态. */
+    static final int STATE_DISCONNECTED  = BleConnectionState.DISCONNECTED;
+    static final int STATE_CONNECTING    = BleConnectionState.CONNECTING;
+    static final int STATE_CONNECTED     = BleConnectionState.CONNECTED;
+    static final int STATE_DISCONNECTING = BleConnectionState.DISCONNECTING;
+
+    // CCCD 取值, 与 BluetoothGattDescriptor.*_VALUE 一致.
+    private static final byte[] ENABLE_NOTIFICATION_VALUE  = {0x01, 0x00};
+    private static final byte[] ENABLE_INDICATION_VALUE    = {0x02, 0x00};
+    private static final byte[] DISABLE_NOTIFICATION_VALUE = {0x00, 0x00};
+
+    /**
+     * 连接事件回调, 由 BleManager 实现并分发给上层监听.
+     */
+    interface Callback {
+        void onConnectionStateChanged(BleConnection connection, int oldState, int newState);
+
+        void onConnectionError(BleConnection connection, int code);
+
+        void onOperationFailed(BleConnection connection, BleOperation operation, int code);
+
+        void onServicesDiscovered(BleConnection connection, boolean success);
+
+        void onCharacteristicRead(BleConnection connection, UUID service, UUID characteristic,
+                                  byte[] value, int status);
+
+        void onCharacteristicWrite(BleConnection connection, UUID service, UUID characteristic,
+                                   int status);
+
+        void onCharacteristicChanged(BleConnection connection, UUID service, UUID characteristic,
+                                     byte[] value);
+
+        void onDescriptorWrite(BleConnection connection, UUID service, UUID characteristic,
+                               UUID descriptor, int status);
+
+        void onReadRemoteRssi(BleConnection connection, int rssi, int status);
+
+        void onMtuChanged(BleConnection connection, int mtu, int status);
+    }
+
+    private final BleTransport mTransport;
+    private final String mAddress;
+    // 地址的 long 形式, 用于跟踪记录.
+    private final long mMac;
+    private final Callback mCallback;
+    private final BleScheduler mScheduler;
+    private final BleOperationQueue mQueue;
+    private final BleGattCache mGattCache;
+    private final BleBufferPool mPool;
+
+    // 连接状态和协商结果, 只以 CAS 替换.
+    private final AtomicReference<BleConnectionState> mState;
+    // 当前 GATT 的服务表, 服务发现前为 null.
+    private volatile BleGattTable mGattTable;
+
+    // 连接参数协商配置, null 表示不协商.
+    private volatile BleThroughputProfile mProfile;
+    // 当前发送管道.
+    private volatile BleWritePipeline mWritePipeline;
+    // 已订阅的通知流, 写时复制 (CAS), Binder 线程无锁遍历.
+    private final AtomicReference<BleNotificationStream[]> mStreams =
+            new AtomicReference<>(new BleNotificationStream[0]);
+
+    // 消息通道, 没有时为 null.
+    private final AtomicReference<BleMessageChannel> mChannel = new AtomicReference<>();
+    // 固件升级, 没有时为 null.
+    private final AtomicReference<BleOtaSession> mOta = new AtomicReference<>();
+
+    // 断线后保留订阅等待重连 (自动重连时设置).
+    private volatile boolean mResumable;
+    // 正在从断线中恢复, 服务发现后恢复订阅.
+    private volatile boolean mResuming;
+    // 断线前的 MTU, 重连后重新请求.
+    private volatile int mResumeMtu = BLE_DEFAULT_MTU;
+
+    // 最近一次活动时间, 用于空闲连接淘汰.
+    private volatile long mLastActiveTime;
+    // 回调跟踪, null 表示不记录.
+    private volatile BleTraceRecorder mTrace;
+    // 运行指标, null 表示不统计.
+    private volatile BleMetrics mMetrics;
+    // 发起连接和服务发现的时间, -1 表示未在进行. 在调用线程, SDK 线程和 Binder 线程读写.
+    private volatile long mConnectStartTime = -1;
+    private volatile long mDiscoverStartTime = -1;
+    // 当前通知统计窗口 (Binder 线程), -1 表示未开始.
+    private volatile long mNotifyWindowStart = -1;
+    private volatile long mNotifyWindowBytes;
+
+    BleConnection(BleTransport transport, BleScheduler scheduler, BleGattCache gattCache,
+                  Callback callback) {
+        this(transport, scheduler, gattCache, new BleBufferPool(), callback);
+    }
+
+    BleConnection(BleTransport transport, BleScheduler scheduler, BleGattCache gattCache,
+                  BleBufferPool pool, Callback callback) {
+        mTransport = transport;
+        mAddress = transport.getAddress();
+        mMac = MacAddress.toLong(mAddress);
+        mState = new AtomicReference<>(BleConnectionState.disconnected(mAddress));
+        mCallback = callback;
+        mScheduler = scheduler;
+        mGattCache = gattCache;
+        mPool = pool;
+        mQueue = new BleOperationQueue(scheduler, new BleOperation.Callback() {
+            @Override
+            public void onOperationComplete(BleOperation operation, int status) {
+                // 服务发现超时或被拒绝, 之后可以再次发起.
+                if (operation.type == BleOperation.TYPE_DISCOVER_SERVICES)
+                    mDiscoverStartTime = -1;
+                mCallback.onOperationFailed(BleConnection.this, operation, status);
+            }
+        });
+        touch();
+    }
+
+    String getAddress() {
+        return mAddress;
+    }
+
+    BleTransport getTransport() {
+        return mTransport;
+    }
+
+    /**
+     * 当前服务表, 服务发现前为 null.
+     */
+    BleGattTable getGattTable() {
+        return mGattTable;
+    }
+
+    /**
+     * 当前连接状态快照, 任意线程调用.
+     */
+    BleConnectionState getConnectionState() {
+        return mState.get();
+    }
+
+    int getState() {
+        return mState.get().getState();
+    }
+
+    boolean isConnected() {
+        return getState() == STATE_CONNECTED;
+    }
+
+    int getMtu() {
+        return mState.get().getMtu();
+    }
+
+    void setThroughputProfile(BleThroughputProfile profile) {
+        mProfile = profile;
+    }
+
+    /**
+     * 记录链路回调, null 表示不记录.
+     */
+    void setTraceRecorder(BleTraceRecorder trace) {
+        mTrace = trace;
+    }
+
+    /**
+     * 统计运行指标, null 表示不统计.
+     */
+    void setMetrics(BleMetrics metrics) {
+        mMetrics = metrics;
+        mQueue.setMetrics(metrics);
+    }
+
+    void getLinkParameters(BleLinkParameters parameters) {
+        final BleConnectionState state = mState.get();
+        parameters.mtu = state.getMtu();
+        parameters.txPhy = state.getTxPhy();
+        parameters.rxPhy = state.getRxPhy();
+        parameters.connectionPriority = state.getConnectionPriority();
+        parameters.bulk = state.isBulk();
+    }
+
+    /**
+     * 切换批量/空闲模式, 请求对应的连接优先级.
+     * @return
+     *      是否发出请求 (未配置协商或模式未变化时返回 false).
+     */
+    boolean setBulkMode(boolean bulk) {
+        final BleThroughputProfile profile = mProfile;
+        if (profile == null)
+            return false;
+        while (true) {
+            final BleConnectionState state = mState.get();
+            if (state.isBulk() == bulk)
+                return false;
+            if (mState.compareAndSet(state, state.withBulk(bulk)))
+                break;
+        }
+        final int priority = bulk ? profile.getBulkPriority() : profile.getIdlePriority();
+        return enqueue(BleOperation.requestConnectionPriority(priority)
+                .priority(BLE_PRIORITY_HIGH)
+                .callback(new BleOperation.Callback() {
+                    @Override
+                    public void onOperationComplete(BleOperation operation, int status) {
+                        if (status == BLE_GATT_SUCCESS)
+                            updateConnectionPriority(priority);
+                    }
+                }));
+    }
+
+    /**
+     * 断线后是否保留订阅等待重连. 关闭后, 已断线的连接由调用者 close 释放订阅.
+     */
+    void setResumable(boolean resumable) {
+        mResumable = resumable;
+    }
+
+    long getLastActiveTime() {
+        return mLastActiveTime;
+    }
+
+    void getQueueStats(BleQueueStats stats) {
+        mQueue.getStats(stats);
+    }
+
+    /**
+     * 是否空闲 (已连接且没有正在进行的发送或排队的操作), 空闲连接可被淘汰.
+     */
+    boolean isIdle() {
+        final BleWritePipeline pipeline = mWritePipeline;
+        return getState() == STATE_CONNECTED
+                && (pipeline == null || pipeline.isFinished())
+                && mOta.get() == null
+                && mQueue.isIdle();
+    }
+
+    /**
+     * 发起连接 (直连).
+     */
+    boolean connect() {
+        return connect(false);
+    }
+
+    /**
+     * 发起连接.
+     * @param autoConnect 是否后台连接 (设备出现时由协议栈连接, 不超时)
+     */
+    boolean connect(boolean autoConnect) {
+        while (true) {
+            final BleConnectionState state = mState.get();
+            final BleConnectionState next = state.transition(STATE_CONNECTING);
+            if (next == null)
+                return state.getState() == STATE_CONNECTING || state.getState() == STATE_CONNECTED;
+            if (mState.compareAndSet(state, next))
+                break;
+        }
+        touch();
+        mGattTable = null;
+        mConnectStartTime = mScheduler.now();
+        if (!mTransport.connect(mTransportCallback, autoConnect)) {
+            LogUtil.e(TAG, "connect failed : %s", mAddress);
+            transition(STATE_DISCONNECTED);
+            return false;
+        }
+        mCallback.onConnectionStateChanged(this, STATE_DISCONNECTED, STATE_CONNECTING);
+        return true;
+    }
+
+    /**
+     * 断开连接.
+     */
+    boolean disconnect() {
+        final int oldState;
+        while (true) {
+            final BleConnectionState state = mState.get();
+            final BleConnectionState next = state.transition(STATE_DISCONNECTING);
+            if (next == null)
+                return state.getState() == STATE_DISCONNECTING;
+            if (mState.compareAndSet(state, next)) {
+                oldState = state.getState();
+                break;
+            }
+        }
+        mTransport.disconnect();
+        mCallback.onConnectionStateChanged(this, oldState, STATE_DISCONNECTING);
+        return true;
+    }
+
+    /**
+     * 直接释放连接 (不等待断开回调).
+     */
+    void close() {
+        mTransport.close();
+        mGattTable = null;
+        mResuming = false;
+        cancelTransmit(BLE_ERROR_DISCONNECT);
+        closeOta(mOta.get(), BLE_ERROR_DISCONNECT);
+        mQueue.detach(BLE_ERROR_DISCONNECT);
+        closeStreams();
+        transition(STATE_DISCONNECTED);
+    }
+
+    /**
+     * 操作入队.
+     */
+    boolean enqueue(BleOperation operation) {
+        if (!isConnected())
+            return false;
+        touch();
+        return mQueue.enqueue(operation);
+    }
+
+    /**
+     * 开始查找服务.<br>
+     *     当前 GATT 已完成过服务发现且未收到 Service Changed 时直接回调, 不再访问对端.
+     */
+    boolean discoverServices() {
+        if (!isConnected())
+            return false;
+        // 重连后自动发起的服务发现还未结束, 完成时会回调.
+        if (mDiscoverStartTime >= 0)
+            return true;
+        if (mGattTable != null) {
+            mScheduler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mGattTable != null)
+                        mCallback.onServicesDiscovered(BleConnection.this, true);
+                }
+            });
+            return true;
+        }
+        return enqueueDiscovery();
+    }
+
+    /**
+     * 向写特征值发送数据.
+     */
+    boolean transmit(byte[] data, final UUID serviceUuid, final UUID writeUuid, int window,
+                     boolean withResponse, BleTransmitListener listener) {
+        if (!isConnected())
+            return false;
+        if (mWritePipeline != null && !mWritePipeline.isFinished()) {
+            if (listener != null)
+                listener.onTransmitError(mAddress, BLE_ERROR_BUSY);
+            return false;
+        }
+        final BleGattTable table = mGattTable;
+        if (table == null || serviceUuid == null || writeUuid == null
+                || table.getProperties(serviceUuid, writeUuid) < 0) {
+            LogUtil.e(TAG, "write characteristic not found !!!");
+            if (listener != null)
+                listener.onTransmitError(mAddress, BLE_ERROR_NO_CHARACTERISTIC);
+            return false;
+        }
+        touch();
+        final BleWritePipeline pipeline = new BleWritePipeline(mScheduler, mAddress, data, getMtu(),
+                window, withResponse, mPool, null, idleOnFinish(listener));
+        pipeline.setWriter(new BleWritePipeline.ChunkWriter() {
+            @Override
+            public boolean writeChunk(byte[] chunk, boolean response) {
+                // 分包写走批量优先级, 控制命令可以插队.
+                return mQueue.enqueue(BleOperation.writeCharacteristic(serviceUuid, writeUuid, chunk,
+                        response)
+                        .priority(BLE_PRIORITY_BULK)
+                        .callback(new BleOperation.Callback() {
+                            @Override
+                            public void onOperationComplete(BleOperation operation, int status) {
+                                mPool.release(operation.getValue());
+                                pipeline.onChunkWritten(status == BLE_GATT_SUCCESS);
+                            }
+                        }));
+            }
+        });
+        mWritePipeline = pipeline;
+        setBulkMode(true);
+        return pipeline.start();
+    }
+
+    /**
+     * 发送结束后恢复空闲优先级.
+     */
+    private BleTransmitListener idleOnFinish(final BleTransmitListener listener) {
+        return new BleTransmitListener() {
+            @Override
+            public void onTransmitProgress(String address, int sentBytes, int totalBytes,
+                                           long bytesPerSecond) {
+                if (listener != null)
+                    listener.onTransmitProgress(address, sentBytes, totalBytes, bytesPerSecond);
+            }
+
+            @Override
+            public void onTransmitComplete(String address, int totalBytes, long bytesPerSecond) {
+                final BleMetrics metrics = mMetrics;
+                if (metrics != null)
+                    metrics.onTransmitComplete(totalBytes, bytesPerSecond);
+                setBulkMode(false);
+                if (listener != null)
+                    listener.onTransmitComplete(address, totalBytes, bytesPerSecond);
+            }
+
+            @Override
+            public void onTransmitError(String address, int code) {
+                final BleMetrics metrics = mMetrics;
+                if (metrics != null)
+                    metrics.onError(code);
+                setBulkMode(false);
+                if (listener != null)
+                    listener.onTransmitError(address, code);
+            }
+        };
+    }
+
+    /**
+     * 连接建立后协商连接参数: 服务发现期间使用批量优先级, 然后请求 PHY 和 MTU.
+     */
+    private void negotiate() {
+        final BleThroughputProfile profile = mProfile;
+        if (profile == null)
+            return;
+        setBulkMode(true);
+        if (profile.getPhy() != 0) {
+            enqueue(BleOperation.setPreferredPhy(profile.getPhy(), 0)
+                    .priority(BLE_PRIORITY_HIGH)
+                    .callback(new BleOperation.Callback() {
+                        @Override
+                        public void onOperationComplete(BleOperation operation, int status) {
+                            if (status != BLE_GATT_SUCCESS)
+                                LogUtil.d(TAG, "phy not negotiated %d : %s", status, mAddress);
+                        }
+                    }));
+        }
+        if (profile.getMtu() > BLE_DEFAULT_MTU) {
+            enqueue(BleOperation.requestMtu(profile.getMtu())
+                    .priority(BLE_PRIORITY_HIGH)
+                    .callback(new BleOperation.Callback() {
+                        @Override
+                        public void onOperationComplete(BleOperation operation, int status) {
+                            if (status == BLE_GATT_SUCCESS)
+                                mCallback.onMtuChanged(BleConnection.this, getMtu(), status);
+                            else
+                                LogUtil.d(TAG, "mtu not negotiated %d : %s", status, mAddress);
+                        }
+                    }));
+        }
+    }
+
+    /**
+     * 断线重连后恢复: 请求断线前的 MTU (协商配置中的 MTU 更小时), 然后发现服务,
+     * 协议栈有服务缓存时很快返回, 服务发现后恢复订阅.
+     */
+    private void resume() {
+        final BleThroughputProfile profile = mProfile;
+        final int mtu = mResumeMtu;
+        if (mtu > BLE_DEFAULT_MTU && (profile == null || profile.getMtu() < mtu)) {
+            enqueue(BleOperation.requestMtu(mtu)
+                    .priority(BLE_PRIORITY_HIGH)
+                    .callback(new BleOperation.Callback() {
+                        @Override
+                        public void onOperationComplete(BleOperation operation, int status) {
+                            if (status == BLE_GATT_SUCCESS)
+                                mCallback.onMtuChanged(BleConnection.this, getMtu(), status);
+                        }
+                    }));
+        }
+        enqueueDiscovery();
+    }
+
+    /**
+     * 提交服务发现并记录开始时间, 提交失败时清除, 之后可以再次发起.
+     */
+    private boolean enqueueDiscovery() {
+        mDiscoverStartTime = mScheduler.now();
+        if (enqueue(BleOperation.discoverServices().priority(BLE_PRIORITY_HIGH)))
+            return true;
+        mDiscoverStartTime = -1;
+        return false;
+    }
+
+    /**
+     * 恢复断线前的订阅 (重新写 CCCD), 服务表中已没有的特征值关闭其数据流.
+     */
+    private void resubscribe(BleGattTable table) {
+        for (BleNotificationStream stream : mStreams.get()) {
+            final UUID service = stream.getServiceUuid();
+            final UUID characteristic = stream.getCharacteristicUuid();
+            final int properties = table.getProperties(service, characteristic);
+            if (properties < 0
+                    || !mTransport.setCharacteristicNotification(service, characteristic, true)) {
+                LogUtil.e(TAG, "subscription lost %s : %s", characteristic, mAddress);
+                removeStream(stream);
+                stream.close();
+                continue;
+            }
+            writeCccd(service, characteristic, (properties & BLE_PROPERTY_NOTIFY) != 0
+                    ? ENABLE_NOTIFICATION_VALUE
+                    : ENABLE_INDICATION_VALUE);
+        }
+    }
+
+    /**
+     * 订阅特征值通知 (写 CCCD 描述符), 通知数据写入返回的数据流.
+     * @return
+     *      特征值不存在或协议栈拒绝时返回 null.
+     */
+    BleNotificationStream subscribe(UUID serviceUuid, UUID characteristicUuid,
+                                    int capacity, int slotSize) {
+        final BleGattTable table = mGattTable;
+        if (!isConnected() || table == null || serviceUuid == null || characteristicUuid == null)
+            return null;
+        final int properties = table.getProperties(serviceUuid, characteristicUuid);
+        if (properties < 0)
+            return null;
+        BleNotificationStream stream = findStream(serviceUuid, characteristicUuid);
+        if (stream != null)
+            return stream;
+        if (!mTransport.setCharacteristicNotification(serviceUuid, characteristicUuid, true))
+            return null;
+        stream = new BleNotificationStream(mAddress, serviceUuid, characteristicUuid,
+                capacity, slotSize);
+        addStream(stream);
+        final byte[] value = (properties & BLE_PROPERTY_NOTIFY) != 0
+                ? ENABLE_NOTIFICATION_VALUE
+                : ENABLE_INDICATION_VALUE;
+        if (!writeCccd(serviceUuid, characteristicUuid, value)) {
+            removeStream(stream);
+            mTransport.setCharacteristicNotification(serviceUuid, characteristicUuid, false);
+            return null;
+        }
+        return stream;
+    }
+
+    /**
+     * 取消订阅.
+     */
+    boolean unsubscribe(BleNotificationStream stream) {
+        if (!removeStream(stream))
+            return false;
+        stream.close();
+        final BleMessageChannel channel = mChannel.get();
+        final BleOtaSession ota = mOta.get();
+        if (!isConnected() || channel != null
+                && channel.matches(stream.getServiceUuid(), stream.getCharacteristicUuid())
+                || ota != null
+                && ota.matches(stream.getServiceUuid(), stream.getCharacteristicUuid()))
+            return true;
+        mTransport.setCharacteristicNotification(stream.getServiceUuid(),
+                stream.getCharacteristicUuid(), false);
+        writeCccd(stream.getServiceUuid(), stream.getCharacteristicUuid(),
+                DISABLE_NOTIFICATION_VALUE);
+        return true;
+    }
+
+    /**
+     * 打开消息通道: 订阅 notifyUuid 的通知接收帧, 帧写入 writeUuid (无应答写).
+     * @return
+     *      特征值不存在, 已有通道或协议栈拒绝时返回 null.
+     */
+    BleMessageChannel openChannel(final UUID serviceUuid, final UUID writeUuid, UUID notifyUuid,
+                                  int window, int capacity) {
+        final BleGattTable table = mGattTable;
+        if (!isConnected() || table == null || serviceUuid == null || writeUuid == null
+                || notifyUuid == null || mChannel.get() != null
+                || table.getProperties(serviceUuid, writeUuid) < 0)
+            return null;
+        final int properties = table.getProperties(serviceUuid, notifyUuid);
+        if (properties < 0 || (properties & (BLE_PROPERTY_NOTIFY | BLE_PROPERTY_INDICATE)) == 0)
+            return null;
+        final BleMessageChannel channel = new BleMessageChannel(mScheduler, mAddress, serviceUuid,
+                notifyUuid, window, capacity, new BleMessageChannel.Link() {
+            @Override
+            public boolean writeFrame(byte[] frame, boolean control) {
+                // 通道保留原帧用于重传, 排队的是缓冲池中的拷贝.
+                final byte[] value = mPool.acquireExact(frame.length);
+                System.arraycopy(frame, 0, value, 0, frame.length);
+                // 确认帧插在数据帧之前, 丢失的帧由通道重传, 不上报写失败.
+                if (enqueue(BleOperation.writeCharacteristic(serviceUuid, writeUuid, value, false)
+                        .priority(control ? BLE_PRIORITY_HIGH : BLE_PRIORITY_BULK)
+                        .callback(mReleaseValue)))
+                    return true;
+                mPool.release(value);
+                return false;
+            }
+
+            @Override
+            public int getFrameSize() {
+                return getMtu() - BleConstants.BLE_ATT_WRITE_HEADER;
+            }
+
+            @Override
+            public void onClosed(BleMessageChannel channel, int code) {
+                if (closeChannel(channel, code))
+                    mCallback.onConnectionError(BleConnection.this, code);
+            }
+        }, mPool);
+        if (!mChannel.compareAndSet(null, channel))
+            return null;
+        if (findStream(serviceUuid, notifyUuid) != null)
+            return channel;
+        if (!mTransport.setCharacteristicNotification(serviceUuid, notifyUuid, true)
+                || !writeCccd(serviceUuid, notifyUuid, (properties & BLE_PROPERTY_NOTIFY) != 0
+                ? ENABLE_NOTIFICATION_VALUE
+                : ENABLE_INDICATION_VALUE)) {
+            closeChannel(channel, BLE_ERROR_SUBSCRIBE);
+            return null;
+        }
+        return channel;
+    }
+
+    /**
+     * 关闭消息通道, 同一特征值没有数据流时取消订阅.
+     * @param code  关闭原因, 正常关闭为 0
+     */
+    boolean closeChannel(BleMessageChannel channel, int code) {
+        if (channel == null || !mChannel.compareAndSet(channel, null))
+            return false;
+        channel.close(code);
+        final UUID service = channel.getServiceUuid();
+        final UUID characteristic = channel.getNotifyUuid();
+        if (isConnected() && findStream(service, characteristic) == null) {
+            mTransport.setCharacteristicNotification(service, characteristic, false);
+            writeCccd(service, characteristic, DISABLE_NOTIFICATION_VALUE);
+        }
+        return true;
+    }
+
+    /**
+     * 开始固件升级: 订阅控制点的通知, 命令写入控制点, 数据包写入数据特征值 (无应答写).
+     * @param image        镜像 (内存映射)
+     * @param window       未确认的包数
+     * @param checkpoints  检查点
+     * @return
+     *      特征值不存在或已在升级时返回 null. 会话在 SDK 线程开始,
+     *      之后订阅控制点或写开始命令失败时以 BLE_ERROR_WRITE 回调 listener.
+     */
+    BleOtaSession startOta(final UUID serviceUuid, final UUID controlUuid, final UUID packetUuid,
+                           ByteBuffer image, int window, BleOtaCheckpoint checkpoints,
+                           final BleTransmitListener listener) {
+        final BleGattTable table = mGattTable;
+        if (!isConnected() || table == null || serviceUuid == null || controlUuid == null
+                || packetUuid == null || image == null || mOta.get() != null
+                || table.getProperties(serviceUuid, packetUuid) < 0)
+            return null;
+        final int properties = table.getProperties(serviceUuid, controlUuid);
+        if (properties < 0 || (properties & (BLE_PROPERTY_NOTIFY | BLE_PROPERTY_INDICATE)) == 0)
+            return null;
+        final boolean withResponse = (properties & BLE_PROPERTY_WRITE) != 0;
+        final BleOtaSession session = new BleOtaSession(mScheduler, mAddress, serviceUuid,
+                controlUuid, packetUuid, image, window, mPool, checkpoints, listener);
+        final BleOperation.Callback controlWritten = new BleOperation.Callback() {
+            @Override
+            public void onOperationComplete(BleOperation operation, int status) {
+                session.onControlWritten(status == BLE_GATT_SUCCESS);
+            }
+        };
+        final BleOperation.Callback packetWritten = new BleOperation.Callback() {
+            @Override
+            public void onOperationComplete(BleOperation operation, int status) {
+                mPool.release(operation.getValue());
+                session.onPacketWritten(status == BLE_GATT_SUCCESS);
+            }
+        };
+        session.setLink(new BleOtaSession.Link() {
+            @Override
+            public boolean writeControl(byte[] command) {
+                return enqueue(BleOperation.writeCharacteristic(serviceUuid, controlUuid, command,
+                        withResponse)
+                        .priority(BLE_PRIORITY_HIGH)
+                        .callback(controlWritten));
+            }
+
+            @Override
+            public boolean writePacket(byte[] packet) {
+                return enqueue(BleOperation.writeCharacteristic(serviceUuid, packetUuid, packet,
+                        false)
+                        .priority(BLE_PRIORITY_BULK)
+                        .callback(packetWritten));
+            }
+
+            @Override
+            public int getPacketSize() {
+                return getMtu() - BleConstants.BLE_ATT_WRITE_HEADER;
+            }
+
+            @Override
+            public void onFinished(BleOtaSession session, int code) {
+                closeOta(session, code);
+            }
+        });
+        if (!mOta.compareAndSet(null, session))
+            return null;
+        touch();
+        // 计算镜像的 CRC 需要读取整个文件, 在 SDK 线程开始, 不阻塞调用线程.
+        mScheduler.post(new Runnable() {
+            @Override
+            public void run() {
+                beginOta(session, table, listener);
+            }
+        });
+        return session;
+    }
+
+    /**
+     * 订阅控制点并开始升级 (SDK 线程), 失败时以 BLE_ERROR_WRITE 回调监听.
+     */
+    private void beginOta(BleOtaSession session, BleGattTable table,
+                          BleTransmitListener listener) {
+        // 开始前已取消或断开.
+        if (mOta.get() != session)
+            return;
+        if (!isConnected() || !enableNotification(table, session.getServiceUuid(),
+                session.getControlUuid())) {
+            if (mOta.compareAndSet(session, null) && listener != null)
+                listener.onTransmitError(mAddress, BLE_ERROR_WRITE);
+            return;
+        }
+        setBulkMode(true);
+        // 失败时会话通过 onFinished 关闭.
+        session.start();
+    }
+
+    /**
+     * 执行读写事务, 结果通过 listener 回调一次.
+     * @param timeout  每个操作的超时 (毫秒)
+     * @return
+     *      未连接, 服务发现前, 事务为空或特征值不存在时返回 false, 不回调.
+     */
+    boolean executeTransaction(BleTransaction transaction, long timeout,
+                               BleTransactionListener listener) {
+        final BleGattTable table = mGattTable;
+        if (!isConnected() || table == null || transaction.size() == 0)
+            return false;
+        final BleTransactionRunner runner = new BleTransactionRunner(mScheduler, mAddress,
+                transaction.getSteps(), timeout, listener);
+        if (!runner.plan(table, getMtu(), transaction.isReliable()))
+            return false;
+        touch();
+        return runner.start(new BleTransactionRunner.Link() {
+            @Override
+            public boolean enqueue(BleOperation operation) {
+                return BleConnection.this.enqueue(operation);
+            }
+
+            @Override
+            public boolean enqueueNext(BleOperation operation) {
+                if (!isConnected())
+                    return false;
+                touch();
+                return mQueue.enqueueFirst(operation);
+            }
+        });
+    }
+
+    /**
+     * 正在进行的固件升级, 没有时返回 null.
+     */
+    BleOtaSession getOtaSession() {
+        return mOta.get();
+    }
+
+    /**
+     * 结束固件升级, 检查点保留. 控制点没有数据流时取消订阅.
+     * @param code  结束原因, 完成为 0
+     */
+    boolean closeOta(BleOtaSession session, int code) {
+        if (session == null || !mOta.compareAndSet(session, null))
+            return false;
+        session.cancel(code);
+        if (!isConnected())
+            return true;
+        final BleWritePipeline pipeline = mWritePipeline;
+        if (pipeline == null || pipeline.isFinished())
+            setBulkMode(false);
+        final UUID service = session.getServiceUuid();
+        final UUID characteristic = session.getControlUuid();
+        if (findStream(service, characteristic) == null) {
+            mTransport.setCharacteristicNotification(service, characteristic, false);
+            writeCccd(service, characteristic, DISABLE_NOTIFICATION_VALUE);
+        }
+        return true;
+    }
+
+    /**
+     * 重连并发现服务后, 重新订阅控制点并从检查点继续升级.
+     */
+    private void resumeOta(BleGattTable table) {
+        final BleOtaSession session = mOta.get();
+        if (session == null)
+            return;
+        final UUID service = session.getServiceUuid();
+        if (table.getProperties(service, session.getPacketUuid()) < 0
+                || !enableNotification(table, service, session.getControlUuid())) {
+            closeOta(session, BLE_ERROR_NO_CHARACTERISTIC);
+            return;
+        }
+        setBulkMode(true);
+        session.resume();
+    }
+
+    /**
+     * 打开通知 (写 CCCD), 已有该特征值的数据流时不重复写入.
+     */
+    private boolean enableNotification(BleGattTable table, UUID serviceUuid,
+                                       UUID characteristicUuid) {
+        if (findStream(serviceUuid, characteristicUuid) != null)
+            return true;
+        final int properties = table.getProperties(serviceUuid, characteristicUuid);
+        if (properties < 0 || (properties & (BLE_PROPERTY_NOTIFY | BLE_PROPERTY_INDICATE)) == 0)
+            return false;
+        return mTransport.setCharacteristicNotification(serviceUuid, characteristicUuid, true)
+                && writeCccd(serviceUuid, characteristicUuid,
+                (properties & BLE_PROPERTY_NOTIFY) != 0
+                        ? ENABLE_NOTIFICATION_VALUE
+                        : ENABLE_INDICATION_VALUE);
+    }
+
+    /**
+     * 写 CCCD 描述符, 特征值没有 CCCD 时只设置本地通知开关.
+     */
+    private boolean writeCccd(UUID serviceUuid, UUID characteristicUuid, byte[] value) {
+        final BleGattTable table = mGattTable;
+        if (table == null || !table.hasDescriptor(serviceUuid, characteristicUuid, BLE_CCCD_UUID))
+            return true;
+        return enqueue(BleOperation.writeDescriptor(serviceUuid, characteristicUuid,
+                BLE_CCCD_UUID, value)
+                .priority(BLE_PRIORITY_HIGH)
+                .callback(new BleOperation.Callback() {
+                    @Override
+                    public void onOperationComplete(BleOperation operation, int status) {
+                        if (status != BLE_GATT_SUCCESS)
+                            mCallback.onConnectionError(BleConnection.this, BLE_ERROR_SUBSCRIBE);
+                    }
+                }));
+    }
+
+    private BleNotificationStream findStream(UUID serviceUuid, UUID characteristicUuid) {
+        for (BleNotificationStream stream : mStreams.get()) {
+            if (stream.matches(serviceUuid, characteristicUuid))
+                return stream;
+        }
+        return null;
+    }
+
+    private void addStream(BleNotificationStream stream) {
+        while (true) {
+            final BleNotificationStream[] old = mStreams.get();
+            final BleNotificationStream[] streams = new BleNotificationStream[old.length + 1];
+            System.arraycopy(old, 0, streams, 0, old.length);
+            streams[old.length] = stream;
+            if (mStreams.compareAndSet(old, streams))
+                return;
+        }
+    }
+
+    private boolean removeStream(BleNotificationStream stream) {
+        while (true) {
+            final BleNotificationStream[] old = mStreams.get();
+            int index = -1;
+            for (int i = 0; i < old.length; i++) {
+                if (old[i] == stream) {
+                    index = i;
+                    break;
+                }
+            }
+            if (index < 0)
+                return false;
+            final BleNotificationStream[] streams = new BleNotificationStream[old.length - 1];
+            System.arraycopy(old, 0, streams, 0, index);
+            System.arraycopy(old, index + 1, streams, index, old.length - index - 1);
+            if (mStreams.compareAndSet(old, streams))
+                return true;
+        }
+    }
+
+    private void closeStreams() {
+        for (BleNotificationStream stream : mStreams.getAndSet(new BleNotificationStream[0])) {
+            stream.close();
+        }
+    }
+
+    /**
+     * 服务发现完成, 建立服务表并订阅 Service Changed.
+     */
+    private void servicesDiscovered(BleGattTable table) {
+        mGattTable = table;
+        if (mGattCache.put(MacAddress.toLong(mAddress), table))
+            LogUtil.d(TAG, "gatt cache updated : %s", mAddress);
+        final int properties = table.getProperties(BLE_GENERIC_ATTRIBUTE_SERVICE_UUID,
+                BLE_SERVICE_CHANGED_UUID);
+        if (properties >= 0 && (properties & BLE_PROPERTY_INDICATE) != 0
+                && mTransport.setCharacteristicNotification(BLE_GENERIC_ATTRIBUTE_SERVICE_UUID,
+                BLE_SERVICE_CHANGED_UUID, true))
+            writeCccd(BLE_GENERIC_ATTRIBUTE_SERVICE_UUID, BLE_SERVICE_CHANGED_UUID,
+                    ENABLE_INDICATION_VALUE);
+        if (mResuming) {
+            mResuming = false;
+            resubscribe(table);
+            resumeOta(table);
+        }
+    }
+
+    /**
+     * 对端服务表已变化: 删除缓存, 刷新协议栈缓存并重新发现服务.
+     */
+    private void serviceChanged() {
+        LogUtil.d(TAG, "service changed : %s", mAddress);
+        mGattTable = null;
+        mGattCache.invalidate(MacAddress.toLong(mAddress));
+        mTransport.refreshCache();
+        enqueueDiscovery();
+    }
+
+    private void cancelTransmit(int code) {
+        final BleWritePipeline pipeline = mWritePipeline;
+        mWritePipeline = null;
+        if (pipeline != null)
+            pipeline.cancel(code);
+    }
+
+    /**
+     * 按转换表切换状态.
+     * @return
+     *      切换前的快照, 转换表不允许时返回 null.
+     */
+    private BleConnectionState transition(int state) {
+        while (true) {
+            final BleConnectionState old = mState.get();
+            final BleConnectionState next = old.transition(state);
+            if (next == null)
+                return null;
+            if (mState.compareAndSet(old, next))
+                return old;
+        }
+    }
+
+    /* 协商结果, 连接已断开时丢弃 (迟到的回调). */
+    private void updateMtu(int mtu) {
+        while (true) {
+            final BleConnectionState old = mState.get();
+            if (old.getState() == STATE_DISCONNECTED
+                    || mState.compareAndSet(old, old.withMtu(mtu)))
+                return;
+        }
+    }
+
+    private void updatePhy(int txPhy, int rxPhy) {
+        while (true) {
+            final BleConnectionState old = mState.get();
+            if (old.getState() == STATE_DISCONNECTED
+                    || mState.compareAndSet(old, old.withPhy(txPhy, rxPhy)))
+                return;
+        }
+    }
+
+    private void updateConnectionPriority(int priority) {
+        while (true) {
+            final BleConnectionState old = mState.get();
+            if (old.getState() == STATE_DISCONNECTED
+                    || mState.compareAndSet(old, old.withConnectionPriority(priority)))
+                return;
+        }
+    }
+
+    private void touch() {
+        mLastActiveTime = mScheduler.now();
+    }
+
+    // 链路回调.
+    // 写操作结束后归还数据, 结果由发起方自行处理.
+    private final BleOperation.Callback mReleaseValue = new BleOperation.Callback() {
+        @Override
+        public void onOperationComplete(BleOperation operation, int status) {
+            mPool.release(operation.getValue());
+        }
+    };
+
+    private final BleTransport.Callback mTransportCallback = new BleTransport.Callback() {
+        @Override
+        public void onConnectionStateChange(int status, boolean connected) {
+            trace(BleTraceRecorder.OP_CONNECTION_STATE, status, connected ? 1 : 0, null, null);
+            touch();
+            if (status == BLE_GATT_SUCCESS && connected) {
+                connectionEstablished();
+            } else {
+                connectionLost(status);
+            }
+        }
+
+        @Override
+        public void onServicesDiscovered(BleGattTable table, int status) {
+            trace(BleTraceRecorder.OP_SERVICES_DISCOVERED, status,
+                    table == null ? 0 : table.getServiceUuids().size(), null, null);
+            touch();
+            final boolean success = status == BLE_GATT_SUCCESS && table != null;
+            final BleMetrics metrics = mMetrics;
+            if (success && metrics != null && mDiscoverStartTime >= 0)
+                metrics.onServicesDiscovered(mScheduler.now() - mDiscoverStartTime);
+            mDiscoverStartTime = -1;
+            if (success)
+                servicesDiscovered(table);
+            final BleWritePipeline pipeline = mWritePipeline;
+            if ((pipeline == null || pipeline.isFinished()) && mOta.get() == null)
+                setBulkMode(false);
+            mCallback.onServicesDiscovered(BleConnection.this, success);
+            mQueue.complete(BleOperation.TYPE_DISCOVER_SERVICES, null, null, null, status);
+        }
+
+        @Override
+        public void onCharacteristicRead(UUID service, UUID characteristic, byte[] value,
+                                         int status) {
+            trace(BleTraceRecorder.OP_CHARACTERISTIC_READ, status, 0, characteristic, value);
+            touch();
+            if (isExternal(mQueue.complete(BleOperation.TYPE_READ_CHARACTERISTIC,
+                    service, characteristic, null, status, value)))
+                mCallback.onCharacteristicRead(BleConnection.this, service, characteristic,
+                        value, status);
+        }
+
+        @Override
+        public void onCharacteristicChanged(UUID service, UUID characteristic, byte[] value) {
+            trace(BleTraceRecorder.OP_CHARACTERISTIC_CHANGED, BLE_GATT_SUCCESS, 0,
+                    characteristic, value);
+            if (BLE_SERVICE_CHANGED_UUID.equals(characteristic)) {
+                serviceChanged();
+                return;
+            }
+            final BleMetrics metrics = mMetrics;
+            if (metrics != null)
+                countNotification(metrics, value == null ? 0 : value.length);
+            final BleMessageChannel channel = mChannel.get();
+            if (channel != null && channel.matches(service, characteristic)) {
+                channel.onFrame(value);
+                return;
+            }
+            final BleOtaSession ota = mOta.get();
+            if (ota != null && ota.matches(service, characteristic)) {
+                ota.onControl(value);
+                return;
+            }
+            final BleNotificationStream stream = findStream(service, characteristic);
+            if (stream != null)
+                stream.offer(value);
+            else
+                mCallback.onCharacteristicChanged(BleConnection.this, service, characteristic,
+                        value);
+        }
+
+        @Override
+        public void onCharacteristicWrite(UUID service, UUID characteristic, byte[] value,
+                                          int status) {
+            trace(BleTraceRecorder.OP_CHARACTERISTIC_WRITE, status, 0, characteristic, null);
+            touch();
+            if (isExternal(mQueue.complete(BleOperation.TYPE_WRITE_CHARACTERISTIC,
+                    service, characteristic, null, status, value)))
+                mCallback.onCharacteristicWrite(BleConnection.this, service, characteristic,
+                        status);
+        }
+
+        @Override
+        public void onDescriptorRead(UUID service, UUID characteristic, UUID descriptor,
+                                     byte[] value, int status) {
+            trace(BleTraceRecorder.OP_DESCRIPTOR_READ, status, shortUuid(descriptor),
+                    characteristic, value);
+            touch();
+            mQueue.complete(BleOperation.TYPE_READ_DESCRIPTOR, service, characteristic,
+                    descriptor, status);
+        }
+
+        @Override
+        public void onDescriptorWrite(UUID service, UUID characteristic, UUID descriptor,
+                                      int status) {
+            trace(BleTraceRecorder.OP_DESCRIPTOR_WRITE, status, shortUuid(descriptor),
+                    characteristic, null);
+            touch();
+            if (isExternal(mQueue.complete(BleOperation.TYPE_WRITE_DESCRIPTOR, service,
+                    characteristic, descriptor, status)))
+                mCallback.onDescriptorWrite(BleConnection.this, service, characteristic,
+                        descriptor, status);
+        }
+
+        @Override
+        public void onReadRemoteRssi(int rssi, int status) {
+            trace(BleTraceRecorder.OP_READ_RSSI, status, rssi, null, null);
+            if (isExternal(mQueue.complete(BleOperation.TYPE_READ_RSSI, null, null, null, status)))
+                mCallback.onReadRemoteRssi(BleConnection.this, rssi, status);
+        }
+
+        @Override
+        public void onMtuChanged(int mtu, int status) {
+            trace(BleTraceRecorder.OP_MTU_CHANGED, status, mtu, null, null);
+            if (status == BLE_GATT_SUCCESS)
+                updateMtu(mtu);
+            if (isExternal(mQueue.complete(BleOperation.TYPE_REQUEST_MTU, null, null, null,
+                    status)))
+                mCallback.onMtuChanged(BleConnection.this, mtu, status);
+        }
+
+        @Override
+        public void onPhyUpdate(int txPhy, int rxPhy, int status) {
+            trace(BleTraceRecorder.OP_PHY_UPDATE, status, txPhy << 16 | rxPhy & 0xffff,
+                    null, null);
+            if (status == BLE_GATT_SUCCESS)
+                updatePhy(txPhy, rxPhy);
+            mQueue.complete(BleOperation.TYPE_SET_PHY, null, null, null, status);
+        }
+
+        @Override
+        public void onReliableWriteCompleted(int status) {
+            trace(BleTraceRecorder.OP_RELIABLE_WRITE, status, 0, null, null);
+            touch();
+            // 提交和放弃都以这个回调结束, 同一时间只有一个在执行.
+            if (mQueue.complete(BleOperation.TYPE_EXECUTE_RELIABLE_WRITE, null, null, null,
+                    status) == null)
+                mQueue.complete(BleOperation.TYPE_ABORT_RELIABLE_WRITE, null, null, null, status);
+        }
+    };
+
+    /**
+     * 记录一次链路回调 (Binder 线程, 不分配对象).
+     */
+    private void trace(int op, int status, int argument, UUID characteristic, byte[] value) {
+        final BleTraceRecorder trace = mTrace;
+        if (trace != null)
+            trace.record(mMac, op, status, argument, characteristic, value);
+    }
+
+    /**
+     * 统计通知, 每个窗口结束时记录一次接收速率 (Binder 线程).
+     */
+    private void countNotification(BleMetrics metrics, int bytes) {
+        metrics.onNotification(bytes);
+        final long now = mScheduler.now();
+        if (mNotifyWindowStart < 0)
+            mNotifyWindowStart = now;
+        mNotifyWindowBytes += bytes;
+        final long elapsed = now - mNotifyWindowStart;
+        if (elapsed >= BleMetrics.NOTIFY_WINDOW) {
+            metrics.onNotifyThroughput(mNotifyWindowBytes * 1000 / elapsed);
+            mNotifyWindowStart = now;
+            mNotifyWindowBytes = 0;
+        }
+    }
+
+    /**
+     * 回调是否需要通知上层: 不属于队列中的操作, 或操作没有自己的完成回调.
+     *     已超时操作迟到的回调不通知, 超时已作为失败上报.
+     */
+    private static boolean isExternal(BleOperation op) {
+        return op == null || (op.getCallback() == null && !op.timedOut);
+    }
+
+    /**
+     * 16 位 UUID (蓝牙基础 UUID 上的部分).
+     */
+    private static int shortUuid(UUID uuid) {
+        return uuid == null ? 0 : (int) (uuid.getMostSignificantBits() >>> 32) & 0xffff;
+    }
+
+    /**
+     * 连接成功.
+     */
+    private void connectionEstablished() {
+        // 只允许 CONNECTING -> CONNECTED, 正在断开或已释放时忽略.
+        final BleConnectionState old = transition(STATE_CONNECTED);
+        if (old == null)
+            return;
+        final int oldState = old.getState();
+        final BleMetrics metrics = mMetrics;
+        if (metrics != null && mConnectStartTime >= 0)
+            metrics.onConnected(mScheduler.now() - mConnectStartTime);
+        mConnectStartTime = -1;
+        mQueue.attach(mTransport);
+        negotiate();
+        if (mResuming)
+            resume();
+        mCallback.onConnectionStateChanged(this, oldState, STATE_CONNECTED);
+    }
+
+    /**
+     * 连接断开或连接/断开失败, 释放链路.
+     */
+    private void connectionLost(int status) {
+        final BleConnectionState old = transition(STATE_DISCONNECTED);
+        final int oldState = old == null ? STATE_DISCONNECTED : old.getState();
+        mTransport.close();
+        mGattTable = null;
+        // 先结束发送, 否则排队的分包写失败会被当作写错误上报.
+        cancelTransmit(BLE_ERROR_DISCONNECT);
+        // 固件升级等待重连后从检查点继续, 不重连时结束. 需在排队的写操作失败之前.
+        final BleOtaSession ota = mOta.get();
+        if (ota != null) {
+            if (mResumable && oldState != STATE_DISCONNECTING)
+                ota.pause();
+            else
+                closeOta(ota, BLE_ERROR_DISCONNECT);
+        }
+        mQueue.detach(BLE_ERROR_DISCONNECT);
+        // 通道的序号和重传状态不能跨连接保留.
+        closeChannel(mChannel.get(), BLE_ERROR_DISCONNECT);
+        if (!mResumable || oldState == STATE_DISCONNECTING) {
+            mResuming = false;
+            closeStreams();
+        } else if (oldState == STATE_CONNECTED) {
+            // 等待重连, 订阅保留.
+            mResuming = true;
+            mResumeMtu = old.getMtu();
+        }
+        mConnectStartTime = -1;
+        mDiscoverStartTime = -1;
+        mNotifyWindowStart = -1;
+        mNotifyWindowBytes = 0;
+        if (status != BLE_GATT_SUCCESS) {
+            LogUtil.e(TAG, "connection state error %d : %s", status, mAddress);
+            if (oldState == STATE_CONNECTING)
+                mCallback.onConnectionError(this, BLE_ERROR_CONNECT);
+            else if (oldState == STATE_DISCONNECTING)
+                mCallback.onConnectionError(this, BLE_ERROR_DISCONNECT);
+        }
+        if (oldState != STATE_DISCONNECTED)
+            mCallback.onConnectionStateChanged(this, oldState, STATE_DISCONNECTED);
+    }
+}
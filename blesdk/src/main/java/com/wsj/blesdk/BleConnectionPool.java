@@ -0,0 +1,95 @@
+package com.wsj.blesdk;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 连接池.<br>
+ *     (1) 以设备地址为键保存连接 (ConcurrentHashMap), 任意线程读写不加锁, 遍历不会抛出
+ *         ConcurrentModificationException.
+ *     (2) 限制最大同时连接数, 超出时淘汰最久未活动 (getLastActiveTime) 的空闲连接.
+ *     (3) 移除都按 (地址, 连接) 比较后进行, 不会误删同一地址新建的连接.
+ */
+
+final class BleConnectionPool {
+    // Android 协议栈通常最多支持 7 个同时连接.
+    static final int DEFAULT_MAX_CONNECTIONS = 7;
+
+    private final ConcurrentHashMap<String, BleConnection> mConnections =
+            new ConcurrentHashMap<>(16, 0.75f, 4);
+    private volatile int mMaxConnections = DEFAULT_MAX_CONNECTIONS;
+
+    void setMaxConnections(int max) {
+        mMaxConnections = Math.max(1, max);
+    }
+
+    int getMaxConnections() {
+        return mMaxConnections;
+    }
+
+    BleConnection get(String address) {
+        if (address == null)
+            return null;
+        return mConnections.get(address);
+    }
+
+    /**
+     * 加入连接.
+     * @return
+     *      同一地址已有连接时不替换, 返回已有的连接; 否则返回 null.
+     */
+    BleConnection putIfAbsent(BleConnection connection) {
+        return mConnections.putIfAbsent(connection.getAddress(), connection);
+    }
+
+    /**
+     * 仅当池中的连接就是 connection 时移除.
+     */
+    boolean remove(BleConnection connection) {
+        return mConnections.remove(connection.getAddress(), connection);
+    }
+
+    int size() {
+        return mConnections.size();
+    }
+
+    boolean isFull() {
+        return mConnections.size() >= mMaxConnections;
+    }
+
+    /**
+     * 取出最久未活动的空闲连接, 没有则返回 null.
+     */
+    BleConnection pollEvictable() {
+        while (true) {
+            BleConnection oldest = null;
+            for (BleConnection connection : mConnections.values()) {
+                if (connection.isIdle() && (oldest == null
+                        || connection.getLastActiveTime() < oldest.getLastActiveTime()))
+                    oldest = connection;
+            }
+            if (oldest == null)
+                return null;
+            // 其它线程已取出时重新查找.
+            if (remove(oldest))
+                return oldest;
+        }
+    }
+
+    /**
+     * 当前所有连接的快照.
+     */
+    List<BleConnection> snapshot() {
+        return new ArrayList<>(mConnections.values());
+    }
+
+    List<BleConnection> clear() {
+        final List<BleConnection> all = new ArrayList<>();
+        for (BleConnection connection : mConnections.values()) {
+            if (remove(connection))
+                all.add(connection);
+        }
+        return all;
+    }
+}
@@ -0,0 +1,192 @@
+package com.wsj.blesdk;
+
+import static com.wsj.blesdk.BleConstants.BLE_CONNECTION_PRIORITY_BALANCED;
+import static com.wsj.blesdk.BleConstants.BLE_DEFAULT_MTU;
+import static com.wsj.blesdk.BleConstants.BLE_PHY_LE_1M;
+
+/**
+ * 连接状态快照 (不可变).<br>
+ *     (1) 连接状态和协商结果 (MTU, PHY, 连接优先级, 批量模式) 保存在同一个对象中,
+ *         任意线程读到的都是某一时刻完整一致的值, 读取不加锁.
+ *     (2) 修改时生成新对象, 由 BleConnection 以 CAS 发布.
+ *     (3) 状态只能按转换表变化:
+ *         DISCONNECTED  -> CONNECTING
+ *         CONNECTING    -> CONNECTED, DISCONNECTING, DISCONNECTED
+ *         CONNECTED     -> DISCONNECTING, DISCONNECTED
+ *         DISCONNECTING -> DISCONNECTED
+ *         回到 DISCONNECTED 时协商结果恢复默认值.
+ */
+
+public final class BleConnectionState {
+    /* 蓝牙连接状态. */
+    public static final int DISCONNECTED  = 0x00;
+    public static final int CONNECTING    = 0x01;
+    public static final int CONNECTED     = 0x02;
+    public static final int DISCONNECTING = 0x03;
+
+    // 转换表: TRANSITIONS[from] 的第 to 位表示允许 from -> to.
+    private static final int[] TRANSITIONS = {
+            1 << CONNECTING,
+            1 << CONNECTED | 1 << DISCONNECTING | 1 << DISCONNECTED,
+            1 << DISCONNECTING | 1 << DISCONNECTED,
+            1 << DISCONNECTED,
+    };
+
+    private final String mAddress;
+    private final int mState;
+    private final int mMtu;
+    private final int mTxPhy;
+    private final int mRxPhy;
+    private final int mConnectionPriority;
+    private final boolean mBulk;
+
+    private BleConnectionState(String address, int state, int mtu, int txPhy, int rxPhy,
+                               int connectionPriority, boolean bulk) {
+        mAddress = address;
+        mState = state;
+        mMtu = mtu;
+        mTxPhy = txPhy;
+        mRxPhy = rxPhy;
+        mConnectionPriority = connectionPriority;
+        mBulk = bulk;
+    }
+
+    /**
+     * 未连接, 协商结果为默认值.
+     */
+    static BleConnectionState disconnected(String address) {
+        return new BleConnectionState(address, DISCONNECTED, BLE_DEFAULT_MTU, BLE_PHY_LE_1M,
+                BLE_PHY_LE_1M, BLE_CONNECTION_PRIORITY_BALANCED, false);
+    }
+
+    /**
+     * 转换表是否允许 from -> to.
+     */
+    public static boolean canTransition(int from, int to) {
+        return from >= 0 && from < TRANSITIONS.length && to >= 0 && to < TRANSITIONS.length
+                && (TRANSITIONS[from] & 1 << to) != 0;
+    }
+
+    /**
+     * 转换到 state 后的快照, 转换表不允许时返回 null.
+     */
+    BleConnectionState transition(int state) {
+        if (!canTransition(mState, state))
+            return null;
+        if (state == DISCONNECTED)
+            return disconnected(mAddress);
+        return new BleConnectionState(mAddress, state, mMtu, mTxPhy, mRxPhy,
+                mConnectionPriority, mBulk);
+    }
+
+    BleConnectionState withMtu(int mtu) {
+        return new BleConnectionState(mAddress, mState, mtu, mTxPhy, mRxPhy,
+                mConnectionPriority, mBulk);
+    }
+
+    BleConnectionState withPhy(int txPhy, int rxPhy) {
+        return new BleConnectionState(mAddress, mState, mMtu, txPhy, rxPhy,
+                mConnectionPriority, mBulk);
+    }
+
+    BleConnectionState withConnectionPriority(int priority) {
+        return new BleConnectionState(mAddress, mState, mMtu, mTxPhy, mRxPhy, priority, mBulk);
+    }
+
+    BleConnectionState withBulk(boolean bulk) {
+        return new BleConnectionState(mAddress, mState, mMtu, mTxPhy, mRxPhy,
+                mConnectionPriority, bulk);
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    /**
+     * DISCONNECTED, CONNECTING, CONNECTED 或 DISCONNECTING.
+     */
+    public int getState() {
+        return mState;
+    }
+
+    public boolean isConnected() {
+        return mState == CONNECTED;
+    }
+
+    /**
+     * ATT MTU.
+     */
+    public int getMtu() {
+        return mMtu;
+    }
+
+    /**
+     * 发送/接收 PHY, BleConstants.BLE_PHY_LE_*, 未协商时为 BLE_PHY_LE_1M.
+     */
+    public int getTxPhy() {
+        return mTxPhy;
+    }
+
+    public int getRxPhy() {
+        return mRxPhy;
+    }
+
+    /**
+     * 当前请求的连接优先级, BleConstants.BLE_CONNECTION_PRIORITY_*.
+     */
+    public int getConnectionPriority() {
+        return mConnectionPriority;
+    }
+
+    /**
+     * 是否处于批量发送模式.
+     */
+    public boolean isBulk() {
+        return mBulk;
+    }
+
+    public static String stateName(int state) {
+        switch (state) {
+            case DISCONNECTED:  return "DISCONNECTED";
+            case CONNECTING:    return "CONNECTING";
+            case CONNECTED:     return "CONNECTED";
+            case DISCONNECTING: return "DISCONNECTING";
+            default:            return "STATE_" + state;
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof BleConnectionState))
+            return false;
+        final BleConnectionState other = (BleConnectionState) o;
+        return mState == other.mState && mMtu == other.mMtu && mTxPhy == other.mTxPhy
+                && mRxPhy == other.mRxPhy && mConnectionPriority == other.mConnectionPriority
+                && mBulk == other.mBulk
+                && (mAddress == null ? other.mAddress == null : mAddress.equals(other.mAddress));
+    }
+
+    @Override
+    public int hashCode() {
+        int result = mAddress == null ? 0 : mAddress.hashCode();
+        result = 31 * result + mState;
+        result = 31 * result + mMtu;
+        result = 31 * result + mTxPhy;
+        result = 31 * result + mRxPhy;
+        result = 31 * result + mConnectionPriority;
+        return 31 * result + (mBulk ? 1 : 0);
+    }
+
+    @Override
+    public String toString() {
+        return "BleConnectionState{" + mAddress
+                + ", " + stateName(mState)
+                + ", mtu=" + mMtu
+                + ", txPhy=" + mTxPhy
+                + ", rxPhy=" + mRxPhy
+                + ", priority=" + mConnectionPriority
+                + ", bulk=" + mBulk + "}";
+    }
+}
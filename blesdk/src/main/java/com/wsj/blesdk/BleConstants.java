@@ -1,5 +1,7 @@
 package com.wsj.blesdk;
 
+import java.util.UUID;
+
 /**
  * 常量<br>
  * Created by WSJ on 2017/2/14.
@@ -16,6 +18,90 @@ public class BleConstants {
     public static final int BLE_ERROR_DISCONNECT           = 0x1002;
     // discovery services failed
     public static final int BLE_ERROR_DISCOVER_SERVICES    = 0x1003;
+    // write characteristic failed
+    public static final int BLE_ERROR_WRITE                = 0x1004;
+    // write characteristic not found
+    public static final int BLE_ERROR_NO_CHARACTERISTIC    = 0x1005;
+    // a transmission is already running
+    public static final int BLE_ERROR_BUSY                 = 0x1006;
+    // too many connections and none of them is idle
+    public static final int BLE_ERROR_POOL_FULL            = 0x1007;
+    // GATT operation timed out
+    public static final int BLE_ERROR_TIMEOUT              = 0x1008;
+    // GATT operation rejected by the stack
+    public static final int BLE_ERROR_REJECTED             = 0x1009;
+    // enable/disable notification failed
+    public static final int BLE_ERROR_SUBSCRIBE            = 0x100A;
+    // start scan failed
+    public static final int BLE_ERROR_SCAN                 = 0x100B;
+    // message channel peer violated the framing protocol
+    public static final int BLE_ERROR_PROTOCOL             = 0x100C;
+    // peer rejected the firmware image (start or validation failed)
+    public static final int BLE_ERROR_FIRMWARE             = 0x100D;
+    // cancelled by the caller before it finished
+    public static final int BLE_ERROR_CANCELLED            = 0x100E;
+    // characteristic read failed
+    public static final int BLE_ERROR_READ                 = 0x100F;
+
+    // GATT 操作优先级, 数值越小越先执行.
+    public static final int BLE_PRIORITY_HIGH              = 0;
+    public static final int BLE_PRIORITY_NORMAL            = 1;
+    public static final int BLE_PRIORITY_BULK              = 2;
+
+    // RSSI 滤波方式.
+    public static final int BLE_RSSI_FILTER_KALMAN         = 0;
+    public static final int BLE_RSSI_FILTER_EWMA           = 1;
+
+    // 监听回调的线程: 主线程, 调用者指定的 Executor, 或在 SDK 线程中直接回调.
+    public static final int BLE_CALLBACK_MAIN_THREAD       = 0;
+    public static final int BLE_CALLBACK_EXECUTOR          = 1;
+    public static final int BLE_CALLBACK_DIRECT            = 2;
+
+    // GATT 操作默认超时 (毫秒).
+    public static final long BLE_DEFAULT_OPERATION_TIMEOUT = 10 * 1000;
+
+    // 扫描到的设备多久未收到广播后视为丢失 (毫秒), 以及设备表默认上限.
+    public static final long BLE_DEFAULT_DEVICE_TTL        = 60 * 1000;
+    public static final int BLE_DEFAULT_MAX_DEVICES        = 1000;
+
+    // Client Characteristic Configuration 描述符.
+    public static final UUID BLE_CCCD_UUID =
+            UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
+
+    // Generic Attribute 服务及 Service Changed 特征值.
+    public static final UUID BLE_GENERIC_ATTRIBUTE_SERVICE_UUID =
+            UUID.fromString("00001801-0000-1000-8000-00805f9b34fb");
+    public static final UUID BLE_SERVICE_CHANGED_UUID =
+            UUID.fromString("00002a05-0000-1000-8000-00805f9b34fb");
+
+    // 默认 ATT MTU.
+    public static final int BLE_DEFAULT_MTU                = 23;
+    // 最大 ATT MTU.
+    public static final int BLE_MAX_MTU                    = 517;
+
+    // 连接参数优先级, 与 BluetoothGatt.CONNECTION_PRIORITY_* 一致.
+    public static final int BLE_CONNECTION_PRIORITY_BALANCED  = 0;
+    public static final int BLE_CONNECTION_PRIORITY_HIGH      = 1;
+    public static final int BLE_CONNECTION_PRIORITY_LOW_POWER = 2;
+
+    // PHY, 与 BluetoothDevice.PHY_LE_*_MASK 一致 (Android 8.0 及以上).
+    public static final int BLE_PHY_LE_1M                  = 1;
+    public static final int BLE_PHY_LE_2M                  = 2;
+    public static final int BLE_PHY_LE_CODED               = 4;
+
+    // GATT 状态, 与 BluetoothGatt.GATT_SUCCESS 一致.
+    public static final int BLE_GATT_SUCCESS               = 0;
+
+    // 特征值属性, 与 BluetoothGattCharacteristic.PROPERTY_* 一致.
+    public static final int BLE_PROPERTY_READ              = 0x02;
+    public static final int BLE_PROPERTY_WRITE_NO_RESPONSE = 0x04;
+    public static final int BLE_PROPERTY_WRITE             = 0x08;
+    public static final int BLE_PROPERTY_NOTIFY            = 0x10;
+    public static final int BLE_PROPERTY_INDICATE          = 0x20;
+    public static final int BLE_PROPERTY_EXTENDED_PROPS    = 0x80;
+
+    // ATT 写操作头长度 (opcode + handle).
+    public static final int BLE_ATT_WRITE_HEADER           = 3;
 
 
 
@@ -0,0 +1,16 @@
+package com.wsj.blesdk;
+
+import java.util.List;
+
+/**
+ * 设备丢失监听.
+ */
+
+public interface BleDeviceLostListener {
+    /**
+     * 扫描到的设备超过 TTL 未收到广播, 或设备表超出上限被淘汰.<br>
+     *     列表由 SDK 复用, 只在回调期间有效, 需要保留时自行拷贝.
+     * @param lost  丢失的设备
+     */
+    public void onBleDevicesLost(final List<BluetoothInfo> lost);
+}
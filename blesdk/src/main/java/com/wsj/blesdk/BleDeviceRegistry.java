@@ -0,0 +1,299 @@
+package com.wsj.blesdk;
+
+import com.wsj.blesdk.utils.LongHashMap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 设备表.<br>
+ *     (1) 以 long 形式的 MAC 地址保存设备.
+ *     (2) 按广播的服务 UUID 和厂商 ID 建立索引, 查询只遍历命中的设备.
+ *         索引为写时复制的数组, 查询不加锁; 只有索引的键变化时才复制.
+ *     (3) 未固定的设备按最近收到广播的时间排成链表 (最久未见的在前), 淘汰时从表头开始,
+ *         只访问被淘汰的设备.
+ *     (4) 固定的设备 (已连接) 不在链表中, 不会被淘汰, 清空时保留.
+ *     (5) 只在 SDK 线程 (BleScanPipeline 的写线程) 修改, findByService 和
+ *         findByManufacturer 可以在任意线程调用.
+ */
+
+final class BleDeviceRegistry {
+    private final LongHashMap<BluetoothInfo> mDevices = new LongHashMap<>(256);
+    // 服务 UUID 摘要 -> 设备, 摘要可能冲突, 查询时再核对完整 UUID.
+    private final ConcurrentHashMap<Long, BluetoothInfo[]> mByService =
+            new ConcurrentHashMap<>();
+    // 厂商 ID -> 设备.
+    private final ConcurrentHashMap<Long, BluetoothInfo[]> mByManufacturer =
+            new ConcurrentHashMap<>();
+    // 固定的设备地址, 设备可以尚未扫描到.
+    private final LongHashMap<Boolean> mPinned = new LongHashMap<>();
+    // 未固定的设备, 按最近收到广播的时间升序.
+    private BluetoothInfo mOldest;
+    private BluetoothInfo mNewest;
+
+    BluetoothInfo get(long mac) {
+        return mDevices.get(mac);
+    }
+
+    void put(BluetoothInfo info) {
+        BluetoothInfo old = mDevices.put(info.getMac(), info);
+        if (old != null && old != info) {
+            unindex(old);
+            unlink(old);
+        }
+        if (!mPinned.containsKey(info.getMac()))
+            touch(info);
+    }
+
+    BluetoothInfo remove(long mac) {
+        BluetoothInfo info = mDevices.remove(mac);
+        if (info != null) {
+            unindex(info);
+            unlink(info);
+        }
+        return info;
+    }
+
+    /**
+     * 设备刚收到广播, 移到链表末尾 (固定的设备不变).
+     */
+    void touch(BluetoothInfo info) {
+        if (info == mNewest || mPinned.containsKey(info.getMac()))
+            return;
+        unlink(info);
+        info.olderSeen = mNewest;
+        info.newerSeen = null;
+        if (mNewest != null)
+            mNewest.newerSeen = info;
+        else
+            mOldest = info;
+        mNewest = info;
+    }
+
+    /**
+     * 固定设备, 不再被淘汰.
+     */
+    void pin(long mac) {
+        if (mPinned.put(mac, Boolean.TRUE) != null)
+            return;
+        final BluetoothInfo info = mDevices.get(mac);
+        if (info != null)
+            unlink(info);
+    }
+
+    /**
+     * 取消固定, 设备回到链表末尾.
+     */
+    void unpin(long mac) {
+        if (mPinned.remove(mac) == null)
+            return;
+        final BluetoothInfo info = mDevices.get(mac);
+        if (info != null)
+            touch(info);
+    }
+
+    boolean isPinned(long mac) {
+        return mPinned.containsKey(mac);
+    }
+
+    /**
+     * 已扫描到且通过过滤的固定设备写入 out.
+     */
+    void forEachPinned(final List<BluetoothInfo> out) {
+        mPinned.forEachValue(new LongHashMap.Visitor<Boolean>() {
+            @Override
+            public void visit(long mac, Boolean value) {
+                final BluetoothInfo info = mDevices.get(mac);
+                if (info != null && info.accepted)
+                    out.add(info);
+            }
+        });
+    }
+
+    /**
+     * 最久未收到广播的未固定设备, 没有时返回 null.
+     */
+    BluetoothInfo oldest() {
+        return mOldest;
+    }
+
+    int size() {
+        return mDevices.size();
+    }
+
+    /**
+     * 清空未固定的设备, 固定的设备保留并重建索引.
+     */
+    void clear() {
+        final ArrayList<BluetoothInfo> pinned = new ArrayList<>(mPinned.size());
+        mPinned.forEachValue(new LongHashMap.Visitor<Boolean>() {
+            @Override
+            public void visit(long mac, Boolean value) {
+                final BluetoothInfo info = mDevices.get(mac);
+                if (info != null)
+                    pinned.add(info);
+            }
+        });
+        for (BluetoothInfo info = mOldest; info != null; ) {
+            final BluetoothInfo next = info.newerSeen;
+            info.olderSeen = null;
+            info.newerSeen = null;
+            info = next;
+        }
+        mOldest = null;
+        mNewest = null;
+        mDevices.clear();
+        mByService.clear();
+        mByManufacturer.clear();
+        for (int i = 0; i < pinned.size(); i++) {
+            final BluetoothInfo info = pinned.get(i);
+            mDevices.put(info.getMac(), info);
+            info.indexedServiceCount = 0;
+            info.indexedManufacturerCount = 0;
+            if (info.accepted)
+                reindex(info);
+        }
+    }
+
+    /**
+     * 广播内容变化后重建该设备的索引, 服务 UUID 和厂商 ID 都没变时不修改索引.
+     */
+    void reindex(BluetoothInfo info) {
+        final BleAdvertisement adv = info.getAdvertisement();
+        if (isIndexed(info, adv))
+            return;
+        unindex(info);
+        final int services = adv.getServiceUuidCount();
+        if (info.indexedServices.length < services)
+            info.indexedServices = new long[services];
+        for (int i = 0; i < services; i++) {
+            final long key = serviceKey(adv.getServiceUuidMsb(i), adv.getServiceUuidLsb(i));
+            info.indexedServices[i] = key;
+            addToBucket(mByService, key, info);
+        }
+        info.indexedServiceCount = services;
+        final int manufacturers = adv.getManufacturerCount();
+        if (info.indexedManufacturers.length < manufacturers)
+            info.indexedManufacturers = new int[manufacturers];
+        for (int i = 0; i < manufacturers; i++) {
+            final int id = adv.getManufacturerId(i);
+            info.indexedManufacturers[i] = id;
+            addToBucket(mByManufacturer, id, info);
+        }
+        info.indexedManufacturerCount = manufacturers;
+    }
+
+    /**
+     * 查找广播了指定服务且信号强度不低于 minRssi 的设备 (任意线程).
+     */
+    void findByService(long msb, long lsb, int minRssi, List<BluetoothInfo> out) {
+        final BluetoothInfo[] devices = mByService.get(serviceKey(msb, lsb));
+        if (devices == null)
+            return;
+        for (BluetoothInfo info : devices) {
+            if (info.getRssi() >= minRssi && info.getAdvertisement().hasServiceUuid(msb, lsb))
+                out.add(info);
+        }
+    }
+
+    /**
+     * 查找包含指定厂商数据且信号强度不低于 minRssi 的设备 (任意线程).
+     */
+    void findByManufacturer(int id, int minRssi, List<BluetoothInfo> out) {
+        final BluetoothInfo[] devices = mByManufacturer.get((long) id);
+        if (devices == null)
+            return;
+        for (BluetoothInfo info : devices) {
+            if (info.getRssi() >= minRssi)
+                out.add(info);
+        }
+    }
+
+    /**
+     * 已建立的索引与广播的服务 UUID 和厂商 ID 一致.
+     */
+    private static boolean isIndexed(BluetoothInfo info, BleAdvertisement adv) {
+        final int services = adv.getServiceUuidCount();
+        final int manufacturers = adv.getManufacturerCount();
+        if (services != info.indexedServiceCount
+                || manufacturers != info.indexedManufacturerCount)
+            return false;
+        for (int i = 0; i < services; i++) {
+            if (info.indexedServices[i] != serviceKey(adv.getServiceUuidMsb(i),
+                    adv.getServiceUuidLsb(i)))
+                return false;
+        }
+        for (int i = 0; i < manufacturers; i++) {
+            if (info.indexedManufacturers[i] != adv.getManufacturerId(i))
+                return false;
+        }
+        return true;
+    }
+
+    private void unlink(BluetoothInfo info) {
+        final BluetoothInfo older = info.olderSeen;
+        final BluetoothInfo newer = info.newerSeen;
+        if (older == null && newer == null && mOldest != info)
+            return;
+        if (older != null)
+            older.newerSeen = newer;
+        else
+            mOldest = newer;
+        if (newer != null)
+            newer.olderSeen = older;
+        else
+            mNewest = older;
+        info.olderSeen = null;
+        info.newerSeen = null;
+    }
+
+    private void unindex(BluetoothInfo info) {
+        for (int i = 0; i < info.indexedServiceCount; i++) {
+            removeFromBucket(mByService, info.indexedServices[i], info);
+        }
+        info.indexedServiceCount = 0;
+        for (int i = 0; i < info.indexedManufacturerCount; i++) {
+            removeFromBucket(mByManufacturer, info.indexedManufacturers[i], info);
+        }
+        info.indexedManufacturerCount = 0;
+    }
+
+    private static void addToBucket(ConcurrentHashMap<Long, BluetoothInfo[]> index, long key,
+                                    BluetoothInfo info) {
+        final BluetoothInfo[] devices = index.get(key);
+        if (devices == null) {
+            index.put(key, new BluetoothInfo[]{info});
+            return;
+        }
+        final BluetoothInfo[] copy = Arrays.copyOf(devices, devices.length + 1);
+        copy[devices.length] = info;
+        index.put(key, copy);
+    }
+
+    private static void removeFromBucket(ConcurrentHashMap<Long, BluetoothInfo[]> index,
+                                         long key, BluetoothInfo info) {
+        final BluetoothInfo[] devices = index.get(key);
+        if (devices == null)
+            return;
+        for (int i = 0; i < devices.length; i++) {
+            if (devices[i] == info) {
+                if (devices.length == 1) {
+                    index.remove(key);
+                    return;
+                }
+                // 末尾的设备移到空出的位置.
+                final BluetoothInfo[] copy = Arrays.copyOf(devices, devices.length - 1);
+                if (i < copy.length)
+                    copy[i] = devices[devices.length - 1];
+                index.put(key, copy);
+                return;
+            }
+        }
+    }
+
+    static long serviceKey(long msb, long lsb) {
+        return msb ^ Long.rotateLeft(lsb, 29);
+    }
+}
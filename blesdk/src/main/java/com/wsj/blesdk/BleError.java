@@ -0,0 +1,34 @@
+package com.wsj.blesdk;
+
+/**
+ * 错误事件 (BleManager.errors).
+ */
+
+public final class BleError {
+    private final String mAddress;
+    private final int mCode;
+
+    BleError(String address, int code) {
+        mAddress = address;
+        mCode = code;
+    }
+
+    /**
+     * 设备地址, 与设备无关的错误 (如扫描失败) 为 null.
+     */
+    public String getAddress() {
+        return mAddress;
+    }
+
+    /**
+     * BleConstants.BLE_ERROR_*.
+     */
+    public int getCode() {
+        return mCode;
+    }
+
+    @Override
+    public String toString() {
+        return "BleError{" + mAddress + ", 0x" + Integer.toHexString(mCode) + "}";
+    }
+}
@@ -0,0 +1,358 @@
+package com.wsj.blesdk;
+
+import com.wsj.blesdk.utils.LogUtil;
+import com.wsj.blesdk.utils.MacAddress;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import static com.wsj.blesdk.BleConstants.BLE_ERROR_DISCONNECT;
+import static com.wsj.blesdk.BleConstants.BLE_ERROR_NO_CHARACTERISTIC;
+import static com.wsj.blesdk.BleConstants.BLE_ERROR_TIMEOUT;
+import static com.wsj.blesdk.BleConstants.BLE_ERROR_WRITE;
+import static com.wsj.blesdk.BleConstants.BLE_GATT_SUCCESS;
+
+/**
+ * 批量任务: 对多台设备执行同样的步骤 (发送数据, 写特征值, 升级固件).<br>
+ *     (1) 每台设备按添加顺序执行所有步骤, 失败后重新连接并从失败的步骤继续, 最多 maxAttempts 次.
+ *     (2) 同时进行的设备数不超过 concurrency (也不超过连接池上限), 一台结束后立即开始下一台.
+ *     (3) requireScan 时只连接扫描中出现过的设备, 仍有设备未出现时保持扫描, 与连接和发送交错进行.
+ *     (4) 固件镜像只映射一次, 所有设备共享, 各自的检查点独立.
+ *     (5) 由 BleManager.startFanout 开始, 开始后不能再修改.
+ */
+
+public final class BleFanoutJob {
+    // TAG
+    private static final String TAG = "BleFanoutJob";
+
+    public static final int DEFAULT_CONCURRENCY = 4;
+    public static final int DEFAULT_MAX_ATTEMPTS = 2;
+    public static final long DEFAULT_CONNECT_TIMEOUT = 15 * 1000;
+
+    private final List<String> mAddresses = new ArrayList<>();
+    private final List<Task> mTasks = new ArrayList<>();
+    private int mConcurrency = DEFAULT_CONCURRENCY;
+    private int mMaxAttempts = DEFAULT_MAX_ATTEMPTS;
+    private long mConnectTimeout = DEFAULT_CONNECT_TIMEOUT;
+    private boolean mRequireScan;
+    private BleFanoutListener mListener;
+    // 开始后不为 null.
+    private volatile BleFanoutScheduler mScheduler;
+
+    /**
+     * 添加设备, 格式错误或重复的地址忽略.
+     */
+    public BleFanoutJob addDevice(String address) {
+        checkNotStarted();
+        if (MacAddress.toLong(address) == MacAddress.INVALID) {
+            LogUtil.e(TAG, "bad address : %s", address);
+            return this;
+        }
+        final String normalized = address.toUpperCase();
+        if (!mAddresses.contains(normalized))
+            mAddresses.add(normalized);
+        return this;
+    }
+
+    public BleFanoutJob addDevices(Collection<String> addresses) {
+        for (String address : addresses) {
+            addDevice(address);
+        }
+        return this;
+    }
+
+    /**
+     * 向写特征值发送数据 (按 MTU 分包).
+     * @param withResponse  是否逐包等待对端应答
+     */
+    public BleFanoutJob transmit(String serviceUuid, String writeUuid, byte[] data,
+                                 boolean withResponse) {
+        checkNotStarted();
+        mTasks.add(new TransmitTask(parseUuid(serviceUuid), parseUuid(writeUuid), data.clone(),
+                withResponse));
+        return this;
+    }
+
+    /**
+     * 写特征值 (不分包, 等待对端应答), 用于命令.
+     */
+    public BleFanoutJob write(String serviceUuid, String characteristicUuid, byte[] value) {
+        checkNotStarted();
+        mTasks.add(new WriteTask(parseUuid(serviceUuid), parseUuid(characteristicUuid),
+                value.clone()));
+        return this;
+    }
+
+    /**
+     * 升级固件, 协议见 BleOtaSession.
+     * @see BleManager#startFirmwareUpdate(String, File, String, String, String, int, BleTransmitListener)
+     */
+    public BleFanoutJob updateFirmware(String serviceUuid, String controlUuid, String packetUuid,
+                                       File image) {
+        return updateFirmware(serviceUuid, controlUuid, packetUuid, image,
+                BleOtaSession.DEFAULT_WINDOW);
+    }
+
+    public BleFanoutJob updateFirmware(String serviceUuid, String controlUuid, String packetUuid,
+                                       File image, int window) {
+        checkNotStarted();
+        mTasks.add(new FirmwareTask(parseUuid(serviceUuid), parseUuid(controlUuid),
+                parseUuid(packetUuid), image, window));
+        return this;
+    }
+
+    /**
+     * 同时进行的设备数 (连接, 服务发现和执行步骤).
+     */
+    public BleFanoutJob setConcurrency(int concurrency) {
+        checkNotStarted();
+        mConcurrency = Math.max(1, concurrency);
+        return this;
+    }
+
+    /**
+     * 每台设备最多尝试的次数 (含第一次).
+     */
+    public BleFanoutJob setMaxAttempts(int attempts) {
+        checkNotStarted();
+        mMaxAttempts = Math.max(1, attempts);
+        return this;
+    }
+
+    /**
+     * 连接超时 (毫秒), 超时后算作一次失败.
+     */
+    public BleFanoutJob setConnectTimeout(long timeoutMillis) {
+        checkNotStarted();
+        mConnectTimeout = Math.max(1, timeoutMillis);
+        return this;
+    }
+
+    /**
+     * 是否只连接扫描中出现过的设备 (默认 false, 直接按地址连接).
+     */
+    public BleFanoutJob setRequireScan(boolean requireScan) {
+        checkNotStarted();
+        mRequireScan = requireScan;
+        return this;
+    }
+
+    public BleFanoutJob setListener(BleFanoutListener listener) {
+        checkNotStarted();
+        mListener = listener;
+        return this;
+    }
+
+    public List<String> getDevices() {
+        return Collections.unmodifiableList(mAddresses);
+    }
+
+    public int getConcurrency() {
+        return mConcurrency;
+    }
+
+    public int getMaxAttempts() {
+        return mMaxAttempts;
+    }
+
+    public long getConnectTimeout() {
+        return mConnectTimeout;
+    }
+
+    public boolean isRequireScan() {
+        return mRequireScan;
+    }
+
+    public boolean isStarted() {
+        return mScheduler != null;
+    }
+
+    public boolean isFinished() {
+        final BleFanoutScheduler scheduler = mScheduler;
+        return scheduler != null && scheduler.isFinished();
+    }
+
+    /**
+     * 获取当前统计, 未开始时为 null.
+     */
+    public BleFanoutStats getStats() {
+        final BleFanoutScheduler scheduler = mScheduler;
+        if (scheduler == null)
+            return null;
+        final BleFanoutStats stats = new BleFanoutStats();
+        scheduler.getStats(stats);
+        return stats;
+    }
+
+    BleFanoutListener getListener() {
+        return mListener;
+    }
+
+    List<Task> getTasks() {
+        return mTasks;
+    }
+
+    BleFanoutScheduler getScheduler() {
+        return mScheduler;
+    }
+
+    /**
+     * 准备步骤 (映射镜像) 并绑定调度器, 只能成功一次.
+     * @return
+     *      已开始, 没有设备或步骤, 或镜像无法读取时返回 false.
+     */
+    synchronized boolean attach(BleFanoutScheduler scheduler) {
+        if (mScheduler != null || mAddresses.isEmpty() || mTasks.isEmpty())
+            return false;
+        for (Task task : mTasks) {
+            if (!task.prepare())
+                return false;
+        }
+        mScheduler = scheduler;
+        return true;
+    }
+
+    private void checkNotStarted() {
+        if (mScheduler != null)
+            throw new IllegalStateException("job already started");
+    }
+
+    private static UUID parseUuid(String uuid) {
+        if (uuid == null)
+            return null;
+        try {
+            return UUID.fromString(uuid);
+        } catch (IllegalArgumentException e) {
+            LogUtil.e(TAG, "bad uuid : %s", uuid);
+            return null;
+        }
+    }
+
+    /**
+     * 一个步骤, 同一对象在所有设备上执行.
+     */
+    abstract static class Task {
+        /**
+         * 开始前的准备, 只调用一次.
+         */
+        boolean prepare() {
+            return true;
+        }
+
+        /**
+         * 在已发现服务的连接上开始执行, 结果通过 listener 的 onTransmitComplete/onTransmitError 回调.
+         * @return
+         *      是否开始, 返回 false 时 listener 可能已回调错误.
+         */
+        abstract boolean start(BleConnection connection, BleFanoutScheduler.Host host,
+                               BleTransmitListener listener);
+
+        /**
+         * 设备失败或取消时中止, 之后不再回调.
+         */
+        void cancel(BleConnection connection, int code) {
+        }
+    }
+
+    private static final class TransmitTask extends Task {
+        private final UUID mService;
+        private final UUID mCharacteristic;
+        private final byte[] mData;
+        private final boolean mWithResponse;
+
+        TransmitTask(UUID service, UUID characteristic, byte[] data, boolean withResponse) {
+            mService = service;
+            mCharacteristic = characteristic;
+            mData = data;
+            mWithResponse = withResponse;
+        }
+
+        @Override
+        boolean start(BleConnection connection, BleFanoutScheduler.Host host,
+                      BleTransmitListener listener) {
+            return connection.transmit(mData, mService, mCharacteristic, host.getTransmitWindow(),
+                    mWithResponse, listener);
+        }
+    }
+
+    private static final class WriteTask extends Task {
+        private final UUID mService;
+        private final UUID mCharacteristic;
+        private final byte[] mValue;
+
+        WriteTask(UUID service, UUID characteristic, byte[] value) {
+            mService = service;
+            mCharacteristic = characteristic;
+            mValue = value;
+        }
+
+        @Override
+        boolean start(final BleConnection connection, BleFanoutScheduler.Host host,
+                      final BleTransmitListener listener) {
+            final BleGattTable table = connection.getGattTable();
+            if (table == null || mService == null || mCharacteristic == null
+                    || table.getProperties(mService, mCharacteristic) < 0) {
+                listener.onTransmitError(connection.getAddress(), BLE_ERROR_NO_CHARACTERISTIC);
+                return false;
+            }
+            // 所有设备共享同一数组, 链路只读取不修改.
+            return connection.enqueue(BleOperation.writeCharacteristic(mService, mCharacteristic,
+                    mValue, true)
+                    .timeout(host.getOperationTimeout())
+                    .callback(new BleOperation.Callback() {
+                        @Override
+                        public void onOperationComplete(BleOperation operation, int status) {
+                            final String address = connection.getAddress();
+                            if (status == BLE_GATT_SUCCESS)
+                                listener.onTransmitComplete(address, mValue.length, 0);
+                            else if (status == BLE_ERROR_TIMEOUT || status == BLE_ERROR_DISCONNECT)
+                                listener.onTransmitError(address, status);
+                            else
+                                listener.onTransmitError(address, BLE_ERROR_WRITE);
+                        }
+                    }));
+        }
+    }
+
+    private static final class FirmwareTask extends Task {
+        private final UUID mService;
+        private final UUID mControl;
+        private final UUID mPacket;
+        private final File mFile;
+        private final int mWindow;
+        private ByteBuffer mImage;
+
+        FirmwareTask(UUID service, UUID control, UUID packet, File file, int window) {
+            mService = service;
+            mControl = control;
+            mPacket = packet;
+            mFile = file;
+            mWindow = window;
+        }
+
+        @Override
+        boolean prepare() {
+            mImage = mFile == null ? null : BleOtaSession.mapImage(mFile);
+            return mImage != null;
+        }
+
+        @Override
+        boolean start(BleConnection connection, BleFanoutScheduler.Host host,
+                      BleTransmitListener listener) {
+            return connection.startOta(mService, mControl, mPacket, mImage, mWindow,
+                    host.getCheckpoints(), listener) != null;
+        }
+
+        @Override
+        void cancel(BleConnection connection, int code) {
+            final BleOtaSession session = connection.getOtaSession();
+            if (session != null && session.getControlUuid().equals(mControl))
+                connection.closeOta(session, code);
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package com.wsj.blesdk;
+
+/**
+ * 批量任务监听.
+ */
+
+public interface BleFanoutListener {
+    /**
+     * 一台设备结束 (成功, 重试次数用完或取消).
+     * @param job     批量任务
+     * @param result  该设备的结果
+     */
+    public void onDeviceFinished(final BleFanoutJob job, final BleFanoutResult result);
+
+    /**
+     * 所有设备都已结束.
+     * @param job    批量任务
+     * @param stats  汇总统计
+     */
+    public void onJobFinished(final BleFanoutJob job, final BleFanoutStats stats);
+}
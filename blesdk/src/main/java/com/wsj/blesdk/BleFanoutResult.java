@@ -0,0 +1,40 @@
+package com.wsj.blesdk;
+
+/**
+ * 批量任务中一台设备的结果.
+ */
+
+public class BleFanoutResult {
+    // 设备地址.
+    public String address;
+    // 结果, BLE_SUCCESS 或最后一次失败的错误代码.
+    public int code;
+    // 尝试次数 (含第一次).
+    public int attempts;
+    // 已完成的步骤数.
+    public int completedTasks;
+    // 已完成步骤的字节数.
+    public long bytes;
+    // 最后一次尝试从发起连接到服务发现完成的时间 (毫秒).
+    public long connectMillis;
+    // 最后一次尝试执行步骤的时间 (毫秒).
+    public long transferMillis;
+    // 最后一次尝试的平均速率 (字节/秒).
+    public long bytesPerSecond;
+
+    public boolean isSuccess() {
+        return code == BleConstants.BLE_SUCCESS;
+    }
+
+    @Override
+    public String toString() {
+        return "BleFanoutResult{address=" + address
+                + ", code=" + code
+                + ", attempts=" + attempts
+                + ", tasks=" + completedTasks
+                + ", bytes=" + bytes
+                + ", connect=" + connectMillis
+                + ", transfer=" + transferMillis
+                + ", rate=" + bytesPerSecond + "}";
+    }
+}
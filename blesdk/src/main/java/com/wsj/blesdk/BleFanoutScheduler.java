@@ -0,0 +1,557 @@
+package com.wsj.blesdk;
+
+import com.wsj.blesdk.utils.LogUtil;
+import com.wsj.blesdk.utils.LongHashMap;
+import com.wsj.blesdk.utils.MacAddress;
+
+import java.util.List;
+
+import static com.wsj.blesdk.BleConstants.BLE_ERROR_CANCELLED;
+import static com.wsj.blesdk.BleConstants.BLE_ERROR_CONNECT;
+import static com.wsj.blesdk.BleConstants.BLE_ERROR_DISCONNECT;
+import static com.wsj.blesdk.BleConstants.BLE_ERROR_DISCOVER_SERVICES;
+import static com.wsj.blesdk.BleConstants.BLE_ERROR_FIRMWARE;
+import static com.wsj.blesdk.BleConstants.BLE_ERROR_NO_CHARACTERISTIC;
+import static com.wsj.blesdk.BleConstants.BLE_ERROR_TIMEOUT;
+import static com.wsj.blesdk.BleConstants.BLE_ERROR_WRITE;
+import static com.wsj.blesdk.BleConstants.BLE_SUCCESS;
+
+/**
+ * 批量任务调度.<br>
+ *     (1) 每台设备一个条目: 等待 -> 连接 -> 服务发现 -> 依次执行步骤 -> 结束, 同时进行的条目数受并发数限制.
+ *     (2) 条目结束 (成功或失败) 后立即释放连接并开始下一个等待的条目, 失败的条目延时后重试.
+ *     (3) 需要扫描时, 有等待的设备未出现就保持扫描, 出现后即可连接, 全部出现后停止扫描.
+ *     (4) 状态只在 SDK 事件循环中修改, 连接事件和步骤结果都投递到事件循环处理, 统计字段可在任意线程读取.
+ *     (5) 调用前已连接的设备复用其连接, 结束后不断开.
+ */
+
+final class BleFanoutScheduler {
+    // TAG
+    private static final String TAG = "BleFanoutScheduler";
+
+    // 失败后重试前的等待时间 (毫秒).
+    static final long RETRY_DELAY = 1000;
+    // 有设备在等待 (未出现, 等待重试或连接池已满) 时重新检查的间隔 (毫秒).
+    static final long TICK_INTERVAL = 500;
+
+    private static final int ITEM_PENDING     = 0;
+    private static final int ITEM_CONNECTING  = 1;
+    private static final int ITEM_DISCOVERING = 2;
+    private static final int ITEM_RUNNING     = 3;
+    private static final int ITEM_DONE        = 4;
+
+    /**
+     * 连接和扫描由 BleManager 提供.
+     */
+    interface Host {
+        /**
+         * 连接池中的连接, 没有时返回 null.
+         */
+        BleConnection getConnection(String address);
+
+        /**
+         * 连接池是否还能加入新连接 (不淘汰已有连接).
+         */
+        boolean hasFreeSlot();
+
+        /**
+         * 创建连接并加入连接池 (不自动重连), 失败时返回 null.
+         */
+        BleConnection connect(String address);
+
+        void disconnect(BleConnection connection);
+
+        /**
+         * 本次扫描中是否出现过该设备.
+         */
+        boolean isNearby(String address);
+
+        /**
+         * 开始扫描.
+         * @return
+         *      是否由本次调用开始 (原来已在扫描时返回 false, 结束时也不停止).
+         */
+        boolean startScan();
+
+        void stopScan();
+
+        int getTransmitWindow();
+
+        long getOperationTimeout();
+
+        BleOtaCheckpoint getCheckpoints();
+
+        void onJobFinished(BleFanoutScheduler scheduler);
+    }
+
+    /**
+     * 一台设备.
+     */
+    private final class Item {
+        final String address;
+        int state = ITEM_PENDING;
+        int attempts;
+        // 下一个要执行的步骤.
+        int taskIndex;
+        // 每次开始步骤或释放连接时加一, 迟到的步骤结果丢弃.
+        int token;
+        BleConnection connection;
+        // 连接由本任务创建, 结束时断开.
+        boolean owned;
+        long retryAt;
+        long firstStartTime = -1;
+        long attemptStartTime;
+        long transferStartTime = -1;
+        long connectMillis;
+        long transferMillis;
+        long attemptBytes;
+        long bytes;
+        int code = BLE_SUCCESS;
+
+        final Runnable timeout = new Runnable() {
+            @Override
+            public void run() {
+                if (state == ITEM_CONNECTING || state == ITEM_DISCOVERING) {
+                    LogUtil.e(TAG, "connect timeout : %s", address);
+                    fail(Item.this, BLE_ERROR_TIMEOUT);
+                }
+            }
+        };
+
+        Item(String address) {
+            this.address = address;
+        }
+    }
+
+    private final BleScheduler mScheduler;
+    private final Host mHost;
+    private final BleFanoutJob mJob;
+    private final BleFanoutListener mListener;
+    private final List<BleFanoutJob.Task> mTasks;
+    private final int mConcurrency;
+    private final int mMaxAttempts;
+    private final long mConnectTimeout;
+    private final boolean mRequireScan;
+    // 按添加顺序, 先添加的先开始.
+    private final Item[] mItems;
+    // 以 long 形式的 MAC 地址索引, 构造后不再修改, 连接事件在 Binder 线程过滤.
+    private final LongHashMap<Item> mIndex;
+
+    private boolean mStarted;
+    private boolean mCancelled;
+    private boolean mScheduling;
+    private boolean mReschedule;
+    private boolean mScanRequested;
+    private boolean mScanOwned;
+
+    /* 统计, 只在事件循环中修改. */
+    private volatile boolean mFinished;
+    private volatile int mPending;
+    private volatile int mRunning;
+    private volatile int mSucceeded;
+    private volatile int mFailed;
+    private volatile int mMaxConcurrent;
+    private volatile int mAttempts;
+    private volatile long mBytes;
+    private volatile long mDeviceMillis;
+    private volatile long mStartTime = -1;
+    private volatile long mEndTime = -1;
+
+    BleFanoutScheduler(BleScheduler scheduler, Host host, BleFanoutJob job,
+                       BleFanoutListener listener) {
+        mScheduler = scheduler;
+        mHost = host;
+        mJob = job;
+        mListener = listener;
+        mTasks = job.getTasks();
+        mConcurrency = job.getConcurrency();
+        mMaxAttempts = job.getMaxAttempts();
+        mConnectTimeout = job.getConnectTimeout();
+        mRequireScan = job.isRequireScan();
+        final List<String> addresses = job.getDevices();
+        mItems = new Item[addresses.size()];
+        mIndex = new LongHashMap<>(mItems.length);
+        for (int i = 0; i < mItems.length; i++) {
+            mItems[i] = new Item(addresses.get(i));
+            mIndex.put(MacAddress.toLong(mItems[i].address), mItems[i]);
+        }
+        mPending = mItems.length;
+    }
+
+    BleFanoutJob getJob() {
+        return mJob;
+    }
+
+    boolean isFinished() {
+        return mFinished;
+    }
+
+    void start() {
+        mScheduler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mStarted)
+                    return;
+                mStarted = true;
+                mStartTime = mScheduler.now();
+                schedule();
+            }
+        });
+    }
+
+    /**
+     * 取消: 正在进行的设备中止并断开, 所有未结束的设备以 BLE_ERROR_CANCELLED 结束.
+     */
+    void cancel() {
+        mScheduler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mFinished || mCancelled)
+                    return;
+                mCancelled = true;
+                if (mStartTime < 0)
+                    mStartTime = mScheduler.now();
+                for (Item item : mItems) {
+                    if (item.state == ITEM_DONE)
+                        continue;
+                    if (item.state != ITEM_PENDING)
+                        release(item, BLE_ERROR_CANCELLED);
+                    finish(item, BLE_ERROR_CANCELLED);
+                }
+            }
+        });
+    }
+
+    /**
+     * 连接状态变化 (任意线程).
+     */
+    void onConnectionStateChanged(final BleConnection connection, final int newState) {
+        if (newState != BleConnection.STATE_CONNECTED
+                && newState != BleConnection.STATE_DISCONNECTED)
+            return;
+        final Item item = mIndex.get(MacAddress.toLong(connection.getAddress()));
+        if (item == null)
+            return;
+        mScheduler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (item.connection != connection)
+                    return;
+                if (newState == BleConnection.STATE_CONNECTED) {
+                    connected(item);
+                } else if (item.state != ITEM_PENDING && item.state != ITEM_DONE) {
+                    fail(item, item.state == ITEM_CONNECTING
+                            ? BLE_ERROR_CONNECT : BLE_ERROR_DISCONNECT);
+                }
+            }
+        });
+    }
+
+    /**
+     * 服务发现结束 (任意线程).
+     */
+    void onServicesDiscovered(final BleConnection connection, final boolean success) {
+        final Item item = mIndex.get(MacAddress.toLong(connection.getAddress()));
+        if (item == null)
+            return;
+        mScheduler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (item.connection != connection || item.state != ITEM_DISCOVERING)
+                    return;
+                if (!success) {
+                    fail(item, BLE_ERROR_DISCOVER_SERVICES);
+                    return;
+                }
+                mScheduler.remove(item.timeout);
+                final long now = mScheduler.now();
+                item.connectMillis = now - item.attemptStartTime;
+                item.transferStartTime = now;
+                setState(item, ITEM_RUNNING);
+                runNextTask(item);
+            }
+        });
+    }
+
+    void getStats(BleFanoutStats stats) {
+        final long start = mStartTime;
+        final long end = mEndTime;
+        final int succeeded = mSucceeded;
+        stats.devices = mItems.length;
+        stats.succeeded = succeeded;
+        stats.failed = mFailed;
+        stats.running = mRunning;
+        stats.pending = mPending;
+        stats.maxConcurrent = mMaxConcurrent;
+        stats.attempts = mAttempts;
+        stats.bytes = mBytes;
+        stats.elapsedMillis = start < 0 ? 0 : (end >= 0 ? end : mScheduler.now()) - start;
+        stats.bytesPerSecond = stats.elapsedMillis > 0
+                ? stats.bytes * 1000 / stats.elapsedMillis : 0;
+        stats.averageDeviceMillis = succeeded > 0 ? mDeviceMillis / succeeded : 0;
+    }
+
+    /**
+     * 在并发数以内开始等待的设备. 条目结束时会再次调用, 不重入.
+     */
+    private void schedule() {
+        if (mScheduling) {
+            mReschedule = true;
+            return;
+        }
+        mScheduling = true;
+        do {
+            mReschedule = false;
+            scheduleOnce();
+        } while (mReschedule);
+        mScheduling = false;
+    }
+
+    private void scheduleOnce() {
+        if (mFinished || mCancelled)
+            return;
+        final long now = mScheduler.now();
+        boolean blocked = false;
+        boolean unseen = false;
+        for (Item item : mItems) {
+            if (item.state != ITEM_PENDING || item.retryAt > now)
+                continue;
+            if (mRequireScan && !mHost.isNearby(item.address)) {
+                unseen = true;
+                continue;
+            }
+            if (blocked || mRunning >= mConcurrency)
+                continue;
+            if (!begin(item))
+                blocked = true;
+        }
+        updateScan(unseen);
+        mScheduler.remove(mTick);
+        if (!mFinished && mPending > 0 && mRunning < mConcurrency)
+            mScheduler.postDelayed(mTick, TICK_INTERVAL);
+    }
+
+    private final Runnable mTick = new Runnable() {
+        @Override
+        public void run() {
+            schedule();
+        }
+    };
+
+    /**
+     * 有未出现的设备时保持扫描.
+     */
+    private void updateScan(boolean needed) {
+        if (needed && !mScanRequested) {
+            mScanRequested = true;
+            mScanOwned = mHost.startScan();
+        } else if (!needed && mScanRequested) {
+            mScanRequested = false;
+            if (mScanOwned)
+                mHost.stopScan();
+            mScanOwned = false;
+        }
+    }
+
+    /**
+     * 开始一次尝试.
+     * @return
+     *      连接池已满或设备的连接正在断开, 暂时不能开始时返回 false.
+     */
+    private boolean begin(Item item) {
+        BleConnection connection = mHost.getConnection(item.address);
+        boolean owned = false;
+        if (connection != null) {
+            final int state = connection.getState();
+            if (state != BleConnection.STATE_CONNECTED && state != BleConnection.STATE_CONNECTING)
+                return false;
+        } else {
+            if (!mHost.hasFreeSlot())
+                return false;
+            connection = mHost.connect(item.address);
+            owned = true;
+        }
+        final long now = mScheduler.now();
+        item.attempts++;
+        mAttempts++;
+        if (item.firstStartTime < 0)
+            item.firstStartTime = now;
+        item.attemptStartTime = now;
+        item.transferStartTime = -1;
+        item.connectMillis = 0;
+        item.transferMillis = 0;
+        item.attemptBytes = 0;
+        if (connection == null) {
+            LogUtil.e(TAG, "connect failed : %s", item.address);
+            retryOrFinish(item, BLE_ERROR_CONNECT);
+            return true;
+        }
+        item.connection = connection;
+        item.owned = owned;
+        mScheduler.postDelayed(item.timeout, mConnectTimeout);
+        setState(item, ITEM_CONNECTING);
+        mMaxConcurrent = Math.max(mMaxConcurrent, mRunning);
+        if (connection.isConnected())
+            connected(item);
+        return true;
+    }
+
+    private void connected(Item item) {
+        if (item.state != ITEM_CONNECTING)
+            return;
+        setState(item, ITEM_DISCOVERING);
+        // 已有服务表时直接回调.
+        if (!item.connection.discoverServices())
+            fail(item, BLE_ERROR_DISCOVER_SERVICES);
+    }
+
+    private void runNextTask(final Item item) {
+        if (item.taskIndex >= mTasks.size()) {
+            release(item, BLE_SUCCESS);
+            finish(item, BLE_SUCCESS);
+            schedule();
+            return;
+        }
+        final int token = ++item.token;
+        final BleTransmitListener listener = new BleTransmitListener() {
+            @Override
+            public void onTransmitProgress(String address, int sentBytes, int totalBytes,
+                                           long bytesPerSecond) {
+            }
+
+            @Override
+            public void onTransmitComplete(String address, final int totalBytes,
+                                           long bytesPerSecond) {
+                post(item, token, BLE_SUCCESS, totalBytes);
+            }
+
+            @Override
+            public void onTransmitError(String address, int code) {
+                post(item, token, code, 0);
+            }
+        };
+        if (!mTasks.get(item.taskIndex).start(item.connection, mHost, listener)) {
+            // 同步回调的错误先到, 这里的结果会被丢弃.
+            post(item, token, BLE_ERROR_WRITE, 0);
+        }
+    }
+
+    private void post(final Item item, final int token, final int code, final int bytes) {
+        mScheduler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (item.token != token || item.state != ITEM_RUNNING)
+                    return;
+                if (code != BLE_SUCCESS) {
+                    fail(item, code);
+                    return;
+                }
+                item.taskIndex++;
+                item.attemptBytes += bytes;
+                item.bytes += bytes;
+                mBytes += bytes;
+                runNextTask(item);
+            }
+        });
+    }
+
+    private void fail(Item item, int code) {
+        LogUtil.e(TAG, "attempt %d failed %d : %s", item.attempts, code, item.address);
+        release(item, code);
+        retryOrFinish(item, code);
+        schedule();
+    }
+
+    private void retryOrFinish(Item item, int code) {
+        if (mCancelled || item.attempts >= mMaxAttempts || !isRetryable(code)) {
+            finish(item, code);
+            return;
+        }
+        item.code = code;
+        item.retryAt = mScheduler.now() + RETRY_DELAY;
+        setState(item, ITEM_PENDING);
+    }
+
+    /**
+     * 结束一次尝试: 中止正在执行的步骤, 断开本任务创建的连接.
+     */
+    private void release(Item item, int code) {
+        mScheduler.remove(item.timeout);
+        final BleConnection connection = item.connection;
+        item.connection = null;
+        item.token++;
+        if (item.transferStartTime >= 0)
+            item.transferMillis = mScheduler.now() - item.transferStartTime;
+        if (connection != null) {
+            if (item.state == ITEM_RUNNING && code != BLE_SUCCESS)
+                mTasks.get(item.taskIndex).cancel(connection, code);
+            if (item.owned)
+                mHost.disconnect(connection);
+        }
+        setState(item, ITEM_PENDING);
+    }
+
+    private void finish(Item item, int code) {
+        final long now = mScheduler.now();
+        item.code = code;
+        setState(item, ITEM_DONE);
+        if (code == BLE_SUCCESS) {
+            mDeviceMillis += now - item.firstStartTime;
+            mSucceeded++;
+        } else {
+            mFailed++;
+        }
+        if (mListener != null)
+            mListener.onDeviceFinished(mJob, result(item));
+        if (mSucceeded + mFailed == mItems.length)
+            finishJob();
+    }
+
+    private void finishJob() {
+        mEndTime = mScheduler.now();
+        mFinished = true;
+        mScheduler.remove(mTick);
+        updateScan(false);
+        if (mListener != null) {
+            final BleFanoutStats stats = new BleFanoutStats();
+            getStats(stats);
+            mListener.onJobFinished(mJob, stats);
+        }
+        mHost.onJobFinished(this);
+    }
+
+    private BleFanoutResult result(Item item) {
+        final BleFanoutResult result = new BleFanoutResult();
+        result.address = item.address;
+        result.code = item.code;
+        result.attempts = item.attempts;
+        result.completedTasks = item.taskIndex;
+        result.bytes = item.bytes;
+        result.connectMillis = item.connectMillis;
+        result.transferMillis = item.transferMillis;
+        result.bytesPerSecond = item.transferMillis > 0
+                ? item.attemptBytes * 1000 / item.transferMillis : 0;
+        return result;
+    }
+
+    private void setState(Item item, int state) {
+        count(item.state, -1);
+        item.state = state;
+        count(state, 1);
+    }
+
+    private void count(int state, int delta) {
+        if (state == ITEM_PENDING)
+            mPending += delta;
+        else if (state != ITEM_DONE)
+            mRunning += delta;
+    }
+
+    /**
+     * 镜像被拒绝或特征值不存在时重试也不会成功.
+     */
+    private static boolean isRetryable(int code) {
+        return code != BLE_ERROR_FIRMWARE && code != BLE_ERROR_NO_CHARACTERISTIC
+                && code != BLE_ERROR_CANCELLED;
+    }
+}
@@ -0,0 +1,45 @@
+package com.wsj.blesdk;
+
+/**
+ * 批量任务汇总统计.
+ */
+
+public class BleFanoutStats {
+    // 设备总数.
+    public int devices;
+    // 成功的设备数.
+    public int succeeded;
+    // 失败 (含取消) 的设备数.
+    public int failed;
+    // 正在连接或执行的设备数.
+    public int running;
+    // 等待连接 (含等待重试) 的设备数.
+    public int pending;
+    // 最多同时进行的设备数.
+    public int maxConcurrent;
+    // 所有设备的尝试次数.
+    public int attempts;
+    // 所有设备已完成步骤的字节数.
+    public long bytes;
+    // 从开始到现在 (结束后为到结束) 的时间 (毫秒).
+    public long elapsedMillis;
+    // 汇总速率 bytes / elapsedMillis (字节/秒).
+    public long bytesPerSecond;
+    // 成功设备从发起连接到结束的平均时间 (毫秒).
+    public long averageDeviceMillis;
+
+    @Override
+    public String toString() {
+        return "BleFanoutStats{devices=" + devices
+                + ", succeeded=" + succeeded
+                + ", failed=" + failed
+                + ", running=" + running
+                + ", pending=" + pending
+                + ", maxConcurrent=" + maxConcurrent
+                + ", attempts=" + attempts
+                + ", bytes=" + bytes
+                + ", elapsed=" + elapsedMillis
+                + ", rate=" + bytesPerSecond
+                + ", avgDevice=" + averageDeviceMillis + "}";
+    }
+}
@@ -0,0 +1,348 @@
+package com.wsj.blesdk;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * 事件流 (扫描结果, 连接状态, 通知, 错误), 与 BleListener 并存.<br>
+ *     (1) 事件源是热流, 订阅之后产生的事件才会收到; 多个订阅者收到同一个事件对象, 不复制.
+ *     (2) 操作符 (filter, distinct, sample, buffer, observeOn) 的状态属于每个订阅,
+ *         同一个 BleFlow 可以被多次订阅.
+ *     (3) 默认在产生事件的线程 (SDK 线程或 Binder 线程) 直接回调;
+ *         observeOn 投递到指定的 Executor, 缓冲满时丢弃最旧的事件 (订阅者只会落后, 不会阻塞 SDK).
+ *     (4) sample 和 buffer 的计时使用 SDK 的事件循环.
+ *     (5) sample, buffer 和 observeOn 的状态用各自订阅的锁保护 (事件可能同时来自 SDK 线程和 Binder 线程),
+ *         锁内只修改状态和增删定时任务, 回调下游和投递到 Executor 都在锁外进行.
+ */
+
+public abstract class BleFlow<T> {
+
+    public interface Predicate<T> {
+        public boolean test(final T value);
+    }
+
+    final BleScheduler mScheduler;
+
+    BleFlow(BleScheduler scheduler) {
+        mScheduler = scheduler;
+    }
+
+    /**
+     * 订阅.
+     * @return
+     *      订阅, 用于取消.
+     */
+    public abstract BleSubscription subscribe(BleObserver<? super T> observer);
+
+    /**
+     * 只保留 predicate 为 true 的事件.
+     */
+    public final BleFlow<T> filter(final Predicate<? super T> predicate) {
+        final BleFlow<T> upstream = this;
+        return new BleFlow<T>(mScheduler) {
+            @Override
+            public BleSubscription subscribe(final BleObserver<? super T> observer) {
+                return upstream.subscribe(new BleObserver<T>() {
+                    @Override
+                    public void onEvent(T event) {
+                        if (predicate.test(event))
+                            observer.onEvent(event);
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * 连续相同 (equals) 的事件只保留第一个.
+     */
+    public final BleFlow<T> distinct() {
+        final BleFlow<T> upstream = this;
+        return new BleFlow<T>(mScheduler) {
+            @Override
+            public BleSubscription subscribe(final BleObserver<? super T> observer) {
+                return upstream.subscribe(new BleObserver<T>() {
+                    private boolean mHasLast;
+                    private T mLast;
+
+                    @Override
+                    public void onEvent(T event) {
+                        synchronized (this) {
+                            if (mHasLast && (mLast == null ? event == null : mLast.equals(event)))
+                                return;
+                            mHasLast = true;
+                            mLast = event;
+                        }
+                        observer.onEvent(event);
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * 每个周期最多回调一次, 为周期内最后一个事件; 周期内没有事件时不回调.
+     * @param periodMillis 周期 (毫秒)
+     */
+    public final BleFlow<T> sample(final long periodMillis) {
+        final BleFlow<T> upstream = this;
+        return new BleFlow<T>(mScheduler) {
+            @Override
+            public BleSubscription subscribe(BleObserver<? super T> observer) {
+                return new SampleStage<T>(mScheduler, observer, Math.max(1, periodMillis))
+                        .attach(upstream);
+            }
+        };
+    }
+
+    /**
+     * 把事件收集为列表, 达到 count 个或第一个事件之后 timeMillis 毫秒时回调.
+     * @param count      每个列表最多的事件数
+     * @param timeMillis 最长等待时间 (毫秒), 0 表示只按个数
+     */
+    public final BleFlow<List<T>> buffer(final int count, final long timeMillis) {
+        final BleFlow<T> upstream = this;
+        return new BleFlow<List<T>>(mScheduler) {
+            @Override
+            public BleSubscription subscribe(BleObserver<? super List<T>> observer) {
+                return new BufferStage<T>(mScheduler, observer, Math.max(1, count), timeMillis)
+                        .attach(upstream);
+            }
+        };
+    }
+
+    /**
+     * 在 executor 中回调, 订阅者处理不及时最多缓冲 capacity 个事件, 超出时丢弃最旧的.
+     * @param executor 回调线程
+     * @param capacity 缓冲的事件数
+     */
+    public final BleFlow<T> observeOn(final Executor executor, final int capacity) {
+        final BleFlow<T> upstream = this;
+        return new BleFlow<T>(mScheduler) {
+            @Override
+            public BleSubscription subscribe(BleObserver<? super T> observer) {
+                return new ObserveOnStage<T>(executor, observer, Math.max(1, capacity))
+                        .attach(upstream);
+            }
+        };
+    }
+
+    /**
+     * 有自身状态的操作符, 取消时同时取消上游.
+     */
+    private abstract static class Stage<T, R> implements BleObserver<T>, BleSubscription {
+        final BleObserver<? super R> mDownstream;
+        private volatile BleSubscription mUpstream;
+        volatile boolean mCancelled;
+
+        Stage(BleObserver<? super R> downstream) {
+            mDownstream = downstream;
+        }
+
+        final BleSubscription attach(BleFlow<T> upstream) {
+            mUpstream = upstream.subscribe(this);
+            return this;
+        }
+
+        void onCancel() {
+        }
+
+        long dropped() {
+            return 0;
+        }
+
+        @Override
+        public final void cancel() {
+            if (mCancelled)
+                return;
+            mCancelled = true;
+            final BleSubscription upstream = mUpstream;
+            if (upstream != null)
+                upstream.cancel();
+            onCancel();
+        }
+
+        @Override
+        public final boolean isCancelled() {
+            return mCancelled;
+        }
+
+        @Override
+        public final long getDropped() {
+            final BleSubscription upstream = mUpstream;
+            return dropped() + (upstream == null ? 0 : upstream.getDropped());
+        }
+    }
+
+    private static final class SampleStage<T> extends Stage<T, T> implements Runnable {
+        private final BleScheduler mScheduler;
+        private final long mPeriod;
+
+        private T mLatest;
+        private boolean mHasLatest;
+        private boolean mScheduled;
+
+        SampleStage(BleScheduler scheduler, BleObserver<? super T> downstream, long period) {
+            super(downstream);
+            mScheduler = scheduler;
+            mPeriod = period;
+        }
+
+        @Override
+        public void onEvent(T event) {
+            synchronized (this) {
+                if (mCancelled)
+                    return;
+                mLatest = event;
+                mHasLatest = true;
+                if (mScheduled)
+                    return;
+                mScheduled = true;
+                mScheduler.postDelayed(this, mPeriod);
+            }
+        }
+
+        @Override
+        public void run() {
+            final T latest;
+            synchronized (this) {
+                mScheduled = false;
+                if (!mHasLatest || mCancelled)
+                    return;
+                latest = mLatest;
+                mLatest = null;
+                mHasLatest = false;
+            }
+            mDownstream.onEvent(latest);
+        }
+
+        @Override
+        void onCancel() {
+            synchronized (this) {
+                mScheduler.remove(this);
+                mLatest = null;
+                mHasLatest = false;
+            }
+        }
+    }
+
+    private static final class BufferStage<T> extends Stage<T, List<T>> implements Runnable {
+        private final BleScheduler mScheduler;
+        private final int mCount;
+        private final long mTime;
+
+        private List<T> mBuffer;
+
+        BufferStage(BleScheduler scheduler, BleObserver<? super List<T>> downstream, int count,
+                    long time) {
+            super(downstream);
+            mScheduler = scheduler;
+            mCount = count;
+            mTime = time;
+        }
+
+        @Override
+        public void onEvent(T event) {
+            List<T> full = null;
+            synchronized (this) {
+                if (mCancelled)
+                    return;
+                if (mBuffer == null) {
+                    mBuffer = new ArrayList<>(Math.min(mCount, 64));
+                    if (mTime > 0 && mCount > 1)
+                        mScheduler.postDelayed(this, mTime);
+                }
+                mBuffer.add(event);
+                if (mBuffer.size() >= mCount) {
+                    full = mBuffer;
+                    mBuffer = null;
+                    mScheduler.remove(this);
+                }
+            }
+            if (full != null)
+                mDownstream.onEvent(full);
+        }
+
+        @Override
+        public void run() {
+            final List<T> buffer;
+            synchronized (this) {
+                if (mBuffer == null || mCancelled)
+                    return;
+                buffer = mBuffer;
+                mBuffer = null;
+            }
+            mDownstream.onEvent(buffer);
+        }
+
+        @Override
+        void onCancel() {
+            synchronized (this) {
+                mScheduler.remove(this);
+                mBuffer = null;
+            }
+        }
+    }
+
+    private static final class ObserveOnStage<T> extends Stage<T, T> implements Runnable {
+        private final Executor mExecutor;
+        private final int mCapacity;
+        private final ArrayDeque<T> mQueue;
+
+        private boolean mScheduled;
+        private long mDropped;
+
+        ObserveOnStage(Executor executor, BleObserver<? super T> downstream, int capacity) {
+            super(downstream);
+            mExecutor = executor;
+            mCapacity = capacity;
+            mQueue = new ArrayDeque<>(Math.min(capacity, 64));
+        }
+
+        @Override
+        public void onEvent(T event) {
+            synchronized (this) {
+                if (mCancelled)
+                    return;
+                if (mQueue.size() >= mCapacity) {
+                    mQueue.pollFirst();
+                    mDropped++;
+                }
+                mQueue.addLast(event);
+                if (mScheduled)
+                    return;
+                mScheduled = true;
+            }
+            mExecutor.execute(this);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                final T event;
+                synchronized (this) {
+                    event = mQueue.pollFirst();
+                    if (event == null || mCancelled) {
+                        mScheduled = false;
+                        return;
+                    }
+                }
+                mDownstream.onEvent(event);
+            }
+        }
+
+        @Override
+        synchronized long dropped() {
+            return mDropped;
+        }
+
+        @Override
+        void onCancel() {
+            synchronized (this) {
+                mQueue.clear();
+            }
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.wsj.blesdk;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 最近一次服务发现结果的内存缓存.<br>
+ *     (1) 以 long 形式的 MAC 地址为键, 断开后仍保留, 未连接时也可查询服务.
+ *     (2) 服务表以 BleGattTable.toArray 的 long 数组保存, UUID 为两个 long.
+ *     (3) 收到 Service Changed 指示时删除.
+ *     (4) 不写文件: Android 每个 BluetoothGatt 都要 discoverServices 才能访问特征值,
+ *         保存到本地也省不掉重连后的服务发现, 回调线程上也不做磁盘 I/O.
+ */
+
+final class BleGattCache {
+
+    private final ConcurrentHashMap<Long, long[]> mTables = new ConcurrentHashMap<>();
+
+    /**
+     * 获取缓存的服务表.
+     * @return
+     *      没有缓存时返回 null.
+     */
+    long[] get(long mac) {
+        return mTables.get(mac);
+    }
+
+    /**
+     * 保存服务发现结果.
+     * @return
+     *      与缓存是否不同.
+     */
+    boolean put(long mac, BleGattTable gattTable) {
+        final long[] table = gattTable.toArray();
+        return !Arrays.equals(table, mTables.put(mac, table));
+    }
+
+    void invalidate(long mac) {
+        mTables.remove(mac);
+    }
+
+    void clear() {
+        mTables.clear();
+    }
+}
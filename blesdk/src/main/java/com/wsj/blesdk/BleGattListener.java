@@ -0,0 +1,67 @@
+package com.wsj.blesdk;
+
+import java.util.UUID;
+
+/**
+ * GATT 事件监听, 所有回调都带有设备地址, 用于多设备连接.
+ */
+
+public interface BleGattListener {
+    /**
+     * 读特征值完成.
+     * @param address  设备地址
+     * @param uuid     特征值 UUID
+     * @param value    特征值
+     * @param status   GATT 状态
+     */
+    public void onBleCharacteristicRead(final String address, final UUID uuid,
+                                        final byte[] value, final int status);
+
+    /**
+     * 写特征值完成 (不包括 transmitData2Device 的分包写).
+     * @param address  设备地址
+     * @param uuid     特征值 UUID
+     * @param status   GATT 状态
+     */
+    public void onBleCharacteristicWrite(final String address, final UUID uuid, final int status);
+
+    /**
+     * 特征值通知.
+     * @param address  设备地址
+     * @param uuid     特征值 UUID
+     * @param value    特征值
+     */
+    public void onBleCharacteristicChanged(final String address, final UUID uuid,
+                                           final byte[] value);
+
+    /**
+     * 写描述符完成.
+     * @param address  设备地址
+     * @param uuid     描述符 UUID
+     * @param status   GATT 状态
+     */
+    public void onBleDescriptorWrite(final String address, final UUID uuid, final int status);
+
+    /**
+     * 读取 RSSI 完成.
+     * @param address  设备地址
+     * @param rssi     RSSI
+     * @param status   GATT 状态
+     */
+    public void onBleReadRemoteRssi(final String address, final int rssi, final int status);
+
+    /**
+     * MTU 变化.
+     * @param address  设备地址
+     * @param mtu      MTU
+     * @param status   GATT 状态
+     */
+    public void onBleMtuChanged(final String address, final int mtu, final int status);
+
+    /**
+     * 指定设备发生错误.
+     * @param address  设备地址
+     * @param code     错误代码
+     */
+    public void onBleError(final String address, final int code);
+}
@@ -0,0 +1,304 @@
+package com.wsj.blesdk;
+
+import com.wsj.blesdk.utils.LongHashMap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * 服务表 (一次服务发现的结果).<br>
+ *     (1) 服务/特征值/描述符按 UUID 的两个 long 建立哈希索引, 查找为 O(1) 且不分配对象.
+ *     (2) 同一 UUID 有多个实例时取第一个, 与 BluetoothGatt.getService 一致.
+ *     (3) 每个条目可附带链路自己的对象 (如 BluetoothGattCharacteristic).
+ *     (4) 可编码为 long 数组保存:
+ *         [服务数, (服务 msb, lsb, 类型 << 32 | 特征值数,
+ *                   (特征值 msb, lsb, 属性 << 32 | 描述符数, (描述符 msb, lsb)...)...)...]
+ *     (5) 建立后只读, 可在任意线程查找.
+ */
+
+final class BleGattTable {
+
+    /**
+     * 哈希冲突链上的条目, 查找时核对完整 UUID.
+     */
+    private static final class Entry {
+        final long serviceMsb;
+        final long serviceLsb;
+        final long characteristicMsb;
+        final long characteristicLsb;
+        final long msb;
+        final long lsb;
+        final int properties;
+        final Object tag;
+        Entry next;
+
+        Entry(long serviceMsb, long serviceLsb, long characteristicMsb, long characteristicLsb,
+              long msb, long lsb, int properties, Object tag) {
+            this.serviceMsb = serviceMsb;
+            this.serviceLsb = serviceLsb;
+            this.characteristicMsb = characteristicMsb;
+            this.characteristicLsb = characteristicLsb;
+            this.msb = msb;
+            this.lsb = lsb;
+            this.properties = properties;
+            this.tag = tag;
+        }
+    }
+
+    /**
+     * 按发现顺序添加服务, 特征值和描述符.
+     */
+    static final class Builder {
+        private long[] mData = new long[64];
+        private int mLength = 1;
+        private final List<Object> mTags = new ArrayList<>();
+        // 当前服务/特征值计数所在的位置.
+        private int mServiceHeader = -1;
+        private int mCharacteristicHeader = -1;
+
+        Builder addService(UUID uuid, int type, Object tag) {
+            mData[0]++;
+            mServiceHeader = append(uuid, (long) type << 32, tag);
+            mCharacteristicHeader = -1;
+            return this;
+        }
+
+        Builder addCharacteristic(UUID uuid, int properties, Object tag) {
+            if (mServiceHeader < 0)
+                throw new IllegalStateException("no service");
+            mData[mServiceHeader]++;
+            mCharacteristicHeader = append(uuid, (long) properties << 32, tag);
+            return this;
+        }
+
+        Builder addDescriptor(UUID uuid, Object tag) {
+            if (mCharacteristicHeader < 0)
+                throw new IllegalStateException("no characteristic");
+            mData[mCharacteristicHeader]++;
+            ensure(2);
+            mData[mLength++] = uuid.getMostSignificantBits();
+            mData[mLength++] = uuid.getLeastSignificantBits();
+            mTags.add(tag);
+            return this;
+        }
+
+        BleGattTable build() {
+            return new BleGattTable(Arrays.copyOf(mData, mLength), mTags.toArray());
+        }
+
+        private int append(UUID uuid, long header, Object tag) {
+            ensure(3);
+            mData[mLength++] = uuid.getMostSignificantBits();
+            mData[mLength++] = uuid.getLeastSignificantBits();
+            mData[mLength] = header;
+            mTags.add(tag);
+            return mLength++;
+        }
+
+        private void ensure(int count) {
+            if (mLength + count > mData.length)
+                mData = Arrays.copyOf(mData, Math.max(mData.length * 2, mLength + count));
+        }
+    }
+
+    private final long[] mData;
+    private final List<UUID> mServiceUuids = new ArrayList<>();
+    private final LongHashMap<Entry> mServices = new LongHashMap<>();
+    private final LongHashMap<Entry> mCharacteristics = new LongHashMap<>();
+    private final LongHashMap<Entry> mDescriptors = new LongHashMap<>();
+
+    private BleGattTable(long[] data, Object[] tags) {
+        mData = data;
+        final int services = (int) data[0];
+        int pos = 1;
+        int tag = 0;
+        for (int i = 0; i < services; i++) {
+            final long serviceMsb = data[pos];
+            final long serviceLsb = data[pos + 1];
+            final int characteristics = (int) data[pos + 2];
+            final boolean newService = getServiceEntry(serviceMsb, serviceLsb) == null;
+            if (newService) {
+                mServiceUuids.add(new UUID(serviceMsb, serviceLsb));
+                add(mServices, key(serviceMsb, serviceLsb), new Entry(0, 0, 0, 0,
+                        serviceMsb, serviceLsb, (int) (data[pos + 2] >>> 32), tagAt(tags, tag)));
+            }
+            pos += 3;
+            tag++;
+            for (int j = 0; j < characteristics; j++) {
+                final long msb = data[pos];
+                final long lsb = data[pos + 1];
+                final int descriptors = (int) data[pos + 2];
+                final boolean newCharacteristic = newService
+                        && getCharacteristicEntry(serviceMsb, serviceLsb, msb, lsb) == null;
+                if (newCharacteristic) {
+                    add(mCharacteristics, key(serviceMsb, serviceLsb, msb, lsb),
+                            new Entry(serviceMsb, serviceLsb, 0, 0, msb, lsb,
+                                    (int) (data[pos + 2] >>> 32), tagAt(tags, tag)));
+                }
+                pos += 3;
+                tag++;
+                for (int k = 0; k < descriptors; k++) {
+                    final long descriptorMsb = data[pos];
+                    final long descriptorLsb = data[pos + 1];
+                    if (newCharacteristic && getDescriptorEntry(serviceMsb, serviceLsb, msb, lsb,
+                            descriptorMsb, descriptorLsb) == null) {
+                        add(mDescriptors, key(key(serviceMsb, serviceLsb, msb, lsb),
+                                descriptorMsb, descriptorLsb),
+                                new Entry(serviceMsb, serviceLsb, msb, lsb,
+                                        descriptorMsb, descriptorLsb, 0, tagAt(tags, tag)));
+                    }
+                    pos += 2;
+                    tag++;
+                }
+            }
+        }
+    }
+
+    /**
+     * 由 toArray 的结果恢复 (不含附带对象).
+     * @return
+     *      数据格式错误时返回 null.
+     */
+    static BleGattTable fromArray(long[] data) {
+        if (data == null || data.length == 0 || !isValid(data))
+            return null;
+        return new BleGattTable(data, null);
+    }
+
+    long[] toArray() {
+        return mData;
+    }
+
+    List<UUID> getServiceUuids() {
+        return mServiceUuids;
+    }
+
+    boolean hasService(UUID uuid) {
+        return getServiceEntry(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits()) != null;
+    }
+
+    Object getServiceTag(UUID uuid) {
+        final Entry entry = getServiceEntry(uuid.getMostSignificantBits(),
+                uuid.getLeastSignificantBits());
+        return entry == null ? null : entry.tag;
+    }
+
+    /**
+     * 特征值属性 (BluetoothGattCharacteristic.PROPERTY_*).
+     * @return
+     *      特征值不存在时返回 -1.
+     */
+    int getProperties(UUID service, UUID characteristic) {
+        final Entry entry = getCharacteristicEntry(service, characteristic);
+        return entry == null ? -1 : entry.properties;
+    }
+
+    Object getCharacteristicTag(UUID service, UUID characteristic) {
+        final Entry entry = getCharacteristicEntry(service, characteristic);
+        return entry == null ? null : entry.tag;
+    }
+
+    boolean hasDescriptor(UUID service, UUID characteristic, UUID descriptor) {
+        return getDescriptorEntry(service, characteristic, descriptor) != null;
+    }
+
+    Object getDescriptorTag(UUID service, UUID characteristic, UUID descriptor) {
+        final Entry entry = getDescriptorEntry(service, characteristic, descriptor);
+        return entry == null ? null : entry.tag;
+    }
+
+    private Entry getServiceEntry(long msb, long lsb) {
+        Entry entry = mServices.get(key(msb, lsb));
+        while (entry != null) {
+            if (entry.msb == msb && entry.lsb == lsb)
+                return entry;
+            entry = entry.next;
+        }
+        return null;
+    }
+
+    private Entry getCharacteristicEntry(UUID service, UUID characteristic) {
+        if (service == null || characteristic == null)
+            return null;
+        return getCharacteristicEntry(service.getMostSignificantBits(),
+                service.getLeastSignificantBits(), characteristic.getMostSignificantBits(),
+                characteristic.getLeastSignificantBits());
+    }
+
+    private Entry getCharacteristicEntry(long serviceMsb, long serviceLsb, long msb, long lsb) {
+        Entry entry = mCharacteristics.get(key(serviceMsb, serviceLsb, msb, lsb));
+        while (entry != null) {
+            if (entry.msb == msb && entry.lsb == lsb
+                    && entry.serviceMsb == serviceMsb && entry.serviceLsb == serviceLsb)
+                return entry;
+            entry = entry.next;
+        }
+        return null;
+    }
+
+    private Entry getDescriptorEntry(UUID service, UUID characteristic, UUID descriptor) {
+        if (service == null || characteristic == null || descriptor == null)
+            return null;
+        return getDescriptorEntry(service.getMostSignificantBits(),
+                service.getLeastSignificantBits(), characteristic.getMostSignificantBits(),
+                characteristic.getLeastSignificantBits(), descriptor.getMostSignificantBits(),
+                descriptor.getLeastSignificantBits());
+    }
+
+    private Entry getDescriptorEntry(long serviceMsb, long serviceLsb, long characteristicMsb,
+                                     long characteristicLsb, long msb, long lsb) {
+        Entry entry = mDescriptors.get(key(key(serviceMsb, serviceLsb, characteristicMsb,
+                characteristicLsb), msb, lsb));
+        while (entry != null) {
+            if (entry.msb == msb && entry.lsb == lsb
+                    && entry.characteristicMsb == characteristicMsb
+                    && entry.characteristicLsb == characteristicLsb
+                    && entry.serviceMsb == serviceMsb && entry.serviceLsb == serviceLsb)
+                return entry;
+            entry = entry.next;
+        }
+        return null;
+    }
+
+    private static long key(long msb, long lsb) {
+        return BleDeviceRegistry.serviceKey(msb, lsb);
+    }
+
+    private static long key(long serviceMsb, long serviceLsb, long msb, long lsb) {
+        return key(key(serviceMsb, serviceLsb), msb, lsb);
+    }
+
+    private static long key(long parent, long msb, long lsb) {
+        return parent * 31 + key(msb, lsb);
+    }
+
+    private static void add(LongHashMap<Entry> index, long key, Entry entry) {
+        entry.next = index.put(key, entry);
+    }
+
+    private static Object tagAt(Object[] tags, int index) {
+        return tags == null ? null : tags[index];
+    }
+
+    /**
+     * 检查编码长度是否一致.
+     */
+    private static boolean isValid(long[] data) {
+        final long services = data[0];
+        int pos = 1;
+        for (long i = 0; i < services; i++) {
+            if (pos + 3 > data.length)
+                return false;
+            final int characteristics = (int) data[pos + 2];
+            pos += 3;
+            for (int j = 0; j < characteristics; j++) {
+                if (pos + 3 > data.length)
+                    return false;
+                pos += 3 + 2 * (int) data[pos + 2];
+            }
+        }
+        return pos == data.length;
+    }
+}
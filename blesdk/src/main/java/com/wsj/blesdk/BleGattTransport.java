@@ -0,0 +1,398 @@
+package com.wsj.blesdk;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+import android.content.Context;
+import android.os.Build;
+import android.os.Handler;
+
+import com.wsj.blesdk.utils.LogUtil;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * 基于 BluetoothGatt 的 BleTransport.<br>
+ *     服务发现后建立 BleGattTable, 条目附带对应的 BluetoothGatt* 对象, 按 UUID 定位时不遍历.
+ *     Android 8.0 及以上 GATT 回调投递到 SDK 的事件循环, 之前的版本在 Binder 线程回调.
+ */
+
+final class BleGattTransport implements BleTransport {
+    // TAG
+    private static final String TAG = "BleGattTransport";
+
+    // Android 8.0, compileSdkVersion 24 中没有该常量.
+    private static final int SDK_VERSION_O = 26;
+    // BluetoothDevice.TRANSPORT_LE, BluetoothDevice.PHY_LE_1M_MASK.
+    private static final int TRANSPORT_LE = 2;
+    private static final int PHY_LE_1M_MASK = 1;
+
+    private final Context mContext;
+    private final BluetoothDevice mDevice;
+    private final Handler mHandler;
+
+    private volatile BluetoothGatt mGatt;
+    private volatile Callback mCallback;
+    private volatile BleGattTable mTable;
+    private volatile List<BluetoothGattService> mServices = new ArrayList<>();
+
+    /**
+     * @param handler GATT 回调的线程 (Android 8.0 及以上), 可为 null
+     */
+    BleGattTransport(Context context, BluetoothDevice device, Handler handler) {
+        mContext = context;
+        mDevice = device;
+        mHandler = handler;
+    }
+
+    @Override
+    public String getAddress() {
+        return mDevice.getAddress();
+    }
+
+    /**
+     * 服务发现得到的 BluetoothGattService 列表.
+     */
+    List<BluetoothGattService> getServices() {
+        return mServices;
+    }
+
+    BluetoothGattService getService(UUID uuid) {
+        final BleGattTable table = mTable;
+        return table == null ? null : (BluetoothGattService) table.getServiceTag(uuid);
+    }
+
+    @Override
+    public boolean connect(Callback callback, boolean autoConnect) {
+        mCallback = callback;
+        mTable = null;
+        mServices = new ArrayList<>();
+        // 首次连接直连 (autoConnect = false), 重连多次失败后改为后台连接.
+        mGatt = connectGatt(autoConnect);
+        return mGatt != null;
+    }
+
+    /**
+     * BluetoothDevice.connectGatt(Context, boolean, BluetoothGattCallback, int, int, Handler)
+     * (Android 8.0), 失败时使用不带 Handler 的版本.
+     */
+    private BluetoothGatt connectGatt(boolean autoConnect) {
+        if (mHandler != null && Build.VERSION.SDK_INT >= SDK_VERSION_O) {
+            try {
+                Method method = BluetoothDevice.class.getMethod("connectGatt", Context.class,
+                        boolean.class, BluetoothGattCallback.class, int.class, int.class,
+                        Handler.class);
+                return (BluetoothGatt) method.invoke(mDevice, mContext, autoConnect, mGattCallback,
+                        TRANSPORT_LE, PHY_LE_1M_MASK, mHandler);
+            } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+                LogUtil.e(TAG, "connectGatt with handler failed : %s", e);
+            }
+        }
+        return mDevice.connectGatt(mContext, autoConnect, mGattCallback);
+    }
+
+    @Override
+    public void disconnect() {
+        final BluetoothGatt gatt = mGatt;
+        if (gatt != null)
+            gatt.disconnect();
+    }
+
+    @Override
+    public void close() {
+        final BluetoothGatt gatt = mGatt;
+        mGatt = null;
+        mCallback = null;
+        mTable = null;
+        if (gatt != null) {
+            gatt.disconnect();
+            gatt.close();
+        }
+    }
+
+    @Override
+    public boolean discoverServices() {
+        final BluetoothGatt gatt = mGatt;
+        return gatt != null && gatt.discoverServices();
+    }
+
+    /**
+     * 清除协议栈的 GATT 缓存 (隐藏接口 BluetoothGatt.refresh).
+     */
+    @Override
+    public boolean refreshCache() {
+        final BluetoothGatt gatt = mGatt;
+        if (gatt == null)
+            return false;
+        mTable = null;
+        try {
+            Method refresh = gatt.getClass().getMethod("refresh");
+            return (Boolean) refresh.invoke(gatt);
+        } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+            LogUtil.e(TAG, "refresh gatt failed : %s", e);
+            return false;
+        }
+    }
+
+    @Override
+    public boolean readCharacteristic(UUID service, UUID characteristic) {
+        final BluetoothGatt gatt = mGatt;
+        final BluetoothGattCharacteristic target = findCharacteristic(service, characteristic);
+        return gatt != null && target != null && gatt.readCharacteristic(target);
+    }
+
+    @Override
+    public boolean writeCharacteristic(UUID service, UUID characteristic, byte[] value,
+                                       boolean withResponse) {
+        final BluetoothGatt gatt = mGatt;
+        final BluetoothGattCharacteristic target = findCharacteristic(service, characteristic);
+        if (gatt == null || target == null)
+            return false;
+        target.setWriteType(withResponse
+                ? BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT
+                : BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+        target.setValue(value);
+        return gatt.writeCharacteristic(target);
+    }
+
+    @Override
+    public boolean readDescriptor(UUID service, UUID characteristic, UUID descriptor) {
+        final BluetoothGatt gatt = mGatt;
+        final BluetoothGattDescriptor target = findDescriptor(service, characteristic, descriptor);
+        return gatt != null && target != null && gatt.readDescriptor(target);
+    }
+
+    @Override
+    public boolean writeDescriptor(UUID service, UUID characteristic, UUID descriptor,
+                                   byte[] value) {
+        final BluetoothGatt gatt = mGatt;
+        final BluetoothGattDescriptor target = findDescriptor(service, characteristic, descriptor);
+        if (gatt == null || target == null)
+            return false;
+        target.setValue(value);
+        return gatt.writeDescriptor(target);
+    }
+
+    @Override
+    public boolean setCharacteristicNotification(UUID service, UUID characteristic,
+                                                 boolean enable) {
+        final BluetoothGatt gatt = mGatt;
+        final BluetoothGattCharacteristic target = findCharacteristic(service, characteristic);
+        return gatt != null && target != null && gatt.setCharacteristicNotification(target, enable);
+    }
+
+    @Override
+    public boolean requestMtu(int mtu) {
+        final BluetoothGatt gatt = mGatt;
+        return gatt != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP
+                && gatt.requestMtu(mtu);
+    }
+
+    @Override
+    public boolean readRemoteRssi() {
+        final BluetoothGatt gatt = mGatt;
+        return gatt != null && gatt.readRemoteRssi();
+    }
+
+    @Override
+    public boolean requestConnectionPriority(int priority) {
+        final BluetoothGatt gatt = mGatt;
+        return gatt != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP
+                && gatt.requestConnectionPriority(priority);
+    }
+
+    /**
+     * BluetoothGatt.setPreferredPhy (Android 8.0).
+     */
+    @Override
+    public boolean setPreferredPhy(int phyMask, int options) {
+        final BluetoothGatt gatt = mGatt;
+        if (gatt == null || Build.VERSION.SDK_INT < SDK_VERSION_O)
+            return false;
+        try {
+            Method method = BluetoothGatt.class.getMethod("setPreferredPhy",
+                    int.class, int.class, int.class);
+            method.invoke(gatt, phyMask, phyMask, options);
+            return true;
+        } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+            LogUtil.e(TAG, "setPreferredPhy failed : %s", e);
+            return false;
+        }
+    }
+
+    @Override
+    public boolean beginReliableWrite() {
+        final BluetoothGatt gatt = mGatt;
+        return gatt != null && gatt.beginReliableWrite();
+    }
+
+    @Override
+    public boolean executeReliableWrite() {
+        final BluetoothGatt gatt = mGatt;
+        return gatt != null && gatt.executeReliableWrite();
+    }
+
+    /**
+     * BluetoothGatt.abortReliableWrite(), Android 4.4 以下只有带设备参数的版本.
+     */
+    @Override
+    @SuppressWarnings("deprecation")
+    public boolean abortReliableWrite() {
+        final BluetoothGatt gatt = mGatt;
+        if (gatt == null)
+            return false;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT)
+            gatt.abortReliableWrite();
+        else
+            gatt.abortReliableWrite(mDevice);
+        return true;
+    }
+
+    private BluetoothGattCharacteristic findCharacteristic(UUID service, UUID characteristic) {
+        final BleGattTable table = mTable;
+        if (table == null)
+            return null;
+        return (BluetoothGattCharacteristic) table.getCharacteristicTag(service, characteristic);
+    }
+
+    private BluetoothGattDescriptor findDescriptor(UUID service, UUID characteristic,
+                                                   UUID descriptor) {
+        final BleGattTable table = mTable;
+        if (table == null)
+            return null;
+        return (BluetoothGattDescriptor) table.getDescriptorTag(service, characteristic, descriptor);
+    }
+
+    private static BleGattTable buildTable(List<BluetoothGattService> services) {
+        final BleGattTable.Builder builder = new BleGattTable.Builder();
+        for (BluetoothGattService service : services) {
+            builder.addService(service.getUuid(), service.getType(), service);
+            for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+                builder.addCharacteristic(characteristic.getUuid(),
+                        characteristic.getProperties(), characteristic);
+                for (BluetoothGattDescriptor descriptor : characteristic.getDescriptors()) {
+                    builder.addDescriptor(descriptor.getUuid(), descriptor);
+                }
+            }
+        }
+        return builder.build();
+    }
+
+    private static UUID serviceOf(BluetoothGattCharacteristic characteristic) {
+        final BluetoothGattService service = characteristic.getService();
+        return service == null ? null : service.getUuid();
+    }
+
+    // BLE GATT回调.
+    private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
+        @Override
+        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+            final Callback callback = mCallback;
+            if (callback == null)
+                return;
+            if (status == BluetoothGatt.GATT_SUCCESS
+                    && newState != BluetoothProfile.STATE_CONNECTED
+                    && newState != BluetoothProfile.STATE_DISCONNECTED) {
+                // 中间状态, 忽略.
+                LogUtil.d(TAG, "state %d : %s", newState, getAddress());
+                return;
+            }
+            callback.onConnectionStateChange(status, newState == BluetoothProfile.STATE_CONNECTED);
+        }
+
+        @Override
+        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+            final Callback callback = mCallback;
+            if (callback == null)
+                return;
+            BleGattTable table = null;
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                final List<BluetoothGattService> services = gatt.getServices();
+                table = buildTable(services);
+                mServices = services;
+                mTable = table;
+            }
+            callback.onServicesDiscovered(table, status);
+        }
+
+        @Override
+        public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+            final Callback callback = mCallback;
+            if (callback != null)
+                callback.onCharacteristicRead(serviceOf(characteristic), characteristic.getUuid(),
+                        characteristic.getValue(), status);
+        }
+
+        @Override
+        public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
+            final Callback callback = mCallback;
+            if (callback != null)
+                callback.onCharacteristicChanged(serviceOf(characteristic),
+                        characteristic.getUuid(), characteristic.getValue());
+        }
+
+        @Override
+        public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+            final Callback callback = mCallback;
+            if (callback != null)
+                callback.onCharacteristicWrite(serviceOf(characteristic), characteristic.getUuid(),
+                        characteristic.getValue(), status);
+        }
+
+        @Override
+        public void onDescriptorRead(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+            final Callback callback = mCallback;
+            if (callback == null)
+                return;
+            final BluetoothGattCharacteristic characteristic = descriptor.getCharacteristic();
+            callback.onDescriptorRead(serviceOf(characteristic), characteristic.getUuid(),
+                    descriptor.getUuid(), descriptor.getValue(), status);
+        }
+
+        @Override
+        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+            final Callback callback = mCallback;
+            if (callback == null)
+                return;
+            final BluetoothGattCharacteristic characteristic = descriptor.getCharacteristic();
+            callback.onDescriptorWrite(serviceOf(characteristic), characteristic.getUuid(),
+                    descriptor.getUuid(), status);
+        }
+
+        @Override
+        public void onReliableWriteCompleted(BluetoothGatt gatt, int status) {
+            final Callback callback = mCallback;
+            if (callback != null)
+                callback.onReliableWriteCompleted(status);
+        }
+
+        @Override
+        public void onReadRemoteRssi(BluetoothGatt gatt, int rssi, int status) {
+            final Callback callback = mCallback;
+            if (callback != null)
+                callback.onReadRemoteRssi(rssi, status);
+        }
+
+        @Override
+        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+            final Callback callback = mCallback;
+            if (callback != null)
+                callback.onMtuChanged(mtu, status);
+        }
+
+        // Android 8.0, compileSdkVersion 24 中没有该方法, 不能加 @Override.
+        public void onPhyUpdate(BluetoothGatt gatt, int txPhy, int rxPhy, int status) {
+            final Callback callback = mCallback;
+            if (callback != null)
+                callback.onPhyUpdate(txPhy, rxPhy, status);
+        }
+    };
+}
@@ -0,0 +1,72 @@
+package com.wsj.blesdk;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
+
+/**
+ * 基于 Handler 的 BleScheduler.<br>
+ *     (1) SDK 的所有定时任务 (操作超时, 扫描批次, 发送节奏) 都在同一个事件循环中执行,
+ *         不再为单次操作创建线程, 也不阻塞调用线程等待.
+ *     (2) start 时指定 Looper (如主线程), 或创建自己的 HandlerThread.
+ *     (3) 时钟不依赖事件循环, start 之前也可以取时间.
+ */
+
+final class BleHandlerScheduler implements BleScheduler {
+    private final String mName;
+
+    private HandlerThread mThread;
+    private volatile Handler mHandler;
+
+    /**
+     * @param name 自己创建线程时的线程名
+     */
+    BleHandlerScheduler(String name) {
+        mName = name;
+    }
+
+    /**
+     * 启动事件循环, 重复调用无效.
+     * @param looper 事件循环, null 表示创建 HandlerThread
+     */
+    synchronized void start(Looper looper) {
+        if (mHandler != null)
+            return;
+        if (looper == null) {
+            mThread = new HandlerThread(mName);
+            mThread.start();
+            looper = mThread.getLooper();
+        }
+        mHandler = new Handler(looper);
+    }
+
+    /**
+     * 事件循环的 Handler, 系统回调 (如 connectGatt) 可直接投递到这里. start 之前为 null.
+     */
+    Handler getHandler() {
+        return mHandler;
+    }
+
+    @Override
+    public long now() {
+        return SystemClock.elapsedRealtime();
+    }
+
+    @Override
+    public void post(Runnable task) {
+        mHandler.post(task);
+    }
+
+    @Override
+    public void postDelayed(Runnable task, long delayMillis) {
+        mHandler.postDelayed(task, delayMillis);
+    }
+
+    @Override
+    public void remove(Runnable task) {
+        final Handler handler = mHandler;
+        if (handler != null)
+            handler.removeCallbacks(task);
+    }
+}
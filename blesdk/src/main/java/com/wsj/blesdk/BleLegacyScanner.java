@@ -0,0 +1,42 @@
+package com.wsj.blesdk;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+
+/**
+ * BluetoothAdapter.startLeScan 扫描 (Android 4.3/4.4).
+ */
+
+final class BleLegacyScanner implements BleScanner {
+    private final BluetoothAdapter mAdapter;
+    private final Callback mCallback;
+
+    BleLegacyScanner(BluetoothAdapter adapter, Callback callback) {
+        mAdapter = adapter;
+        mCallback = callback;
+    }
+
+    @Override
+    public boolean start(BleScanConfig config) {
+        return mAdapter.startLeScan(mLeScanCallback);
+    }
+
+    @Override
+    public void stop() {
+        mAdapter.stopLeScan(mLeScanCallback);
+    }
+
+    @Override
+    public boolean filtersInHardware() {
+        return false;
+    }
+
+    // BLE 扫描回调.
+    private final BluetoothAdapter.LeScanCallback mLeScanCallback =
+            new BluetoothAdapter.LeScanCallback() {
+        @Override
+        public void onLeScan(BluetoothDevice device, int rssi, byte[] scanRecord) {
+            mCallback.onAdvertisement(device, rssi, scanRecord);
+        }
+    };
+}
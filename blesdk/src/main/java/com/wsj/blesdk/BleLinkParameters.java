@@ -0,0 +1,26 @@
+package com.wsj.blesdk;
+
+/**
+ * 协商后的连接参数.
+ */
+
+public class BleLinkParameters {
+    // ATT MTU.
+    public int mtu;
+    // 发送/接收 PHY, BleConstants.BLE_PHY_LE_*, 未协商时为 BLE_PHY_LE_1M.
+    public int txPhy;
+    public int rxPhy;
+    // 当前请求的连接优先级, BleConstants.BLE_CONNECTION_PRIORITY_*.
+    public int connectionPriority;
+    // 是否处于批量发送模式.
+    public boolean bulk;
+
+    @Override
+    public String toString() {
+        return "BleLinkParameters{mtu=" + mtu
+                + ", txPhy=" + txPhy
+                + ", rxPhy=" + rxPhy
+                + ", priority=" + connectionPriority
+                + ", bulk=" + bulk + "}";
+    }
+}
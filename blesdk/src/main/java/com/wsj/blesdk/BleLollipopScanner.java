@@ -0,0 +1,129 @@
+package com.wsj.blesdk;
+
+import android.annotation.TargetApi;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.os.Build;
+import android.os.ParcelUuid;
+
+import com.wsj.blesdk.utils.LogUtil;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * BluetoothLeScanner 扫描 (Android 5.0 及以上).<br>
+ *     过滤条件转换为 ScanFilter, 由控制器丢弃不匹配的广播.
+ */
+
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+final class BleLollipopScanner implements BleScanner {
+    // TAG
+    private static final String TAG = "BleLollipopScanner";
+
+    private final BluetoothAdapter mAdapter;
+    private final Callback mCallback;
+    private BluetoothLeScanner mScanner;
+
+    BleLollipopScanner(BluetoothAdapter adapter, Callback callback) {
+        mAdapter = adapter;
+        mCallback = callback;
+    }
+
+    @Override
+    public boolean start(BleScanConfig config) {
+        mScanner = mAdapter.getBluetoothLeScanner();
+        if (mScanner == null)
+            return false;
+        ScanSettings.Builder settings = new ScanSettings.Builder()
+                .setScanMode(toScanMode(config.getScanMode()));
+        if (config.getReportDelay() > 0 && mAdapter.isOffloadedScanBatchingSupported())
+            settings.setReportDelay(config.getReportDelay());
+        List<ScanFilter> filters = buildFilters(config.getFilters());
+        // isOffloadedFilteringSupported 是 Binder 调用, 只在输出时查询.
+        if (LogUtil.isLoggable(TAG, LogUtil.DEBUG))
+            LogUtil.d(TAG, "start scan, filters : " + filters.size()
+                    + ", offloaded : " + mAdapter.isOffloadedFilteringSupported());
+        mScanner.startScan(filters.isEmpty() ? null : filters, settings.build(), mScanCallback);
+        return true;
+    }
+
+    @Override
+    public void stop() {
+        // 蓝牙关闭后调用 stopScan 会抛出异常.
+        if (mScanner != null && mAdapter.isEnabled())
+            mScanner.stopScan(mScanCallback);
+        mScanner = null;
+    }
+
+    @Override
+    public boolean filtersInHardware() {
+        return true;
+    }
+
+    private static int toScanMode(int mode) {
+        switch (mode) {
+            case BleScanConfig.SCAN_MODE_LOW_POWER:
+                return ScanSettings.SCAN_MODE_LOW_POWER;
+            case BleScanConfig.SCAN_MODE_BALANCED:
+                return ScanSettings.SCAN_MODE_BALANCED;
+            default:
+                return ScanSettings.SCAN_MODE_LOW_LATENCY;
+        }
+    }
+
+    private static List<ScanFilter> buildFilters(List<BleScanFilter> filters) {
+        List<ScanFilter> result = new ArrayList<>(filters.size());
+        for (BleScanFilter filter : filters) {
+            ScanFilter.Builder builder = new ScanFilter.Builder();
+            if (filter.getDeviceName() != null)
+                builder.setDeviceName(filter.getDeviceName());
+            if (filter.getDeviceAddress() != null)
+                builder.setDeviceAddress(filter.getDeviceAddress());
+            if (filter.getServiceUuid() != null)
+                builder.setServiceUuid(new ParcelUuid(filter.getServiceUuid()));
+            if (filter.getManufacturerId() >= 0) {
+                if (filter.getManufacturerDataMask() != null)
+                    builder.setManufacturerData(filter.getManufacturerId(),
+                            filter.getManufacturerData(), filter.getManufacturerDataMask());
+                else
+                    builder.setManufacturerData(filter.getManufacturerId(),
+                            filter.getManufacturerData());
+            }
+            result.add(builder.build());
+        }
+        return result;
+    }
+
+    private void dispatch(ScanResult result) {
+        ScanRecord record = result.getScanRecord();
+        mCallback.onAdvertisement(result.getDevice(), result.getRssi(),
+                record == null ? null : record.getBytes());
+    }
+
+    // 扫描回调.
+    private final ScanCallback mScanCallback = new ScanCallback() {
+        @Override
+        public void onScanResult(int callbackType, ScanResult result) {
+            dispatch(result);
+        }
+
+        @Override
+        public void onBatchScanResults(List<ScanResult> results) {
+            for (int i = 0; i < results.size(); i++) {
+                dispatch(results.get(i));
+            }
+        }
+
+        @Override
+        public void onScanFailed(int errorCode) {
+            LogUtil.e(TAG, "scan failed : %d", errorCode);
+            mCallback.onScanFailed(errorCode);
+        }
+    };
+}
@@ -2,31 +2,53 @@ package com.wsj.blesdk;
 
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothGatt;
-import android.bluetooth.BluetoothGattCallback;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothManager;
-import android.bluetooth.BluetoothProfile;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
-import android.os.SystemClock;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 
 import com.wsj.blesdk.utils.LogUtil;
+import com.wsj.blesdk.utils.MacAddress;
 
+import java.io.File;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
-
-import static com.wsj.blesdk.BleConstants.BLE_ERROR_CONNECT;
-import static com.wsj.blesdk.BleConstants.BLE_ERROR_DISCONNECT;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.wsj.blesdk.BleConstants.BLE_CALLBACK_DIRECT;
+import static com.wsj.blesdk.BleConstants.BLE_CALLBACK_EXECUTOR;
+import static com.wsj.blesdk.BleConstants.BLE_DEFAULT_MTU;
+import static com.wsj.blesdk.BleConstants.BLE_DEFAULT_OPERATION_TIMEOUT;
 import static com.wsj.blesdk.BleConstants.BLE_ERROR_DISCOVER_SERVICES;
+import static com.wsj.blesdk.BleConstants.BLE_ERROR_POOL_FULL;
+import static com.wsj.blesdk.BleConstants.BLE_ERROR_SCAN;
+import static com.wsj.blesdk.BleConstants.BLE_GATT_SUCCESS;
 import static com.wsj.blesdk.BleConstants.BLE_SUCCESS;
 
 /**
  * BLE Manager <br>
+ *     支持同时连接多台设备, 不带地址的接口操作当前设备 (最近一次连接的设备).
+ *     UI 线程和 Binder 线程共享的连接状态, 连接池和设备表以 volatile, 原子引用或并发容器保存, 不加锁;
+ *     操作队列, 分包写, 固件升级, 消息通道, 重连和事件流操作符各自保留一把短锁,
+ *     锁内只做计算和拷贝, 不调用协议栈, 不读写文件, 也不回调上层.
+ *     超时, 扫描批次等定时任务在 SDK 自己的事件循环中执行, 监听回调的线程可配置.
+ *     扫描结果, 连接状态, 通知和错误同时以 BleFlow 事件流提供, 可多处订阅.
+ *     设置 BleReconnectPolicy 后, 意外断开的设备按地址自动重连, 不需要重新扫描.
+ *     openMessageChannel 在写特征值和通知特征值之上收发消息 (分帧, 校验, 流控和重传).
+ *     分包写和消息通道的缓冲区在所有连接间共享一个 BleBufferPool, 可查询命中率.
+ *     startFirmwareUpdate 从内存映射的镜像文件升级固件, 断线重连或重新开始后从检查点继续.
+ *     startFanout 对多台设备并发执行同样的步骤 (发送数据, 写命令, 升级固件), 限制并发数, 失败重试.
+ *     executeTransaction 连续执行一组读写, 对端支持时以可靠写提交, 结束后回调一次结果.
+ *     扫描到的设备表有上限, 超过 TTL 未收到广播的设备被淘汰并回调丢失, 已连接的设备固定不淘汰.
  * Created by WSJ on 2017/2/14.
  */
 
@@ -52,33 +74,90 @@ public class BleManager {
 
     private BluetoothManager mBluetoothManager;
 
-    private BluetoothGatt mCurBluetoothGatt;
+    // 连接池.
+    private final BleConnectionPool mConnectionPool = new BleConnectionPool();
+    // 所有连接共享的缓冲池.
+    private final BleBufferPool mBufferPool = new BleBufferPool();
+    // 扫描停止后重新开始的间隔 (毫秒).
+    private static final long SCAN_RESTART_DELAY = 50;
+    // 扫描回调交来广播后延迟多久在 SDK 线程处理 (毫秒), 期间的广播一起处理.
+    private static final long SCAN_PROCESS_DELAY = 20;
+    // 批量任务只连接最近这段时间内扫描到的设备 (毫秒).
+    private static final long FANOUT_NEARBY_WINDOW = 10 * 1000;
+
+    // SDK 事件循环 (操作超时, 扫描批次, 发送节奏), initializeBle 时启动.
+    private final BleHandlerScheduler mScheduler = new BleHandlerScheduler(TAG);
+    // 写文件的线程 (升级检查点), 不占用 SDK 事件循环, initializeBle 时启动.
+    private final BleHandlerScheduler mIoScheduler = new BleHandlerScheduler(TAG + "-io");
+    private volatile Looper mLooper;
+    // 监听回调, 默认在主线程.
+    private final BleCallbackDispatcher mDispatcher =
+            new BleCallbackDispatcher(mainThreadExecutor());
+    // 事件流.
+    private final BleSubject<BluetoothInfo> mScanFlow = new BleSubject<>(mScheduler);
+    private final BleSubject<BluetoothInfo> mLostFlow = new BleSubject<>(mScheduler);
+    private final BleSubject<BleConnectionState> mConnectionFlow = new BleSubject<>(mScheduler);
+    private final BleSubject<BleNotification> mNotificationFlow = new BleSubject<>(mScheduler);
+    private final BleSubject<BleError> mErrorFlow = new BleSubject<>(mScheduler);
+    // 按地址创建链路, 默认使用 BluetoothGatt.
+    private BleTransport.Factory mTransportFactory = new BleTransport.Factory() {
+        @Override
+        public BleTransport create(String address) {
+            final BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address);
+            return device == null ? null
+                    : new BleGattTransport(mContext, device, mScheduler.getHandler());
+        }
+    };
 
-    // 设备集合.
-    private Map<String , BluetoothDevice> mDevices = new HashMap<>();
+    // 扫描到的设备.
+    private final BleScanPipeline mScanPipeline = new BleScanPipeline();
+    // 批量回调复用的列表.
+    private final List<BluetoothInfo> mBatchDiscovered = new ArrayList<>();
+    private final List<BluetoothInfo> mBatchUpdated = new ArrayList<>();
+    private final List<BluetoothInfo> mBatchLost = new ArrayList<>();
+    // 扫描批量回调间隔 (毫秒).
+    private long mScanBatchInterval = 500;
     // 当前设备
-    private String mCurDeviceAddress;
-
-    private BleListener mListener;
-
-    private boolean mIsScaning = false;
+    private final AtomicReference<String> mCurDeviceAddress = new AtomicReference<>();
+    // 自动重连, 配置为 null 时不重连.
+    private volatile BleReconnectPolicy mReconnectPolicy;
+    private final BleReconnector mReconnector = new BleReconnector(mScheduler, new Random(),
+            new BleReconnector.Callback() {
+                @Override
+                public void onReconnectAbandoned(BleConnection connection) {
+                    mConnectionPool.remove(connection);
+                    clearCurrentDevice(connection.getAddress());
+                }
+            });
 
-    // 设备名称过滤
-    private String mNamePrefixFilter = null;
+    // 正在进行的批量任务, 写时复制 (CAS), Binder 线程无锁遍历.
+    private final AtomicReference<BleFanoutScheduler[]> mFanouts =
+            new AtomicReference<>(new BleFanoutScheduler[0]);
 
-    private int mCurentBleutoothState = STATE_DISCONNECTED;
+    private volatile boolean mIsScaning = false;
+    // 扫描参数及当前扫描器.
+    private volatile BleScanConfig mScanConfig = new BleScanConfig();
+    private volatile BleScanner mScanner;
 
     // 相关 UUID.
-    private String mCurrentGattServiceUuid ;
-    private String mCurrentGattWriteCharacteristicUuid ;
-    private String mCurrentGattReadCharacteristicUuid ;
-    private List<BluetoothGattService> mGattServices = new ArrayList<>();
-
-    /* 蓝牙连接状态. */
-    private static final int STATE_DISCONNECTED  = 0x00;
-    private static final int STATE_CONNECTING    = 0x01;
-    private static final int STATE_CONNECTED     = 0x02;
-    private static final int STATE_DISCONNECTING = 0x03;
+    private UUID mCurrentGattServiceUuid ;
+    private UUID mCurrentGattWriteCharacteristicUuid ;
+    private UUID mCurrentGattReadCharacteristicUuid ;
+    // GATT 服务表缓存.
+    private BleGattCache mGattCache;
+    // 固件升级检查点.
+    private BleOtaCheckpoint mOtaCheckpoints;
+    // 连接参数协商配置.
+    private BleThroughputProfile mThroughputProfile = new BleThroughputProfile();
+
+    // 无应答写时最多未确认的包数.
+    private int mTransmitWindow = 4;
+    // GATT 操作超时 (毫秒).
+    private long mOperationTimeout = BLE_DEFAULT_OPERATION_TIMEOUT;
+    // GATT 回调和扫描事件跟踪, null 表示不记录.
+    private volatile BleTraceRecorder mTraceRecorder;
+    // 运行指标.
+    private final BleMetrics mMetrics = new BleMetrics(mScheduler);
 
 
     /**
@@ -92,19 +171,165 @@ public class BleManager {
     }
 
     public BleManager setListener(BleListener listener) {
-        mListener = listener;
+        mDispatcher.setListener(listener);
+        return this;
+    }
+
+    /**
+     * 设置 GATT 事件监听 (带设备地址).
+     */
+    public BleManager setGattListener(BleGattListener listener) {
+        mDispatcher.setGattListener(listener);
+        return this;
+    }
+
+    /**
+     * 设置扫描批量回调监听.
+     */
+    public BleManager setScanListener(BleScanListener listener) {
+        mDispatcher.setScanListener(listener);
+        return this;
+    }
+
+    /**
+     * 设置设备丢失监听.
+     */
+    public BleManager setDeviceLostListener(BleDeviceLostListener listener) {
+        mDispatcher.setDeviceLostListener(listener);
+        return this;
+    }
+
+    /**
+     * 指定 SDK 的事件循环, 在 initializeBle 之前调用有效.
+     * @param looper 事件循环, null 表示使用 SDK 自己的 HandlerThread (默认)
+     * @return
+     */
+    public BleManager setLooper(Looper looper) {
+        if (mIsInitialized)
+            LogUtil.e(TAG, "setLooper after initializeBle is ignored");
+        mLooper = looper;
+        return this;
+    }
+
+    /**
+     * 设置监听回调 (BleListener, BleGattListener, BleScanListener, BleTransmitListener) 的线程.
+     * @param delivery  BleConstants.BLE_CALLBACK_MAIN_THREAD (默认),
+     *                  BLE_CALLBACK_EXECUTOR 或 BLE_CALLBACK_DIRECT (在 SDK 线程或 Binder 线程直接回调)
+     * @param executor  delivery 为 BLE_CALLBACK_EXECUTOR 时使用, 其它情况忽略
+     * @return
+     */
+    public BleManager setCallbackDelivery(int delivery, Executor executor) {
+        if (delivery == BLE_CALLBACK_DIRECT) {
+            mDispatcher.setExecutor(null);
+        } else if (delivery == BLE_CALLBACK_EXECUTOR && executor != null) {
+            mDispatcher.setExecutor(executor);
+        } else {
+            if (delivery == BLE_CALLBACK_EXECUTOR)
+                LogUtil.e(TAG, "no executor, callbacks stay on the main thread");
+            mDispatcher.setExecutor(mainThreadExecutor());
+        }
+        return this;
+    }
+
+    /**
+     * 设置扫描批量回调间隔, onBleDiscover 也按此间隔批量回调.
+     * @param intervalMillis 毫秒
+     * @return
+     */
+    public BleManager setScanBatchInterval(long intervalMillis){
+        mScanBatchInterval = Math.max(1, intervalMillis);
+        return this;
+    }
+
+    /**
+     * 设置扫描参数 (扫描模式, 批量上报延迟, 过滤条件), 下次 startBleScan 生效.
+     */
+    public BleManager setScanConfig(final BleScanConfig config){
+        mScanConfig = config == null ? new BleScanConfig() : config;
         return this;
     }
+
     public BleManager setNameFilter(final String namePrefix){
-        mNamePrefixFilter = namePrefix;
+        mScanPipeline.setNameFilter(namePrefix);
+        return this;
+    }
+
+    /**
+     * 设置 RSSI 滤波方式.
+     * @param filter BleConstants.BLE_RSSI_FILTER_KALMAN 或 BLE_RSSI_FILTER_EWMA
+     * @return
+     */
+    public BleManager setRssiFilter(int filter){
+        mScanPipeline.setRssiFilter(filter);
+        return this;
+    }
+
+    /**
+     * 设置距离估算的路径损耗指数, 空旷环境约 2, 室内 2~4.
+     * @param exponent 默认 2.0
+     * @return
+     */
+    public BleManager setPathLossExponent(double exponent){
+        if (exponent > 0)
+            mScanPipeline.setPathLossExponent(exponent);
+        return this;
+    }
+
+    /**
+     * 设置扫描到的设备多久未收到广播后视为丢失 (扫描期间按批量回调间隔检查).
+     * @param ttlMillis 毫秒, 默认 BLE_DEFAULT_DEVICE_TTL, 0 表示不按时间淘汰
+     * @return
+     */
+    public BleManager setDeviceTtl(long ttlMillis){
+        mScanPipeline.setDeviceTtl(ttlMillis);
+        return this;
+    }
+
+    /**
+     * 设置设备表上限 (含未通过名称过滤的设备), 超出时淘汰最久未收到广播的设备, 已连接的设备除外.
+     * @param max 默认 BLE_DEFAULT_MAX_DEVICES, 最小为 1
+     * @return
+     */
+    public BleManager setMaxDevices(int max){
+        mScanPipeline.setMaxDevices(max);
+        return this;
+    }
+
+    /**
+     * 设置最大同时连接数, 超出时淘汰最久未使用的空闲连接.
+     * @param max 连接数, 最小为 1
+     * @return
+     */
+    public BleManager setMaxConnections(int max){
+        mConnectionPool.setMaxConnections(max);
+        return this;
+    }
+
+    /**
+     * 设置断线自动重连, 对之后发起的连接生效.<br>
+     *     连接意外断开后回调 onBleDisconnected, 然后按配置重连; 重连成功后回调 onBleConnected,
+     *     并自动发现服务 (回调 onBleDiscoverServices), 订阅的数据流继续有效.
+     *     disconnectBleDevice 后不再重连.
+     * @param policy 重连配置, null 表示不重连 (默认)
+     * @return
+     */
+    public BleManager setReconnectPolicy(BleReconnectPolicy policy){
+        mReconnectPolicy = policy;
         return this;
     }
 
+    /**
+     * 替换链路实现 (测试用).
+     */
+    void setTransportFactory(BleTransport.Factory factory) {
+        mTransportFactory = factory;
+    }
+
     /**
      * 初始化BleManager.
      */
     public boolean initializeBle(Context context) {
-        LogUtil.logFunc(TAG);
+        LogUtil.trace(TAG, "initializeBle");
         if (mIsInitialized) {
             return true;
         }
@@ -113,6 +338,9 @@ public class BleManager {
             return false;
         }
         mContext = context.getApplicationContext();
+        mGattCache = new BleGattCache();
+        mOtaCheckpoints = new BleOtaCheckpoint(new File(mContext.getFilesDir(), "ble_ota"),
+                mIoScheduler);
         // 初始化本地蓝牙适配器
         mBluetoothManager = (BluetoothManager) mContext
                 .getSystemService(Context.BLUETOOTH_SERVICE);
@@ -126,6 +354,8 @@ public class BleManager {
             LogUtil.e(TAG, "BLE not supported !!!");
             return false;
         }
+        mScheduler.start(mLooper);
+        mIoScheduler.start(null);
         mIsInitialized = true;
         return true;
     }
@@ -154,6 +384,14 @@ public class BleManager {
             LogUtil.e(TAG,"sdk not initializeed !!!");
             return false;
         }
+        mReconnector.clear();
+        for (BleFanoutScheduler fanout : mFanouts.get()) {
+            fanout.cancel();
+        }
+        for (BleConnection connection : mConnectionPool.clear()) {
+            connection.close();
+        }
+        mCurDeviceAddress.set(null);
         if (mBluetoothAdapter.isEnabled()){
             mBluetoothAdapter.disable();
         }
@@ -164,34 +402,40 @@ public class BleManager {
      * 开始扫描设备.
      */
     public boolean startBleScan() {
-        LogUtil.logFunc(TAG);
+        LogUtil.trace(TAG, "startBleScan");
         if (!mIsInitialized || !isBluetoothNormal())
             return false;
-        BluetoothDevice device = null;
-        // 判断是否存在当前设备.
-        if (mCurentBleutoothState == STATE_CONNECTED){
-            if (mCurDeviceAddress != null && mDevices.get(mCurDeviceAddress) != null){
-                device = mDevices.get(mCurDeviceAddress);
-            }else {
-                mCurDeviceAddress = null;
-                mCurentBleutoothState = STATE_DISCONNECTED;
-            }
-        }
-        // clear
-        mDevices.clear();
-        if (device != null){
-            mDevices.put(mCurDeviceAddress,device);
-            if (mListener != null){
-                mListener.onBleDiscover(device.getName(),device.getAddress());
-            }
-        }
-        if (mIsScaning){
-            mBluetoothAdapter.stopLeScan(mLeScanCallback);
-            SystemClock.sleep(50);
+        // 在 SDK 线程 clear, 已连接的设备固定在设备表中, 保留并重新回调.
+        mScheduler.post(mScanClearRunnable);
+        final BleScanner scanner = mScanner;
+        mScheduler.remove(mScanRestartRunnable);
+        if (mIsScaning && scanner != null){
+            scanner.stop();
+            // 协议栈停止扫描需要一点时间, 延时后在 SDK 线程重新开始, 不阻塞调用线程.
+            mScheduler.postDelayed(mScanRestartRunnable, SCAN_RESTART_DELAY);
+            return true;
         }
+        return startScanner();
+    }
 
-        mBluetoothAdapter.startLeScan(mLeScanCallback);
+    /**
+     * 按当前扫描参数创建扫描器并开始扫描.
+     */
+    private boolean startScanner() {
+        final BleScanConfig config = mScanConfig;
+        final BleScanner next = createScanner(config);
+        mScanner = next;
+        mScanPipeline.setSoftwareFilters(next.filtersInHardware()
+                ? null : config.getFilters());
+        if (!next.start(config)){
+            LogUtil.e(TAG,"start scan failed !!!");
+            mIsScaning = false;
+            dispatchError(null, BLE_ERROR_SCAN);
+            return false;
+        }
         mIsScaning = true;
+        mScheduler.remove(mScanBatchRunnable);
+        mScheduler.postDelayed(mScanBatchRunnable, mScanBatchInterval);
         return true;
     }
 
@@ -199,126 +443,300 @@ public class BleManager {
      * 停止扫描设备.
      */
     public boolean stopBleScan() {
-        LogUtil.logFunc(TAG);
+        LogUtil.trace(TAG, "stopBleScan");
         if (!mIsInitialized || !isBluetoothNormal())
             return false;
-        if (mIsScaning)
-            mBluetoothAdapter.stopLeScan(mLeScanCallback);
+        final BleScanner scanner = mScanner;
+        mScheduler.remove(mScanRestartRunnable);
+        if (mIsScaning && scanner != null)
+            scanner.stop();
         mIsScaning = false;
+        // 在 SDK 线程回调最后一个批次.
+        mScheduler.remove(mScanBatchRunnable);
+        mScheduler.post(mScanBatchRunnable);
         return true;
     }
 
     /**
-     * 连接指定地址的BLE设备.
+     * 查找广播了指定服务的设备.
+     * @param serviceUuid  服务 UUID
+     * @param minRssi      最低信号强度, 如 -70
+     * @return
+     *      设备列表, uuid 格式错误时为空.
+     */
+    public List<BluetoothInfo> findDevicesByService(final String serviceUuid, final int minRssi){
+        List<BluetoothInfo> devices = new ArrayList<>();
+        if (serviceUuid == null)
+            return devices;
+        try {
+            UUID uuid = UUID.fromString(serviceUuid);
+            mScanPipeline.findByService(uuid.getMostSignificantBits(),
+                    uuid.getLeastSignificantBits(), minRssi, devices);
+        } catch (IllegalArgumentException e) {
+            LogUtil.e(TAG, "bad service uuid : %s", serviceUuid);
+        }
+        return devices;
+    }
+
+    /**
+     * 查找广播了指定厂商数据的设备.
+     * @param manufacturerId  厂商 ID
+     * @param minRssi         最低信号强度, 如 -70
+     * @return
+     *      设备列表.
+     */
+    public List<BluetoothInfo> findDevicesByManufacturer(final int manufacturerId,
+                                                         final int minRssi){
+        List<BluetoothInfo> devices = new ArrayList<>();
+        mScanPipeline.findByManufacturer(manufacturerId, minRssi, devices);
+        return devices;
+    }
+
+    /**
+     * 获取距离最近的设备.<br>
+     *     距离由滤波后的 RSSI 和广播的发射功率估算, 列表按距离升序.
+     * @param count  最多返回的个数
+     * @return
+     *      设备列表.
+     */
+    public List<BluetoothInfo> getNearestDevices(final int count){
+        List<BluetoothInfo> devices = new ArrayList<>(Math.max(0, Math.min(count, 64)));
+        mScanPipeline.getNearest(count, devices);
+        return devices;
+    }
+
+    /**
+     * 获取设备最近的 RSSI 记录, 从旧到新.
+     * @param address  设备地址
+     * @param out      输出数组
+     * @return
+     *      写入 out 的个数.
+     */
+    public int getRssiHistory(final String address, final int[] out){
+        return mScanPipeline.getRssiHistory(address, out);
+    }
+
+    /**
+     * 连接指定地址的BLE设备.<br>
+     *     已有的连接不会断开, 连接数达到上限时淘汰最久未使用的空闲连接.
+     *     不要求设备在本次扫描结果中 (已知设备可直接按地址连接); 正在等待自动重连的设备立即重连.
      * @param address   设备地址
      * @return
      *      是否成功发送连接请求.
      */
     public boolean connectBleDevice(final String address){
-        LogUtil.logFunc(TAG);
+        LogUtil.trace(TAG, "connectBleDevice");
         if (!mIsInitialized || !isBluetoothNormal()){
             return false;
         }
-        if (address == null || mDevices.get(address) == null){
-            return false;
-        }
-        if (mCurentBleutoothState == STATE_DISCONNECTING
-                || mCurentBleutoothState == STATE_CONNECTING){
+        if (MacAddress.toLong(address) == MacAddress.INVALID){
             return false;
         }
-        // close gatt
-        if (mCurDeviceAddress != null){
-            if (mCurBluetoothGatt != null){
-                if (mCurDeviceAddress.equals(address)){
-                    return true;
-                }else {
-                    mCurBluetoothGatt.disconnect();
-                }
+        BleConnection connection = mConnectionPool.get(address);
+        if (connection != null){
+            final int state = connection.getState();
+            if (state == BleConnection.STATE_CONNECTED
+                    || state == BleConnection.STATE_CONNECTING){
+                mCurDeviceAddress.set(address);
+                return true;
+            }
+            if (state == BleConnection.STATE_DISCONNECTING)
+                return false;
+            if (mReconnector.reconnectNow(address)){
+                mCurDeviceAddress.set(address);
+                return true;
             }
-            mCurDeviceAddress = null;
+            mConnectionPool.remove(connection);
         }
-        if (mCurBluetoothGatt != null){
-            mCurBluetoothGatt.close();
-            mCurBluetoothGatt = null;
-            SystemClock.sleep(50);
+        if (mConnectionPool.isFull()){
+            BleConnection evicted = mConnectionPool.pollEvictable();
+            if (evicted == null){
+                LogUtil.e(TAG,"too many connections !!!");
+                dispatchError(address, BLE_ERROR_POOL_FULL);
+                return false;
+            }
+            LogUtil.d(TAG, "evict idle connection : %s", evicted.getAddress());
+            evicted.disconnect();
         }
 
-        // clear data
-        mGattServices = new ArrayList<>();
-
         // connect device
-        final BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address);
-        if (device == null){
+        final BleTransport transport = mTransportFactory.create(address);
+        if (transport == null){
             LogUtil.e(TAG,"Device not found . Unable to connect");
             return false;
         }
-        // We want to directly connect to the device , so wo are setting the autoConnect
-        // Parameter false.
-        mCurBluetoothGatt = device.connectGatt(mContext,false,mGattCallback);
-        mCurDeviceAddress = address;
-        mCurentBleutoothState = STATE_CONNECTING;
+        connection = newConnection(transport);
+        final BleConnection existing = mConnectionPool.putIfAbsent(connection);
+        if (existing != null){
+            // 其它线程同时连接了该设备.
+            transport.close();
+            mCurDeviceAddress.set(address);
+            final int state = existing.getState();
+            return state == BleConnection.STATE_CONNECTED
+                    || state == BleConnection.STATE_CONNECTING;
+        }
+        if (!connection.connect()){
+            mConnectionPool.remove(connection);
+            return false;
+        }
+        final BleReconnectPolicy policy = mReconnectPolicy;
+        if (policy != null)
+            mReconnector.track(connection, policy);
+        mCurDeviceAddress.set(address);
         return true;
     }
 
     /**
-     * 断开设备连接
+     * 断开当前设备连接
      */
     public boolean disconnectBleDevice(){
-        LogUtil.logFunc(TAG);
+        return disconnectBleDevice(mCurDeviceAddress.get());
+    }
+
+    /**
+     * 断开指定设备连接.
+     * @param address 设备地址
+     */
+    public boolean disconnectBleDevice(final String address){
+        LogUtil.trace(TAG, "disconnectBleDevice");
         if (!mIsInitialized || !isBluetoothNormal()){
             return false;
         }
-        new Thread(new Runnable() {
-            @Override
-            public void run() {
-                mCurentBleutoothState = STATE_DISCONNECTING;
-                mCurBluetoothGatt.disconnect();
-            }
-        }).start();
-        return true;
+        BleConnection connection = mConnectionPool.get(address);
+        if (connection == null)
+            return false;
+        mReconnector.forget(address);
+        if (connection.getState() == BleConnection.STATE_DISCONNECTED){
+            // 正在等待重连, 直接释放.
+            mConnectionPool.remove(connection);
+            connection.close();
+            clearCurrentDevice(address);
+            return true;
+        }
+        return connection.disconnect();
+    }
+
+    /**
+     * 获取已连接的设备地址.
+     */
+    public List<String> getConnectedDevices(){
+        List<String> addresses = new ArrayList<>();
+        for (BleConnection connection : mConnectionPool.snapshot()) {
+            if (connection.isConnected())
+                addresses.add(connection.getAddress());
+        }
+        return addresses;
+    }
+
+    /**
+     * 指定设备是否已连接.
+     */
+    public boolean isConnected(final String address){
+        BleConnection connection = mConnectionPool.get(address);
+        return connection != null && connection.isConnected();
     }
 
     /**
-     * 开始查找服务.
+     * 当前设备开始查找服务.
      */
     public boolean discoverServices(){
-        if (!mIsInitialized || !isBluetoothNormal()
-                || (mCurentBleutoothState != STATE_CONNECTED)){
+        return discoverServices(mCurDeviceAddress.get());
+    }
+
+    /**
+     * 指定设备开始查找服务.
+     * @param address 设备地址
+     */
+    public boolean discoverServices(final String address){
+        if (!mIsInitialized || !isBluetoothNormal()){
             return false;
         }
-        return mCurBluetoothGatt.discoverServices();
+        BleConnection connection = mConnectionPool.get(address);
+        return connection != null && connection.discoverServices();
     }
 
     /**
-     * 获取服务列表
+     * 获取当前设备服务列表
      * @return
      */
     public List<BluetoothGattService> getBleServices(){
-        LogUtil.logFunc(TAG);
-        return mGattServices;
+        return getBleServices(mCurDeviceAddress.get());
+    }
+
+    /**
+     * 获取指定设备服务列表
+     * @param address 设备地址
+     * @return
+     */
+    public List<BluetoothGattService> getBleServices(final String address){
+        LogUtil.trace(TAG, "getBleServices");
+        BleConnection connection = mConnectionPool.get(address);
+        if (connection == null || connection.getGattTable() == null
+                || !(connection.getTransport() instanceof BleGattTransport))
+            return new ArrayList<>();
+        return ((BleGattTransport) connection.getTransport()).getServices();
     }
 
     /**
-     * 获取特征值.
+     * 获取当前设备特征值.
      * @param serviceUuid
      * @return
      */
     public List<BluetoothGattCharacteristic> getBleCharacteristics(String serviceUuid){
-        if (mGattServices == null)
+        return getBleCharacteristics(mCurDeviceAddress.get(), serviceUuid);
+    }
+
+    /**
+     * 获取指定设备特征值.
+     * @param address     设备地址
+     * @param serviceUuid 服务 UUID
+     * @return
+     */
+    public List<BluetoothGattCharacteristic> getBleCharacteristics(String address,
+                                                                   String serviceUuid){
+        BleConnection connection = mConnectionPool.get(address);
+        UUID uuid = parseUuid(serviceUuid);
+        if (connection == null || uuid == null
+                || !(connection.getTransport() instanceof BleGattTransport))
             return null;
-        BluetoothGattService service = getService(serviceUuid);
+        BluetoothGattService service = ((BleGattTransport) connection.getTransport()).getService(uuid);
         if (service == null)
             return null;
         return service.getCharacteristics();
     }
 
+    /**
+     * 获取缓存的设备服务 UUID.<br>
+     *     最近一次服务发现结果按设备地址保存在内存中, 断开后也可查询.
+     * @param address 设备地址
+     * @return
+     *      没有缓存时返回 null.
+     */
+    public List<UUID> getCachedServiceUuids(final String address){
+        if (mGattCache == null)
+            return null;
+        final long mac = MacAddress.toLong(address);
+        if (mac == MacAddress.INVALID)
+            return null;
+        final BleGattTable table = BleGattTable.fromArray(mGattCache.get(mac));
+        return table == null ? null : new ArrayList<>(table.getServiceUuids());
+    }
+
+    /**
+     * 清除所有设备的服务表缓存.
+     */
+    public void clearGattCache(){
+        if (mGattCache != null)
+            mGattCache.clear();
+    }
+
     /**
      * 设置服务 UUID
      * @param uuid uuid 字符串.
      * @return
      */
     public BleManager setServiceUuid(String uuid){
-        mCurrentGattServiceUuid = uuid;
+        mCurrentGattServiceUuid = parseUuid(uuid);
         return this;
     }
 
@@ -328,7 +746,7 @@ public class BleManager {
      * @return
      */
     public BleManager setWriteCharacteristicUuid(String uuid){
-        mCurrentGattWriteCharacteristicUuid = uuid;
+        mCurrentGattWriteCharacteristicUuid = parseUuid(uuid);
         return this;
     }
 
@@ -338,189 +756,995 @@ public class BleManager {
      * @return
      */
     public BleManager setReadCharacteristicUuid(String uuid){
-        mCurrentGattReadCharacteristicUuid = uuid;
+        mCurrentGattReadCharacteristicUuid = parseUuid(uuid);
         return this;
     }
 
-//    public boolean transmitData2Device(final byte[] data) {
-//
-//    }
-
-    private BluetoothGattService getService(String serviceUuid) {
-        for (BluetoothGattService service : mGattServices) {
-            if (service.getUuid().toString().equals(serviceUuid))
-                return service;
-        }
-        return null;
+    /**
+     * 设置无应答写时最多未确认的包数.
+     * @param window 包数, 最小为 1
+     * @return
+     */
+    public BleManager setTransmitWindow(int window){
+        mTransmitWindow = Math.max(1, window);
+        return this;
     }
-    // BLE GATT回调.
-    private BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
-        @Override
-        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
-            final String name = gatt.getDevice().getName();
-            final String address = gatt.getDevice().getAddress();
-
-            if (status == BluetoothGatt.GATT_SUCCESS){
-                // operation success
-                connectionStateChangeSuccess(newState, address);
-            }else {
-                connectionStateChangeFailed();
-            }
-        }
-
-        @Override
-        public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-            super.onCharacteristicRead(gatt, characteristic, status);
-        }
 
-        @Override
-        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
-            servicesDiscoveredProcess(gatt, status);
-        }
-
-        @Override
-        public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
-            super.onCharacteristicChanged(gatt, characteristic);
-        }
-
-        @Override
-        public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-            super.onCharacteristicWrite(gatt, characteristic, status);
-        }
+    /**
+     * 设置连接参数协商配置 (MTU, PHY, 连接优先级), 对之后建立的连接生效.<br>
+     *     协商在连接建立后, onBleDiscoverServices 之前完成.
+     * @param profile 配置, null 表示不协商
+     * @return
+     */
+    public BleManager setThroughputProfile(BleThroughputProfile profile){
+        mThroughputProfile = profile;
+        return this;
+    }
 
-        @Override
-        public void onReadRemoteRssi(BluetoothGatt gatt, int rssi, int status) {
-            super.onReadRemoteRssi(gatt, rssi, status);
+    /**
+     * 设置跟踪记录, 记录所有连接的 GATT 回调和扫描事件, 对已建立的连接同时生效.<br>
+     *     记录的开始和停止由调用者控制 (BleTraceRecorder.start/stop).
+     * @param recorder 跟踪记录, null 表示不记录
+     * @return
+     */
+    public BleManager setTraceRecorder(BleTraceRecorder recorder){
+        mTraceRecorder = recorder;
+        for (BleConnection connection : mConnectionPool.snapshot()) {
+            connection.setTraceRecorder(recorder);
         }
-    };
+        return this;
+    }
 
     /**
-     * 发现服务回调.
-     * @param gatt    GATT
-     * @param status  状态
+     * 获取运行指标 (连接耗时, 服务发现耗时, 操作往返时间, 收发速率, 错误数, 广播数).<br>
+     *     定时上报使用 new BleMetricsExporter(getMetrics()).poll().
      */
-    private void servicesDiscoveredProcess(BluetoothGatt gatt, int status) {
-        LogUtil.logFunc(TAG);
-        if (status == BluetoothGatt.GATT_SUCCESS){
-            mGattServices = gatt.getServices();
-            if (mListener != null)
-                mListener.onBleDiscoverServices(mCurDeviceAddress);
-        }else {
-            if (mListener != null)
-                mListener.onBleError(BLE_ERROR_DISCOVER_SERVICES);
-        }
+    public BleMetrics getMetrics(){
+        return mMetrics;
     }
 
     /**
-     * 设备连接/断开失败
+     * 获取指定设备的连接状态快照 (连接状态, MTU, PHY, 连接优先级).<br>
+     *     快照不可变, 任意线程调用, 各项取自同一时刻.
+     * @param address 设备地址
+     * @return
+     *      没有该设备的连接时返回 null.
      */
-    private void connectionStateChangeFailed() {
-        int code = BLE_SUCCESS;
-        switch (mCurentBleutoothState){
-            case STATE_CONNECTING:
-                code = BLE_ERROR_CONNECT;
-                mCurentBleutoothState = STATE_CONNECTED;
-                break;
-            case STATE_DISCONNECTING:
-                code = BLE_ERROR_DISCONNECT;
-                mCurentBleutoothState = STATE_DISCONNECTED;
-                break;
-        }
-        if (code != BLE_SUCCESS && mListener != null)
-            mListener.onBleError(code);
+    public BleConnectionState getConnectionState(final String address){
+        BleConnection connection = mConnectionPool.get(address);
+        return connection == null ? null : connection.getConnectionState();
     }
 
     /**
-     * 设备连接/断开成功
-     * @param newState  新状态
-     * @param address   设备地址
+     * 扫描结果事件流, 每个扫描批次中新发现和有更新的设备 (同一设备复用同一个 BluetoothInfo).
      */
-    private void connectionStateChangeSuccess(int newState, String address) {
-        switch (newState){
-            case BluetoothGatt.STATE_CONNECTED:
-                mCurentBleutoothState = STATE_CONNECTED;
-                mCurDeviceAddress = address;
-                if (mListener != null)
-                    mListener.onBleConnected(address);
-                break;
-            case BluetoothProfile.STATE_DISCONNECTED:
-                mCurentBleutoothState = STATE_DISCONNECTED;
-                mCurDeviceAddress = null;
-                mCurBluetoothGatt.close();
-                mCurBluetoothGatt = null;
-                if (mListener != null)
-                    mListener.onBleDisconnected(address);
-                break;
-        }
+    public BleFlow<BluetoothInfo> scanResults(){
+        return mScanFlow;
     }
 
+    /**
+     * 丢失设备事件流, 超过 TTL 未收到广播或因设备表上限被淘汰的设备.
+     */
+    public BleFlow<BluetoothInfo> lostDevices(){
+        return mLostFlow;
+    }
 
-    // BLE 扫描回调.
-    private BluetoothAdapter.LeScanCallback mLeScanCallback =
-            new BluetoothAdapter.LeScanCallback() {
-        @Override
-        public void onLeScan(BluetoothDevice device, int rssi, byte[] scanRecord) {
-            // LogUtil.d(TAG,"发现设备 : " + device.getName());
-            if (shouldSaveDevice(device)){
-                mDevices.put(device.getAddress(),device);
-                if (mListener != null)
-                    mListener.onBleDiscover(device.getName(),device.getAddress());
+    /**
+     * 指定设备的扫描结果事件流.
+     * @param address 设备地址
+     */
+    public BleFlow<BluetoothInfo> scanResults(final String address){
+        return mScanFlow.filter(new BleFlow.Predicate<BluetoothInfo>() {
+            @Override
+            public boolean test(BluetoothInfo info) {
+                return info.getAddress().equals(address);
             }
-        }
-    };
+        });
+    }
 
     /**
-     * 是否保存该设备.<br>
-     *     (1) 对设备进行条件过滤.
-     *     (2) 去除重复设备.
-     * @param device
-     * @return
+     * 连接状态事件流, 连接状态或 MTU 变化时发出该连接当前的快照.
      */
-    private boolean shouldSaveDevice(final BluetoothDevice device) {
-        final String name = device.getName();
-        final String address = device.getAddress();
+    public BleFlow<BleConnectionState> connectionStates(){
+        return mConnectionFlow;
+    }
 
-        if (!mDevices.containsKey(address)){
-            if (mNamePrefixFilter != null){
-                if (name != null && name.startsWith(mNamePrefixFilter))
-                    return true;
-            }else {
-                return true;
+    /**
+     * 指定设备的连接状态事件流.
+     * @param address 设备地址
+     */
+    public BleFlow<BleConnectionState> connectionStates(final String address){
+        return mConnectionFlow.filter(new BleFlow.Predicate<BleConnectionState>() {
+            @Override
+            public boolean test(BleConnectionState state) {
+                return state.getAddress().equals(address);
             }
-        }
-        return false;
+        });
     }
 
+    /**
+     * 特征值通知事件流 (所有设备).<br>
+     *     已通过 subscribeNotification 订阅的特征值写入 BleNotificationStream, 不在这里.
+     */
+    public BleFlow<BleNotification> notifications(){
+        return mNotificationFlow;
+    }
 
     /**
-     * 蓝牙是否正常,
+     * 指定设备的特征值通知事件流.
+     * @param address 设备地址
      */
-    private boolean isBluetoothNormal() {
-        return mIsInitialized
-                && (mBluetoothAdapter != null)
-                && (mBluetoothAdapter.isEnabled());
+    public BleFlow<BleNotification> notifications(final String address){
+        return mNotificationFlow.filter(new BleFlow.Predicate<BleNotification>() {
+            @Override
+            public boolean test(BleNotification notification) {
+                return notification.getAddress().equals(address);
+            }
+        });
     }
+
     /**
-     * 本机是否支持 BLE
+     * 错误事件流 (所有设备及扫描).
      */
-    private boolean isSupportBle() {
-        return mContext.getPackageManager().
-                hasSystemFeature(PackageManager.FEATURE_BLUETOOTH_LE);
+    public BleFlow<BleError> errors(){
+        return mErrorFlow;
     }
 
+    /**
+     * 指定设备的错误事件流.
+     * @param address 设备地址
+     */
+    public BleFlow<BleError> errors(final String address){
+        return mErrorFlow.filter(new BleFlow.Predicate<BleError>() {
+            @Override
+            public boolean test(BleError error) {
+                return address.equals(error.getAddress());
+            }
+        });
+    }
 
+    /**
+     * 获取指定设备协商后的连接参数.
+     * @param address 设备地址
+     * @return
+     *      设备未连接时返回 null.
+     */
+    public BleLinkParameters getLinkParameters(final String address){
+        BleConnection connection = mConnectionPool.get(address);
+        if (connection == null)
+            return null;
+        BleLinkParameters parameters = new BleLinkParameters();
+        connection.getLinkParameters(parameters);
+        return parameters;
+    }
 
-}
+    /**
+     * 切换批量/空闲模式.<br>
+     *     批量模式请求 BleThroughputProfile 的批量连接优先级, 空闲模式恢复低功耗的优先级.
+     *     transmitData2Device 会自动切换.
+     * @param address 设备地址
+     * @param bulk    是否批量模式
+     */
+    public boolean setBulkMode(final String address, final boolean bulk){
+        BleConnection connection = mConnectionPool.get(address);
+        return connection != null && connection.setBulkMode(bulk);
+    }
+
+    /**
+     * 获取当前设备 ATT MTU.
+     */
+    public int getMtu(){
+        return getMtu(mCurDeviceAddress.get());
+    }
+
+    /**
+     * 获取指定设备 ATT MTU.
+     * @param address 设备地址
+     */
+    public int getMtu(final String address){
+        BleConnection connection = mConnectionPool.get(address);
+        return connection == null ? BLE_DEFAULT_MTU : connection.getMtu();
+    }
+
+    /**
+     * 向当前设备发送数据 (无应答写).
+     * @param data 数据
+     * @return
+     *      是否开始发送.
+     */
+    public boolean transmitData2Device(final byte[] data) {
+        return transmitData2Device(mCurDeviceAddress.get(), data, false, null);
+    }
+
+    /**
+     * 向当前设备发送数据.
+     * @see #transmitData2Device(String, byte[], boolean, BleTransmitListener)
+     */
+    public boolean transmitData2Device(final byte[] data, final boolean withResponse,
+                                       final BleTransmitListener listener) {
+        return transmitData2Device(mCurDeviceAddress.get(), data, withResponse, listener);
+    }
+
+    /**
+     * 向指定设备发送数据.<br>
+     *     数据按当前 MTU 分包写入写特征值, 同一设备同一时间只允许一次发送.
+     * @param address       设备地址
+     * @param data          数据
+     * @param withResponse  是否逐包等待对端应答
+     * @param listener      进度监听, 可为 null
+     * @return
+     *      是否开始发送.
+     */
+    public boolean transmitData2Device(final String address, final byte[] data,
+                                       final boolean withResponse,
+                                       final BleTransmitListener listener) {
+        LogUtil.trace(TAG, "transmitData2Device");
+        if (!mIsInitialized || !isBluetoothNormal() || data == null){
+            return false;
+        }
+        BleConnection connection = mConnectionPool.get(address);
+        if (connection == null)
+            return false;
+        return connection.transmit(data, mCurrentGattServiceUuid,
+                mCurrentGattWriteCharacteristicUuid, mTransmitWindow, withResponse,
+                mDispatcher.wrap(listener));
+    }
+
+    /**
+     * 设置 GATT 操作超时, 超时后操作以 BLE_ERROR_TIMEOUT 失败并执行下一个操作.
+     * @param timeoutMillis 毫秒
+     * @return
+     */
+    public BleManager setOperationTimeout(long timeoutMillis){
+        mOperationTimeout = Math.max(1, timeoutMillis);
+        return this;
+    }
+
+    /**
+     * 读特征值, 结果通过 BleGattListener.onBleCharacteristicRead 回调.
+     * @param address             设备地址
+     * @param serviceUuid         服务 UUID
+     * @param characteristicUuid  特征值 UUID
+     * @return
+     *      是否成功入队.
+     */
+    public boolean readCharacteristic(final String address, final String serviceUuid,
+                                      final String characteristicUuid){
+        BleConnection connection = mConnectionPool.get(address);
+        if (connection == null)
+            return false;
+        UUID service = parseUuid(serviceUuid);
+        UUID characteristic = parseUuid(characteristicUuid);
+        if (!hasCharacteristic(connection, service, characteristic))
+            return false;
+        return connection.enqueue(BleOperation.readCharacteristic(service, characteristic)
+                .timeout(mOperationTimeout));
+    }
+
+    /**
+     * 写特征值, 结果通过 BleGattListener.onBleCharacteristicWrite 回调.
+     * @param address             设备地址
+     * @param serviceUuid         服务 UUID
+     * @param characteristicUuid  特征值 UUID
+     * @param value               数据 (不分包)
+     * @param withResponse        是否需要对端应答
+     * @param priority            优先级, BleConstants.BLE_PRIORITY_*,
+     *                            BLE_PRIORITY_HIGH 可插在正在进行的批量发送之前
+     * @return
+     *      是否成功入队.
+     */
+    public boolean writeCharacteristic(final String address, final String serviceUuid,
+                                       final String characteristicUuid, final byte[] value,
+                                       final boolean withResponse, final int priority){
+        if (value == null)
+            return false;
+        BleConnection connection = mConnectionPool.get(address);
+        if (connection == null)
+            return false;
+        UUID service = parseUuid(serviceUuid);
+        UUID characteristic = parseUuid(characteristicUuid);
+        if (!hasCharacteristic(connection, service, characteristic))
+            return false;
+        return connection.enqueue(BleOperation.writeCharacteristic(service, characteristic, value,
+                withResponse)
+                .priority(priority)
+                .timeout(mOperationTimeout));
+    }
+
+    /**
+     * 执行读写事务.<br>
+     *     所有步骤连续执行, 特征值支持时连续的写以可靠写提交, 结束后回调一次结果 (含每一步读到的值).
+     * @param address      设备地址
+     * @param transaction  事务, 可以重复执行
+     * @param listener     结果监听, 可为 null
+     * @return
+     *      设备未连接, 服务发现前, 事务为空或特征值不存在时返回 false.
+     */
+    public boolean executeTransaction(final String address, final BleTransaction transaction,
+                                      final BleTransactionListener listener){
+        if (transaction == null)
+            return false;
+        BleConnection connection = mConnectionPool.get(address);
+        if (connection == null)
+            return false;
+        return connection.executeTransaction(transaction, mOperationTimeout,
+                mDispatcher.wrap(listener));
+    }
+
+    /**
+     * 读取 RSSI, 结果通过 BleGattListener.onBleReadRemoteRssi 回调.
+     * @param address 设备地址
+     */
+    public boolean readRemoteRssi(final String address){
+        BleConnection connection = mConnectionPool.get(address);
+        return connection != null && connection.enqueue(BleOperation.readRssi()
+                .timeout(mOperationTimeout));
+    }
+
+    /**
+     * 请求 MTU (Android 5.0 及以上), 结果通过 BleGattListener.onBleMtuChanged 回调.
+     * @param address 设备地址
+     * @param mtu     期望的 MTU
+     */
+    public boolean requestMtu(final String address, final int mtu){
+        BleConnection connection = mConnectionPool.get(address);
+        return connection != null && connection.enqueue(BleOperation.requestMtu(mtu)
+                .priority(BleConstants.BLE_PRIORITY_HIGH)
+                .timeout(mOperationTimeout));
+    }
+
+    /**
+     * 订阅指定设备读特征值 (setReadCharacteristicUuid) 的通知.
+     * @param address 设备地址
+     * @return
+     *      通知数据流, 失败返回 null.
+     */
+    public BleNotificationStream subscribeNotification(final String address){
+        BleConnection connection = mConnectionPool.get(address);
+        if (connection == null)
+            return null;
+        return connection.subscribe(mCurrentGattServiceUuid, mCurrentGattReadCharacteristicUuid,
+                BleNotificationStream.DEFAULT_CAPACITY, BleNotificationStream.DEFAULT_SLOT_SIZE);
+    }
+
+    /**
+     * 订阅特征值通知.<br>
+     *     通知数据写入预分配的环形缓冲区, 在自己的线程中通过
+     *     BleNotificationStream.await / drain 批量读取, 不再回调 onBleCharacteristicChanged.
+     * @param address             设备地址
+     * @param serviceUuid         服务 UUID
+     * @param characteristicUuid  特征值 UUID
+     * @param capacity            缓冲的通知条数
+     * @param slotSize            单条通知最大字节数
+     * @return
+     *      通知数据流, 失败返回 null.
+     */
+    public BleNotificationStream subscribeNotification(final String address,
+                                                       final String serviceUuid,
+                                                       final String characteristicUuid,
+                                                       final int capacity, final int slotSize){
+        BleConnection connection = mConnectionPool.get(address);
+        if (connection == null)
+            return null;
+        return connection.subscribe(parseUuid(serviceUuid), parseUuid(characteristicUuid),
+                capacity, slotSize);
+    }
+
+    /**
+     * 取消订阅.
+     * @param stream subscribeNotification 返回的数据流
+     */
+    public boolean unsubscribeNotification(final BleNotificationStream stream){
+        if (stream == null)
+            return false;
+        BleConnection connection = mConnectionPool.get(stream.getAddress());
+        if (connection == null){
+            stream.close();
+            return false;
+        }
+        return connection.unsubscribe(stream);
+    }
+
+    /**
+     * 在当前服务的写特征值和读特征值之上打开消息通道.
+     * @see #openMessageChannel(String, String, String, String, int, int)
+     */
+    public BleMessageChannel openMessageChannel(final String address){
+        BleConnection connection = mConnectionPool.get(address);
+        if (connection == null)
+            return null;
+        return connection.openChannel(mCurrentGattServiceUuid, mCurrentGattWriteCharacteristicUuid,
+                mCurrentGattReadCharacteristicUuid, BleMessageChannel.DEFAULT_WINDOW,
+                BleMessageChannel.DEFAULT_CAPACITY);
+    }
+
+    /**
+     * 打开消息通道.<br>
+     *     消息分帧写入写特征值, 对端以通知返回帧, 带序号, CRC, 信用流控和选择重传,
+     *     对端固件需实现 BleMessageChannel 的帧格式. 每个设备同一时间只有一个通道, 断开时关闭.
+     * @param address             设备地址
+     * @param serviceUuid         服务 UUID
+     * @param writeUuid           写特征值 UUID
+     * @param notifyUuid          通知特征值 UUID
+     * @param window              窗口 (帧数), 两端需一致
+     * @param capacity            收件箱容量 (帧数), 积压超过时对端暂停发送
+     * @return
+     *      消息通道, 失败返回 null.
+     */
+    public BleMessageChannel openMessageChannel(final String address, final String serviceUuid,
+                                                final String writeUuid, final String notifyUuid,
+                                                final int window, final int capacity){
+        BleConnection connection = mConnectionPool.get(address);
+        if (connection == null)
+            return null;
+        return connection.openChannel(parseUuid(serviceUuid), parseUuid(writeUuid),
+                parseUuid(notifyUuid), window, capacity);
+    }
+
+    /**
+     * 关闭消息通道, 未读取的消息仍可读取.
+     * @param channel openMessageChannel 返回的通道
+     */
+    public boolean closeMessageChannel(final BleMessageChannel channel){
+        if (channel == null)
+            return false;
+        BleConnection connection = mConnectionPool.get(channel.getAddress());
+        if (connection == null){
+            channel.close(BLE_SUCCESS);
+            return false;
+        }
+        return connection.closeChannel(channel, BLE_SUCCESS);
+    }
+
+    /**
+     * 升级固件.
+     * @see #startFirmwareUpdate(String, File, String, String, String, int, BleTransmitListener)
+     */
+    public BleOtaSession startFirmwareUpdate(final String address, final File image,
+                                             final String serviceUuid, final String controlUuid,
+                                             final String packetUuid,
+                                             final BleTransmitListener listener){
+        return startFirmwareUpdate(address, image, serviceUuid, controlUuid, packetUuid,
+                BleOtaSession.DEFAULT_WINDOW, listener);
+    }
+
+    /**
+     * 升级固件.<br>
+     *     镜像文件以只读方式映射到内存, 不读入堆. 命令写入控制点并以通知回复, 数据包无应答写入数据特征值,
+     *     对端固件需实现 BleOtaSession 的协议. 对端已确认的偏移保存为检查点:
+     *     设置了自动重连时断线后自动继续, 否则以 BLE_ERROR_DISCONNECT 结束,
+     *     对同一设备再次升级同一镜像时从检查点继续.
+     * @param address      设备地址
+     * @param image        镜像文件
+     * @param serviceUuid  服务 UUID
+     * @param controlUuid  控制点特征值 UUID (写 + 通知)
+     * @param packetUuid   数据特征值 UUID (无应答写)
+     * @param window       未确认的包数
+     * @param listener     进度监听, 可为 null
+     * @return
+     *      升级会话, 设备未连接, 特征值不存在, 已在升级或文件无法读取时返回 null.
+     *      镜像的 CRC 在 SDK 线程计算后才开始, 之后的失败以 onTransmitError 回调.
+     */
+    public BleOtaSession startFirmwareUpdate(final String address, final File image,
+                                             final String serviceUuid, final String controlUuid,
+                                             final String packetUuid, final int window,
+                                             final BleTransmitListener listener){
+        LogUtil.trace(TAG, "startFirmwareUpdate");
+        if (!mIsInitialized || !isBluetoothNormal() || image == null){
+            return null;
+        }
+        BleConnection connection = mConnectionPool.get(address);
+        if (connection == null)
+            return null;
+        ByteBuffer mapped = BleOtaSession.mapImage(image);
+        if (mapped == null)
+            return null;
+        return connection.startOta(parseUuid(serviceUuid), parseUuid(controlUuid),
+                parseUuid(packetUuid), mapped, window, mOtaCheckpoints, mDispatcher.wrap(listener));
+    }
+
+    /**
+     * 取消固件升级, 检查点保留, 之后可以继续.
+     * @param session startFirmwareUpdate 返回的会话
+     */
+    public boolean cancelFirmwareUpdate(final BleOtaSession session){
+        if (session == null)
+            return false;
+        BleConnection connection = mConnectionPool.get(session.getAddress());
+        if (connection == null){
+            session.cancel(BLE_SUCCESS);
+            return false;
+        }
+        return connection.closeOta(session, BLE_SUCCESS);
+    }
+
+    /**
+     * 开始批量任务.<br>
+     *     已连接的设备直接复用连接, 其它设备按地址连接 (不淘汰已有连接, 连接池满时等待),
+     *     结束后断开. 批量任务的连接不自动重连, 失败后由任务按 maxAttempts 重试.
+     * @param job 批量任务, 每个对象只能开始一次
+     * @return
+     *      未初始化, 已开始, 没有设备或步骤, 或镜像无法读取时返回 false.
+     */
+    public boolean startFanout(final BleFanoutJob job){
+        LogUtil.trace(TAG, "startFanout");
+        if (!mIsInitialized || !isBluetoothNormal() || job == null){
+            return false;
+        }
+        final BleFanoutScheduler fanout = new BleFanoutScheduler(mScheduler, mFanoutHost, job,
+                mDispatcher.wrap(job.getListener()));
+        if (!job.attach(fanout))
+            return false;
+        addFanout(fanout);
+        fanout.start();
+        return true;
+    }
+
+    /**
+     * 取消批量任务, 正在进行的设备中止并断开, 未结束的设备以 BLE_ERROR_CANCELLED 结束.
+     * @param job startFanout 开始的批量任务
+     */
+    public boolean cancelFanout(final BleFanoutJob job){
+        if (job == null)
+            return false;
+        final BleFanoutScheduler fanout = job.getScheduler();
+        if (fanout == null || fanout.isFinished())
+            return false;
+        fanout.cancel();
+        return true;
+    }
+
+    /**
+     * 获取指定设备 GATT 操作队列统计 (队列深度, 排队等待时间).
+     * @param address 设备地址
+     * @return
+     *      设备未连接时返回 null.
+     */
+    public BleQueueStats getQueueStats(final String address){
+        BleConnection connection = mConnectionPool.get(address);
+        if (connection == null)
+            return null;
+        BleQueueStats stats = new BleQueueStats();
+        connection.getQueueStats(stats);
+        return stats;
+    }
+
+    /**
+     * 获取缓冲池统计 (命中率, 缓存的数组个数和字节数).
+     */
+    public BleBufferPoolStats getBufferPoolStats(){
+        BleBufferPoolStats stats = new BleBufferPoolStats();
+        mBufferPool.getStats(stats);
+        return stats;
+    }
+
+    /**
+     * 创建连接并应用当前配置.
+     */
+    private BleConnection newConnection(BleTransport transport) {
+        final BleConnection connection = new BleConnection(transport, mScheduler, mGattCache,
+                mBufferPool, mConnectionCallback);
+        connection.setThroughputProfile(mThroughputProfile);
+        connection.setTraceRecorder(mTraceRecorder);
+        connection.setMetrics(mMetrics);
+        return connection;
+    }
 
+    private void addFanout(BleFanoutScheduler fanout) {
+        while (true) {
+            final BleFanoutScheduler[] old = mFanouts.get();
+            final BleFanoutScheduler[] fanouts = new BleFanoutScheduler[old.length + 1];
+            System.arraycopy(old, 0, fanouts, 0, old.length);
+            fanouts[old.length] = fanout;
+            if (mFanouts.compareAndSet(old, fanouts))
+                return;
+        }
+    }
+
+    private void removeFanout(BleFanoutScheduler fanout) {
+        while (true) {
+            final BleFanoutScheduler[] old = mFanouts.get();
+            int index = -1;
+            for (int i = 0; i < old.length; i++) {
+                if (old[i] == fanout) {
+                    index = i;
+                    break;
+                }
+            }
+            if (index < 0)
+                return;
+            final BleFanoutScheduler[] fanouts = new BleFanoutScheduler[old.length - 1];
+            System.arraycopy(old, 0, fanouts, 0, index);
+            System.arraycopy(old, index + 1, fanouts, index, old.length - index - 1);
+            if (mFanouts.compareAndSet(old, fanouts))
+                return;
+        }
+    }
+
+    /**
+     * 连接的服务表中是否有该特征值.
+     */
+    private static boolean hasCharacteristic(BleConnection connection, UUID service,
+                                             UUID characteristic) {
+        final BleGattTable table = connection.getGattTable();
+        return table != null && service != null && characteristic != null
+                && table.getProperties(service, characteristic) >= 0;
+    }
 
+    /**
+     * 解析 UUID 字符串, 格式错误时返回 null.
+     */
+    private static UUID parseUuid(String uuid) {
+        if (uuid == null)
+            return null;
+        try {
+            return UUID.fromString(uuid);
+        } catch (IllegalArgumentException e) {
+            LogUtil.e(TAG, "bad uuid : %s", uuid);
+            return null;
+        }
+    }
 
+    /**
+     * 断开的设备是当前设备时清除 (其它线程可能已切换到新设备, 不覆盖).
+     */
+    private void clearCurrentDevice(String address) {
+        while (true) {
+            final String current = mCurDeviceAddress.get();
+            if (!address.equals(current) || mCurDeviceAddress.compareAndSet(current, null))
+                return;
+        }
+    }
 
+    private void dispatchError(String address, int code) {
+        mMetrics.onError(code);
+        if (mErrorFlow.hasSubscribers())
+            mErrorFlow.emit(new BleError(address, code));
+        mDispatcher.onBleError(code);
+        if (address != null)
+            mDispatcher.onBleError(address, code);
+    }
 
+    // 批量任务使用的连接和扫描.
+    private final BleFanoutScheduler.Host mFanoutHost = new BleFanoutScheduler.Host() {
+        @Override
+        public BleConnection getConnection(String address) {
+            return mConnectionPool.get(address);
+        }
 
+        @Override
+        public boolean hasFreeSlot() {
+            return !mConnectionPool.isFull();
+        }
 
+        @Override
+        public BleConnection connect(String address) {
+            if (!isBluetoothNormal())
+                return null;
+            final BleTransport transport = mTransportFactory.create(address);
+            if (transport == null)
+                return null;
+            final BleConnection connection = newConnection(transport);
+            if (mConnectionPool.putIfAbsent(connection) != null){
+                transport.close();
+                return null;
+            }
+            if (!connection.connect()){
+                mConnectionPool.remove(connection);
+                return null;
+            }
+            return connection;
+        }
 
+        @Override
+        public void disconnect(BleConnection connection) {
+            if (!connection.disconnect()
+                    && connection.getState() == BleConnection.STATE_DISCONNECTED)
+                mConnectionPool.remove(connection);
+        }
 
+        @Override
+        public boolean isNearby(String address) {
+            final BluetoothInfo info = mScanPipeline.get(address);
+            return info != null
+                    && mScheduler.now() - info.getLastSeen() <= FANOUT_NEARBY_WINDOW;
+        }
 
+        @Override
+        public boolean startScan() {
+            return !mIsScaning && startBleScan();
+        }
 
+        @Override
+        public void stopScan() {
+            stopBleScan();
+        }
 
+        @Override
+        public int getTransmitWindow() {
+            return mTransmitWindow;
+        }
+
+        @Override
+        public long getOperationTimeout() {
+            return mOperationTimeout;
+        }
+
+        @Override
+        public BleOtaCheckpoint getCheckpoints() {
+            return mOtaCheckpoints;
+        }
+
+        @Override
+        public void onJobFinished(BleFanoutScheduler scheduler) {
+            removeFanout(scheduler);
+        }
+    };
+
+    // 连接事件回调.
+    private final BleConnection.Callback mConnectionCallback = new BleConnection.Callback() {
+        @Override
+        public void onConnectionStateChanged(BleConnection connection, int oldState, int newState) {
+            final String address = connection.getAddress();
+            if (mConnectionFlow.hasSubscribers())
+                mConnectionFlow.emit(connection.getConnectionState());
+            for (BleFanoutScheduler fanout : mFanouts.get()) {
+                fanout.onConnectionStateChanged(connection, newState);
+            }
+            switch (newState){
+                case BleConnection.STATE_CONNECTED:
+                    mScheduler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            mScanPipeline.pin(address);
+                        }
+                    });
+                    mReconnector.onConnected(connection);
+                    mDispatcher.onBleConnected(address);
+                    break;
+                case BleConnection.STATE_DISCONNECTED:
+                    mScheduler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            mScanPipeline.unpin(address, mScheduler.now());
+                        }
+                    });
+                    // 等待重连时连接保留在连接池中.
+                    if (!mReconnector.onDisconnected(connection, oldState)){
+                        mConnectionPool.remove(connection);
+                        clearCurrentDevice(address);
+                    }
+                    if (oldState != BleConnection.STATE_CONNECTING)
+                        mDispatcher.onBleDisconnected(address);
+                    break;
+            }
+        }
+
+        @Override
+        public void onConnectionError(BleConnection connection, int code) {
+            dispatchError(connection.getAddress(), code);
+        }
+
+        @Override
+        public void onOperationFailed(BleConnection connection, BleOperation operation, int code) {
+            LogUtil.e(TAG, "operation %d failed : %d", operation.type, code);
+            if (operation.type == BleOperation.TYPE_DISCOVER_SERVICES)
+                code = BLE_ERROR_DISCOVER_SERVICES;
+            dispatchError(connection.getAddress(), code);
+        }
+
+        @Override
+        public void onServicesDiscovered(BleConnection connection, boolean success) {
+            LogUtil.trace(TAG, "onServicesDiscovered");
+            for (BleFanoutScheduler fanout : mFanouts.get()) {
+                fanout.onServicesDiscovered(connection, success);
+            }
+            if (success){
+                mDispatcher.onBleDiscoverServices(connection.getAddress());
+            }else {
+                dispatchError(connection.getAddress(), BLE_ERROR_DISCOVER_SERVICES);
+            }
+        }
+
+        @Override
+        public void onCharacteristicRead(BleConnection connection, UUID service,
+                                         UUID characteristic, byte[] value, int status) {
+            mDispatcher.onBleCharacteristicRead(connection.getAddress(),
+                        characteristic, value, status);
+        }
+
+        @Override
+        public void onCharacteristicWrite(BleConnection connection, UUID service,
+                                          UUID characteristic, int status) {
+            mDispatcher.onBleCharacteristicWrite(connection.getAddress(),
+                        characteristic, status);
+        }
+
+        @Override
+        public void onCharacteristicChanged(BleConnection connection, UUID service,
+                                            UUID characteristic, byte[] value) {
+            if (mNotificationFlow.hasSubscribers())
+                mNotificationFlow.emit(new BleNotification(connection.getAddress(), service,
+                        characteristic, value));
+            mDispatcher.onBleCharacteristicChanged(connection.getAddress(),
+                        characteristic, value);
+        }
+
+        @Override
+        public void onDescriptorWrite(BleConnection connection, UUID service,
+                                      UUID characteristic, UUID descriptor, int status) {
+            mDispatcher.onBleDescriptorWrite(connection.getAddress(),
+                        descriptor, status);
+        }
 
+        @Override
+        public void onReadRemoteRssi(final BleConnection connection, final int rssi, int status) {
+            if (status == BLE_GATT_SUCCESS) {
+                mScheduler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mScanPipeline.onRemoteRssi(connection.getAddress(), rssi);
+                    }
+                });
+            }
+            mDispatcher.onBleReadRemoteRssi(connection.getAddress(), rssi, status);
+        }
+
+        @Override
+        public void onMtuChanged(BleConnection connection, int mtu, int status) {
+            if (status == BLE_GATT_SUCCESS && mConnectionFlow.hasSubscribers())
+                mConnectionFlow.emit(connection.getConnectionState());
+            mDispatcher.onBleMtuChanged(connection.getAddress(), mtu, status);
+        }
+    };
+
+
+    /**
+     * Android 5.0 及以上使用 BluetoothLeScanner, 否则使用 startLeScan.
+     */
+    private BleScanner createScanner(BleScanConfig config) {
+        if (!config.isForceLegacy() && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP)
+            return new BleLollipopScanner(mBluetoothAdapter, mScanCallback);
+        return new BleLegacyScanner(mBluetoothAdapter, mScanCallback);
+    }
+
+    // BLE 扫描回调.
+    private final BleScanner.Callback mScanCallback = new BleScanner.Callback() {
+        @Override
+        public void onAdvertisement(BluetoothDevice device, int rssi, byte[] scanRecord) {
+            final String address = device.getAddress();
+            final BleTraceRecorder trace = mTraceRecorder;
+            if (trace != null)
+                trace.record(MacAddress.toLong(address), BleTraceRecorder.OP_ADVERTISEMENT,
+                        0, rssi, null, scanRecord);
+            mMetrics.onAdvertisement();
+            // 只写入收件箱, 由 SDK 线程处理.
+            if (mScanPipeline.onAdvertisement(address, device, rssi, scanRecord, mScheduler.now()))
+                mScheduler.postDelayed(mScanProcessRunnable, SCAN_PROCESS_DELAY);
+        }
+
+        @Override
+        public void onScanFailed(int errorCode) {
+            final BleTraceRecorder trace = mTraceRecorder;
+            if (trace != null)
+                trace.record(0, BleTraceRecorder.OP_SCAN_FAILED, errorCode, 0, null, null);
+            mIsScaning = false;
+            dispatchError(null, BLE_ERROR_SCAN);
+        }
+    };
+
+    // 扫描批量回调.
+    private final Runnable mScanBatchRunnable = new Runnable() {
+        @Override
+        public void run() {
+            deliverScanBatch();
+            if (mIsScaning)
+                mScheduler.postDelayed(this, mScanBatchInterval);
+        }
+    };
+
+    // 处理扫描回调交来的广播.
+    private final Runnable mScanProcessRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mScanPipeline.process();
+        }
+    };
+
+    // 清空设备表, 重新回调已连接的设备.
+    private final Runnable mScanClearRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mScanPipeline.clear(mBatchDiscovered);
+            for (int i = 0; i < mBatchDiscovered.size(); i++) {
+                BluetoothInfo info = mBatchDiscovered.get(i);
+                mDispatcher.onBleDiscover(info.getName(), info.getAddress());
+            }
+            mBatchDiscovered.clear();
+        }
+    };
+
+    // 扫描重新开始.
+    private final Runnable mScanRestartRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mIsScaning)
+                startScanner();
+        }
+    };
+
+    /**
+     * 回调一个扫描批次 (SDK 线程).
+     */
+    private void deliverScanBatch() {
+        mScanPipeline.process();
+        mScanPipeline.prune(mScheduler.now());
+        mScanPipeline.publish();
+        deliverLostDevices();
+        if (!mScanPipeline.drain(mBatchDiscovered, mBatchUpdated))
+            return;
+        for (int i = 0; i < mBatchDiscovered.size(); i++) {
+            BluetoothInfo info = mBatchDiscovered.get(i);
+            mDispatcher.onBleDiscover(info.getName(), info.getAddress());
+        }
+        if (mScanFlow.hasSubscribers()){
+            for (int i = 0; i < mBatchDiscovered.size(); i++) {
+                mScanFlow.emit(mBatchDiscovered.get(i));
+            }
+            for (int i = 0; i < mBatchUpdated.size(); i++) {
+                mScanFlow.emit(mBatchUpdated.get(i));
+            }
+        }
+        mDispatcher.onBleScanBatch(mBatchDiscovered, mBatchUpdated);
+        mBatchDiscovered.clear();
+        mBatchUpdated.clear();
+    }
+
+    /**
+     * 回调被淘汰的设备 (SDK 线程).
+     */
+    private void deliverLostDevices() {
+        if (!mScanPipeline.drainLost(mBatchLost))
+            return;
+        if (mLostFlow.hasSubscribers()){
+            for (int i = 0; i < mBatchLost.size(); i++) {
+                mLostFlow.emit(mBatchLost.get(i));
+            }
+        }
+        mDispatcher.onBleDevicesLost(mBatchLost);
+        mBatchLost.clear();
+    }
+
+
+    /**
+     * 在主线程执行的 Executor.
+     */
+    private static Executor mainThreadExecutor() {
+        final Handler handler = new Handler(Looper.getMainLooper());
+        return new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                handler.post(command);
+            }
+        };
+    }
+
+    /**
+     * 蓝牙是否正常,
+     */
+    private boolean isBluetoothNormal() {
+        return mIsInitialized
+                && (mBluetoothAdapter != null)
+                && (mBluetoothAdapter.isEnabled());
+    }
+    /**
+     * 本机是否支持 BLE
+     */
+    private boolean isSupportBle() {
+        return mContext.getPackageManager().
+                hasSystemFeature(PackageManager.FEATURE_BLUETOOTH_LE);
+    }
+
+
+
+}
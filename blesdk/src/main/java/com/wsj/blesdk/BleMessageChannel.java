@@ -0,0 +1,867 @@
+package com.wsj.blesdk;
+
+import com.wsj.blesdk.utils.Crc16;
+
+import java.util.ArrayDeque;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import static com.wsj.blesdk.BleConstants.BLE_ERROR_PROTOCOL;
+import static com.wsj.blesdk.BleConstants.BLE_ERROR_TIMEOUT;
+import static com.wsj.blesdk.BleConstants.BLE_ERROR_WRITE;
+
+/**
+ * 消息通道, 在写特征值和通知特征值之上收发任意长度的消息.<br>
+ *     (1) 消息按帧大小 (MTU - 3) 分段, 首帧携带消息长度; 每帧带 16 位序号和 CRC-16, 校验失败的帧丢弃.
+ *     (2) 接收方按序号重排, 分段拼接到 BleBufferPool 的数组中, 完整的消息放入收件箱,
+ *         上层在自己的线程中 drain 或 poll 读取, 读取后数组归还缓冲池.
+ *         发送的帧, 乱序到达的帧和确认帧也取自缓冲池或复用, 收发过程中不再分配.
+ *     (3) 接收方以确认帧返回累计确认序号, 之后已收到帧的位图 (SACK) 和信用 (还能接收的帧数);
+ *         收件箱积压时信用减少, 为 0 时发送方暂停, 读取后再发确认帧恢复.
+ *     (4) 发送方只重传位图中缺失且之后发送的帧已被确认的帧 (选择重传);
+ *         超时未确认时重传最早的帧并加倍超时时间, 连续多次超时关闭通道.
+ *     (5) 两端对称, 对端固件实现相同的帧格式 (多字节字段为小端, crc 覆盖之前的所有字节):
+ *         数据帧  [flags:1][seq:2][length:4, 仅首帧][payload][crc:2], flags 0x01 首帧, 0x02 末帧;
+ *         确认帧  [0x80 | poll:1][ack:2][credits:1][sack:4][crc:2], poll 要求对端立即回复确认帧.
+ *     (6) 状态由通道自身的锁保护, 锁内只做计算和拷贝: 要写的帧拷贝到待写队列,
+ *         释放锁后由一个线程交给 Link 写出 (写特征值可能直接进入协议栈), 锁不会跨越 IPC.
+ */
+
+public class BleMessageChannel {
+    // 默认发送窗口 (未确认的帧数).
+    public static final int DEFAULT_WINDOW    = 16;
+    // 最大发送窗口, 受确认帧位图长度限制.
+    public static final int MAX_WINDOW        = 32;
+    // 默认收件箱容量 (帧数).
+    public static final int DEFAULT_CAPACITY  = 256;
+    // 单条消息最大长度.
+    public static final int MAX_MESSAGE_SIZE  = 1 << 20;
+
+    /**
+     * 消息读取回调.<br>
+     *     buffer 为缓冲池中的数组, 只在回调期间有效, 需要保留数据时自行拷贝.
+     */
+    public interface Consumer {
+        void onMessage(byte[] buffer, int offset, int length);
+    }
+
+    /**
+     * 帧的收发, 由 BleConnection 绑定到写特征值.
+     */
+    interface Link {
+        /**
+         * 写入一帧.
+         * @param frame    帧数据, 只在调用期间有效, 需要排队时自行拷贝; 调用时不持有通道的锁
+         * @param control  是否为确认帧 (可插在数据帧之前)
+         * @return
+         *      是否成功入队.
+         */
+        boolean writeFrame(byte[] frame, boolean control);
+
+        /**
+         * 当前最大帧长度.
+         */
+        int getFrameSize();
+
+        /**
+         * 通道因错误关闭.
+         */
+        void onClosed(BleMessageChannel channel, int code);
+    }
+
+    /* 帧格式. */
+    private static final int TYPE_ACK          = 0x80;
+    private static final int FLAG_FIRST        = 0x01;
+    private static final int FLAG_LAST        = 0x02;
+    private static final int FLAG_POLL         = 0x01;
+    private static final int DATA_HEADER       = 3;
+    private static final int FIRST_HEADER      = 7;
+    private static final int CRC_SIZE          = 2;
+    private static final int ACK_FRAME_SIZE    = 10;
+    // ATT 属性值最大长度.
+    private static final int MAX_FRAME_SIZE    = 512;
+
+    // 序号空间.
+    private static final int SEQ_MASK          = 0xffff;
+    // 帧槽位, 按序号低位索引.
+    private static final int SLOT_MASK         = MAX_WINDOW - 1;
+
+    // 延迟确认时间 (毫秒), 期间收到半个窗口的帧时立即确认.
+    private static final long ACK_DELAY        = 20;
+    // 重传超时 (毫秒) 及上限.
+    private static final long INITIAL_RTO      = 1000;
+    private static final long MAX_RTO          = 8 * 1000;
+    // 连续超时次数上限.
+    private static final int MAX_TIMEOUTS      = 5;
+    // 发送队列中最多的消息数.
+    private static final int SEND_QUEUE_SIZE   = 64;
+
+    /**
+     * 收件箱中的完整消息, poll 返回的视图释放时归还.
+     */
+    private final class Message implements BleBuffer.Owner {
+        final byte[] buffer;
+        final int length;
+        // 占用的帧数 (信用).
+        final int frames;
+
+        Message(byte[] buffer, int length, int frames) {
+            this.buffer = buffer;
+            this.length = length;
+            this.frames = frames;
+        }
+
+        @Override
+        public void onRelease(BleBuffer view) {
+            recycle(this);
+        }
+    }
+
+    private final BleScheduler mScheduler;
+    private final String mAddress;
+    private final UUID mServiceUuid;
+    private final UUID mNotifyUuid;
+    private final int mWindow;
+    private final int mCapacity;
+    private final Link mLink;
+    private final BleBufferPool mPool;
+
+    /* 发送. */
+    private final ArrayDeque<byte[]> mSendQueue = new ArrayDeque<>();
+    // 正在分段的消息及下一段的位置.
+    private byte[] mSending;
+    private int mSendingOffset;
+    // 下一帧的序号, 最早未确认的序号.
+    private int mNextSeq;
+    private int mAckSeq;
+    // 对端给出的信用.
+    private int mPeerCredits;
+    // 未确认的帧 (重传用, 取自缓冲池), 已被 SACK 确认的帧归还并置为 null.
+    private final byte[][] mTxFrames = new byte[MAX_WINDOW][];
+    private final boolean[] mTxSacked = new boolean[MAX_WINDOW];
+    // 每帧最近一次发送的次序, 以及已确认的帧中最大的发送次序.
+    private final long[] mTxOrder = new long[MAX_WINDOW];
+    private long mSendOrder;
+    private long mDeliveredOrder;
+    private long mRto = INITIAL_RTO;
+    private int mTimeouts;
+    private boolean mTimerScheduled;
+
+    /* 接收. */
+    // 期望的下一帧序号.
+    private int mExpectedSeq;
+    // 乱序到达的帧, 位 i 对应序号 mExpectedSeq + 1 + i.
+    private int mRxMask;
+    // 乱序到达的帧的拷贝 (取自缓冲池).
+    private final byte[][] mRxFrames = new byte[MAX_WINDOW][];
+    private final int[] mRxLengths = new int[MAX_WINDOW];
+    // 正在拼接的消息.
+    private byte[] mRxMessage;
+    private int mRxMessageLength;
+    private int mRxFilled;
+    private int mRxMessageFrames;
+    // 完整的消息和占用的帧数.
+    private final ArrayDeque<Message> mInbox = new ArrayDeque<>();
+    private int mInboxFrames;
+    // 确认帧, 拷贝到待写队列后复用.
+    private final byte[] mAckFrame = new byte[ACK_FRAME_SIZE];
+    // 上次确认后按序收到的帧数, 上次通告的信用.
+    private int mUnackedFrames;
+    private int mAdvertisedCredits;
+    private boolean mAckScheduled;
+
+    /* 统计. */
+    private long mRetransmittedFrames;
+    private long mCorruptedFrames;
+    private long mDuplicateFrames;
+
+    /* 待写的帧 (取自缓冲池的拷贝), 确认帧先写. */
+    private final ArrayDeque<byte[]> mControlOut = new ArrayDeque<>();
+    private final ArrayDeque<byte[]> mDataOut = new ArrayDeque<>();
+    // 有线程正在写出待写的帧.
+    private boolean mFlushing;
+
+    private volatile boolean mClosed = false;
+    private int mError;
+    private boolean mCloseNotified;
+    // 等待消息的消费者线程.
+    private volatile Thread mWaiter;
+
+    /**
+     * @param scheduler    时钟和定时任务
+     * @param address      设备地址
+     * @param serviceUuid  服务 UUID
+     * @param notifyUuid   接收帧的通知特征值
+     * @param window       发送和接收窗口 (帧数), 1 ~ MAX_WINDOW, 两端需一致
+     * @param capacity     收件箱容量 (帧数)
+     * @param link         帧的收发
+     * @param pool         缓冲池
+     */
+    BleMessageChannel(BleScheduler scheduler, String address, UUID serviceUuid, UUID notifyUuid,
+                      int window, int capacity, Link link, BleBufferPool pool) {
+        mScheduler = scheduler;
+        mAddress = address;
+        mServiceUuid = serviceUuid;
+        mNotifyUuid = notifyUuid;
+        mWindow = Math.max(1, Math.min(MAX_WINDOW, window));
+        mCapacity = Math.max(1, capacity);
+        mLink = link;
+        mPool = pool;
+        mPeerCredits = mWindow;
+        mAdvertisedCredits = mWindow;
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    /**
+     * 发送一条消息, 数据不拷贝, 发送完成前不要修改.
+     * @return
+     *      通道已关闭, 消息过长或发送队列已满时返回 false.
+     */
+    public boolean send(byte[] message) {
+        if (message == null || message.length > MAX_MESSAGE_SIZE)
+            return false;
+        int code;
+        synchronized (this) {
+            if (mClosed || mSendQueue.size() >= SEND_QUEUE_SIZE)
+                return false;
+            mSendQueue.addLast(message);
+            pump();
+            code = takeCloseCode();
+        }
+        if (code == 0)
+            code = flush();
+        if (code != 0) {
+            closed(code);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 批量读取消息, 读取后归还缓冲区并向对端恢复信用.
+     * @param consumer  读取回调
+     * @param max       最多读取条数
+     * @return
+     *      读取的条数.
+     */
+    public int drain(Consumer consumer, int max) {
+        int count = 0;
+        while (count < max) {
+            final Message message;
+            synchronized (this) {
+                message = mInbox.pollFirst();
+            }
+            if (message == null)
+                break;
+            try {
+                consumer.onMessage(message.buffer, 0, message.length);
+            } finally {
+                recycle(message);
+            }
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * 取出一条消息.
+     * @return
+     *      消息的只读视图, 用完后 release (归还缓冲池并恢复信用); 没有消息时返回 null.
+     */
+    public BleBuffer poll() {
+        final Message message;
+        synchronized (this) {
+            message = mInbox.pollFirst();
+        }
+        return message == null ? null
+                : new BleBuffer(message.buffer, 0, message.length, message);
+    }
+
+    /**
+     * 等待消息到达.
+     * @param timeoutMillis 最长等待时间
+     * @return
+     *      是否有消息可读.
+     */
+    public boolean await(long timeoutMillis) {
+        if (available() > 0)
+            return true;
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        mWaiter = Thread.currentThread();
+        try {
+            while (available() == 0 && !mClosed) {
+                final long remain = deadline - System.nanoTime();
+                if (remain <= 0 || Thread.currentThread().isInterrupted())
+                    break;
+                LockSupport.parkNanos(this, remain);
+            }
+        } finally {
+            mWaiter = null;
+        }
+        return available() > 0;
+    }
+
+    /**
+     * 未读取的消息数.
+     */
+    public synchronized int available() {
+        return mInbox.size();
+    }
+
+    /**
+     * 等待发送的消息数 (不含正在分段的消息).
+     */
+    public synchronized int getPendingMessages() {
+        return mSendQueue.size();
+    }
+
+    /**
+     * 是否已关闭 (主动关闭, 设备断开或出错), 关闭后仍可读取剩余消息.
+     */
+    public boolean isClosed() {
+        return mClosed;
+    }
+
+    /**
+     * 关闭原因, BleConstants.BLE_ERROR_*, 正常关闭为 0.
+     */
+    public synchronized int getError() {
+        return mError;
+    }
+
+    /**
+     * 重传的帧数.
+     */
+    public synchronized long getRetransmittedFrames() {
+        return mRetransmittedFrames;
+    }
+
+    /**
+     * 校验失败丢弃的帧数.
+     */
+    public synchronized long getCorruptedFrames() {
+        return mCorruptedFrames;
+    }
+
+    /**
+     * 重复收到的帧数.
+     */
+    public synchronized long getDuplicateFrames() {
+        return mDuplicateFrames;
+    }
+
+    /**
+     * 是否为该通知特征值的通道.
+     */
+    boolean matches(UUID serviceUuid, UUID characteristicUuid) {
+        return mNotifyUuid.equals(characteristicUuid)
+                && (serviceUuid == null || mServiceUuid.equals(serviceUuid));
+    }
+
+    UUID getServiceUuid() {
+        return mServiceUuid;
+    }
+
+    UUID getNotifyUuid() {
+        return mNotifyUuid;
+    }
+
+    /**
+     * 收到一帧 (Binder 线程).
+     */
+    void onFrame(byte[] value) {
+        if (value == null)
+            return;
+        final boolean wake;
+        int code;
+        synchronized (this) {
+            if (mClosed)
+                return;
+            final int length = value.length;
+            if (length < DATA_HEADER + CRC_SIZE
+                    || Crc16.compute(value, 0, length - CRC_SIZE) != getShort(value, length - CRC_SIZE)) {
+                mCorruptedFrames++;
+                return;
+            }
+            final int inbox = mInbox.size();
+            if ((value[0] & TYPE_ACK) != 0) {
+                onAck(value, length);
+            } else {
+                onData(value, length);
+            }
+            wake = mInbox.size() > inbox;
+            code = takeCloseCode();
+        }
+        if (code == 0)
+            code = flush();
+        if (code != 0) {
+            closed(code);
+        } else if (wake) {
+            final Thread waiter = mWaiter;
+            if (waiter != null)
+                LockSupport.unpark(waiter);
+        }
+    }
+
+    /**
+     * 关闭通道, 不再回调 Link.onClosed.
+     * @param code  关闭原因, 正常关闭为 0
+     */
+    void close(int code) {
+        synchronized (this) {
+            closeLocked(code);
+            mCloseNotified = true;
+        }
+        final Thread waiter = mWaiter;
+        if (waiter != null)
+            LockSupport.unpark(waiter);
+    }
+
+    /* ---------------- 接收 ---------------- */
+
+    private void onData(byte[] frame, int length) {
+        if ((frame[0] & 0xff & ~(FLAG_FIRST | FLAG_LAST)) != 0) {
+            mCorruptedFrames++;
+            return;
+        }
+        final int offset = (getShort(frame, 1) - mExpectedSeq) & SEQ_MASK;
+        if (offset >= mWindow) {
+            // 已交付过 (确认帧丢失) 或超出窗口, 立即确认.
+            mDuplicateFrames++;
+            sendAck(false);
+            return;
+        }
+        if (offset > 0) {
+            final int bit = 1 << (offset - 1);
+            if ((mRxMask & bit) != 0) {
+                mDuplicateFrames++;
+            } else {
+                hold(frame, length);
+                mRxMask |= bit;
+            }
+            sendAck(false);
+            return;
+        }
+        consume(frame, length);
+        mUnackedFrames++;
+        // 之前乱序到达的帧.
+        while (!mClosed) {
+            final boolean ready = (mRxMask & 1) != 0;
+            mRxMask >>>= 1;
+            if (!ready)
+                break;
+            final int slot = mExpectedSeq & SLOT_MASK;
+            final byte[] held = mRxFrames[slot];
+            mRxFrames[slot] = null;
+            consume(held, mRxLengths[slot]);
+            mPool.release(held);
+            mUnackedFrames++;
+        }
+        if (mClosed)
+            return;
+        if (mUnackedFrames >= Math.max(1, mWindow / 2) || credits() < mAdvertisedCredits) {
+            sendAck(false);
+        } else if (!mAckScheduled) {
+            mAckScheduled = true;
+            mScheduler.postDelayed(mAckRunnable, ACK_DELAY);
+        }
+    }
+
+    /**
+     * 保存乱序到达的帧 (通知数据可能被协议栈复用, 拷贝到自己的槽位).
+     */
+    private void hold(byte[] frame, int length) {
+        final int slot = getShort(frame, 1) & SLOT_MASK;
+        final byte[] buffer = mPool.acquire(length);
+        mRxFrames[slot] = buffer;
+        System.arraycopy(frame, 0, buffer, 0, length);
+        mRxLengths[slot] = length;
+    }
+
+    /**
+     * 按序处理一帧: 拼接到当前消息, 末帧时放入收件箱.
+     */
+    private void consume(byte[] frame, int length) {
+        mExpectedSeq = (mExpectedSeq + 1) & SEQ_MASK;
+        final int flags = frame[0];
+        final boolean first = (flags & FLAG_FIRST) != 0;
+        final int header = first ? FIRST_HEADER : DATA_HEADER;
+        final int payload = length - header - CRC_SIZE;
+        if (payload < 0) {
+            closeLocked(BLE_ERROR_PROTOCOL);
+            return;
+        }
+        if (first) {
+            final int total = getInt(frame, DATA_HEADER);
+            if (mRxMessage != null || total < 0 || total > MAX_MESSAGE_SIZE) {
+                closeLocked(BLE_ERROR_PROTOCOL);
+                return;
+            }
+            mRxMessage = mPool.acquire(total);
+            mRxMessageLength = total;
+            mRxFilled = 0;
+            mRxMessageFrames = 0;
+        } else if (mRxMessage == null) {
+            closeLocked(BLE_ERROR_PROTOCOL);
+            return;
+        }
+        if (mRxFilled + payload > mRxMessageLength) {
+            closeLocked(BLE_ERROR_PROTOCOL);
+            return;
+        }
+        System.arraycopy(frame, header, mRxMessage, mRxFilled, payload);
+        mRxFilled += payload;
+        mRxMessageFrames++;
+        if ((flags & FLAG_LAST) == 0)
+            return;
+        if (mRxFilled != mRxMessageLength) {
+            closeLocked(BLE_ERROR_PROTOCOL);
+            return;
+        }
+        mInbox.addLast(new Message(mRxMessage, mRxMessageLength, mRxMessageFrames));
+        mInboxFrames += mRxMessageFrames;
+        mRxMessage = null;
+    }
+
+    /**
+     * 对端还能发送的帧数.
+     */
+    private int credits() {
+        return Math.min(mWindow, Math.max(0, mCapacity - mInboxFrames));
+    }
+
+    private void sendAck(boolean poll) {
+        if (mAckScheduled) {
+            mAckScheduled = false;
+            mScheduler.remove(mAckRunnable);
+        }
+        final int credits = credits();
+        final byte[] frame = mAckFrame;
+        frame[0] = (byte) (TYPE_ACK | (poll ? FLAG_POLL : 0));
+        putShort(frame, 1, mExpectedSeq);
+        frame[3] = (byte) credits;
+        putInt(frame, 4, mRxMask);
+        putShort(frame, ACK_FRAME_SIZE - CRC_SIZE, Crc16.compute(frame, 0, ACK_FRAME_SIZE - CRC_SIZE));
+        mUnackedFrames = 0;
+        mAdvertisedCredits = credits;
+        queueFrame(frame, true);
+    }
+
+    /**
+     * 读取完一条消息: 归还数组, 之前通告过受限的信用时立即通知对端.
+     */
+    private void recycle(Message message) {
+        mPool.release(message.buffer);
+        int code;
+        synchronized (this) {
+            mInboxFrames -= message.frames;
+            if (!mClosed && mAdvertisedCredits < mWindow && credits() > mAdvertisedCredits)
+                sendAck(false);
+            code = takeCloseCode();
+        }
+        if (code == 0)
+            code = flush();
+        if (code != 0)
+            closed(code);
+    }
+
+    /* ---------------- 发送 ---------------- */
+
+    private void onAck(byte[] frame, int length) {
+        if (length != ACK_FRAME_SIZE || (frame[0] & 0xff & ~(TYPE_ACK | FLAG_POLL)) != 0) {
+            mCorruptedFrames++;
+            return;
+        }
+        final int ack = getShort(frame, 1);
+        final int inFlight = inFlight();
+        final int advance = (ack - mAckSeq) & SEQ_MASK;
+        if (advance > inFlight) {
+            // 过期或错误的确认.
+            mDuplicateFrames++;
+            return;
+        }
+        for (int i = 0; i < advance; i++) {
+            deliver((mAckSeq + i) & SLOT_MASK);
+        }
+        mAckSeq = ack;
+        mPeerCredits = frame[3] & 0xff;
+        final int sack = getInt(frame, 4);
+        final int remaining = inFlight - advance;
+        for (int i = 1; i < remaining; i++) {
+            final int slot = (ack + i) & SLOT_MASK;
+            if ((sack & (1 << (i - 1))) != 0 && !mTxSacked[slot]) {
+                deliver(slot);
+                mTxSacked[slot] = true;
+            }
+        }
+        // 之后发送的帧已到达, 缺失的帧视为丢失.
+        for (int i = 0; i < remaining && !mClosed; i++) {
+            final int slot = (ack + i) & SLOT_MASK;
+            if (!mTxSacked[slot] && mTxOrder[slot] < mDeliveredOrder)
+                retransmit(slot);
+        }
+        if (mClosed)
+            return;
+        if (advance > 0) {
+            mTimeouts = 0;
+            mRto = INITIAL_RTO;
+            cancelTimer();
+        }
+        if ((frame[0] & FLAG_POLL) != 0)
+            sendAck(false);
+        pump();
+    }
+
+    private void deliver(int slot) {
+        mDeliveredOrder = Math.max(mDeliveredOrder, mTxOrder[slot]);
+        mPool.release(mTxFrames[slot]);
+        mTxFrames[slot] = null;
+        mTxSacked[slot] = false;
+    }
+
+    private void retransmit(int slot) {
+        mTxOrder[slot] = ++mSendOrder;
+        mRetransmittedFrames++;
+        queueFrame(mTxFrames[slot], false);
+    }
+
+    private int inFlight() {
+        return (mNextSeq - mAckSeq) & SEQ_MASK;
+    }
+
+    /**
+     * 在窗口和对端信用允许的范围内分段发送.
+     */
+    private void pump() {
+        // 从空闲开始发送时重新计时, 不沿用等待信用时的询问定时.
+        if (inFlight() == 0 && mTimerScheduled && mPeerCredits > 0)
+            cancelTimer();
+        while (!mClosed && inFlight() < Math.min(mWindow, mPeerCredits)) {
+            if (mSending == null) {
+                mSending = mSendQueue.pollFirst();
+                if (mSending == null)
+                    break;
+                mSendingOffset = 0;
+            }
+            final boolean first = mSendingOffset == 0;
+            final int header = first ? FIRST_HEADER : DATA_HEADER;
+            final int frameSize = Math.min(MAX_FRAME_SIZE, mLink.getFrameSize());
+            final int payload = Math.min(Math.max(1, frameSize - header - CRC_SIZE),
+                    mSending.length - mSendingOffset);
+            final boolean last = mSendingOffset + payload == mSending.length;
+            final byte[] frame = mPool.acquireExact(header + payload + CRC_SIZE);
+            frame[0] = (byte) ((first ? FLAG_FIRST : 0) | (last ? FLAG_LAST : 0));
+            putShort(frame, 1, mNextSeq);
+            if (first)
+                putInt(frame, DATA_HEADER, mSending.length);
+            System.arraycopy(mSending, mSendingOffset, frame, header, payload);
+            putShort(frame, header + payload, Crc16.compute(frame, 0, header + payload));
+            mSendingOffset += payload;
+            if (last)
+                mSending = null;
+
+            final int slot = mNextSeq & SLOT_MASK;
+            mTxFrames[slot] = frame;
+            mTxSacked[slot] = false;
+            mTxOrder[slot] = ++mSendOrder;
+            mNextSeq = (mNextSeq + 1) & SEQ_MASK;
+            queueFrame(frame, false);
+        }
+        if (!mClosed && (inFlight() > 0 || isBlocked()))
+            scheduleTimer();
+    }
+
+    /**
+     * 有数据待发, 但对端信用为 0.
+     */
+    private boolean isBlocked() {
+        return mPeerCredits == 0 && (mSending != null || !mSendQueue.isEmpty());
+    }
+
+    private void scheduleTimer() {
+        if (mTimerScheduled)
+            return;
+        mTimerScheduled = true;
+        mScheduler.postDelayed(mTimeoutRunnable, mRto);
+    }
+
+    private void cancelTimer() {
+        if (!mTimerScheduled)
+            return;
+        mTimerScheduled = false;
+        mScheduler.remove(mTimeoutRunnable);
+    }
+
+    private void onTimeout() {
+        if (!mTimerScheduled || mClosed)
+            return;
+        mTimerScheduled = false;
+        if (inFlight() == 0) {
+            // 等待信用时询问对端, 防止恢复信用的确认帧丢失.
+            if (isBlocked()) {
+                sendAck(true);
+                scheduleTimer();
+            }
+            return;
+        }
+        if (++mTimeouts > MAX_TIMEOUTS) {
+            closeLocked(BLE_ERROR_TIMEOUT);
+            return;
+        }
+        // 重传最早的帧, 对端回复的位图触发其余缺失帧的重传.
+        retransmit(mAckSeq & SLOT_MASK);
+        mRto = Math.min(MAX_RTO, mRto * 2);
+        if (!mClosed)
+            scheduleTimer();
+    }
+
+    /**
+     * 帧拷贝到待写队列 (持有锁).
+     */
+    private void queueFrame(byte[] frame, boolean control) {
+        final byte[] copy = mPool.acquireExact(frame.length);
+        System.arraycopy(frame, 0, copy, 0, frame.length);
+        (control ? mControlOut : mDataOut).addLast(copy);
+    }
+
+    /**
+     * 在锁外写出待写的帧, 同一时间只有一个线程写; 写的过程中其它线程排入的帧也由它写出.
+     * @return
+     *      写入失败关闭通道且尚未通知时返回关闭原因, 否则返回 0.
+     */
+    private int flush() {
+        synchronized (this) {
+            if (mFlushing)
+                return 0;
+            mFlushing = true;
+        }
+        while (true) {
+            final byte[] frame;
+            final boolean control;
+            synchronized (this) {
+                control = !mControlOut.isEmpty();
+                frame = control ? mControlOut.pollFirst() : mDataOut.pollFirst();
+                if (frame == null) {
+                    mFlushing = false;
+                    return takeCloseCode();
+                }
+            }
+            final boolean written = mLink.writeFrame(frame, control);
+            mPool.release(frame);
+            if (!written) {
+                synchronized (this) {
+                    closeLocked(BLE_ERROR_WRITE);
+                }
+            }
+        }
+    }
+
+    /* ---------------- 关闭 ---------------- */
+
+    private void closeLocked(int code) {
+        if (mClosed)
+            return;
+        mClosed = true;
+        mError = code;
+        cancelTimer();
+        if (mAckScheduled) {
+            mAckScheduled = false;
+            mScheduler.remove(mAckRunnable);
+        }
+        mSendQueue.clear();
+        mSending = null;
+        releaseAll(mControlOut);
+        releaseAll(mDataOut);
+        if (mRxMessage != null) {
+            mPool.release(mRxMessage);
+            mRxMessage = null;
+        }
+        for (int i = 0; i < MAX_WINDOW; i++) {
+            mPool.release(mTxFrames[i]);
+            mTxFrames[i] = null;
+            mPool.release(mRxFrames[i]);
+            mRxFrames[i] = null;
+        }
+    }
+
+    private void releaseAll(ArrayDeque<byte[]> frames) {
+        for (byte[] frame = frames.pollFirst(); frame != null; frame = frames.pollFirst()) {
+            mPool.release(frame);
+        }
+    }
+
+    /**
+     * 因错误关闭且尚未通知时返回关闭原因, 否则返回 0.
+     */
+    private int takeCloseCode() {
+        if (!mClosed || mCloseNotified)
+            return 0;
+        mCloseNotified = true;
+        return mError;
+    }
+
+    private void closed(int code) {
+        final Thread waiter = mWaiter;
+        if (waiter != null)
+            LockSupport.unpark(waiter);
+        mLink.onClosed(this, code);
+    }
+
+    private final Runnable mAckRunnable = new Runnable() {
+        @Override
+        public void run() {
+            int code;
+            synchronized (BleMessageChannel.this) {
+                if (!mAckScheduled || mClosed)
+                    return;
+                mAckScheduled = false;
+                sendAck(false);
+                code = takeCloseCode();
+            }
+            if (code == 0)
+                code = flush();
+            if (code != 0)
+                closed(code);
+        }
+    };
+
+    private final Runnable mTimeoutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            int code;
+            synchronized (BleMessageChannel.this) {
+                onTimeout();
+                code = takeCloseCode();
+            }
+            if (code == 0)
+                code = flush();
+            if (code != 0)
+                closed(code);
+        }
+    };
+
+    private static int getShort(byte[] data, int offset) {
+        return (data[offset] & 0xff) | (data[offset + 1] & 0xff) << 8;
+    }
+
+    private static int getInt(byte[] data, int offset) {
+        return (data[offset] & 0xff) | (data[offset + 1] & 0xff) << 8
+                | (data[offset + 2] & 0xff) << 16 | (data[offset + 3] & 0xff) << 24;
+    }
+
+    private static void putShort(byte[] data, int offset, int value) {
+        data[offset] = (byte) value;
+        data[offset + 1] = (byte) (value >>> 8);
+    }
+
+    private static void putInt(byte[] data, int offset, int value) {
+        data[offset] = (byte) value;
+        data[offset + 1] = (byte) (value >>> 8);
+        data[offset + 2] = (byte) (value >>> 16);
+        data[offset + 3] = (byte) (value >>> 24);
+    }
+}
@@ -0,0 +1,149 @@
+package com.wsj.blesdk;
+
+import com.wsj.blesdk.utils.Histogram;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * BLE 运行指标.<br>
+ *     (1) 直方图: 连接耗时 (connectBleDevice 到 onBleConnected), 服务发现耗时,
+ *         GATT 操作往返时间, 发送速率, 通知接收速率.
+ *     (2) 计数: 按 BleConstants 错误代码统计的错误数, 扫描到的广播数, 收发字节数.
+ *     (3) 记录在回调线程上进行, 只做原子加, 不加锁也不分配对象.
+ *     (4) snapshot 复制到可重复使用的 BleMetricsSnapshot 中, 定时上报使用 BleMetricsExporter.
+ *     时间单位为毫秒, 速率单位为字节/秒.
+ */
+
+public class BleMetrics {
+    // 耗时直方图的最大值 (毫秒).
+    static final long MAX_MILLIS = 10 * 60 * 1000;
+    // 速率直方图的最大值 (字节/秒).
+    static final long MAX_BYTES_PER_SECOND = 16 * 1024 * 1024;
+    // 通知速率的统计窗口 (毫秒).
+    static final long NOTIFY_WINDOW = 1000;
+
+    // 错误代码 BLE_ERROR_* = ERROR_BASE + n, n 超出范围的记入 0.
+    static final int ERROR_BASE  = 0x1000;
+    static final int ERROR_SLOTS = 32;
+
+    private final BleScheduler mClock;
+    private volatile long mStartTime;
+
+    private final Histogram mConnectLatency = new Histogram(MAX_MILLIS);
+    private final Histogram mDiscoveryTime = new Histogram(MAX_MILLIS);
+    private final Histogram mRoundTrip = new Histogram(MAX_MILLIS);
+    private final Histogram mWriteThroughput = new Histogram(MAX_BYTES_PER_SECOND);
+    private final Histogram mNotifyThroughput = new Histogram(MAX_BYTES_PER_SECOND);
+
+    private final AtomicLongArray mErrors = new AtomicLongArray(ERROR_SLOTS);
+    private final AtomicLong mAdvertisements = new AtomicLong();
+    private final AtomicLong mBytesWritten = new AtomicLong();
+    private final AtomicLong mNotifications = new AtomicLong();
+    private final AtomicLong mBytesNotified = new AtomicLong();
+
+    BleMetrics(BleScheduler clock) {
+        mClock = clock;
+        mStartTime = clock.now();
+    }
+
+    /**
+     * 复制当前的累计值, 不分配对象.
+     */
+    public void snapshot(BleMetricsSnapshot out) {
+        out.startMillis = mStartTime;
+        out.timeMillis = mClock.now();
+        mConnectLatency.snapshot(out.connectLatency);
+        mDiscoveryTime.snapshot(out.discoveryTime);
+        mRoundTrip.snapshot(out.roundTrip);
+        mWriteThroughput.snapshot(out.writeThroughput);
+        mNotifyThroughput.snapshot(out.notifyThroughput);
+        for (int i = 0; i < ERROR_SLOTS; i++) {
+            out.errors[i] = mErrors.get(i);
+        }
+        out.advertisements = mAdvertisements.get();
+        out.bytesWritten = mBytesWritten.get();
+        out.notifications = mNotifications.get();
+        out.bytesNotified = mBytesNotified.get();
+    }
+
+    /**
+     * 清空所有指标.
+     */
+    public void reset() {
+        mConnectLatency.reset();
+        mDiscoveryTime.reset();
+        mRoundTrip.reset();
+        mWriteThroughput.reset();
+        mNotifyThroughput.reset();
+        for (int i = 0; i < ERROR_SLOTS; i++) {
+            mErrors.set(i, 0);
+        }
+        mAdvertisements.set(0);
+        mBytesWritten.set(0);
+        mNotifications.set(0);
+        mBytesNotified.set(0);
+        mStartTime = mClock.now();
+    }
+
+    /**
+     * 连接建立.
+     * @param millis  从发起连接到连接建立的时间
+     */
+    void onConnected(long millis) {
+        mConnectLatency.record(millis);
+    }
+
+    /**
+     * 服务发现完成 (不含命中缓存的情况).
+     */
+    void onServicesDiscovered(long millis) {
+        mDiscoveryTime.record(millis);
+    }
+
+    /**
+     * GATT 操作收到回调.
+     * @param millis  从开始执行到收到回调的时间
+     */
+    void onOperationComplete(long millis) {
+        mRoundTrip.record(millis);
+    }
+
+    /**
+     * 一次发送完成.
+     */
+    void onTransmitComplete(int bytes, long bytesPerSecond) {
+        mBytesWritten.addAndGet(bytes);
+        if (bytes > 0)
+            mWriteThroughput.record(bytesPerSecond);
+    }
+
+    void onNotification(int bytes) {
+        mNotifications.incrementAndGet();
+        mBytesNotified.addAndGet(bytes);
+    }
+
+    /**
+     * 一个通知统计窗口结束.
+     */
+    void onNotifyThroughput(long bytesPerSecond) {
+        mNotifyThroughput.record(bytesPerSecond);
+    }
+
+    /**
+     * 上报给上层的错误.
+     * @param code  BleConstants.BLE_ERROR_*
+     */
+    void onError(int code) {
+        mErrors.incrementAndGet(errorSlot(code));
+    }
+
+    void onAdvertisement() {
+        mAdvertisements.incrementAndGet();
+    }
+
+    static int errorSlot(int code) {
+        final int slot = code - ERROR_BASE;
+        return slot > 0 && slot < ERROR_SLOTS ? slot : 0;
+    }
+}
@@ -0,0 +1,109 @@
+package com.wsj.blesdk;
+
+import com.wsj.blesdk.utils.Histogram;
+
+/**
+ * BleMetrics 定时导出.<br>
+ *     (1) 应用定时调用 poll, 得到上次 poll 以来的指标, 第一次为 BleMetrics 创建 (或 reset) 以来的.
+ *     (2) poll 不分配对象, 返回的快照在下次 poll 前有效.
+ *     (3) appendJson 输出百分位和非空的桶 [下界, 计数], 服务端把各设备的桶相加即可得到整体分布.
+ *     多个导出器互不影响, 每个导出器只在一个线程中使用.
+ */
+
+public class BleMetricsExporter {
+
+    // 导出的百分位.
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+    private static final String[] PERCENTILE_NAMES = {"p50", "p90", "p99", "p999"};
+
+    private final BleMetrics mMetrics;
+    private final BleMetricsSnapshot mPrevious = new BleMetricsSnapshot();
+    private final BleMetricsSnapshot mCurrent = new BleMetricsSnapshot();
+    private final BleMetricsSnapshot mInterval = new BleMetricsSnapshot();
+    private boolean mFirst = true;
+
+    public BleMetricsExporter(BleMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    /**
+     * 取上次 poll 以来的指标.
+     * @return
+     *      内部快照, 在下次 poll 前有效.
+     */
+    public BleMetricsSnapshot poll() {
+        mMetrics.snapshot(mCurrent);
+        mInterval.set(mCurrent);
+        if (!mFirst)
+            mInterval.subtract(mPrevious);
+        mFirst = false;
+        mPrevious.set(mCurrent);
+        return mInterval;
+    }
+
+    /**
+     * poll 并输出为一行 JSON.
+     */
+    public String pollJson() {
+        final StringBuilder sb = new StringBuilder(1024);
+        appendJson(poll(), sb);
+        return sb.toString();
+    }
+
+    /**
+     * 快照输出为 JSON:
+     *     {"start":..,"time":..,"connect":{"count":..,"mean":..,"max":..,"p50":..,...,
+     *      "buckets":[[下界,计数],...]},...,"errors":{"4097":..},"advertisements":..,...}
+     */
+    public static void appendJson(BleMetricsSnapshot snapshot, StringBuilder sb) {
+        sb.append("{\"start\":").append(snapshot.startMillis)
+                .append(",\"time\":").append(snapshot.timeMillis);
+        appendHistogram(sb, "connect", snapshot.connectLatency);
+        appendHistogram(sb, "discovery", snapshot.discoveryTime);
+        appendHistogram(sb, "roundTrip", snapshot.roundTrip);
+        appendHistogram(sb, "writeThroughput", snapshot.writeThroughput);
+        appendHistogram(sb, "notifyThroughput", snapshot.notifyThroughput);
+        sb.append(",\"errors\":{");
+        boolean first = true;
+        for (int i = 0; i < snapshot.errors.length; i++) {
+            if (snapshot.errors[i] == 0)
+                continue;
+            if (!first)
+                sb.append(',');
+            first = false;
+            // 0 号为范围外的代码.
+            sb.append('"').append(i == 0 ? "other" : String.valueOf(BleMetrics.ERROR_BASE + i))
+                    .append("\":").append(snapshot.errors[i]);
+        }
+        sb.append('}')
+                .append(",\"advertisements\":").append(snapshot.advertisements)
+                .append(",\"advertisementsPerSecond\":")
+                .append(snapshot.getAdvertisementsPerSecond())
+                .append(",\"bytesWritten\":").append(snapshot.bytesWritten)
+                .append(",\"notifications\":").append(snapshot.notifications)
+                .append(",\"bytesNotified\":").append(snapshot.bytesNotified)
+                .append('}');
+    }
+
+    private static void appendHistogram(StringBuilder sb, String name, Histogram.Snapshot h) {
+        sb.append(",\"").append(name).append("\":{\"count\":").append(h.getCount())
+                .append(",\"mean\":").append(h.getMean())
+                .append(",\"max\":").append(h.getMax());
+        for (int i = 0; i < PERCENTILES.length; i++) {
+            sb.append(",\"").append(PERCENTILE_NAMES[i]).append("\":")
+                    .append(h.getPercentile(PERCENTILES[i]));
+        }
+        sb.append(",\"buckets\":[");
+        boolean first = true;
+        for (int i = 0; i < h.getBucketCount(); i++) {
+            final long count = h.getCountAt(i);
+            if (count == 0)
+                continue;
+            if (!first)
+                sb.append(',');
+            first = false;
+            sb.append('[').append(h.getLowerBoundAt(i)).append(',').append(count).append(']');
+        }
+        sb.append("]}");
+    }
+}
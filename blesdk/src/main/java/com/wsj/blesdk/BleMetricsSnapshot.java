@@ -0,0 +1,123 @@
+package com.wsj.blesdk;
+
+import com.wsj.blesdk.utils.Histogram;
+
+import static com.wsj.blesdk.BleMetrics.ERROR_SLOTS;
+import static com.wsj.blesdk.BleMetrics.MAX_BYTES_PER_SECOND;
+import static com.wsj.blesdk.BleMetrics.MAX_MILLIS;
+
+/**
+ * BleMetrics 快照.<br>
+ *     所有数组在构造时分配, 可重复传给 BleMetrics.snapshot, 只在一个线程中使用.
+ *     BleMetrics.snapshot 得到的是累计值, BleMetricsExporter.poll 得到的是两次 poll 之间的值.
+ */
+
+public class BleMetricsSnapshot {
+    // 统计区间 (BleScheduler 时钟, 毫秒).
+    public long startMillis;
+    public long timeMillis;
+
+    // 连接耗时 (毫秒).
+    public final Histogram.Snapshot connectLatency = new Histogram.Snapshot(MAX_MILLIS);
+    // 服务发现耗时 (毫秒).
+    public final Histogram.Snapshot discoveryTime = new Histogram.Snapshot(MAX_MILLIS);
+    // GATT 操作往返时间 (毫秒).
+    public final Histogram.Snapshot roundTrip = new Histogram.Snapshot(MAX_MILLIS);
+    // 每次发送的速率 (字节/秒).
+    public final Histogram.Snapshot writeThroughput = new Histogram.Snapshot(MAX_BYTES_PER_SECOND);
+    // 每秒通知接收速率 (字节/秒).
+    public final Histogram.Snapshot notifyThroughput = new Histogram.Snapshot(MAX_BYTES_PER_SECOND);
+
+    // 按错误代码统计的错误数, 使用 getErrorCount 读取.
+    final long[] errors = new long[ERROR_SLOTS];
+    // 扫描到的广播数.
+    public long advertisements;
+    // 发送完成的字节数.
+    public long bytesWritten;
+    // 收到的通知数和字节数.
+    public long notifications;
+    public long bytesNotified;
+
+    /**
+     * 错误数, 超出 BLE_ERROR_* 范围的代码合计在一起.
+     * @param code  BleConstants.BLE_ERROR_*
+     */
+    public long getErrorCount(int code) {
+        return errors[BleMetrics.errorSlot(code)];
+    }
+
+    /**
+     * 所有错误数之和.
+     */
+    public long getTotalErrors() {
+        long total = 0;
+        for (long count : errors) {
+            total += count;
+        }
+        return total;
+    }
+
+    /**
+     * 统计区间内每秒扫描到的广播数.
+     */
+    public long getAdvertisementsPerSecond() {
+        final long interval = timeMillis - startMillis;
+        return interval <= 0 ? 0 : advertisements * 1000 / interval;
+    }
+
+    /**
+     * 复制另一个快照.
+     */
+    public void set(BleMetricsSnapshot other) {
+        startMillis = other.startMillis;
+        timeMillis = other.timeMillis;
+        connectLatency.set(other.connectLatency);
+        discoveryTime.set(other.discoveryTime);
+        roundTrip.set(other.roundTrip);
+        writeThroughput.set(other.writeThroughput);
+        notifyThroughput.set(other.notifyThroughput);
+        System.arraycopy(other.errors, 0, errors, 0, ERROR_SLOTS);
+        advertisements = other.advertisements;
+        bytesWritten = other.bytesWritten;
+        notifications = other.notifications;
+        bytesNotified = other.bytesNotified;
+    }
+
+    /**
+     * 本快照减去较早的快照, 统计区间变为 [earlier.timeMillis, timeMillis].
+     */
+    public void subtract(BleMetricsSnapshot earlier) {
+        startMillis = Math.max(startMillis, earlier.timeMillis);
+        connectLatency.subtract(earlier.connectLatency);
+        discoveryTime.subtract(earlier.discoveryTime);
+        roundTrip.subtract(earlier.roundTrip);
+        writeThroughput.subtract(earlier.writeThroughput);
+        notifyThroughput.subtract(earlier.notifyThroughput);
+        for (int i = 0; i < ERROR_SLOTS; i++) {
+            errors[i] = Math.max(0, errors[i] - earlier.errors[i]);
+        }
+        advertisements = Math.max(0, advertisements - earlier.advertisements);
+        bytesWritten = Math.max(0, bytesWritten - earlier.bytesWritten);
+        notifications = Math.max(0, notifications - earlier.notifications);
+        bytesNotified = Math.max(0, bytesNotified - earlier.bytesNotified);
+    }
+
+    @Override
+    public String toString() {
+        return "BleMetricsSnapshot{interval=" + (timeMillis - startMillis)
+                + ", connect=" + summary(connectLatency)
+                + ", discovery=" + summary(discoveryTime)
+                + ", roundTrip=" + summary(roundTrip)
+                + ", write=" + summary(writeThroughput)
+                + ", notify=" + summary(notifyThroughput)
+                + ", errors=" + getTotalErrors()
+                + ", adv/s=" + getAdvertisementsPerSecond() + "}";
+    }
+
+    private static String summary(Histogram.Snapshot h) {
+        return "[n=" + h.getCount()
+                + " p50=" + h.getPercentile(50)
+                + " p99=" + h.getPercentile(99)
+                + " max=" + h.getMax() + "]";
+    }
+}
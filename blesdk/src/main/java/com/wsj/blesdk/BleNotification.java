@@ -0,0 +1,46 @@
+package com.wsj.blesdk;
+
+import java.util.UUID;
+
+/**
+ * 特征值通知事件 (BleManager.notifications).
+ */
+
+public final class BleNotification {
+    private final String mAddress;
+    private final UUID mService;
+    private final UUID mCharacteristic;
+    private final byte[] mValue;
+
+    BleNotification(String address, UUID service, UUID characteristic, byte[] value) {
+        mAddress = address;
+        mService = service;
+        mCharacteristic = characteristic;
+        mValue = value;
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    public UUID getService() {
+        return mService;
+    }
+
+    public UUID getCharacteristic() {
+        return mCharacteristic;
+    }
+
+    /**
+     * 通知数据, 所有订阅者共享, 不要修改.
+     */
+    public byte[] getValue() {
+        return mValue;
+    }
+
+    @Override
+    public String toString() {
+        return "BleNotification{" + mAddress + ", " + mCharacteristic
+                + ", " + (mValue == null ? 0 : mValue.length) + " bytes}";
+    }
+}
@@ -0,0 +1,159 @@
+package com.wsj.blesdk;
+
+import com.wsj.blesdk.utils.ByteRingBuffer;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 特征值通知数据流.<br>
+ *     (1) 通知数据在 Binder 线程写入预分配的环形缓冲区, 不逐包回调.
+ *     (2) 消费者在自己的线程中批量读取, 读取时直接访问缓冲区, 不做拷贝.
+ *     (3) 只允许一个消费者线程.
+ */
+
+public class BleNotificationStream {
+    // 默认槽位数.
+    public static final int DEFAULT_CAPACITY  = 256;
+    // 默认槽位大小, ATT 属性值最大 512 字节.
+    public static final int DEFAULT_SLOT_SIZE = 512;
+
+    /**
+     * 通知数据读取回调.<br>
+     *     buffer 为缓冲区内部数组, 只在回调期间有效, 需要保留数据时自行拷贝.
+     */
+    public interface Consumer {
+        /**
+         * @param buffer          缓冲区
+         * @param offset          数据起始位置
+         * @param length          数据长度
+         * @param timestampNanos  收到通知的时间 (System.nanoTime)
+         */
+        void onNotification(byte[] buffer, int offset, int length, long timestampNanos);
+    }
+
+    private final String mAddress;
+    private final UUID mServiceUuid;
+    private final UUID mCharacteristicUuid;
+    private final ByteRingBuffer mBuffer;
+    private final ByteRingBuffer.SlotReader mReader = new ByteRingBuffer.SlotReader() {
+        @Override
+        public void onSlot(byte[] buffer, int offset, int length, long timestamp) {
+            mConsumer.onNotification(buffer, offset, length, timestamp);
+        }
+    };
+    private Consumer mConsumer;
+
+    // 等待数据的消费者线程.
+    private volatile Thread mWaiter;
+    private volatile boolean mClosed = false;
+
+    BleNotificationStream(String address, UUID serviceUuid, UUID characteristicUuid,
+                          int capacity, int slotSize) {
+        mAddress = address;
+        mServiceUuid = serviceUuid;
+        mCharacteristicUuid = characteristicUuid;
+        mBuffer = new ByteRingBuffer(capacity, slotSize);
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    public UUID getServiceUuid() {
+        return mServiceUuid;
+    }
+
+    public UUID getCharacteristicUuid() {
+        return mCharacteristicUuid;
+    }
+
+    /**
+     * 是否为该特征值的数据流.
+     */
+    boolean matches(UUID serviceUuid, UUID characteristicUuid) {
+        return mCharacteristicUuid.equals(characteristicUuid)
+                && (serviceUuid == null || mServiceUuid.equals(serviceUuid));
+    }
+
+    /**
+     * 写入一条通知 (Binder 线程).
+     */
+    void offer(byte[] value) {
+        if (mClosed || value == null)
+            return;
+        mBuffer.offer(value, 0, value.length, System.nanoTime());
+        final Thread waiter = mWaiter;
+        if (waiter != null)
+            LockSupport.unpark(waiter);
+    }
+
+    /**
+     * 批量读取通知.
+     * @param consumer  读取回调
+     * @param max       最多读取条数
+     * @return
+     *      读取的条数.
+     */
+    public int drain(Consumer consumer, int max) {
+        mConsumer = consumer;
+        try {
+            return mBuffer.drain(mReader, max);
+        } finally {
+            mConsumer = null;
+        }
+    }
+
+    /**
+     * 等待数据到达.
+     * @param timeoutMillis 最长等待时间
+     * @return
+     *      是否有数据可读.
+     */
+    public boolean await(long timeoutMillis) {
+        if (!mBuffer.isEmpty())
+            return true;
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        mWaiter = Thread.currentThread();
+        try {
+            while (mBuffer.isEmpty() && !mClosed) {
+                final long remain = deadline - System.nanoTime();
+                if (remain <= 0 || Thread.currentThread().isInterrupted())
+                    break;
+                LockSupport.parkNanos(this, remain);
+            }
+        } finally {
+            mWaiter = null;
+        }
+        return !mBuffer.isEmpty();
+    }
+
+    /**
+     * 未读取的通知数.
+     */
+    public int available() {
+        return mBuffer.size();
+    }
+
+    /**
+     * 因缓冲区满或数据过长而丢弃的通知数.
+     */
+    public long getDroppedCount() {
+        return mBuffer.dropped();
+    }
+
+    /**
+     * 是否已关闭 (取消订阅或设备断开), 关闭后仍可读取剩余数据.
+     */
+    public boolean isClosed() {
+        return mClosed;
+    }
+
+    void close() {
+        mClosed = true;
+        final Thread waiter = mWaiter;
+        if (waiter != null)
+            LockSupport.unpark(waiter);
+    }
+}
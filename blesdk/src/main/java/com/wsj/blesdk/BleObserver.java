@@ -0,0 +1,12 @@
+package com.wsj.blesdk;
+
+/**
+ * BleFlow 的订阅者.
+ */
+
+public interface BleObserver<T> {
+    /**
+     * 事件, 多个订阅者收到的是同一个对象, 不要修改.
+     */
+    public void onEvent(final T event);
+}
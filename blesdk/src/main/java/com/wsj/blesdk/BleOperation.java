@@ -0,0 +1,284 @@
+package com.wsj.blesdk;
+
+import java.util.UUID;
+
+import static com.wsj.blesdk.BleConstants.BLE_DEFAULT_OPERATION_TIMEOUT;
+import static com.wsj.blesdk.BleConstants.BLE_PRIORITY_BULK;
+import static com.wsj.blesdk.BleConstants.BLE_PRIORITY_HIGH;
+
+/**
+ * 一次 GATT 操作.<br>
+ *     由 BleOperationQueue 串行执行, 收到对应的 GATT 回调或超时后结束.
+ *     特征值/描述符以 UUID 定位, 经 BleTransport 提交.
+ */
+
+final class BleOperation {
+    /* 操作类型. */
+    static final int TYPE_DISCOVER_SERVICES    = 1;
+    static final int TYPE_READ_CHARACTERISTIC  = 2;
+    static final int TYPE_WRITE_CHARACTERISTIC = 3;
+    static final int TYPE_READ_DESCRIPTOR      = 4;
+    static final int TYPE_WRITE_DESCRIPTOR     = 5;
+    static final int TYPE_REQUEST_MTU          = 6;
+    static final int TYPE_READ_RSSI            = 7;
+    static final int TYPE_CONNECTION_PRIORITY  = 8;
+    static final int TYPE_SET_PHY              = 9;
+    static final int TYPE_BEGIN_RELIABLE_WRITE   = 10;
+    static final int TYPE_EXECUTE_RELIABLE_WRITE = 11;
+    static final int TYPE_ABORT_RELIABLE_WRITE   = 12;
+
+    /**
+     * 操作完成回调.
+     */
+    interface Callback {
+        /**
+         * @param operation  操作
+         * @param status     GATT 状态, 或 SDK 错误代码 (超时/被拒绝/断开)
+         */
+        void onOperationComplete(BleOperation operation, int status);
+    }
+
+    final int type;
+    private int mPriority = BleConstants.BLE_PRIORITY_NORMAL;
+    private long mTimeout = BLE_DEFAULT_OPERATION_TIMEOUT;
+    private Callback mCallback;
+
+    private UUID mService;
+    private UUID mCharacteristic;
+    private UUID mDescriptor;
+    private byte[] mValue;
+    private boolean mWithResponse;
+    // MTU, 连接优先级或 PHY.
+    private int mArgument;
+    private int mPhyOptions;
+    // 读操作的结果, 完成回调中有效.
+    private byte[] mResult;
+
+    // 入队/开始执行时间 (毫秒).
+    long enqueueTime;
+    long startTime;
+    // 已超时, 之后到达的回调被丢弃.
+    boolean timedOut;
+    // 本操作的超时任务, 取消时只影响本操作.
+    Runnable timeoutTask;
+
+    private BleOperation(int type) {
+        this.type = type;
+    }
+
+    static BleOperation discoverServices() {
+        return new BleOperation(TYPE_DISCOVER_SERVICES);
+    }
+
+    static BleOperation readCharacteristic(UUID service, UUID characteristic) {
+        BleOperation op = new BleOperation(TYPE_READ_CHARACTERISTIC);
+        op.mService = service;
+        op.mCharacteristic = characteristic;
+        return op;
+    }
+
+    static BleOperation writeCharacteristic(UUID service, UUID characteristic, byte[] value,
+                                            boolean withResponse) {
+        BleOperation op = new BleOperation(TYPE_WRITE_CHARACTERISTIC);
+        op.mService = service;
+        op.mCharacteristic = characteristic;
+        op.mValue = value;
+        op.mWithResponse = withResponse;
+        return op;
+    }
+
+    static BleOperation readDescriptor(UUID service, UUID characteristic, UUID descriptor) {
+        BleOperation op = new BleOperation(TYPE_READ_DESCRIPTOR);
+        op.mService = service;
+        op.mCharacteristic = characteristic;
+        op.mDescriptor = descriptor;
+        return op;
+    }
+
+    static BleOperation writeDescriptor(UUID service, UUID characteristic, UUID descriptor,
+                                        byte[] value) {
+        BleOperation op = new BleOperation(TYPE_WRITE_DESCRIPTOR);
+        op.mService = service;
+        op.mCharacteristic = characteristic;
+        op.mDescriptor = descriptor;
+        op.mValue = value;
+        return op;
+    }
+
+    static BleOperation requestMtu(int mtu) {
+        BleOperation op = new BleOperation(TYPE_REQUEST_MTU);
+        op.mArgument = mtu;
+        return op;
+    }
+
+    static BleOperation readRssi() {
+        return new BleOperation(TYPE_READ_RSSI);
+    }
+
+    /**
+     * 请求连接优先级, 协议栈没有回调, 提交后立即结束.
+     */
+    static BleOperation requestConnectionPriority(int priority) {
+        BleOperation op = new BleOperation(TYPE_CONNECTION_PRIORITY);
+        op.mArgument = priority;
+        return op;
+    }
+
+    /**
+     * 请求 PHY, 结果由 onPhyUpdate 回调.
+     * @param phyMask  发送和接收 PHY, BleConstants.BLE_PHY_LE_* 的组合
+     * @param options  Coded PHY 编码方式, 0 表示无偏好
+     */
+    static BleOperation setPreferredPhy(int phyMask, int options) {
+        BleOperation op = new BleOperation(TYPE_SET_PHY);
+        op.mArgument = phyMask;
+        op.mPhyOptions = options;
+        return op;
+    }
+
+    /**
+     * 开始可靠写, 协议栈没有回调, 提交后立即结束.
+     */
+    static BleOperation beginReliableWrite() {
+        return new BleOperation(TYPE_BEGIN_RELIABLE_WRITE);
+    }
+
+    /**
+     * 提交可靠写, 结果由 onReliableWriteCompleted 回调.
+     */
+    static BleOperation executeReliableWrite() {
+        return new BleOperation(TYPE_EXECUTE_RELIABLE_WRITE);
+    }
+
+    /**
+     * 放弃可靠写, 对端确认后由 onReliableWriteCompleted 回调.
+     */
+    static BleOperation abortReliableWrite() {
+        return new BleOperation(TYPE_ABORT_RELIABLE_WRITE);
+    }
+
+    BleOperation priority(int priority) {
+        mPriority = Math.max(BLE_PRIORITY_HIGH, Math.min(BLE_PRIORITY_BULK, priority));
+        return this;
+    }
+
+    BleOperation timeout(long timeoutMillis) {
+        mTimeout = timeoutMillis;
+        return this;
+    }
+
+    BleOperation callback(Callback callback) {
+        mCallback = callback;
+        return this;
+    }
+
+    int getPriority() {
+        return mPriority;
+    }
+
+    long getTimeout() {
+        return mTimeout;
+    }
+
+    Callback getCallback() {
+        return mCallback;
+    }
+
+    UUID getService() {
+        return mService;
+    }
+
+    UUID getCharacteristic() {
+        return mCharacteristic;
+    }
+
+    UUID getDescriptor() {
+        return mDescriptor;
+    }
+
+    byte[] getValue() {
+        return mValue;
+    }
+
+    void setResult(byte[] result) {
+        mResult = result;
+    }
+
+    /**
+     * 读到的值, 写操作为对端应答中的值 (协议栈不提供时为 null), 失败时为 null.
+     */
+    byte[] getResult() {
+        return mResult;
+    }
+
+    /**
+     * 提交成功即结束 (协议栈不回调).
+     */
+    boolean isImmediate() {
+        return type == TYPE_CONNECTION_PRIORITY || type == TYPE_BEGIN_RELIABLE_WRITE;
+    }
+
+    /**
+     * 是否为该操作的回调.
+     * @param type            回调对应的操作类型
+     * @param service         回调携带的服务 UUID, 其它类型为 null
+     * @param characteristic  回调携带的特征值 UUID, 其它类型为 null
+     * @param descriptor      回调携带的描述符 UUID, 其它类型为 null
+     */
+    boolean matches(int type, UUID service, UUID characteristic, UUID descriptor) {
+        if (this.type != type)
+            return false;
+        switch (type) {
+            case TYPE_READ_CHARACTERISTIC:
+            case TYPE_WRITE_CHARACTERISTIC:
+                return equals(mCharacteristic, characteristic) && equals(mService, service);
+            case TYPE_READ_DESCRIPTOR:
+            case TYPE_WRITE_DESCRIPTOR:
+                return equals(mDescriptor, descriptor)
+                        && equals(mCharacteristic, characteristic) && equals(mService, service);
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * 提交给链路.
+     * @return
+     *      链路是否接受.
+     */
+    boolean execute(BleTransport transport) {
+        switch (type) {
+            case TYPE_DISCOVER_SERVICES:
+                return transport.discoverServices();
+            case TYPE_READ_CHARACTERISTIC:
+                return transport.readCharacteristic(mService, mCharacteristic);
+            case TYPE_WRITE_CHARACTERISTIC:
+                return transport.writeCharacteristic(mService, mCharacteristic, mValue,
+                        mWithResponse);
+            case TYPE_READ_DESCRIPTOR:
+                return transport.readDescriptor(mService, mCharacteristic, mDescriptor);
+            case TYPE_WRITE_DESCRIPTOR:
+                return transport.writeDescriptor(mService, mCharacteristic, mDescriptor, mValue);
+            case TYPE_REQUEST_MTU:
+                return transport.requestMtu(mArgument);
+            case TYPE_READ_RSSI:
+                return transport.readRemoteRssi();
+            case TYPE_CONNECTION_PRIORITY:
+                return transport.requestConnectionPriority(mArgument);
+            case TYPE_SET_PHY:
+                return transport.setPreferredPhy(mArgument, mPhyOptions);
+            case TYPE_BEGIN_RELIABLE_WRITE:
+                return transport.beginReliableWrite();
+            case TYPE_EXECUTE_RELIABLE_WRITE:
+                return transport.executeReliableWrite();
+            case TYPE_ABORT_RELIABLE_WRITE:
+                return transport.abortReliableWrite();
+            default:
+                return false;
+        }
+    }
+
+    private static boolean equals(UUID a, UUID b) {
+        return a == b || (a != null && a.equals(b));
+    }
+}
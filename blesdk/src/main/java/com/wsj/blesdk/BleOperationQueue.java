@@ -0,0 +1,316 @@
+package com.wsj.blesdk;
+
+import com.wsj.blesdk.utils.LogUtil;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static com.wsj.blesdk.BleConstants.BLE_ERROR_REJECTED;
+import static com.wsj.blesdk.BleConstants.BLE_ERROR_TIMEOUT;
+import static com.wsj.blesdk.BleConstants.BLE_PRIORITY_BULK;
+import static com.wsj.blesdk.BleConstants.BLE_PRIORITY_HIGH;
+import static com.wsj.blesdk.BleConstants.BLE_SUCCESS;
+
+/**
+ * 单个连接的 GATT 操作队列.<br>
+ *     (1) Android 每个连接同一时间只允许一个 GATT 操作, 队列保证串行执行.
+ *     (2) 按优先级分道, 高优先级操作插在批量操作之前执行.
+ *     (3) 每个操作都有自己的超时任务, 回调丢失时不会阻塞队列.
+ *         回调可能在 Binder 线程到达, 迟到的取消只作用于该操作, 不会取消下一个操作的超时.
+ *     (4) 超时的请求仍由协议栈占用, 等到它迟到的回调 (丢弃) 或再等一个超时后才执行下一个,
+ *         迟到的回调不会被当作下一个同类操作的结果.
+ */
+
+final class BleOperationQueue {
+    // TAG
+    private static final String TAG = "BleOperationQueue";
+
+    private final ArrayDeque<BleOperation>[] mLanes;
+    private final BleScheduler mScheduler;
+    // 没有设置回调的操作失败时通知.
+    private final BleOperation.Callback mFailureCallback;
+
+    private BleTransport mTransport;
+    private BleOperation mCurrent;
+    // 已超时但回调还没到的操作, 不为 null 时不执行新的操作.
+    private BleOperation mStale;
+    // 往返时间统计, null 表示不统计.
+    private volatile BleMetrics mMetrics;
+
+    /* 统计. */
+    private long mExecuted;
+    private long mTimeouts;
+    private long mLastWait;
+    private long mMaxWait;
+    private long mTotalWait;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    BleOperationQueue(BleScheduler scheduler, BleOperation.Callback failureCallback) {
+        mScheduler = scheduler;
+        mFailureCallback = failureCallback;
+        mLanes = new ArrayDeque[BLE_PRIORITY_BULK + 1];
+        for (int i = 0; i < mLanes.length; i++) {
+            mLanes[i] = new ArrayDeque<>();
+        }
+    }
+
+    void setMetrics(BleMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    /**
+     * 连接建立后绑定链路, 开始执行排队的操作.
+     */
+    void attach(BleTransport transport) {
+        synchronized (this) {
+            mTransport = transport;
+        }
+        next();
+    }
+
+    /**
+     * 连接断开, 所有未完成的操作以 code 失败.
+     */
+    void detach(int code) {
+        List<BleOperation> dropped = new ArrayList<>();
+        final BleOperation current;
+        final BleOperation stale;
+        synchronized (this) {
+            mTransport = null;
+            current = mCurrent;
+            stale = mStale;
+            mCurrent = null;
+            mStale = null;
+            if (current != null)
+                dropped.add(current);
+            for (ArrayDeque<BleOperation> lane : mLanes) {
+                dropped.addAll(lane);
+                lane.clear();
+            }
+        }
+        if (current != null)
+            cancelTimeout(current);
+        if (stale != null)
+            cancelTimeout(stale);
+        for (BleOperation op : dropped) {
+            fail(op, code);
+        }
+    }
+
+    /**
+     * 操作入队.
+     * @return
+     *      未绑定链路 (未连接) 时返回 false.
+     */
+    boolean enqueue(BleOperation op) {
+        synchronized (this) {
+            if (mTransport == null)
+                return false;
+            op.enqueueTime = mScheduler.now();
+            mLanes[op.getPriority()].addLast(op);
+        }
+        next();
+        return true;
+    }
+
+    /**
+     * 操作插到最高优先级的队首, 在当前操作之后立即执行.
+     *     在完成回调中提交后续操作时使用, 多个操作连续执行, 中间不会插入其它操作.
+     * @return
+     *      未绑定链路 (未连接) 时返回 false.
+     */
+    boolean enqueueFirst(BleOperation op) {
+        synchronized (this) {
+            if (mTransport == null)
+                return false;
+            op.enqueueTime = mScheduler.now();
+            mLanes[BLE_PRIORITY_HIGH].addFirst(op);
+        }
+        next();
+        return true;
+    }
+
+    BleOperation complete(int type, UUID service, UUID characteristic, UUID descriptor,
+                          int status) {
+        return complete(type, service, characteristic, descriptor, status, null);
+    }
+
+    /**
+     * GATT 回调到达, 结束当前操作并执行下一个.
+     *     超时操作迟到的回调在这里丢弃, 然后才执行下一个操作.
+     * @param result  读到的值, 在完成回调中由 BleOperation.getResult 取得
+     * @return
+     *      被结束的操作 (迟到的回调返回已超时的操作, timedOut 为 true),
+     *      回调与当前操作不匹配时返回 null.
+     */
+    BleOperation complete(int type, UUID service, UUID characteristic, UUID descriptor,
+                          int status, byte[] result) {
+        final BleOperation op;
+        final boolean late;
+        synchronized (this) {
+            late = mCurrent == null;
+            op = late ? mStale : mCurrent;
+            if (op == null || !op.matches(type, service, characteristic, descriptor))
+                return null;
+            if (late)
+                mStale = null;
+            else
+                mCurrent = null;
+        }
+        cancelTimeout(op);
+        if (late) {
+            LogUtil.w(TAG, "late callback of operation %d dropped", type);
+            next();
+            return op;
+        }
+        final BleMetrics metrics = mMetrics;
+        if (metrics != null && !op.isImmediate())
+            metrics.onOperationComplete(mScheduler.now() - op.startTime);
+        final BleOperation.Callback callback = op.getCallback();
+        if (callback != null) {
+            op.setResult(result);
+            callback.onOperationComplete(op, status);
+        }
+        next();
+        return op;
+    }
+
+    /**
+     * 等待执行的操作数.
+     */
+    synchronized int getDepth() {
+        int depth = 0;
+        for (ArrayDeque<BleOperation> lane : mLanes) {
+            depth += lane.size();
+        }
+        return depth;
+    }
+
+    /**
+     * 没有正在执行或等待执行的操作.
+     */
+    synchronized boolean isIdle() {
+        return mCurrent == null && getDepth() == 0;
+    }
+
+    synchronized void getStats(BleQueueStats stats) {
+        stats.depth = getDepth();
+        stats.executed = mExecuted;
+        stats.timeouts = mTimeouts;
+        stats.lastWaitMillis = mLastWait;
+        stats.maxWaitMillis = mMaxWait;
+        stats.averageWaitMillis = mExecuted == 0 ? 0 : mTotalWait / mExecuted;
+    }
+
+    /**
+     * 执行下一个操作, 协议栈拒绝时直接失败并继续.
+     */
+    private void next() {
+        while (true) {
+            final BleOperation op;
+            final BleTransport transport;
+            synchronized (this) {
+                if (mCurrent != null || mStale != null || mTransport == null)
+                    return;
+                op = poll();
+                if (op == null)
+                    return;
+                transport = mTransport;
+                mCurrent = op;
+                op.timeoutTask = new OperationTimeout(op);
+                op.startTime = mScheduler.now();
+                final long wait = op.startTime - op.enqueueTime;
+                mExecuted++;
+                mLastWait = wait;
+                mTotalWait += wait;
+                if (wait > mMaxWait)
+                    mMaxWait = wait;
+            }
+            mScheduler.postDelayed(op.timeoutTask, op.getTimeout());
+            if (op.execute(transport)) {
+                // 没有回调的操作提交后直接结束 (complete 会继续执行下一个).
+                if (op.isImmediate())
+                    complete(op.type, null, null, null, BLE_SUCCESS);
+                return;
+            }
+            synchronized (this) {
+                if (mCurrent != op)
+                    return;
+                mCurrent = null;
+            }
+            cancelTimeout(op);
+            LogUtil.w(TAG, "operation %d rejected", op.type);
+            fail(op, BLE_ERROR_REJECTED);
+        }
+    }
+
+    private BleOperation poll() {
+        for (ArrayDeque<BleOperation> lane : mLanes) {
+            BleOperation op = lane.pollFirst();
+            if (op != null)
+                return op;
+        }
+        return null;
+    }
+
+    private void fail(BleOperation op, int code) {
+        final BleOperation.Callback callback = op.getCallback();
+        if (callback != null)
+            callback.onOperationComplete(op, code);
+        else if (mFailureCallback != null)
+            mFailureCallback.onOperationComplete(op, code);
+    }
+
+    private void cancelTimeout(BleOperation op) {
+        final Runnable task = op.timeoutTask;
+        if (task != null)
+            mScheduler.remove(task);
+    }
+
+    /**
+     * 操作超时. 超时的操作转为等待迟到的回调, 再超时一次后认为回调已丢失, 继续执行.
+     *     每个操作一个任务, 操作已结束时什么也不做.
+     */
+    private final class OperationTimeout implements Runnable {
+        private final BleOperation mOp;
+
+        OperationTimeout(BleOperation op) {
+            mOp = op;
+        }
+
+        @Override
+        public void run() {
+            final BleOperation op = mOp;
+            final boolean lost;
+            synchronized (BleOperationQueue.this) {
+                if (mCurrent == op) {
+                    final long remain = op.startTime + op.getTimeout() - mScheduler.now();
+                    if (remain > 0) {
+                        mScheduler.postDelayed(this, remain);
+                        return;
+                    }
+                    mCurrent = null;
+                    mStale = op;
+                    op.timedOut = true;
+                    mTimeouts++;
+                    mScheduler.postDelayed(this, op.getTimeout());
+                    lost = false;
+                } else if (mStale == op) {
+                    mStale = null;
+                    lost = true;
+                } else {
+                    return;
+                }
+            }
+            if (lost) {
+                LogUtil.w(TAG, "callback of operation %d lost", op.type);
+                next();
+                return;
+            }
+            LogUtil.w(TAG, "operation %d timeout", op.type);
+            fail(op, BLE_ERROR_TIMEOUT);
+        }
+    }
+}
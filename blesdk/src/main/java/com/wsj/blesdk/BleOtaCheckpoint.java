@@ -0,0 +1,169 @@
+package com.wsj.blesdk;
+
+import com.wsj.blesdk.utils.LogUtil;
+import com.wsj.blesdk.utils.LongHashMap;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * 固件升级检查点的持久化.<br>
+ *     (1) 以 long 形式的 MAC 地址为键, 每台设备一个文件, 记录镜像长度, CRC-32 和对端已确认的偏移.
+ *     (2) 镜像长度或 CRC 不同时视为新镜像, 从 0 开始.
+ *     (3) 升级完成或镜像校验失败时删除.
+ *     (4) put 和 remove 只更新内存并在 I/O 线程写文件 (合并同一设备的多次修改),
+ *         升级的通知回调 (可能是 Binder 线程) 不做磁盘 I/O. get 首次读取文件, 在开始升级时调用.
+ */
+
+final class BleOtaCheckpoint {
+    // TAG
+    private static final String TAG = "BleOtaCheckpoint";
+
+    private static final int MAGIC = 0x4f544143;
+    private static final int VERSION = 1;
+    // 文件不存在时在内存中的占位.
+    private static final int[] MISSING = new int[0];
+
+    private final File mDir;
+    // 写文件的线程.
+    private final BleScheduler mIo;
+    // {size, crc, offset}
+    private final LongHashMap<int[]> mEntries = new LongHashMap<>();
+    // 内存已修改, 文件还没写入的设备.
+    private final ArrayList<Long> mDirty = new ArrayList<>();
+    private boolean mFlushScheduled;
+
+    /**
+     * @param io  写文件的线程
+     */
+    BleOtaCheckpoint(File dir, BleScheduler io) {
+        mDir = dir;
+        mIo = io;
+    }
+
+    /**
+     * 获取该镜像已确认的偏移.
+     * @return
+     *      没有检查点或镜像不同时返回 0.
+     */
+    synchronized int get(long mac, int size, int crc) {
+        int[] entry = mEntries.get(mac);
+        if (entry == null) {
+            entry = load(mac);
+            mEntries.put(mac, entry == null ? MISSING : entry);
+        }
+        if (entry == null || entry == MISSING || entry[0] != size || entry[1] != crc)
+            return 0;
+        return Math.max(0, Math.min(entry[2], size));
+    }
+
+    synchronized void put(long mac, int size, int crc, int offset) {
+        mEntries.put(mac, new int[]{size, crc, offset});
+        markDirty(mac);
+    }
+
+    synchronized void remove(long mac) {
+        mEntries.put(mac, MISSING);
+        markDirty(mac);
+    }
+
+    private void markDirty(long mac) {
+        if (!mDirty.contains(mac))
+            mDirty.add(mac);
+        if (mFlushScheduled)
+            return;
+        mFlushScheduled = true;
+        mIo.post(mFlush);
+    }
+
+    /**
+     * 在 I/O 线程写入修改过的检查点, 文件读写不持有锁.
+     */
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            final long[] macs;
+            final int[][] entries;
+            synchronized (BleOtaCheckpoint.this) {
+                mFlushScheduled = false;
+                macs = new long[mDirty.size()];
+                entries = new int[macs.length][];
+                for (int i = 0; i < macs.length; i++) {
+                    macs[i] = mDirty.get(i);
+                    entries[i] = mEntries.get(macs[i]);
+                }
+                mDirty.clear();
+            }
+            for (int i = 0; i < macs.length; i++) {
+                if (entries[i] == MISSING) {
+                    final File file = fileOf(macs[i]);
+                    if (file.exists() && !file.delete())
+                        LogUtil.e(TAG, "delete failed : %s", file);
+                } else {
+                    save(macs[i], entries[i]);
+                }
+            }
+        }
+    };
+
+    private File fileOf(long mac) {
+        return new File(mDir, String.format("%012x", mac));
+    }
+
+    private int[] load(long mac) {
+        final File file = fileOf(mac);
+        if (!file.exists())
+            return null;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                return null;
+            return new int[]{in.readInt(), in.readInt(), in.readInt()};
+        } catch (IOException e) {
+            LogUtil.e(TAG, "load failed : %s", file);
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    private void save(long mac, int[] entry) {
+        if (!mDir.exists() && !mDir.mkdirs()) {
+            LogUtil.e(TAG, "mkdirs failed : %s", mDir);
+            return;
+        }
+        final File file = fileOf(mac);
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            for (int value : entry) {
+                out.writeInt(value);
+            }
+        } catch (IOException e) {
+            LogUtil.e(TAG, "save failed : %s", file);
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null)
+            return;
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+}
@@ -0,0 +1,702 @@
+package com.wsj.blesdk;
+
+import com.wsj.blesdk.utils.LogUtil;
+import com.wsj.blesdk.utils.MacAddress;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+import static com.wsj.blesdk.BleConstants.BLE_ERROR_FIRMWARE;
+import static com.wsj.blesdk.BleConstants.BLE_ERROR_PROTOCOL;
+import static com.wsj.blesdk.BleConstants.BLE_ERROR_TIMEOUT;
+import static com.wsj.blesdk.BleConstants.BLE_ERROR_WRITE;
+import static com.wsj.blesdk.BleConstants.BLE_SUCCESS;
+
+/**
+ * 固件升级 (OTA), 从内存映射的镜像分包写入, 可断点续传.<br>
+ *     (1) 镜像为只读的 MappedByteBuffer, 每包从映射拷贝到 BleBufferPool 的数组, 整个文件不进入堆.
+ *     (2) 滑动窗口: 最多 window 个包未被确认 (无应答写), 对端每收到 window / 2 个包回执一次已连续收到的偏移.
+ *     (3) 已确认的偏移即检查点, 每确认 16KB, 暂停和失败时写入 BleOtaCheckpoint.
+ *         设置了自动重连时, 断线后暂停, 重连并发现服务后从检查点继续;
+ *         否则以 BLE_ERROR_DISCONNECT 结束, 之后对同一设备重新升级同一镜像时从检查点继续.
+ *     (4) 回执超时时重新发送开始命令, 以对端返回的偏移为准继续 (重新同步), 连续多次超时结束.
+ *     (5) 进度和速率以 BleTransmitListener 回调, 速率不含续传前的部分和暂停的时间.
+ *     (6) 控制点特征值 (写 + 通知) 的命令和回复, 多字节字段为小端:
+ *         开始  [0x01][size:4][crc32:4][offset:4][receipt:2] -> [0x81][status:1][offset:4],
+ *               offset 为检查点, 对端返回实际继续的偏移 (镜像不同或没有保存时为 0);
+ *         回执  [0x82][offset:4], 每收到 receipt 个包以及收到最后一个字节时发送;
+ *         校验  [0x03] -> [0x83][status:1], 对端校验整个镜像的 CRC-32, 成功后激活.
+ *         数据包写入数据特征值, 内容为镜像从 offset 开始的连续字节. status 非 0 时以 BLE_ERROR_FIRMWARE 结束.
+ *     (7) 锁只保护状态和窗口, 命令和数据包在锁外写入 (进入操作队列并调用协议栈),
+ *         通知和写回调可能在 Binder 线程到达, 不会等待另一个线程的写入.
+ */
+
+public final class BleOtaSession {
+    // TAG
+    private static final String TAG = "BleOtaSession";
+
+    // 默认窗口 (未确认的包数).
+    public static final int DEFAULT_WINDOW = 16;
+    // 最大窗口.
+    public static final int MAX_WINDOW     = 256;
+
+    /* 升级状态. */
+    public static final int STATE_IDLE       = 0;
+    public static final int STATE_RUNNING    = 1;
+    // 断线, 等待重连.
+    public static final int STATE_PAUSED     = 2;
+    // 已全部确认, 等待对端校验.
+    public static final int STATE_VALIDATING = 3;
+    public static final int STATE_COMPLETE   = 4;
+    public static final int STATE_FAILED     = 5;
+
+    /**
+     * 命令和数据包的写入, 由 BleConnection 绑定到控制点和数据特征值.
+     */
+    interface Link {
+        /**
+         * 写控制点命令 (插在数据包之前), 结果回调 onControlWritten.
+         */
+        boolean writeControl(byte[] command);
+
+        /**
+         * 写一个数据包 (无应答写), 结果回调 onPacketWritten.
+         * @param packet  缓冲池中的数组, 返回 true 时由 Link 在写操作结束后归还
+         */
+        boolean writePacket(byte[] packet);
+
+        /**
+         * 当前最大包长度.
+         */
+        int getPacketSize();
+
+        /**
+         * 升级完成或失败.
+         */
+        void onFinished(BleOtaSession session, int code);
+    }
+
+    /* 控制点命令. */
+    private static final int OP_START    = 0x01;
+    private static final int OP_RECEIPT  = 0x02;
+    private static final int OP_VALIDATE = 0x03;
+    private static final int OP_RESPONSE = 0x80;
+    private static final int START_SIZE  = 15;
+
+    // 开始和校验命令的回复超时 (毫秒).
+    private static final long RESPONSE_TIMEOUT = 5 * 1000;
+    // 有未确认的包时, 回执的超时 (毫秒).
+    private static final long RECEIPT_TIMEOUT  = 3 * 1000;
+    // 连续重新同步的最多次数.
+    private static final int MAX_RESYNCS = 5;
+    // 写入检查点的间隔 (字节).
+    private static final int CHECKPOINT_INTERVAL = 16 * 1024;
+    // 进度回调最小间隔 (毫秒).
+    private static final long PROGRESS_INTERVAL = 100;
+    // 计算 CRC 时每次读取的字节数.
+    private static final int CRC_BLOCK = 4096;
+
+    /* 锁外的回调. */
+    private static final int EVENT_NONE     = 0;
+    private static final int EVENT_PROGRESS = 1;
+    private static final int EVENT_COMPLETE = 2;
+
+    private final BleScheduler mScheduler;
+    private final String mAddress;
+    private final long mMac;
+    private final UUID mServiceUuid;
+    private final UUID mControlUuid;
+    private final UUID mPacketUuid;
+    // 镜像, 只由正在补发的线程移动 position.
+    private final ByteBuffer mImage;
+    private final int mSize;
+    // 镜像的 CRC-32, start 时在 SDK 线程计算.
+    private volatile int mCrc;
+    private final int mWindow;
+    private final int mReceipt;
+    private final BleBufferPool mPool;
+    private final BleOtaCheckpoint mCheckpoints;
+    private final BleTransmitListener mListener;
+    private Link mLink;
+
+    private int mState = STATE_IDLE;
+    private int mError;
+    // 对端已确认的偏移.
+    private int mConfirmed;
+    // 下一包的偏移.
+    private int mOffset;
+    // 已写入检查点的偏移.
+    private int mSavedOffset;
+    // 第一次开始时对端返回的偏移, 之前为 -1.
+    private int mResumedFrom = -1;
+    // 已提交但还没有写回调的包数.
+    private int mPendingWrites;
+    // 等待回复的命令, 0 表示没有.
+    private int mAwaiting;
+    // 锁内准备, 锁外写入的控制点命令.
+    private byte[] mCommand;
+    // 有线程正在补发, 其它线程不再补发, 保证数据包按顺序写入.
+    private boolean mPumping;
+    private int mResyncs;
+    private int mTotalResyncs;
+    private boolean mTimerScheduled;
+
+    // 本次升级实际传输的字节数和传输时间 (不含暂停).
+    private long mTransferred;
+    private long mActiveTime;
+    private long mRunStart;
+    private long mLastProgressTime;
+
+    /**
+     * @param image        镜像, position 到 limit 之间的字节
+     * @param window       未确认的包数
+     * @param checkpoints  检查点
+     * @param listener     进度监听, 可为 null
+     */
+    BleOtaSession(BleScheduler scheduler, String address, UUID serviceUuid, UUID controlUuid,
+                  UUID packetUuid, ByteBuffer image, int window, BleBufferPool pool,
+                  BleOtaCheckpoint checkpoints, BleTransmitListener listener) {
+        mScheduler = scheduler;
+        mAddress = address;
+        mMac = MacAddress.toLong(address);
+        mServiceUuid = serviceUuid;
+        mControlUuid = controlUuid;
+        mPacketUuid = packetUuid;
+        mImage = image.slice();
+        mSize = mImage.remaining();
+        mWindow = Math.max(1, Math.min(MAX_WINDOW, window));
+        mReceipt = Math.max(1, mWindow / 2);
+        mPool = pool;
+        mCheckpoints = checkpoints;
+        mListener = listener;
+    }
+
+    /**
+     * 绑定写入接口, 需在 start 之前调用.
+     */
+    void setLink(Link link) {
+        mLink = link;
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    public int getTotalBytes() {
+        return mSize;
+    }
+
+    /**
+     * 镜像的 CRC-32, 开始之前为 0.
+     */
+    public int getCrc() {
+        return mCrc;
+    }
+
+    /**
+     * 对端已确认的字节数.
+     */
+    public synchronized int getConfirmedBytes() {
+        return mConfirmed;
+    }
+
+    /**
+     * 续传的起点, 从头开始时为 0, 还未开始时为 -1.
+     */
+    public synchronized int getResumedFrom() {
+        return mResumedFrom;
+    }
+
+    /**
+     * 回执超时后重新同步的次数.
+     */
+    public synchronized int getResyncs() {
+        return mTotalResyncs;
+    }
+
+    public synchronized int getState() {
+        return mState;
+    }
+
+    /**
+     * 失败的错误代码, 未失败或主动取消时为 0.
+     */
+    public synchronized int getError() {
+        return mError;
+    }
+
+    public synchronized boolean isFinished() {
+        return mState == STATE_COMPLETE || mState == STATE_FAILED;
+    }
+
+    UUID getServiceUuid() {
+        return mServiceUuid;
+    }
+
+    UUID getControlUuid() {
+        return mControlUuid;
+    }
+
+    UUID getPacketUuid() {
+        return mPacketUuid;
+    }
+
+    boolean matches(UUID serviceUuid, UUID characteristicUuid) {
+        return mControlUuid.equals(characteristicUuid)
+                && (serviceUuid == null || mServiceUuid.equals(serviceUuid));
+    }
+
+    /**
+     * 计算镜像的 CRC-32 并从检查点开始 (SDK 线程, 镜像较大时耗时, 不在调用线程执行).
+     * @return
+     *      开始命令是否入队, 失败时以 BLE_ERROR_WRITE 结束并回调监听.
+     */
+    boolean start() {
+        final int crc = crc32(mImage, mPool);
+        synchronized (this) {
+            if (mState != STATE_IDLE)
+                return false;
+            mCrc = crc;
+            mConfirmed = mCheckpoints.get(mMac, mSize, mCrc);
+            mSavedOffset = mConfirmed;
+            mState = STATE_RUNNING;
+            mRunStart = mScheduler.now();
+            mLastProgressTime = mRunStart;
+            sendStart();
+        }
+        return flush();
+    }
+
+    /**
+     * 链路断开, 等待重连.
+     */
+    void pause() {
+        final int saved;
+        synchronized (this) {
+            if (mState != STATE_RUNNING && mState != STATE_VALIDATING)
+                return;
+            mState = STATE_PAUSED;
+            cancelTimer();
+            mAwaiting = 0;
+            mPendingWrites = 0;
+            mActiveTime += mScheduler.now() - mRunStart;
+            saved = takeCheckpoint(true);
+            LogUtil.d(TAG, "paused at %d : %s", mConfirmed, mAddress);
+        }
+        if (saved >= 0)
+            mCheckpoints.put(mMac, mSize, mCrc, saved);
+    }
+
+    /**
+     * 重连并发现服务后从检查点继续.
+     */
+    void resume() {
+        synchronized (this) {
+            if (mState != STATE_PAUSED)
+                return;
+            mState = STATE_RUNNING;
+            mResyncs = 0;
+            mRunStart = mScheduler.now();
+            mLastProgressTime = mRunStart;
+            sendStart();
+        }
+        flush();
+    }
+
+    /**
+     * 结束升级 (取消或断开), 检查点保留.
+     */
+    void cancel(int code) {
+        finish(code, false);
+    }
+
+    /**
+     * 控制点的通知.
+     */
+    void onControl(byte[] value) {
+        int event = EVENT_NONE;
+        int code = BLE_SUCCESS;
+        synchronized (this) {
+            if (value == null || value.length == 0
+                    || mState != STATE_RUNNING && mState != STATE_VALIDATING)
+                return;
+            final int op = value[0] & 0xff;
+            if (op == (OP_RESPONSE | OP_START)) {
+                code = onStarted(value);
+            } else if (op == (OP_RESPONSE | OP_RECEIPT)) {
+                code = onReceipt(value);
+                if (code == BLE_SUCCESS && mState == STATE_RUNNING) {
+                    final long now = mScheduler.now();
+                    if (now - mLastProgressTime >= PROGRESS_INTERVAL) {
+                        mLastProgressTime = now;
+                        event = EVENT_PROGRESS;
+                    }
+                }
+            } else if (op == (OP_RESPONSE | OP_VALIDATE)) {
+                if (mAwaiting != OP_VALIDATE)
+                    return;
+                if (value.length < 2)
+                    code = BLE_ERROR_PROTOCOL;
+                else if (value[1] != 0)
+                    code = BLE_ERROR_FIRMWARE;
+                else
+                    event = EVENT_COMPLETE;
+            } else {
+                code = BLE_ERROR_PROTOCOL;
+            }
+        }
+        if (code != BLE_SUCCESS) {
+            LogUtil.e(TAG, "firmware update failed %d : %s", code, mAddress);
+            fail(code);
+        } else if (event == EVENT_COMPLETE) {
+            complete();
+        } else if (flush()) {
+            final int saved;
+            synchronized (this) {
+                saved = takeCheckpoint(false);
+            }
+            if (saved >= 0)
+                mCheckpoints.put(mMac, mSize, mCrc, saved);
+            if (event == EVENT_PROGRESS && mListener != null)
+                mListener.onTransmitProgress(mAddress, getConfirmedBytes(), mSize,
+                        bytesPerSecond());
+        }
+    }
+
+    /**
+     * 控制点命令的写回调.
+     */
+    void onControlWritten(boolean success) {
+        if (!success && isActive())
+            fail(BLE_ERROR_WRITE);
+    }
+
+    /**
+     * 数据包的写回调.
+     */
+    void onPacketWritten(boolean success) {
+        synchronized (this) {
+            if (mState != STATE_RUNNING)
+                return;
+            if (mPendingWrites > 0)
+                mPendingWrites--;
+            if (success)
+                return;
+        }
+        fail(BLE_ERROR_WRITE);
+    }
+
+    /* ---------------- 锁外写入 ---------------- */
+
+    /**
+     * 写入锁内准备好的命令, 然后补满窗口.
+     * @return
+     *      写入接口不接受时以 BLE_ERROR_WRITE 结束并返回 false.
+     */
+    private boolean flush() {
+        final byte[] command;
+        synchronized (this) {
+            command = mCommand;
+            mCommand = null;
+        }
+        if (command != null && !mLink.writeControl(command) || pump()) {
+            fail(BLE_ERROR_WRITE);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 补满窗口, 有未确认的包时等待回执. 在锁内领取下一包的位置, 在锁外读取镜像并写入.<br>
+     *     同一时间只有一个线程补发, 其它线程的回执只更新窗口, 由补发的线程在下一轮看到.
+     *     写入失败可能同步回调 onPacketWritten 并结束升级.
+     * @return
+     *      写入接口不接受, 且没有等待中的写入和回执 (不会再有机会补发).
+     */
+    private boolean pump() {
+        final int packetSize = Math.max(1, mLink.getPacketSize());
+        final long limit = (long) mWindow * packetSize;
+        synchronized (this) {
+            if (mPumping)
+                return false;
+            mPumping = true;
+        }
+        while (true) {
+            final int offset;
+            final int len;
+            synchronized (this) {
+                if (mState != STATE_RUNNING || mAwaiting != 0 || mOffset >= mSize
+                        || mOffset - mConfirmed >= limit) {
+                    mPumping = false;
+                    if (mState == STATE_RUNNING && mOffset > mConfirmed && !mTimerScheduled)
+                        scheduleTimer(RECEIPT_TIMEOUT);
+                    return false;
+                }
+                offset = mOffset;
+                len = Math.min(packetSize, mSize - offset);
+                mOffset += len;
+                mPendingWrites++;
+            }
+            final byte[] packet = mPool.acquireExact(len);
+            mImage.position(offset);
+            mImage.get(packet, 0, len);
+            if (!mLink.writePacket(packet)) {
+                mPool.release(packet);
+                synchronized (this) {
+                    mPumping = false;
+                    if (mState != STATE_RUNNING)
+                        return false;
+                    // 写入期间重新同步过时 mOffset 已回到检查点, 不再退回.
+                    if (mOffset == offset + len)
+                        mOffset = offset;
+                    if (mPendingWrites > 0)
+                        mPendingWrites--;
+                    if (mOffset == mConfirmed && mAwaiting == 0)
+                        return true;
+                    if (mOffset > mConfirmed && !mTimerScheduled)
+                        scheduleTimer(RECEIPT_TIMEOUT);
+                    return false;
+                }
+            }
+        }
+    }
+
+    /* ---------------- 锁内 ---------------- */
+
+    /**
+     * 准备开始命令, 由 flush 写入.
+     */
+    private void sendStart() {
+        final byte[] command = new byte[START_SIZE];
+        command[0] = OP_START;
+        putInt(command, 1, mSize);
+        putInt(command, 5, mCrc);
+        putInt(command, 9, mConfirmed);
+        command[13] = (byte) mReceipt;
+        command[14] = (byte) (mReceipt >>> 8);
+        mAwaiting = OP_START;
+        mOffset = mConfirmed;
+        mCommand = command;
+        scheduleTimer(RESPONSE_TIMEOUT);
+    }
+
+    private void sendValidate() {
+        mState = STATE_VALIDATING;
+        mAwaiting = OP_VALIDATE;
+        mCommand = new byte[]{OP_VALIDATE};
+        scheduleTimer(RESPONSE_TIMEOUT);
+    }
+
+    private int onStarted(byte[] value) {
+        if (mAwaiting != OP_START)
+            return BLE_SUCCESS;
+        if (value.length < 6)
+            return BLE_ERROR_PROTOCOL;
+        if (value[1] != 0)
+            return BLE_ERROR_FIRMWARE;
+        final int offset = getInt(value, 2);
+        if (offset < 0 || offset > mSize)
+            return BLE_ERROR_PROTOCOL;
+        mAwaiting = 0;
+        mConfirmed = offset;
+        mOffset = offset;
+        if (mResumedFrom < 0)
+            mResumedFrom = offset;
+        if (offset == mSize)
+            sendValidate();
+        else
+            cancelTimer();
+        return BLE_SUCCESS;
+    }
+
+    private int onReceipt(byte[] value) {
+        // 重新同步时, 开始命令之前的回执已无意义.
+        if (mAwaiting != 0 || mState != STATE_RUNNING)
+            return BLE_SUCCESS;
+        if (value.length < 5)
+            return BLE_ERROR_PROTOCOL;
+        final int offset = getInt(value, 1);
+        if (offset <= mConfirmed)
+            return BLE_SUCCESS;
+        if (offset > mOffset)
+            return BLE_ERROR_PROTOCOL;
+        mTransferred += offset - mConfirmed;
+        mConfirmed = offset;
+        mResyncs = 0;
+        if (mConfirmed == mSize)
+            sendValidate();
+        else
+            cancelTimer();
+        return BLE_SUCCESS;
+    }
+
+    /**
+     * 需要写入检查点的偏移, 不需要时返回 -1.
+     */
+    private int takeCheckpoint(boolean force) {
+        if (mConfirmed == mSavedOffset
+                || !force && mConfirmed - mSavedOffset < CHECKPOINT_INTERVAL)
+            return -1;
+        mSavedOffset = mConfirmed;
+        return mConfirmed;
+    }
+
+    private void scheduleTimer(long delay) {
+        mScheduler.remove(mTimeout);
+        mScheduler.postDelayed(mTimeout, delay);
+        mTimerScheduled = true;
+    }
+
+    private void cancelTimer() {
+        if (!mTimerScheduled)
+            return;
+        mTimerScheduled = false;
+        mScheduler.remove(mTimeout);
+    }
+
+    /* ---------------- 结束 ---------------- */
+
+    private synchronized boolean isActive() {
+        return mState == STATE_RUNNING || mState == STATE_VALIDATING;
+    }
+
+    private void fail(int code) {
+        finish(code, true);
+    }
+
+    private void finish(int code, boolean notifyLink) {
+        final int saved;
+        synchronized (this) {
+            if (mState == STATE_IDLE || mState == STATE_COMPLETE || mState == STATE_FAILED)
+                return;
+            if (mState != STATE_PAUSED)
+                mActiveTime += mScheduler.now() - mRunStart;
+            mState = STATE_FAILED;
+            mError = code;
+            cancelTimer();
+            saved = takeCheckpoint(true);
+        }
+        // 对端拒绝镜像时下次从头开始.
+        if (code == BLE_ERROR_FIRMWARE)
+            mCheckpoints.remove(mMac);
+        else if (saved >= 0)
+            mCheckpoints.put(mMac, mSize, mCrc, saved);
+        if (notifyLink)
+            mLink.onFinished(this, code);
+        // 主动取消时不回调.
+        if (mListener != null && code != BLE_SUCCESS)
+            mListener.onTransmitError(mAddress, code);
+    }
+
+    private void complete() {
+        synchronized (this) {
+            if (mState != STATE_VALIDATING)
+                return;
+            mActiveTime += mScheduler.now() - mRunStart;
+            mState = STATE_COMPLETE;
+            mAwaiting = 0;
+            cancelTimer();
+        }
+        LogUtil.d(TAG, "firmware updated from %d, %d resyncs : %s", mResumedFrom, mTotalResyncs,
+                mAddress);
+        mCheckpoints.remove(mMac);
+        mLink.onFinished(this, BLE_SUCCESS);
+        if (mListener != null)
+            mListener.onTransmitComplete(mAddress, mSize, bytesPerSecond());
+    }
+
+    private synchronized long bytesPerSecond() {
+        long elapsed = mActiveTime;
+        if (mState == STATE_RUNNING || mState == STATE_VALIDATING)
+            elapsed += mScheduler.now() - mRunStart;
+        return elapsed <= 0 ? 0 : mTransferred * 1000 / elapsed;
+    }
+
+    private final Runnable mTimeout = new Runnable() {
+        @Override
+        public void run() {
+            int code = BLE_SUCCESS;
+            synchronized (BleOtaSession.this) {
+                if (!mTimerScheduled || mState != STATE_RUNNING && mState != STATE_VALIDATING)
+                    return;
+                mTimerScheduled = false;
+                if (mAwaiting == 0 && mPendingWrites > 0) {
+                    // 数据包还在协议栈的队列中.
+                    scheduleTimer(RECEIPT_TIMEOUT);
+                    return;
+                }
+                if (mAwaiting == OP_VALIDATE || ++mResyncs > MAX_RESYNCS) {
+                    code = BLE_ERROR_TIMEOUT;
+                } else {
+                    mTotalResyncs++;
+                    LogUtil.d(TAG, "resync at %d : %s", mConfirmed, mAddress);
+                    sendStart();
+                }
+            }
+            if (code != BLE_SUCCESS)
+                fail(code);
+            else
+                flush();
+        }
+    };
+
+    /**
+     * 只读映射镜像文件.
+     * @return
+     *      文件无法读取或超过 2GB 时返回 null.
+     */
+    static ByteBuffer mapImage(File file) {
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            final long length = raf.length();
+            if (length > Integer.MAX_VALUE) {
+                LogUtil.e(TAG, "image too large : %s", file);
+                return null;
+            }
+            // 关闭文件后映射仍然有效.
+            return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+        } catch (IOException e) {
+            LogUtil.e(TAG, "map failed : %s", file);
+            return null;
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    private static int crc32(ByteBuffer image, BleBufferPool pool) {
+        final CRC32 crc = new CRC32();
+        final ByteBuffer source = image.duplicate();
+        final byte[] block = pool.acquire(CRC_BLOCK);
+        while (source.hasRemaining()) {
+            final int len = Math.min(block.length, source.remaining());
+            source.get(block, 0, len);
+            crc.update(block, 0, len);
+        }
+        pool.release(block);
+        return (int) crc.getValue();
+    }
+
+    private static int getInt(byte[] data, int offset) {
+        return (data[offset] & 0xff) | (data[offset + 1] & 0xff) << 8
+                | (data[offset + 2] & 0xff) << 16 | (data[offset + 3] & 0xff) << 24;
+    }
+
+    private static void putInt(byte[] data, int offset, int value) {
+        data[offset] = (byte) value;
+        data[offset + 1] = (byte) (value >>> 8);
+        data[offset + 2] = (byte) (value >>> 16);
+        data[offset + 3] = (byte) (value >>> 24);
+    }
+}
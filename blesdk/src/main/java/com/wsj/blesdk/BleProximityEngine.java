@@ -0,0 +1,216 @@
+package com.wsj.blesdk;
+
+import java.util.Arrays;
+
+/**
+ * 距离估算与排序.<br>
+ *     (1) 滤波状态放在基本类型数组中, 每台设备最近 8 个 RSSI 压缩在一个 long 中,
+ *         保存在 BluetoothInfo 中, 任意线程可以直接读取.
+ *     (2) RSSI 经卡尔曼或指数加权滤波后按对数距离模型估算距离.
+ *     (3) 维护按距离排序的设备序列, 每次更新只移动该设备的位置.
+ *         排序变化后由 takeOrder 取出副本, 供其它线程查询.
+ *     (4) 只在 SDK 线程 (BleScanPipeline 的写线程) 更新, 滤波参数可以在任意线程设置.
+ */
+
+final class BleProximityEngine {
+    // 每台设备保存的 RSSI 个数.
+    static final int HISTORY_SIZE = 8;
+
+    // 没有发射功率字段时使用的 1 米处 RSSI.
+    private static final int DEFAULT_MEASURED_POWER = -59;
+    // 广播的发射功率为 0 米处功率, 1 米处约衰减 41 dB.
+    private static final int TX_POWER_1M_LOSS = 41;
+
+    private static final double KALMAN_PROCESS_NOISE = 0.125;
+    private static final double KALMAN_MEASUREMENT_NOISE = 4.0;
+    private static final double EWMA_ALPHA = 0.3;
+
+    private volatile int mFilter = BleConstants.BLE_RSSI_FILTER_KALMAN;
+    // 路径损耗指数, 空旷环境约 2, 室内 2~4.
+    private volatile double mPathLossExponent = 2.0;
+
+    /* 以槽位为下标的设备状态, 槽位 [0, mSize) 连续. */
+    private BluetoothInfo[] mInfos;
+    private double[] mEstimate;
+    private double[] mVariance;
+    private double[] mDistance;
+    // 排序序列: 位置 -> 槽位, 槽位 -> 位置.
+    private int[] mOrder;
+    private int[] mRank;
+    private int mSize;
+    // 上次 takeOrder 之后排序序列是否变化.
+    private boolean mOrderChanged;
+
+    BleProximityEngine() {
+        allocate(64);
+    }
+
+    void setFilter(int filter) {
+        mFilter = filter;
+    }
+
+    void setPathLossExponent(double exponent) {
+        mPathLossExponent = exponent;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    /**
+     * 记录一次 RSSI.
+     * @param info     设备
+     * @param rssi     信号强度
+     * @param txPower  广播的发射功率, 未知时为 BleAdvertisement.TX_POWER_UNKNOWN
+     */
+    void update(BluetoothInfo info, int rssi, int txPower) {
+        int slot = info.proximitySlot;
+        if (slot < 0 || slot >= mSize || mInfos[slot] != info) {
+            slot = add(info, rssi);
+        }
+        info.rssiHistory = (info.rssiHistory << 8) | (rssi & 0xff);
+        info.rssiSamples = Math.min(info.rssiSamples + 1, HISTORY_SIZE);
+
+        final double estimate;
+        if (mFilter == BleConstants.BLE_RSSI_FILTER_EWMA) {
+            estimate = mEstimate[slot] + EWMA_ALPHA * (rssi - mEstimate[slot]);
+        } else {
+            final double p = mVariance[slot] + KALMAN_PROCESS_NOISE;
+            final double k = p / (p + KALMAN_MEASUREMENT_NOISE);
+            estimate = mEstimate[slot] + k * (rssi - mEstimate[slot]);
+            mVariance[slot] = (1 - k) * p;
+        }
+        mEstimate[slot] = estimate;
+
+        final int measuredPower = txPower == BleAdvertisement.TX_POWER_UNKNOWN
+                ? DEFAULT_MEASURED_POWER : txPower - TX_POWER_1M_LOSS;
+        final double distance = Math.pow(10, (measuredPower - estimate)
+                / (10 * mPathLossExponent));
+        mDistance[slot] = distance;
+        info.setSmoothedRssi((int) Math.round(estimate));
+        info.setDistance(distance);
+        reposition(slot);
+    }
+
+    /**
+     * 排序序列变化后返回按距离升序的设备副本, 未变化时返回 null.
+     */
+    BluetoothInfo[] takeOrder() {
+        if (!mOrderChanged)
+            return null;
+        mOrderChanged = false;
+        final BluetoothInfo[] order = new BluetoothInfo[mSize];
+        for (int i = 0; i < mSize; i++) {
+            order[i] = mInfos[mOrder[i]];
+        }
+        return order;
+    }
+
+    /**
+     * 最近的 RSSI 历史, 从旧到新 (任意线程).
+     * @return
+     *      写入 out 的个数.
+     */
+    static int getHistory(BluetoothInfo info, int[] out) {
+        final int count = Math.min(info.rssiSamples, out.length);
+        final long history = info.rssiHistory;
+        for (int i = 0; i < count; i++) {
+            out[i] = (byte) (history >>> (8 * (count - 1 - i)));
+        }
+        return count;
+    }
+
+    void remove(BluetoothInfo info) {
+        final int slot = info.proximitySlot;
+        if (slot < 0 || slot >= mSize || mInfos[slot] != info)
+            return;
+        info.proximitySlot = -1;
+        info.rssiSamples = 0;
+        mOrderChanged = true;
+        // 从排序序列中删除.
+        final int pos = mRank[slot];
+        System.arraycopy(mOrder, pos + 1, mOrder, pos, mSize - pos - 1);
+        for (int i = pos; i < mSize - 1; i++) {
+            mRank[mOrder[i]] = i;
+        }
+        // 最后一个槽位移到空出的槽位.
+        final int last = mSize - 1;
+        if (slot != last) {
+            mInfos[slot] = mInfos[last];
+            mEstimate[slot] = mEstimate[last];
+            mVariance[slot] = mVariance[last];
+            mDistance[slot] = mDistance[last];
+            mRank[slot] = mRank[last];
+            mOrder[mRank[slot]] = slot;
+            mInfos[slot].proximitySlot = slot;
+        }
+        mInfos[last] = null;
+        mSize--;
+    }
+
+    void clear() {
+        for (int i = 0; i < mSize; i++) {
+            mInfos[i].proximitySlot = -1;
+            mInfos[i].rssiSamples = 0;
+            mInfos[i] = null;
+        }
+        mSize = 0;
+        mOrderChanged = true;
+    }
+
+    private int add(BluetoothInfo info, int rssi) {
+        if (mSize == mInfos.length)
+            grow(mSize * 2);
+        final int slot = mSize++;
+        mInfos[slot] = info;
+        info.rssiSamples = 0;
+        mOrderChanged = true;
+        mEstimate[slot] = rssi;
+        mVariance[slot] = KALMAN_MEASUREMENT_NOISE;
+        mDistance[slot] = Double.MAX_VALUE;
+        mOrder[slot] = slot;
+        mRank[slot] = slot;
+        info.proximitySlot = slot;
+        return slot;
+    }
+
+    /**
+     * 插入排序的一步: 向前或向后移动到正确位置.
+     */
+    private void reposition(int slot) {
+        final double distance = mDistance[slot];
+        int pos = mRank[slot];
+        while (pos > 0 && mDistance[mOrder[pos - 1]] > distance) {
+            mOrder[pos] = mOrder[pos - 1];
+            mRank[mOrder[pos]] = pos;
+            pos--;
+        }
+        while (pos < mSize - 1 && mDistance[mOrder[pos + 1]] < distance) {
+            mOrder[pos] = mOrder[pos + 1];
+            mRank[mOrder[pos]] = pos;
+            pos++;
+        }
+        if (pos != mRank[slot])
+            mOrderChanged = true;
+        mOrder[pos] = slot;
+        mRank[slot] = pos;
+    }
+
+    private void allocate(int capacity) {
+        mInfos = new BluetoothInfo[capacity];
+        mEstimate = new double[capacity];
+        mVariance = new double[capacity];
+        mDistance = new double[capacity];
+        mOrder = new int[capacity];
+        mRank = new int[capacity];
+    }
+
+    private void grow(int capacity) {
+        mInfos = Arrays.copyOf(mInfos, capacity);
+        mEstimate = Arrays.copyOf(mEstimate, capacity);
+        mVariance = Arrays.copyOf(mVariance, capacity);
+        mDistance = Arrays.copyOf(mDistance, capacity);
+        mOrder = Arrays.copyOf(mOrder, capacity);
+        mRank = Arrays.copyOf(mRank, capacity);
+    }
+}
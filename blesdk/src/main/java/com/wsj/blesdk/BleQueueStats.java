@@ -0,0 +1,30 @@
+package com.wsj.blesdk;
+
+/**
+ * GATT 操作队列统计.
+ */
+
+public class BleQueueStats {
+    // 等待执行的操作数 (不含正在执行的操作).
+    public int depth;
+    // 已执行的操作数.
+    public long executed;
+    // 超时的操作数.
+    public long timeouts;
+    // 最近一次排队等待时间 (毫秒).
+    public long lastWaitMillis;
+    // 最长排队等待时间 (毫秒).
+    public long maxWaitMillis;
+    // 平均排队等待时间 (毫秒).
+    public long averageWaitMillis;
+
+    @Override
+    public String toString() {
+        return "BleQueueStats{depth=" + depth
+                + ", executed=" + executed
+                + ", timeouts=" + timeouts
+                + ", lastWait=" + lastWaitMillis
+                + ", maxWait=" + maxWaitMillis
+                + ", avgWait=" + averageWaitMillis + "}";
+    }
+}
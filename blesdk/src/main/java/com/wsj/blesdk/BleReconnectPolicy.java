@@ -0,0 +1,90 @@
+package com.wsj.blesdk;
+
+/**
+ * 断线自动重连配置.<br>
+ *     (1) 连接意外断开 (非 disconnectBleDevice) 后立即重连一次, 之后按指数退避重试,
+ *         每次的间隔乘以 [1 - jitter, 1] 内的随机数, 避免多台设备同时重连.
+ *     (2) 直连失败 directAttempts 次后改为后台 autoConnect, 由协议栈在设备出现时连接.
+ *     (3) 重连成功后恢复断线前的 MTU, 重新发现服务 (协议栈有缓存) 并恢复订阅.
+ */
+
+public class BleReconnectPolicy {
+    private long mInitialDelay = 500;
+    private long mMaxDelay = 30 * 1000;
+    private double mJitter = 0.5;
+    private int mDirectAttempts = 3;
+    private boolean mAutoConnectFallback = true;
+    private int mMaxAttempts = 0;
+
+    /**
+     * 第二次重连前的等待时间 (毫秒), 之后每次翻倍. 第一次重连不等待.
+     */
+    public BleReconnectPolicy setInitialDelay(long delayMillis) {
+        mInitialDelay = Math.max(0, delayMillis);
+        return this;
+    }
+
+    /**
+     * 重连间隔上限 (毫秒).
+     */
+    public BleReconnectPolicy setMaxDelay(long delayMillis) {
+        mMaxDelay = Math.max(0, delayMillis);
+        return this;
+    }
+
+    /**
+     * 间隔的随机比例, 0 ~ 1.
+     */
+    public BleReconnectPolicy setJitter(double jitter) {
+        mJitter = Math.max(0, Math.min(1, jitter));
+        return this;
+    }
+
+    /**
+     * 直连 (autoConnect=false) 的次数, 之后改为后台 autoConnect.
+     */
+    public BleReconnectPolicy setDirectAttempts(int attempts) {
+        mDirectAttempts = Math.max(1, attempts);
+        return this;
+    }
+
+    /**
+     * 直连多次失败后是否改为后台 autoConnect, 否则一直按退避间隔直连.
+     */
+    public BleReconnectPolicy setAutoConnectFallback(boolean fallback) {
+        mAutoConnectFallback = fallback;
+        return this;
+    }
+
+    /**
+     * 最多重连次数, 超出后放弃并释放连接, 0 表示不限.
+     */
+    public BleReconnectPolicy setMaxAttempts(int attempts) {
+        mMaxAttempts = Math.max(0, attempts);
+        return this;
+    }
+
+    public long getInitialDelay() {
+        return mInitialDelay;
+    }
+
+    public long getMaxDelay() {
+        return mMaxDelay;
+    }
+
+    public double getJitter() {
+        return mJitter;
+    }
+
+    public int getDirectAttempts() {
+        return mDirectAttempts;
+    }
+
+    public boolean isAutoConnectFallback() {
+        return mAutoConnectFallback;
+    }
+
+    public int getMaxAttempts() {
+        return mMaxAttempts;
+    }
+}
@@ -0,0 +1,221 @@
+package com.wsj.blesdk;
+
+import com.wsj.blesdk.utils.LogUtil;
+
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 断线自动重连.<br>
+ *     (1) 以设备地址记录需要保持连接的 BleConnection, 意外断开后按 BleReconnectPolicy 重连,
+ *         不需要重新扫描.
+ *     (2) 重连期间连接保留在连接池中, 订阅的数据流不关闭, 重连成功后由 BleConnection 恢复.
+ *     (3) 重连在 SDK 事件循环中发起; 断开回调可能来自 Binder 线程, 每个设备的状态用自身的锁保护.
+ *         锁内只修改计数和增删定时任务, 发起连接和释放连接 (都会调用协议栈) 在锁外进行.
+ */
+
+final class BleReconnector {
+    // TAG
+    private static final String TAG = "BleReconnector";
+
+    /**
+     * 放弃重连的通知, 由 BleManager 实现.
+     */
+    interface Callback {
+        /**
+         * 发起重连失败且超过最大次数, 连接已释放, 需要移出连接池.
+         */
+        void onReconnectAbandoned(BleConnection connection);
+    }
+
+    private final BleScheduler mScheduler;
+    private final Random mRandom;
+    private final Callback mCallback;
+    private final ConcurrentHashMap<String, Entry> mEntries = new ConcurrentHashMap<>();
+
+    BleReconnector(BleScheduler scheduler, Random random, Callback callback) {
+        mScheduler = scheduler;
+        mRandom = random;
+        mCallback = callback;
+    }
+
+    /**
+     * 开始保持连接 (连接请求已发出).
+     */
+    void track(BleConnection connection, BleReconnectPolicy policy) {
+        final Entry old = mEntries.put(connection.getAddress(), new Entry(connection, policy));
+        if (old != null)
+            old.cancel();
+        connection.setResumable(true);
+    }
+
+    /**
+     * 不再保持连接.
+     * @return
+     *      之前保持的连接, 没有则返回 null.
+     */
+    BleConnection forget(String address) {
+        if (address == null)
+            return null;
+        final Entry entry = mEntries.remove(address);
+        if (entry == null)
+            return null;
+        entry.cancel();
+        entry.connection.setResumable(false);
+        return entry.connection;
+    }
+
+    boolean isTracked(String address) {
+        return address != null && mEntries.containsKey(address);
+    }
+
+    /**
+     * 正在等待重连的设备立即重连 (直连), 重新开始计算退避.
+     */
+    boolean reconnectNow(String address) {
+        final Entry entry = address == null ? null : mEntries.get(address);
+        if (entry == null)
+            return false;
+        entry.restart();
+        return true;
+    }
+
+    /**
+     * 已重试的次数, 连接成功后清零.
+     */
+    int getAttempts(String address) {
+        final Entry entry = address == null ? null : mEntries.get(address);
+        return entry == null ? 0 : entry.getAttempts();
+    }
+
+    void onConnected(BleConnection connection) {
+        final Entry entry = mEntries.get(connection.getAddress());
+        if (entry != null && entry.connection == connection)
+            entry.reset();
+    }
+
+    /**
+     * 连接断开.
+     * @return
+     *      是否会重连 (连接保留在连接池中).
+     */
+    boolean onDisconnected(BleConnection connection, int oldState) {
+        final String address = connection.getAddress();
+        final Entry entry = mEntries.get(address);
+        if (entry == null || entry.connection != connection)
+            return false;
+        if (oldState == BleConnection.STATE_DISCONNECTING) {
+            // 主动断开.
+            forget(address);
+            return false;
+        }
+        return entry.scheduleNext();
+    }
+
+    void clear() {
+        for (String address : mEntries.keySet()) {
+            forget(address);
+        }
+    }
+
+    /**
+     * 第 attempt 次重连前的等待时间 (毫秒), 第一次不等待.
+     */
+    private long backoff(BleReconnectPolicy policy, int attempt) {
+        if (attempt <= 1)
+            return 0;
+        final long delay = Math.min(policy.getMaxDelay(),
+                policy.getInitialDelay() << Math.min(attempt - 2, 30));
+        return jitter(policy, delay);
+    }
+
+    private long jitter(BleReconnectPolicy policy, long delay) {
+        return (long) (delay * (1 - policy.getJitter() * mRandom.nextDouble()));
+    }
+
+    private final class Entry implements Runnable {
+        final BleConnection connection;
+        final BleReconnectPolicy policy;
+
+        private int mAttempts;
+        // 已改为后台 autoConnect 后的重连次数.
+        private int mAutoAttempts;
+        private boolean mCancelled;
+
+        Entry(BleConnection connection, BleReconnectPolicy policy) {
+            this.connection = connection;
+            this.policy = policy;
+        }
+
+        synchronized int getAttempts() {
+            return mAttempts;
+        }
+
+        synchronized void reset() {
+            mAttempts = 0;
+            mAutoAttempts = 0;
+        }
+
+        synchronized void cancel() {
+            mCancelled = true;
+            mScheduler.remove(this);
+        }
+
+        void restart() {
+            synchronized (this) {
+                if (mCancelled || connection.getState() != BleConnection.STATE_DISCONNECTED)
+                    return;
+                mAttempts = 0;
+                mAutoAttempts = 0;
+                mScheduler.remove(this);
+            }
+            scheduleNext();
+        }
+
+        /**
+         * 安排下一次重连.
+         * @return
+         *      超过最大次数时放弃 (释放连接) 并返回 false.
+         */
+        boolean scheduleNext() {
+            synchronized (this) {
+                if (mCancelled)
+                    return false;
+                final int max = policy.getMaxAttempts();
+                if (max <= 0 || mAttempts < max) {
+                    mAttempts++;
+                    final long delay;
+                    if (policy.isAutoConnectFallback() && mAttempts > policy.getDirectAttempts()) {
+                        // 后台连接不会超时, 只在发起失败时才会再次进入这里.
+                        delay = mAutoAttempts++ == 0 ? 0 : jitter(policy, policy.getMaxDelay());
+                    } else {
+                        delay = backoff(policy, mAttempts);
+                    }
+                    mScheduler.postDelayed(this, delay);
+                    return true;
+                }
+                LogUtil.d(TAG, "give up after %d attempts : %s", mAttempts,
+                        connection.getAddress());
+                mCancelled = true;
+            }
+            mEntries.remove(connection.getAddress(), this);
+            connection.setResumable(false);
+            connection.close();
+            return false;
+        }
+
+        @Override
+        public void run() {
+            final boolean autoConnect;
+            synchronized (this) {
+                if (mCancelled)
+                    return;
+                autoConnect = mAutoAttempts > 0;
+                LogUtil.d(TAG, "reconnect #%d%s : %s", mAttempts,
+                        autoConnect ? " (auto)" : "", connection.getAddress());
+            }
+            if (!connection.connect(autoConnect) && !scheduleNext())
+                mCallback.onReconnectAbandoned(connection);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.wsj.blesdk;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 扫描参数.
+ */
+
+public class BleScanConfig {
+    /* 扫描模式 (Android 5.0 及以上有效). */
+    public static final int SCAN_MODE_LOW_POWER   = 0;
+    public static final int SCAN_MODE_BALANCED    = 1;
+    public static final int SCAN_MODE_LOW_LATENCY = 2;
+
+    private int mScanMode = SCAN_MODE_LOW_LATENCY;
+    private long mReportDelayMillis = 0;
+    private boolean mForceLegacy = false;
+    private final List<BleScanFilter> mFilters = new ArrayList<>();
+
+    /**
+     * 扫描模式, SCAN_MODE_*.
+     */
+    public BleScanConfig setScanMode(int scanMode) {
+        mScanMode = scanMode;
+        return this;
+    }
+
+    /**
+     * 批量上报延迟, 0 表示立即上报. 控制器不支持批量上报时忽略.
+     */
+    public BleScanConfig setReportDelay(long delayMillis) {
+        mReportDelayMillis = Math.max(0, delayMillis);
+        return this;
+    }
+
+    /**
+     * 强制使用 BluetoothAdapter.startLeScan.
+     */
+    public BleScanConfig setForceLegacy(boolean forceLegacy) {
+        mForceLegacy = forceLegacy;
+        return this;
+    }
+
+    /**
+     * 添加过滤条件, 多个过滤条件满足其一即可.
+     */
+    public BleScanConfig addFilter(BleScanFilter filter) {
+        if (filter != null)
+            mFilters.add(filter);
+        return this;
+    }
+
+    public BleScanConfig clearFilters() {
+        mFilters.clear();
+        return this;
+    }
+
+    public int getScanMode() {
+        return mScanMode;
+    }
+
+    public long getReportDelay() {
+        return mReportDelayMillis;
+    }
+
+    public boolean isForceLegacy() {
+        return mForceLegacy;
+    }
+
+    public List<BleScanFilter> getFilters() {
+        return mFilters;
+    }
+}
@@ -0,0 +1,100 @@
+package com.wsj.blesdk;
+
+import java.util.UUID;
+
+/**
+ * 扫描过滤条件.<br>
+ *     (1) 同一过滤条件中设置的各项需要全部满足, 多个过滤条件满足其一即可.
+ *     (2) Android 5.0 及以上下发给蓝牙控制器过滤, 不匹配的广播不会唤醒应用.
+ *     (3) 低版本在扫描管道中过滤.
+ */
+
+public class BleScanFilter {
+    private String mDeviceName;
+    private String mDeviceAddress;
+    private UUID mServiceUuid;
+    private int mManufacturerId = -1;
+    private byte[] mManufacturerData;
+    private byte[] mManufacturerDataMask;
+
+    /**
+     * 设备名称 (完全匹配).
+     */
+    public BleScanFilter setDeviceName(String name) {
+        mDeviceName = name;
+        return this;
+    }
+
+    /**
+     * 设备地址, 如 "87:83:01:15:98:25".
+     */
+    public BleScanFilter setDeviceAddress(String address) {
+        mDeviceAddress = address == null ? null : address.toUpperCase();
+        return this;
+    }
+
+    /**
+     * 广播的服务 UUID.
+     * @throws IllegalArgumentException uuid 格式错误
+     */
+    public BleScanFilter setServiceUuid(String uuid) {
+        mServiceUuid = uuid == null ? null : UUID.fromString(uuid);
+        return this;
+    }
+
+    /**
+     * 厂商数据.
+     * @param id    厂商 ID
+     * @param data  数据前缀, null 表示只匹配厂商 ID
+     * @param mask  data 的掩码, null 表示全部比较
+     */
+    public BleScanFilter setManufacturerData(int id, byte[] data, byte[] mask) {
+        if (data != null && mask != null && mask.length != data.length)
+            throw new IllegalArgumentException("mask length must equal data length");
+        mManufacturerId = id;
+        mManufacturerData = data == null ? new byte[0] : data.clone();
+        mManufacturerDataMask = mask == null ? null : mask.clone();
+        return this;
+    }
+
+    public String getDeviceName() {
+        return mDeviceName;
+    }
+
+    public String getDeviceAddress() {
+        return mDeviceAddress;
+    }
+
+    public UUID getServiceUuid() {
+        return mServiceUuid;
+    }
+
+    public int getManufacturerId() {
+        return mManufacturerId;
+    }
+
+    public byte[] getManufacturerData() {
+        return mManufacturerData;
+    }
+
+    public byte[] getManufacturerDataMask() {
+        return mManufacturerDataMask;
+    }
+
+    /**
+     * 软件过滤 (低版本扫描).
+     */
+    boolean matches(String name, String address, BleAdvertisement advertisement) {
+        if (mDeviceName != null && !mDeviceName.equals(name))
+            return false;
+        if (mDeviceAddress != null && !mDeviceAddress.equalsIgnoreCase(address))
+            return false;
+        if (mServiceUuid != null && !advertisement.hasServiceUuid(
+                mServiceUuid.getMostSignificantBits(), mServiceUuid.getLeastSignificantBits()))
+            return false;
+        if (mManufacturerId >= 0 && !advertisement.matchesManufacturerData(
+                mManufacturerId, mManufacturerData, mManufacturerDataMask))
+            return false;
+        return true;
+    }
+}
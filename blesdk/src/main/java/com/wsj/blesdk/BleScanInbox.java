@@ -0,0 +1,133 @@
+package com.wsj.blesdk;
+
+import android.bluetooth.BluetoothDevice;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 扫描线程到 SDK 线程的广播队列.<br>
+ *     (1) 多生产者/单消费者环形队列, 槽位在构造时分配, 与 RecordRingBuffer 的领取/发布方式相同.
+ *     (2) 扫描回调 (Binder 线程或主线程) 只领取序号并写入槽位, 不加锁也不分配对象.
+ *     (3) 队列从空变为非空时 offer 返回 true, 调用方安排一次 drain, 不需要每条广播都调度.
+ *     (4) 队列满时丢弃并计数.
+ */
+
+final class BleScanInbox {
+
+    /**
+     * 广播读取接口, 在消费者线程回调.
+     */
+    interface Consumer {
+        void onAdvertisement(String address, BluetoothDevice device, int rssi, byte[] record,
+                             long time);
+    }
+
+    private final String[] mAddresses;
+    private final BluetoothDevice[] mDevices;
+    private final byte[][] mRecords;
+    private final int[] mRssi;
+    private final long[] mTimes;
+    // 每个槽位已发布的序号, 未发布为 -1 或上一轮的序号.
+    private final AtomicLongArray mPublished;
+    private final int mCapacity;
+    private final int mMask;
+
+    // 下一个领取的序号 (生产者).
+    private final AtomicLong mHead = new AtomicLong();
+    // 下一个读取的序号 (消费者).
+    private final AtomicLong mTail = new AtomicLong();
+    // 丢弃的广播数.
+    private final AtomicLong mDropped = new AtomicLong();
+    // 已安排 drain, 由消费者在 drain 开始时清除.
+    private final AtomicBoolean mScheduled = new AtomicBoolean();
+
+    /**
+     * @param capacity  槽位数, 向上取整为 2 的幂
+     */
+    BleScanInbox(int capacity) {
+        int size = Integer.highestOneBit(Math.max(1, capacity));
+        if (size < capacity)
+            size <<= 1;
+        mCapacity = size;
+        mMask = size - 1;
+        mAddresses = new String[size];
+        mDevices = new BluetoothDevice[size];
+        mRecords = new byte[size][];
+        mRssi = new int[size];
+        mTimes = new long[size];
+        mPublished = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            mPublished.set(i, -1);
+        }
+    }
+
+    /**
+     * 写入一条广播 (任意线程).
+     * @return
+     *      需要安排 drain 时返回 true, 已安排或队列满时返回 false.
+     */
+    boolean offer(String address, BluetoothDevice device, int rssi, byte[] record, long time) {
+        long sequence;
+        while (true) {
+            sequence = mHead.get();
+            if (sequence - mTail.get() >= mCapacity) {
+                mDropped.incrementAndGet();
+                return false;
+            }
+            if (mHead.compareAndSet(sequence, sequence + 1))
+                break;
+        }
+        final int index = (int) sequence & mMask;
+        mAddresses[index] = address;
+        mDevices[index] = device;
+        mRecords[index] = record;
+        mRssi[index] = rssi;
+        mTimes[index] = time;
+        // 发布与下面读取 mScheduled 之间不能重排, 这里用 set 而不是 lazySet:
+        // 消费者清除 mScheduled 之后才读取, 不会漏掉已发布但没有安排 drain 的广播.
+        mPublished.set(index, sequence);
+        return !mScheduled.get() && mScheduled.compareAndSet(false, true);
+    }
+
+    /**
+     * 按顺序读取已发布的广播 (仅消费者线程调用), 一次最多读取一轮 (capacity 条).
+     * @param consumer  读取回调, null 表示丢弃
+     * @return
+     *      读取的条数.
+     */
+    int drain(Consumer consumer) {
+        mScheduled.set(false);
+        long tail = mTail.get();
+        int count = 0;
+        while (count < mCapacity) {
+            final int index = (int) tail & mMask;
+            if (mPublished.get(index) != tail)
+                break;
+            final String address = mAddresses[index];
+            final BluetoothDevice device = mDevices[index];
+            final byte[] record = mRecords[index];
+            final int rssi = mRssi[index];
+            final long time = mTimes[index];
+            // 不再持有广播数据.
+            mAddresses[index] = null;
+            mDevices[index] = null;
+            mRecords[index] = null;
+            tail++;
+            count++;
+            // 读完即释放槽位.
+            mTail.lazySet(tail);
+            if (consumer != null)
+                consumer.onAdvertisement(address, device, rssi, record, time);
+        }
+        return count;
+    }
+
+    /**
+     * 丢弃的广播总数.
+     */
+    long getDropped() {
+        return mDropped.get();
+    }
+}
@@ -0,0 +1,18 @@
+package com.wsj.blesdk;
+
+import java.util.List;
+
+/**
+ * 扫描批量回调.
+ */
+
+public interface BleScanListener {
+    /**
+     * 一个批次内新发现和再次扫描到的设备.<br>
+     *     列表由 SDK 复用, 只在回调期间有效, 需要保留时自行拷贝.
+     * @param discovered  新发现的设备
+     * @param updated     再次扫描到的设备 (信号强度/时间已更新)
+     */
+    public void onBleScanBatch(final List<BluetoothInfo> discovered,
+                               final List<BluetoothInfo> updated);
+}
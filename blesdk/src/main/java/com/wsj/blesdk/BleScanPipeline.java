@@ -0,0 +1,420 @@
+package com.wsj.blesdk;
+
+import android.bluetooth.BluetoothDevice;
+
+import com.wsj.blesdk.utils.LogUtil;
+import com.wsj.blesdk.utils.MacAddress;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.wsj.blesdk.BleConstants.BLE_DEFAULT_DEVICE_TTL;
+import static com.wsj.blesdk.BleConstants.BLE_DEFAULT_MAX_DEVICES;
+
+/**
+ * 扫描管道.<br>
+ *     (1) 以 long 形式的 MAC 地址保存设备, 已知设备的广播不分配对象.
+ *     (2) 只在首次发现设备时查询名称并过滤, 未通过过滤的设备定时重新检查.
+ *     (3) 新发现/再次扫描到的设备先记入待回调批次, 由 BleManager 定时批量回调.
+ *     (4) 通过过滤的设备解析广播数据, 按服务 UUID 和厂商 ID 建立索引.
+ *     (5) 通过过滤的设备的 RSSI 送入 BleProximityEngine 估算距离.
+ *     (6) 设备数超过上限时淘汰最久未见的设备, 超过 TTL 未收到广播的设备由 prune 淘汰,
+ *         通过过滤的设备被淘汰时记入待回调的丢失批次. 已连接的设备固定, 不淘汰.
+ *     (7) 不加锁, 单写线程: 扫描回调只把广播写入 BleScanInbox, 设备表只由 SDK 线程在
+ *         process 中修改 (标注 SDK 线程的方法都只能在该线程调用).
+ *         get, contains 和 find 查询读取并发的设备表和索引, getNearest 读取 publish 发布的排序,
+ *         可以在任意线程调用. 过滤条件可以在任意线程设置, 从下一条处理的广播开始生效.
+ */
+
+final class BleScanPipeline {
+    // TAG
+    private static final String TAG = "BleScanPipeline";
+    // 未通过过滤的设备重新检查的间隔 (毫秒).
+    private static final long REJECT_RECHECK_INTERVAL = 1000;
+    // 等待处理的广播数上限.
+    private static final int INBOX_CAPACITY = 1024;
+    private static final BluetoothInfo[] EMPTY = new BluetoothInfo[0];
+
+    private final BleScanInbox mInbox = new BleScanInbox(INBOX_CAPACITY);
+    private final BleDeviceRegistry mDevices = new BleDeviceRegistry();
+    // 通过过滤的设备, 供任意线程查询.
+    private final ConcurrentHashMap<Long, BluetoothInfo> mAccepted = new ConcurrentHashMap<>();
+    private final BleProximityEngine mProximity = new BleProximityEngine();
+    private final ArrayList<BluetoothInfo> mPendingDiscovered = new ArrayList<>();
+    private final ArrayList<BluetoothInfo> mPendingUpdated = new ArrayList<>();
+    private final ArrayList<BluetoothInfo> mPendingLost = new ArrayList<>();
+    // 按距离升序的设备, 由 publish 发布.
+    private volatile BluetoothInfo[] mNearest = EMPTY;
+    // 已报告的丢弃广播数.
+    private long mReportedDrops;
+
+    // 未收到广播多久后淘汰 (毫秒), 0 表示不按时间淘汰.
+    private volatile long mDeviceTtl = BLE_DEFAULT_DEVICE_TTL;
+    // 设备数上限 (含未通过过滤的设备).
+    private volatile int mMaxDevices = BLE_DEFAULT_MAX_DEVICES;
+
+    // 设备名称过滤
+    private volatile String mNamePrefixFilter = null;
+    // 软件过滤条件 (系统不支持 ScanFilter 时).
+    private volatile List<BleScanFilter> mSoftwareFilters = null;
+
+    // 处理收件箱中的广播.
+    private final BleScanInbox.Consumer mApply = new BleScanInbox.Consumer() {
+        @Override
+        public void onAdvertisement(String address, BluetoothDevice device, int rssi,
+                                    byte[] record, long time) {
+            apply(address, device, rssi, record, time);
+        }
+    };
+
+    void setNameFilter(String namePrefix) {
+        mNamePrefixFilter = namePrefix;
+    }
+
+    /**
+     * 设置软件过滤条件, null 表示由系统过滤.
+     */
+    void setSoftwareFilters(List<BleScanFilter> filters) {
+        mSoftwareFilters = filters == null || filters.isEmpty()
+                ? null : new ArrayList<>(filters);
+    }
+
+    void setRssiFilter(int filter) {
+        mProximity.setFilter(filter);
+    }
+
+    void setPathLossExponent(double exponent) {
+        mProximity.setPathLossExponent(exponent);
+    }
+
+    void setDeviceTtl(long ttlMillis) {
+        mDeviceTtl = Math.max(0, ttlMillis);
+    }
+
+    /**
+     * 设置设备数上限, 超出的设备在下次 process 时淘汰.
+     */
+    void setMaxDevices(int max) {
+        mMaxDevices = Math.max(1, max);
+    }
+
+    /**
+     * 设备数 (含未通过过滤的设备, SDK 线程).
+     */
+    int size() {
+        return mDevices.size();
+    }
+
+    /**
+     * 收到一条广播 (扫描回调线程), 写入收件箱等待 process 处理.
+     * @param address  设备地址
+     * @param device   设备, 只用于读取名称 (按需调用), 可为 null
+     * @param rssi     信号强度
+     * @param record   广播数据
+     * @param now      当前时间 (毫秒)
+     * @return
+     *      需要安排一次 process 时返回 true.
+     */
+    boolean onAdvertisement(String address, BluetoothDevice device, int rssi, byte[] record,
+                            long now) {
+        return mInbox.offer(address, device, rssi, record, now);
+    }
+
+    /**
+     * 处理收件箱中的广播 (SDK 线程), 并按当前上限淘汰设备.
+     * @return
+     *      处理的广播数.
+     */
+    int process() {
+        evictOverflow(null);
+        final int count = mInbox.drain(mApply);
+        final long dropped = mInbox.getDropped();
+        if (dropped != mReportedDrops) {
+            LogUtil.w(TAG, "%d advertisements dropped", dropped - mReportedDrops);
+            mReportedDrops = dropped;
+        }
+        return count;
+    }
+
+    /**
+     * 处理一条广播.
+     * @return
+     *      设备信息, 未通过过滤时返回 null.
+     */
+    private BluetoothInfo apply(String address, BluetoothDevice device, int rssi, byte[] record,
+                                long now) {
+        final long mac = MacAddress.toLong(address);
+        if (mac == MacAddress.INVALID)
+            return null;
+        BluetoothInfo info = mDevices.get(mac);
+        if (info == null) {
+            info = new BluetoothInfo(address, device == null ? null : device.getName());
+            info.nameCheckTime = now;
+            info.updateAdvertisement(record);
+            info.setRssi(rssi);
+            info.setLastSeen(now);
+            mDevices.put(info);
+            evictOverflow(info);
+            return accept(info, rssi);
+        }
+        info.setRssi(rssi);
+        info.setLastSeen(now);
+        mDevices.touch(info);
+        if (!info.accepted) {
+            if (now - info.nameCheckTime < REJECT_RECHECK_INTERVAL)
+                return null;
+            // 名称和扫描响应可能稍后才可用.
+            info.nameCheckTime = now;
+            if (info.getName() == null && device != null)
+                info.setName(device.getName());
+            info.updateAdvertisement(record);
+            return accept(info, rssi);
+        }
+        updateAdvertisement(info, record);
+        mProximity.update(info, rssi, info.getAdvertisement().getTxPower());
+        if (!info.pending) {
+            info.pending = true;
+            mPendingUpdated.add(info);
+        }
+        return info;
+    }
+
+    /**
+     * 记录连接中读取的信号强度 (SDK 线程).
+     */
+    void onRemoteRssi(String address, int rssi) {
+        final BluetoothInfo info = get(address);
+        if (info == null)
+            return;
+        info.setRssi(rssi);
+        mProximity.update(info, rssi, info.getAdvertisement().getTxPower());
+    }
+
+    /**
+     * 淘汰超过 TTL 未收到广播的设备 (SDK 线程).
+     * @return
+     *      淘汰的设备数.
+     */
+    int prune(long now) {
+        final long ttl = mDeviceTtl;
+        if (ttl <= 0)
+            return 0;
+        int count = 0;
+        BluetoothInfo oldest;
+        while ((oldest = mDevices.oldest()) != null && now - oldest.getLastSeen() >= ttl) {
+            evict(oldest);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * 固定设备 (已连接), 不被淘汰, 清空时保留. 设备可以尚未扫描到 (SDK 线程).
+     */
+    void pin(String address) {
+        final long mac = MacAddress.toLong(address);
+        if (mac != MacAddress.INVALID)
+            mDevices.pin(mac);
+    }
+
+    /**
+     * 取消固定 (连接结束), 从 now 开始计算 TTL (SDK 线程).
+     */
+    void unpin(String address, long now) {
+        final long mac = MacAddress.toLong(address);
+        if (mac == MacAddress.INVALID || !mDevices.isPinned(mac))
+            return;
+        final BluetoothInfo info = mDevices.get(mac);
+        if (info != null)
+            info.setLastSeen(now);
+        mDevices.unpin(mac);
+    }
+
+    /**
+     * 发布距离排序 (SDK 线程), 排序没有变化时不复制.
+     */
+    void publish() {
+        final BluetoothInfo[] order = mProximity.takeOrder();
+        if (order != null)
+            mNearest = order;
+    }
+
+    /**
+     * 距离最近的 n 台设备, 按距离升序 (任意线程, 上次 publish 时的排序).
+     */
+    void getNearest(int n, List<BluetoothInfo> out) {
+        final BluetoothInfo[] nearest = mNearest;
+        final int count = Math.min(n, nearest.length);
+        for (int i = 0; i < count; i++) {
+            out.add(nearest[i]);
+        }
+    }
+
+    /**
+     * 设备最近的 RSSI 历史, 从旧到新 (任意线程).
+     * @return
+     *      写入 out 的个数.
+     */
+    int getRssiHistory(String address, int[] out) {
+        final BluetoothInfo info = get(address);
+        return info == null ? 0 : BleProximityEngine.getHistory(info, out);
+    }
+
+    /**
+     * 取出待回调批次 (SDK 线程).
+     * @return
+     *      批次是否非空.
+     */
+    boolean drain(List<BluetoothInfo> discovered, List<BluetoothInfo> updated) {
+        if (mPendingDiscovered.isEmpty() && mPendingUpdated.isEmpty())
+            return false;
+        for (int i = 0; i < mPendingDiscovered.size(); i++) {
+            BluetoothInfo info = mPendingDiscovered.get(i);
+            info.pending = false;
+            discovered.add(info);
+        }
+        for (int i = 0; i < mPendingUpdated.size(); i++) {
+            BluetoothInfo info = mPendingUpdated.get(i);
+            info.pending = false;
+            updated.add(info);
+        }
+        mPendingDiscovered.clear();
+        mPendingUpdated.clear();
+        return true;
+    }
+
+    /**
+     * 取出被淘汰的设备 (只含通过过滤的设备, SDK 线程).
+     * @return
+     *      是否非空.
+     */
+    boolean drainLost(List<BluetoothInfo> lost) {
+        if (mPendingLost.isEmpty())
+            return false;
+        lost.addAll(mPendingLost);
+        mPendingLost.clear();
+        return true;
+    }
+
+    /**
+     * 获取已通过过滤的设备 (任意线程).
+     */
+    BluetoothInfo get(String address) {
+        final long mac = MacAddress.toLong(address);
+        if (mac == MacAddress.INVALID)
+            return null;
+        return mAccepted.get(mac);
+    }
+
+    boolean contains(String address) {
+        return get(address) != null;
+    }
+
+    /**
+     * 查找广播了指定服务且信号强度不低于 minRssi 的设备 (任意线程).
+     */
+    void findByService(long msb, long lsb, int minRssi, List<BluetoothInfo> out) {
+        mDevices.findByService(msb, lsb, minRssi, out);
+    }
+
+    /**
+     * 查找包含指定厂商数据且信号强度不低于 minRssi 的设备 (任意线程).
+     */
+    void findByManufacturer(int id, int minRssi, List<BluetoothInfo> out) {
+        mDevices.findByManufacturer(id, minRssi, out);
+    }
+
+    /**
+     * 清空设备和未处理的广播, 固定的设备保留, 其中通过过滤的设备写入 retained.
+     *     被清空的设备不记入丢失批次 (SDK 线程).
+     */
+    void clear(List<BluetoothInfo> retained) {
+        mInbox.drain(null);
+        mDevices.clear();
+        mProximity.clear();
+        mPendingDiscovered.clear();
+        mPendingUpdated.clear();
+        mPendingLost.clear();
+        mDevices.forEachPinned(retained);
+        mAccepted.clear();
+        for (int i = 0; i < retained.size(); i++) {
+            final BluetoothInfo info = retained.get(i);
+            info.pending = false;
+            mAccepted.put(info.getMac(), info);
+        }
+        publish();
+    }
+
+    /**
+     * 设备数超过上限时从最久未见的设备开始淘汰, 不淘汰 keep.
+     */
+    private void evictOverflow(BluetoothInfo keep) {
+        final int max = mMaxDevices;
+        BluetoothInfo oldest;
+        while (mDevices.size() > max
+                && (oldest = mDevices.oldest()) != null && oldest != keep) {
+            evict(oldest);
+        }
+    }
+
+    /**
+     * 删除设备, 通过过滤的设备记入丢失批次.
+     */
+    private void evict(BluetoothInfo info) {
+        mDevices.remove(info.getMac());
+        mProximity.remove(info);
+        if (info.pending) {
+            info.pending = false;
+            mPendingDiscovered.remove(info);
+            mPendingUpdated.remove(info);
+        }
+        if (info.accepted) {
+            mAccepted.remove(info.getMac());
+            mPendingLost.add(info);
+        }
+    }
+
+    /**
+     * 解析广播数据, 内容变化时重建索引.
+     */
+    private void updateAdvertisement(BluetoothInfo info, byte[] record) {
+        if (info.updateAdvertisement(record))
+            mDevices.reindex(info);
+    }
+
+    /**
+     * 检查过滤条件, 通过时建立索引并记入待回调批次.
+     */
+    private BluetoothInfo accept(BluetoothInfo info, int rssi) {
+        info.accepted = shouldSaveDevice(info);
+        if (!info.accepted)
+            return null;
+        mDevices.reindex(info);
+        mAccepted.put(info.getMac(), info);
+        mProximity.update(info, rssi, info.getAdvertisement().getTxPower());
+        info.pending = true;
+        mPendingDiscovered.add(info);
+        return info;
+    }
+
+    /**
+     * 是否保存该设备.<br>
+     *     (1) 对设备名称进行条件过滤.
+     *     (2) 系统不支持 ScanFilter 时检查扫描过滤条件.
+     */
+    private boolean shouldSaveDevice(final BluetoothInfo info) {
+        final String name = info.getName();
+        final String prefix = mNamePrefixFilter;
+        if (prefix != null && (name == null || !name.startsWith(prefix)))
+            return false;
+        final List<BleScanFilter> filters = mSoftwareFilters;
+        if (filters == null)
+            return true;
+        for (int i = 0; i < filters.size(); i++) {
+            if (filters.get(i).matches(name, info.getAddress(), info.getAdvertisement()))
+                return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,30 @@
+package com.wsj.blesdk;
+
+import android.bluetooth.BluetoothDevice;
+
+/**
+ * 扫描器.<br>
+ *     BleLegacyScanner : BluetoothAdapter.startLeScan, 过滤在扫描管道中完成.
+ *     BleLollipopScanner : BluetoothLeScanner, 过滤条件下发给控制器.
+ */
+
+interface BleScanner {
+
+    /**
+     * 扫描结果回调.
+     */
+    interface Callback {
+        void onAdvertisement(BluetoothDevice device, int rssi, byte[] scanRecord);
+
+        void onScanFailed(int errorCode);
+    }
+
+    boolean start(BleScanConfig config);
+
+    void stop();
+
+    /**
+     * 过滤条件是否由系统完成.
+     */
+    boolean filtersInHardware();
+}
@@ -0,0 +1,21 @@
+package com.wsj.blesdk;
+
+/**
+ * 时钟与定时任务.<br>
+ *     连接, 操作队列和发送管道只通过该接口取时间和延时执行,
+ *     Android 上由 BleHandlerScheduler 实现, 测试中可替换为虚拟时钟.
+ */
+
+interface BleScheduler {
+
+    /**
+     * 单调时间 (毫秒).
+     */
+    long now();
+
+    void post(Runnable task);
+
+    void postDelayed(Runnable task, long delayMillis);
+
+    void remove(Runnable task);
+}
@@ -0,0 +1,90 @@
+package com.wsj.blesdk;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 事件源 (热流), 一个事件对象回调给所有订阅者.<br>
+ *     订阅者保存在写时复制的数组中, emit 不加锁也不分配; 没有订阅者时调用方可跳过创建事件.
+ */
+
+final class BleSubject<T> extends BleFlow<T> {
+    private static final Entry[] EMPTY = new Entry[0];
+
+    private final AtomicReference<Entry[]> mEntries = new AtomicReference<>(EMPTY);
+
+    BleSubject(BleScheduler scheduler) {
+        super(scheduler);
+    }
+
+    boolean hasSubscribers() {
+        return mEntries.get().length > 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    void emit(T event) {
+        for (Entry entry : mEntries.get()) {
+            if (!entry.mCancelled)
+                ((BleObserver<? super T>) entry.mObserver).onEvent(event);
+        }
+    }
+
+    @Override
+    public BleSubscription subscribe(BleObserver<? super T> observer) {
+        final Entry entry = new Entry(this, observer);
+        while (true) {
+            final Entry[] current = mEntries.get();
+            final Entry[] next = new Entry[current.length + 1];
+            System.arraycopy(current, 0, next, 0, current.length);
+            next[current.length] = entry;
+            if (mEntries.compareAndSet(current, next))
+                return entry;
+        }
+    }
+
+    private void remove(Entry entry) {
+        while (true) {
+            final Entry[] current = mEntries.get();
+            int index = -1;
+            for (int i = 0; i < current.length; i++) {
+                if (current[i] == entry) {
+                    index = i;
+                    break;
+                }
+            }
+            if (index < 0)
+                return;
+            final Entry[] next = current.length == 1 ? EMPTY : new Entry[current.length - 1];
+            System.arraycopy(current, 0, next, 0, index);
+            System.arraycopy(current, index + 1, next, index, current.length - index - 1);
+            if (mEntries.compareAndSet(current, next))
+                return;
+        }
+    }
+
+    private static final class Entry implements BleSubscription {
+        final BleSubject<?> mSubject;
+        final BleObserver<?> mObserver;
+        volatile boolean mCancelled;
+
+        Entry(BleSubject<?> subject, BleObserver<?> observer) {
+            mSubject = subject;
+            mObserver = observer;
+        }
+
+        @Override
+        public void cancel() {
+            mCancelled = true;
+            mSubject.remove(this);
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+
+        @Override
+        public long getDropped() {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package com.wsj.blesdk;
+
+/**
+ * BleFlow.subscribe 返回的订阅.
+ */
+
+public interface BleSubscription {
+    /**
+     * 取消订阅, 之后不再回调 (已在回调中的事件除外).
+     */
+    public void cancel();
+
+    public boolean isCancelled();
+
+    /**
+     * 因订阅者处理不及 (observeOn 缓冲已满) 丢弃的事件数.
+     */
+    public long getDropped();
+}
@@ -0,0 +1,68 @@
+package com.wsj.blesdk;
+
+import static com.wsj.blesdk.BleConstants.BLE_CONNECTION_PRIORITY_BALANCED;
+import static com.wsj.blesdk.BleConstants.BLE_CONNECTION_PRIORITY_HIGH;
+import static com.wsj.blesdk.BleConstants.BLE_DEFAULT_MTU;
+import static com.wsj.blesdk.BleConstants.BLE_MAX_MTU;
+import static com.wsj.blesdk.BleConstants.BLE_PHY_LE_2M;
+
+/**
+ * 连接参数协商配置.<br>
+ *     连接建立后 (服务发现前) 依次请求连接优先级, PHY 和 MTU.
+ *     发送数据期间使用批量优先级, 结束后恢复空闲优先级.
+ */
+
+public class BleThroughputProfile {
+    private int mMtu = 247;
+    private int mPhy = BLE_PHY_LE_2M;
+    private int mBulkPriority = BLE_CONNECTION_PRIORITY_HIGH;
+    private int mIdlePriority = BLE_CONNECTION_PRIORITY_BALANCED;
+
+    /**
+     * 期望的 ATT MTU (Android 5.0 及以上), BLE_DEFAULT_MTU 表示不请求.
+     */
+    public BleThroughputProfile setMtu(int mtu) {
+        mMtu = Math.max(BLE_DEFAULT_MTU, Math.min(BLE_MAX_MTU, mtu));
+        return this;
+    }
+
+    /**
+     * 期望的 PHY (Android 8.0 及以上), BleConstants.BLE_PHY_LE_* 的组合, 0 表示不请求.
+     */
+    public BleThroughputProfile setPhy(int phyMask) {
+        mPhy = phyMask;
+        return this;
+    }
+
+    /**
+     * 发送数据期间的连接优先级, BleConstants.BLE_CONNECTION_PRIORITY_*.
+     */
+    public BleThroughputProfile setBulkPriority(int priority) {
+        mBulkPriority = priority;
+        return this;
+    }
+
+    /**
+     * 空闲时的连接优先级, BleConstants.BLE_CONNECTION_PRIORITY_*.
+     */
+    public BleThroughputProfile setIdlePriority(int priority) {
+        mIdlePriority = priority;
+        return this;
+    }
+
+    public int getMtu() {
+        return mMtu;
+    }
+
+    public int getPhy() {
+        return mPhy;
+    }
+
+    public int getBulkPriority() {
+        return mBulkPriority;
+    }
+
+    public int getIdlePriority() {
+        return mIdlePriority;
+    }
+}
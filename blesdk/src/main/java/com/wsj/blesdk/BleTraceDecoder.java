@@ -0,0 +1,273 @@
+package com.wsj.blesdk;
+
+import com.wsj.blesdk.utils.MacAddress;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+import static com.wsj.blesdk.BleTraceRecorder.HEADER_SIZE;
+import static com.wsj.blesdk.BleTraceRecorder.MAGIC;
+import static com.wsj.blesdk.BleTraceRecorder.OP_ADVERTISEMENT;
+import static com.wsj.blesdk.BleTraceRecorder.OP_CHARACTERISTIC_CHANGED;
+import static com.wsj.blesdk.BleTraceRecorder.OP_CHARACTERISTIC_READ;
+import static com.wsj.blesdk.BleTraceRecorder.OP_CHARACTERISTIC_WRITE;
+import static com.wsj.blesdk.BleTraceRecorder.OP_CONNECTION_STATE;
+import static com.wsj.blesdk.BleTraceRecorder.OP_DESCRIPTOR_READ;
+import static com.wsj.blesdk.BleTraceRecorder.OP_DESCRIPTOR_WRITE;
+import static com.wsj.blesdk.BleTraceRecorder.OP_DROPPED;
+import static com.wsj.blesdk.BleTraceRecorder.OP_MTU_CHANGED;
+import static com.wsj.blesdk.BleTraceRecorder.OP_PHY_UPDATE;
+import static com.wsj.blesdk.BleTraceRecorder.OP_READ_RSSI;
+import static com.wsj.blesdk.BleTraceRecorder.OP_RELIABLE_WRITE;
+import static com.wsj.blesdk.BleTraceRecorder.OP_SCAN_FAILED;
+import static com.wsj.blesdk.BleTraceRecorder.OP_SERVICES_DISCOVERED;
+import static com.wsj.blesdk.BleTraceRecorder.PAYLOAD_SIZE;
+import static com.wsj.blesdk.BleTraceRecorder.RECORD_SIZE;
+import static com.wsj.blesdk.BleTraceRecorder.VERSION;
+
+/**
+ * 离线解析 BleTraceRecorder 的跟踪文件.<br>
+ *     (1) 不依赖 Android, 可在 PC 上运行 (命令行入口见 blesdk-bench 的 BleTraceTool):
+ *         ./gradlew :blesdk-bench:traceDump -PtraceFiles=目录或文件...
+ *     (2) 记录按文件顺序输出为时间线, 时间由文件头的创建时间换算.
+ */
+
+public class BleTraceDecoder {
+
+    /**
+     * 一条跟踪记录.
+     */
+    public static final class Event {
+        private final long mTimeMillis;
+        private final long mNanos;
+        private final long mAddress;
+        private final int mOp;
+        private final int mStatus;
+        private final int mArgument;
+        private final long mCharacteristic;
+        private final int mLength;
+        private final byte[] mPayload;
+
+        Event(long timeMillis, long nanos, long address, int op, int status, int argument,
+              long characteristic, int length, byte[] payload) {
+            mTimeMillis = timeMillis;
+            mNanos = nanos;
+            mAddress = address;
+            mOp = op;
+            mStatus = status;
+            mArgument = argument;
+            mCharacteristic = characteristic;
+            mLength = length;
+            mPayload = payload;
+        }
+
+        /**
+         * 事件时间 (System.currentTimeMillis 时基).
+         */
+        public long getTimeMillis() {
+            return mTimeMillis;
+        }
+
+        /**
+         * 记录时的 System.nanoTime, 用于计算间隔.
+         */
+        public long getNanos() {
+            return mNanos;
+        }
+
+        /**
+         * 设备地址, 没有地址的事件 (扫描失败等) 返回 null.
+         */
+        public String getAddress() {
+            return mAddress == 0 || mAddress == MacAddress.INVALID
+                    ? null : MacAddress.toString(mAddress);
+        }
+
+        public int getOp() {
+            return mOp;
+        }
+
+        public int getStatus() {
+            return mStatus;
+        }
+
+        public int getArgument() {
+            return mArgument;
+        }
+
+        /**
+         * 特征值 UUID 的高 64 位, 16 位 UUID 为 (getCharacteristic() >>> 32) & 0xffff.
+         */
+        public long getCharacteristic() {
+            return mCharacteristic;
+        }
+
+        /**
+         * 原始数据长度, 记录中最多只保存 24 字节.
+         */
+        public int getLength() {
+            return mLength;
+        }
+
+        public byte[] getPayload() {
+            return mPayload.clone();
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder sb = new StringBuilder();
+            final String address = getAddress();
+            sb.append(address == null ? "-" : address).append(' ').append(opName(mOp));
+            switch (mOp) {
+                case OP_CONNECTION_STATE:
+                    sb.append(mArgument != 0 ? " connected" : " disconnected");
+                    break;
+                case OP_READ_RSSI:
+                case OP_ADVERTISEMENT:
+                    sb.append(" rssi=").append(mArgument);
+                    break;
+                case OP_MTU_CHANGED:
+                    sb.append(" mtu=").append(mArgument);
+                    break;
+                case OP_PHY_UPDATE:
+                    sb.append(" tx=").append(mArgument >>> 16).append(" rx=")
+                            .append(mArgument & 0xffff);
+                    break;
+                case OP_SERVICES_DISCOVERED:
+                    sb.append(" services=").append(mArgument);
+                    break;
+                case OP_DESCRIPTOR_READ:
+                case OP_DESCRIPTOR_WRITE:
+                    sb.append(String.format(Locale.US, " descriptor=%04x", mArgument));
+                    break;
+                case OP_DROPPED:
+                    sb.append(" count=").append(mArgument);
+                    break;
+                default:
+                    break;
+            }
+            if (mOp != OP_DROPPED && mOp != OP_ADVERTISEMENT)
+                sb.append(" status=").append(mStatus);
+            if (mCharacteristic != 0)
+                sb.append(String.format(Locale.US, " uuid=%08x", mCharacteristic >>> 32));
+            if (mLength > 0) {
+                sb.append(" len=").append(mLength).append(' ');
+                for (byte b : mPayload) {
+                    sb.append(String.format(Locale.US, "%02x", b & 0xff));
+                }
+                if (mLength > mPayload.length)
+                    sb.append("..");
+            }
+            return sb.toString();
+        }
+    }
+
+    private BleTraceDecoder() {
+    }
+
+    /**
+     * 目录中的跟踪文件, 按创建顺序.
+     */
+    public static List<File> listFiles(File dir) {
+        return Arrays.asList(BleTraceRecorder.listFiles(dir));
+    }
+
+    /**
+     * 读取一个跟踪文件.
+     * @throws IOException  读取失败或不是跟踪文件
+     */
+    public static List<Event> read(File file) throws IOException {
+        final List<Event> events = new ArrayList<>();
+        final DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC)
+                throw new IOException("not a trace file : " + file);
+            final int version = in.readInt();
+            final int recordSize = in.readInt();
+            if (version != VERSION || recordSize != RECORD_SIZE)
+                throw new IOException("unsupported trace version " + version + " : " + file);
+            in.readInt();
+            final long baseMillis = in.readLong();
+            final long baseNanos = in.readLong();
+            skip(in, HEADER_SIZE - 32);
+            final byte[] payload = new byte[PAYLOAD_SIZE];
+            // 文件大小不是记录长度的整数倍时, 末尾不足一条的部分忽略.
+            final int records = (int) ((file.length() - HEADER_SIZE) / RECORD_SIZE);
+            for (int i = 0; i < records; i++) {
+                final long nanos = in.readLong();
+                final long address = in.readLong();
+                final long header = in.readLong();
+                final long characteristic = in.readLong();
+                final int length = (int) (in.readLong() >>> 32);
+                in.readFully(payload);
+                final int op = (int) (header >>> 48);
+                // 文件未写满的部分为 0.
+                if (op == 0)
+                    break;
+                events.add(new Event(baseMillis + (nanos - baseNanos) / 1000000, nanos,
+                        address, op, (int) (header >>> 32) & 0xffff, (int) header,
+                        characteristic, length,
+                        Arrays.copyOf(payload, Math.min(length, PAYLOAD_SIZE))));
+            }
+        } finally {
+            in.close();
+        }
+        return events;
+    }
+
+    /**
+     * 按顺序读取多个跟踪文件并输出时间线, 每行一条记录:
+     *     时间  距上一条的间隔  地址 操作 参数...
+     */
+    public static void writeTimeline(List<File> files, PrintStream out) throws IOException {
+        final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS",
+                Locale.US);
+        long last = 0;
+        for (File file : files) {
+            out.println("# " + file.getName());
+            for (Event event : read(file)) {
+                final long delta = last == 0 ? 0 : event.getNanos() - last;
+                last = event.getNanos();
+                out.println(String.format(Locale.US, "%s %+10.3fms %s",
+                        format.format(new Date(event.getTimeMillis())), delta / 1e6, event));
+            }
+        }
+    }
+
+    public static String opName(int op) {
+        switch (op) {
+            case OP_CONNECTION_STATE:       return "CONNECTION_STATE";
+            case OP_SERVICES_DISCOVERED:    return "SERVICES_DISCOVERED";
+            case OP_CHARACTERISTIC_READ:    return "CHARACTERISTIC_READ";
+            case OP_CHARACTERISTIC_WRITE:   return "CHARACTERISTIC_WRITE";
+            case OP_CHARACTERISTIC_CHANGED: return "CHARACTERISTIC_CHANGED";
+            case OP_DESCRIPTOR_READ:        return "DESCRIPTOR_READ";
+            case OP_DESCRIPTOR_WRITE:       return "DESCRIPTOR_WRITE";
+            case OP_READ_RSSI:              return "READ_RSSI";
+            case OP_MTU_CHANGED:            return "MTU_CHANGED";
+            case OP_PHY_UPDATE:             return "PHY_UPDATE";
+            case OP_ADVERTISEMENT:          return "ADVERTISEMENT";
+            case OP_SCAN_FAILED:            return "SCAN_FAILED";
+            case OP_DROPPED:                return "DROPPED";
+            case OP_RELIABLE_WRITE:         return "RELIABLE_WRITE";
+            default:                        return "OP_" + op;
+        }
+    }
+
+    private static void skip(DataInputStream in, int bytes) throws IOException {
+        if (in.skipBytes(bytes) != bytes)
+            throw new EOFException();
+    }
+}
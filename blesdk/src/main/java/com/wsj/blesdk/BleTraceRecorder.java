@@ -0,0 +1,346 @@
+package com.wsj.blesdk;
+
+import com.wsj.blesdk.utils.LogUtil;
+import com.wsj.blesdk.utils.RecordRingBuffer;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * BLE 会话二进制跟踪.<br>
+ *     (1) GATT 回调和扫描事件记为定长记录 (64 字节), 写入无锁环形缓冲区,
+ *         回调线程上不加锁也不分配对象.
+ *     (2) 后台线程定时把记录写入内存映射文件, 文件写满后换下一个, 只保留最近 maxFiles 个.
+ *     (3) 缓冲区满时丢弃记录, 后台线程在文件中记一条 OP_DROPPED.
+ *     (4) 文件由 BleTraceDecoder 解析为时间线.
+ *     文件格式 (大端):
+ *         文件头 64 字节: [魔数 "BLET", 版本, 记录长度, 保留, 创建时间 (毫秒), 创建时的 nanoTime, 0...]
+ *         记录: [nanoTime, 地址, 操作 << 48 | 状态 << 32 | 参数,
+ *                特征值 UUID 高 64 位, 数据长度 << 32, 数据前 24 字节]
+ *         操作为 0 的记录表示文件结束.
+ */
+
+public class BleTraceRecorder {
+    // TAG
+    private static final String TAG = "BleTraceRecorder";
+
+    /* 记录的操作. */
+    public static final int OP_CONNECTION_STATE      = 1;
+    public static final int OP_SERVICES_DISCOVERED   = 2;
+    public static final int OP_CHARACTERISTIC_READ   = 3;
+    public static final int OP_CHARACTERISTIC_WRITE  = 4;
+    public static final int OP_CHARACTERISTIC_CHANGED = 5;
+    public static final int OP_DESCRIPTOR_READ       = 6;
+    public static final int OP_DESCRIPTOR_WRITE      = 7;
+    public static final int OP_READ_RSSI             = 8;
+    public static final int OP_MTU_CHANGED           = 9;
+    public static final int OP_PHY_UPDATE            = 10;
+    public static final int OP_ADVERTISEMENT         = 11;
+    public static final int OP_SCAN_FAILED           = 12;
+    public static final int OP_DROPPED               = 13;
+    public static final int OP_RELIABLE_WRITE        = 14;
+
+    static final int MAGIC          = 0x424c4554; // "BLET"
+    static final int VERSION        = 1;
+    static final int HEADER_SIZE    = 64;
+    static final int RECORD_SIZE    = 64;
+    static final int RECORD_LONGS   = RECORD_SIZE / 8;
+    // 记录中保存的数据字节数.
+    static final int PAYLOAD_SIZE   = 24;
+    static final String FILE_PREFIX = "ble_trace_";
+    static final String FILE_SUFFIX = ".bin";
+
+    private final File mDir;
+    private int mCapacity = 4096;
+    private int mFileSize = 1024 * 1024;
+    private int mMaxFiles = 4;
+    private long mFlushInterval = 200;
+
+    private RecordRingBuffer mBuffer;
+    private volatile boolean mRunning = false;
+    private Thread mWriter;
+
+    /* 后台线程的状态. */
+    private RandomAccessFile mFile;
+    private MappedByteBuffer mMapped;
+    private int mFileIndex;
+    private long mReportedDrops;
+    private final long[] mDropRecord = new long[RECORD_LONGS];
+
+    private final RecordRingBuffer.RecordReader mReader = new RecordRingBuffer.RecordReader() {
+        @Override
+        public void onRecord(long[] data, int offset) {
+            write(data, offset);
+        }
+    };
+
+    /**
+     * @param dir  跟踪文件目录
+     */
+    public BleTraceRecorder(File dir) {
+        mDir = dir;
+    }
+
+    /**
+     * 环形缓冲区的记录数, 需在 start 之前设置.
+     */
+    public BleTraceRecorder setCapacity(int records) {
+        mCapacity = Math.max(1, records);
+        return this;
+    }
+
+    /**
+     * 单个文件的大小 (字节), 需在 start 之前设置.
+     */
+    public BleTraceRecorder setFileSize(int bytes) {
+        mFileSize = Math.max(HEADER_SIZE + RECORD_SIZE, bytes);
+        return this;
+    }
+
+    /**
+     * 最多保留的文件数, 需在 start 之前设置.
+     */
+    public BleTraceRecorder setMaxFiles(int files) {
+        mMaxFiles = Math.max(1, files);
+        return this;
+    }
+
+    /**
+     * 后台线程写文件的间隔 (毫秒).
+     */
+    public BleTraceRecorder setFlushInterval(long intervalMillis) {
+        mFlushInterval = Math.max(1, intervalMillis);
+        return this;
+    }
+
+    public File getDirectory() {
+        return mDir;
+    }
+
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+    /**
+     * 因缓冲区满而丢弃的记录数.
+     */
+    public long getDroppedCount() {
+        final RecordRingBuffer buffer = mBuffer;
+        return buffer == null ? 0 : buffer.dropped();
+    }
+
+    /**
+     * 开始记录, 新建跟踪文件.
+     * @return
+     *      目录不可写时返回 false.
+     */
+    public synchronized boolean start() {
+        if (mRunning)
+            return true;
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            LogUtil.e(TAG, "mkdirs failed : %s", mDir);
+            return false;
+        }
+        mBuffer = new RecordRingBuffer(mCapacity, RECORD_LONGS);
+        mReportedDrops = 0;
+        mFileIndex = lastFileIndex(mDir);
+        if (!rotate())
+            return false;
+        mRunning = true;
+        mWriter = new Thread(mWriteRunnable, TAG);
+        mWriter.setDaemon(true);
+        mWriter.start();
+        return true;
+    }
+
+    /**
+     * 停止记录, 写完缓冲区中的记录并关闭文件.
+     */
+    public synchronized void stop() {
+        if (!mRunning)
+            return;
+        mRunning = false;
+        final Thread writer = mWriter;
+        mWriter = null;
+        LockSupport.unpark(writer);
+        boolean interrupted = false;
+        while (writer.isAlive()) {
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /**
+     * 记录一个事件 (任意线程, 不分配对象).
+     * @param address         设备地址 (MacAddress.toLong)
+     * @param op              OP_*
+     * @param status          GATT 状态或错误代码
+     * @param argument        RSSI, MTU, 连接状态等
+     * @param characteristic  特征值 UUID, 可为 null
+     * @param value           数据, 只保存前 24 字节, 可为 null
+     */
+    public void record(long address, int op, int status, int argument, UUID characteristic,
+                       byte[] value) {
+        if (!mRunning)
+            return;
+        final RecordRingBuffer buffer = mBuffer;
+        final long sequence = buffer.claim();
+        if (sequence < 0)
+            return;
+        final long[] data = buffer.array();
+        final int offset = buffer.offset(sequence);
+        final int length = value == null ? 0 : value.length;
+        data[offset] = System.nanoTime();
+        data[offset + 1] = address;
+        data[offset + 2] = ((long) op << 48) | ((status & 0xffffL) << 32)
+                | (argument & 0xffffffffL);
+        data[offset + 3] = characteristic == null ? 0 : characteristic.getMostSignificantBits();
+        data[offset + 4] = (long) length << 32;
+        final int copy = Math.min(length, PAYLOAD_SIZE);
+        for (int i = 0; i < PAYLOAD_SIZE / 8; i++) {
+            long word = 0;
+            for (int j = 0; j < 8; j++) {
+                final int index = i * 8 + j;
+                word = (word << 8) | (index < copy ? value[index] & 0xff : 0);
+            }
+            data[offset + 5 + i] = word;
+        }
+        buffer.publish(sequence);
+    }
+
+    // 后台写文件.
+    private final Runnable mWriteRunnable = new Runnable() {
+        @Override
+        public void run() {
+            final long interval = TimeUnit.MILLISECONDS.toNanos(mFlushInterval);
+            while (mRunning) {
+                flush();
+                LockSupport.parkNanos(this, interval);
+            }
+            flush();
+            closeFile(true);
+        }
+    };
+
+    /**
+     * 写入缓冲区中已发布的记录 (后台线程).
+     */
+    private void flush() {
+        final RecordRingBuffer buffer = mBuffer;
+        while (buffer.drain(mReader, mCapacity) > 0) {
+            // 继续读取, 直到没有已发布的记录.
+        }
+        final long dropped = buffer.dropped();
+        if (dropped != mReportedDrops) {
+            mDropRecord[0] = System.nanoTime();
+            mDropRecord[2] = ((long) OP_DROPPED << 48)
+                    | (Math.min(dropped - mReportedDrops, Integer.MAX_VALUE) & 0xffffffffL);
+            mReportedDrops = dropped;
+            write(mDropRecord, 0);
+        }
+    }
+
+    private void write(long[] data, int offset) {
+        if (mMapped == null || mMapped.remaining() < RECORD_SIZE) {
+            if (!rotate())
+                return;
+        }
+        for (int i = 0; i < RECORD_LONGS; i++) {
+            mMapped.putLong(data[offset + i]);
+        }
+    }
+
+    /**
+     * 关闭当前文件, 新建下一个并删除多余的旧文件.
+     */
+    private boolean rotate() {
+        closeFile(true);
+        mFileIndex++;
+        final File file = new File(mDir, String.format(Locale.US, "%s%08d%s",
+                FILE_PREFIX, mFileIndex, FILE_SUFFIX));
+        try {
+            mFile = new RandomAccessFile(file, "rw");
+            mFile.setLength(0);
+            mMapped = mFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, mFileSize);
+        } catch (IOException e) {
+            LogUtil.e(TAG, "open trace failed : %s", e);
+            closeFile(false);
+            return false;
+        }
+        mMapped.putInt(MAGIC);
+        mMapped.putInt(VERSION);
+        mMapped.putInt(RECORD_SIZE);
+        mMapped.putInt(0);
+        mMapped.putLong(System.currentTimeMillis());
+        mMapped.putLong(System.nanoTime());
+        mMapped.position(HEADER_SIZE);
+        deleteOldFiles();
+        return true;
+    }
+
+    private void closeFile(boolean force) {
+        if (mMapped != null && force)
+            mMapped.force();
+        mMapped = null;
+        if (mFile != null) {
+            try {
+                mFile.close();
+            } catch (IOException e) {
+                LogUtil.e(TAG, "close trace failed : %s", e);
+            }
+            mFile = null;
+        }
+    }
+
+    private void deleteOldFiles() {
+        final File[] files = listFiles(mDir);
+        for (int i = 0; i < files.length - mMaxFiles; i++) {
+            if (!files[i].delete())
+                LogUtil.e(TAG, "delete failed : %s", files[i]);
+        }
+    }
+
+    /**
+     * 目录中的跟踪文件, 按创建顺序.
+     */
+    static File[] listFiles(File dir) {
+        final File[] files = dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File d, String name) {
+                return name.startsWith(FILE_PREFIX) && name.endsWith(FILE_SUFFIX);
+            }
+        });
+        if (files == null)
+            return new File[0];
+        // 序号定长, 按名称排序即按创建顺序.
+        Arrays.sort(files);
+        return files;
+    }
+
+    private static int lastFileIndex(File dir) {
+        final File[] files = listFiles(dir);
+        if (files.length == 0)
+            return 0;
+        final String name = files[files.length - 1].getName();
+        try {
+            return Integer.parseInt(name.substring(FILE_PREFIX.length(),
+                    name.length() - FILE_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.wsj.blesdk;
+
+import com.wsj.blesdk.utils.LogUtil;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * 读写事务: 一组跨特征值的读和写, 连续执行, 结束后回调一次结果.<br>
+ *     (1) 步骤按添加顺序执行, 前一步的 GATT 回调到达后直接提交下一步, 中间不插入其它操作.
+ *     (2) 连续两个以上的写, 且特征值声明了扩展属性 (可靠写) 时, 以可靠写提交:
+ *         对端暂存并回显每个准备写, 回显与写入的值一致时最后一起生效, 否则全部放弃.
+ *     (3) 对端不支持可靠写时, 该段退回普通写重新执行.
+ *     (4) 任一步失败即结束, 结果中记录失败的步骤, 之前的读结果保留.
+ *     (5) 事务只保存步骤, 可以对多台设备重复执行.
+ */
+
+public final class BleTransaction {
+    // TAG
+    private static final String TAG = "BleTransaction";
+
+    private final List<Step> mSteps = new ArrayList<>();
+    private boolean mReliable = true;
+
+    /**
+     * 读特征值, 结果在 BleTransactionResult 中对应的位置.
+     */
+    public BleTransaction read(String serviceUuid, String characteristicUuid) {
+        mSteps.add(new Step(false, parseUuid(serviceUuid), parseUuid(characteristicUuid), null));
+        return this;
+    }
+
+    /**
+     * 写特征值 (不分包, 需要对端应答).
+     */
+    public BleTransaction write(String serviceUuid, String characteristicUuid, byte[] value) {
+        mSteps.add(new Step(true, parseUuid(serviceUuid), parseUuid(characteristicUuid),
+                value.clone()));
+        return this;
+    }
+
+    /**
+     * 是否在对端支持时使用可靠写 (默认 true), false 时所有写都是普通写.
+     */
+    public BleTransaction setReliable(boolean reliable) {
+        mReliable = reliable;
+        return this;
+    }
+
+    public boolean isReliable() {
+        return mReliable;
+    }
+
+    /**
+     * 步骤数.
+     */
+    public int size() {
+        return mSteps.size();
+    }
+
+    Step[] getSteps() {
+        return mSteps.toArray(new Step[mSteps.size()]);
+    }
+
+    private static UUID parseUuid(String uuid) {
+        if (uuid == null)
+            return null;
+        try {
+            return UUID.fromString(uuid);
+        } catch (IllegalArgumentException e) {
+            LogUtil.e(TAG, "bad uuid : %s", uuid);
+            return null;
+        }
+    }
+
+    /**
+     * 一个步骤, 执行时只读取不修改.
+     */
+    static final class Step {
+        final boolean write;
+        final UUID service;
+        final UUID characteristic;
+        final byte[] value;
+
+        Step(boolean write, UUID service, UUID characteristic, byte[] value) {
+            this.write = write;
+            this.service = service;
+            this.characteristic = characteristic;
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package com.wsj.blesdk;
+
+/**
+ * 读写事务监听.
+ */
+
+public interface BleTransactionListener {
+    /**
+     * 事务结束 (成功, 某一步失败或断开), 每次执行只回调一次.
+     * @param result  结果
+     */
+    public void onTransactionComplete(final BleTransactionResult result);
+}
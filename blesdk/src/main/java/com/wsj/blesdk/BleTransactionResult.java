@@ -0,0 +1,47 @@
+package com.wsj.blesdk;
+
+/**
+ * 读写事务的结果.
+ */
+
+public class BleTransactionResult {
+    // 设备地址.
+    public String address;
+    // 结果, BLE_SUCCESS 或错误代码 (BLE_ERROR_READ/WRITE/TIMEOUT/DISCONNECT).
+    public int code;
+    // 失败步骤的 GATT 状态 (或 SDK 错误代码), 成功时为 0.
+    public int status;
+    // 失败的步骤, 可靠写段失败时为该段的第一步, 成功时为 -1.
+    public int failedIndex = -1;
+    // 已完成的步骤数 (之后的步骤没有执行或已被对端放弃).
+    public int completedSteps;
+    // 每一步读到的值, 写步骤和未完成的步骤为 null.
+    public byte[][] values;
+    // 以可靠写提交的写步骤数.
+    public int reliableWrites;
+    // 从开始到结束的时间 (毫秒).
+    public long elapsedMillis;
+
+    public boolean isSuccess() {
+        return code == BleConstants.BLE_SUCCESS;
+    }
+
+    /**
+     * 第 index 步读到的值, 没有时返回 null.
+     */
+    public byte[] getValue(int index) {
+        return values == null || index < 0 || index >= values.length ? null : values[index];
+    }
+
+    @Override
+    public String toString() {
+        return "BleTransactionResult{address=" + address
+                + ", code=" + code
+                + ", status=" + status
+                + ", failed=" + failedIndex
+                + ", completed=" + completedSteps
+                + ", steps=" + (values == null ? 0 : values.length)
+                + ", reliable=" + reliableWrites
+                + ", elapsed=" + elapsedMillis + "}";
+    }
+}
@@ -0,0 +1,283 @@
+package com.wsj.blesdk;
+
+import com.wsj.blesdk.utils.LogUtil;
+
+import java.util.Arrays;
+
+import static com.wsj.blesdk.BleConstants.BLE_ERROR_DISCONNECT;
+import static com.wsj.blesdk.BleConstants.BLE_ERROR_READ;
+import static com.wsj.blesdk.BleConstants.BLE_ERROR_TIMEOUT;
+import static com.wsj.blesdk.BleConstants.BLE_ERROR_WRITE;
+import static com.wsj.blesdk.BleConstants.BLE_GATT_SUCCESS;
+import static com.wsj.blesdk.BleConstants.BLE_PROPERTY_EXTENDED_PROPS;
+import static com.wsj.blesdk.BleConstants.BLE_PROPERTY_WRITE;
+import static com.wsj.blesdk.BleConstants.BLE_SUCCESS;
+
+/**
+ * 在一个连接上执行一次读写事务.<br>
+ *     (1) 第一步正常排队, 之后每一步在前一步的完成回调中插到队首, 中间不插入其它操作, 也不经过上层.
+ *     (2) 可靠写段: beginReliableWrite, 逐个准备写, executeReliableWrite;
+ *         协议栈不校验准备写的回显, 由这里与写入的值比较, 不一致时放弃该段.
+ *     (3) 可靠写段失败时 abortReliableWrite, 等它的回调后再继续;
+ *         对端不支持 (ATT 0x06) 时该段改为普通写重新执行.
+ *     (4) 同一时间只有一个操作在执行, 回调不会并发.
+ */
+
+final class BleTransactionRunner {
+    // TAG
+    private static final String TAG = "BleTransactionRunner";
+
+    // ATT 准备写头长度 (opcode + handle + offset).
+    private static final int PREPARE_WRITE_HEADER = 5;
+    // ATT 错误: 对端不支持该请求.
+    private static final int ATT_REQUEST_NOT_SUPPORTED = 0x06;
+    // 可以可靠写的特征值属性.
+    private static final int RELIABLE_PROPERTIES = BLE_PROPERTY_WRITE | BLE_PROPERTY_EXTENDED_PROPS;
+
+    /**
+     * 提交操作, 由 BleConnection 绑定到操作队列.
+     */
+    interface Link {
+        /**
+         * 排在已有操作之后.
+         */
+        boolean enqueue(BleOperation operation);
+
+        /**
+         * 紧接当前操作执行.
+         */
+        boolean enqueueNext(BleOperation operation);
+    }
+
+    private final BleScheduler mScheduler;
+    private final BleTransaction.Step[] mSteps;
+    private final long mTimeout;
+    private final BleTransactionListener mListener;
+    private final BleTransactionResult mResult = new BleTransactionResult();
+    // 可靠写段的结束位置 (不含), 下标为段的第一步, 不是段首时为 0.
+    private final int[] mBlockEnd;
+    private Link mLink;
+
+    // 正在执行的步骤 (可靠写段开始和结束时为段的第一步).
+    private int mIndex;
+    // 正在执行的可靠写段的第一步, 没有时为 -1.
+    private int mBlockStart = -1;
+    // 放弃可靠写的原因.
+    private int mAbortStatus;
+    private boolean mFinished;
+    private long mStartTime;
+
+    BleTransactionRunner(BleScheduler scheduler, String address, BleTransaction.Step[] steps,
+                         long timeout, BleTransactionListener listener) {
+        mScheduler = scheduler;
+        mSteps = steps;
+        mTimeout = timeout;
+        mListener = listener;
+        mBlockEnd = new int[steps.length];
+        mResult.address = address;
+        mResult.values = new byte[steps.length][];
+    }
+
+    /**
+     * 按服务表划分可靠写段: 连续两个以上的写, 特征值有可靠写属性, 且数据能放进一个准备写.
+     * @param mtu       当前 ATT MTU
+     * @param reliable  是否使用可靠写
+     * @return
+     *      所有特征值都存在时返回 true.
+     */
+    boolean plan(BleGattTable table, int mtu, boolean reliable) {
+        final int maxValue = mtu - PREPARE_WRITE_HEADER;
+        int start = -1;
+        for (int i = 0; i <= mSteps.length; i++) {
+            boolean eligible = false;
+            if (i < mSteps.length) {
+                final BleTransaction.Step step = mSteps[i];
+                if (step.service == null || step.characteristic == null)
+                    return false;
+                final int properties = table.getProperties(step.service, step.characteristic);
+                if (properties < 0)
+                    return false;
+                eligible = reliable && step.write && step.value.length <= maxValue
+                        && (properties & RELIABLE_PROPERTIES) == RELIABLE_PROPERTIES;
+            }
+            if (eligible) {
+                if (start < 0)
+                    start = i;
+                continue;
+            }
+            if (start >= 0 && i - start >= 2)
+                mBlockEnd[start] = i;
+            start = -1;
+        }
+        return true;
+    }
+
+    /**
+     * 提交第一步.
+     * @return
+     *      队列不接受 (未连接) 时返回 false, 不回调.
+     */
+    boolean start(Link link) {
+        if (mSteps.length == 0)
+            return false;
+        mLink = link;
+        mStartTime = mScheduler.now();
+        return issue(0, true);
+    }
+
+    boolean isFinished() {
+        return mFinished;
+    }
+
+    /**
+     * 提交第 index 步, 可靠写段的第一步先开始可靠写.
+     */
+    private boolean issue(int index, boolean first) {
+        if (index == mSteps.length) {
+            finish(BLE_SUCCESS, BLE_GATT_SUCCESS, -1);
+            return true;
+        }
+        mIndex = index;
+        if (mBlockEnd[index] > 0 && mBlockStart < 0)
+            return submit(BleOperation.beginReliableWrite(), first);
+        final BleTransaction.Step step = mSteps[index];
+        return submit(step.write
+                ? BleOperation.writeCharacteristic(step.service, step.characteristic, step.value,
+                        true)
+                : BleOperation.readCharacteristic(step.service, step.characteristic), first);
+    }
+
+    private boolean submit(BleOperation operation, boolean first) {
+        operation.timeout(mTimeout).callback(mCallback);
+        if (first)
+            return mLink.enqueue(operation);
+        if (!mLink.enqueueNext(operation))
+            fail(mIndex, BLE_ERROR_DISCONNECT);
+        return true;
+    }
+
+    private void onBegin(int status) {
+        if (status == BLE_GATT_SUCCESS) {
+            mBlockStart = mIndex;
+            issue(mIndex, false);
+            return;
+        }
+        LogUtil.w(TAG, "reliable write not started %d : %s", status, mResult.address);
+        mBlockEnd[mIndex] = 0;
+        issue(mIndex, false);
+    }
+
+    private void onStepComplete(BleOperation operation, int status) {
+        final int index = mIndex;
+        if (status != BLE_GATT_SUCCESS) {
+            if (mBlockStart >= 0)
+                abortBlock(status);
+            else
+                fail(index, status);
+            return;
+        }
+        if (!mSteps[index].write)
+            mResult.values[index] = operation.getResult();
+        if (mBlockStart >= 0) {
+            final byte[] echo = operation.getResult();
+            if (echo != null && !Arrays.equals(echo, mSteps[index].value)) {
+                LogUtil.w(TAG, "prepared write echo mismatch at %d : %s", index, mResult.address);
+                abortBlock(BLE_ERROR_WRITE);
+                return;
+            }
+            if (index + 1 < mBlockEnd[mBlockStart])
+                issue(index + 1, false);
+            else
+                submit(BleOperation.executeReliableWrite(), false);
+            return;
+        }
+        mResult.completedSteps = index + 1;
+        issue(index + 1, false);
+    }
+
+    private void onExecuted(int status) {
+        if (status != BLE_GATT_SUCCESS) {
+            abortBlock(status);
+            return;
+        }
+        final int start = mBlockStart;
+        final int end = mBlockEnd[start];
+        mBlockStart = -1;
+        mResult.reliableWrites += end - start;
+        mResult.completedSteps = end;
+        issue(end, false);
+    }
+
+    /**
+     * 放弃正在执行的可靠写段, 对端不支持时改为普通写, 否则以段的第一步失败结束.
+     */
+    private void abortBlock(int status) {
+        final int start = mBlockStart;
+        mBlockStart = -1;
+        mIndex = start;
+        mAbortStatus = status;
+        if (status == ATT_REQUEST_NOT_SUPPORTED) {
+            LogUtil.w(TAG, "reliable write not supported : %s", mResult.address);
+            mBlockEnd[start] = 0;
+        }
+        if (status == BLE_ERROR_DISCONNECT
+                || !mLink.enqueueNext(BleOperation.abortReliableWrite()
+                        .timeout(mTimeout).callback(mCallback)))
+            fail(start, status);
+    }
+
+    private void onAborted(int status) {
+        if (status != BLE_GATT_SUCCESS)
+            LogUtil.w(TAG, "reliable write abort %d : %s", status, mResult.address);
+        // 放弃没有应答时对端状态未知, 不再重新执行.
+        if (status == BLE_ERROR_TIMEOUT || status == BLE_ERROR_DISCONNECT)
+            fail(mIndex, status);
+        else if (mAbortStatus == ATT_REQUEST_NOT_SUPPORTED)
+            issue(mIndex, false);
+        else
+            fail(mIndex, mAbortStatus);
+    }
+
+    private void fail(int index, int status) {
+        final int code;
+        if (status == BLE_ERROR_TIMEOUT || status == BLE_ERROR_DISCONNECT)
+            code = status;
+        else
+            code = mSteps[index].write ? BLE_ERROR_WRITE : BLE_ERROR_READ;
+        finish(code, status, index);
+    }
+
+    private void finish(int code, int status, int failedIndex) {
+        if (mFinished)
+            return;
+        mFinished = true;
+        mResult.code = code;
+        mResult.status = status;
+        mResult.failedIndex = failedIndex;
+        mResult.elapsedMillis = mScheduler.now() - mStartTime;
+        if (mListener != null)
+            mListener.onTransactionComplete(mResult);
+    }
+
+    private final BleOperation.Callback mCallback = new BleOperation.Callback() {
+        @Override
+        public void onOperationComplete(BleOperation operation, int status) {
+            if (mFinished)
+                return;
+            switch (operation.type) {
+                case BleOperation.TYPE_BEGIN_RELIABLE_WRITE:
+                    onBegin(status);
+                    break;
+                case BleOperation.TYPE_EXECUTE_RELIABLE_WRITE:
+                    onExecuted(status);
+                    break;
+                case BleOperation.TYPE_ABORT_RELIABLE_WRITE:
+                    onAborted(status);
+                    break;
+                default:
+                    onStepComplete(operation, status);
+                    break;
+            }
+        }
+    };
+}
@@ -0,0 +1,33 @@
+package com.wsj.blesdk;
+
+/**
+ * 数据发送监听.
+ */
+
+public interface BleTransmitListener {
+    /**
+     * 发送进度.
+     * @param address         设备地址
+     * @param sentBytes       已确认发送的字节数
+     * @param totalBytes      总字节数
+     * @param bytesPerSecond  当前速率 (字节/秒)
+     */
+    public void onTransmitProgress(final String address, final int sentBytes,
+                                   final int totalBytes, final long bytesPerSecond);
+
+    /**
+     * 发送完成.
+     * @param address         设备地址
+     * @param totalBytes      总字节数
+     * @param bytesPerSecond  平均速率 (字节/秒)
+     */
+    public void onTransmitComplete(final String address, final int totalBytes,
+                                   final long bytesPerSecond);
+
+    /**
+     * 发送失败.
+     * @param address  设备地址
+     * @param code     错误代码
+     */
+    public void onTransmitError(final String address, final int code);
+}
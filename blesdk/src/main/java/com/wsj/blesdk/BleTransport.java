@@ -0,0 +1,126 @@
+package com.wsj.blesdk;
+
+import java.util.UUID;
+
+/**
+ * GATT 客户端链路.<br>
+ *     BleConnection 只通过该接口访问对端, 特征值/描述符以 UUID 定位 (同一 UUID 取第一个实例).
+ *     BleGattTransport 基于 BluetoothGatt 实现; 测试中可替换为模拟外设, 在 JVM 上运行.
+ *     请求方法返回是否被接受, 结果通过 Callback 异步回调.
+ */
+
+interface BleTransport {
+
+    /**
+     * 按设备地址创建链路.
+     */
+    interface Factory {
+        BleTransport create(String address);
+    }
+
+    /**
+     * 链路事件, status 为 GATT 状态.
+     */
+    interface Callback {
+        /**
+         * @param status     GATT 状态
+         * @param connected  是否已连接, 中间状态不回调
+         */
+        void onConnectionStateChange(int status, boolean connected);
+
+        /**
+         * @param table  服务表, 失败时为 null
+         */
+        void onServicesDiscovered(BleGattTable table, int status);
+
+        void onCharacteristicRead(UUID service, UUID characteristic, byte[] value, int status);
+
+        /**
+         * @param value  对端应答中的值 (准备写的回显), 协议栈不提供时为 null
+         */
+        void onCharacteristicWrite(UUID service, UUID characteristic, byte[] value, int status);
+
+        void onCharacteristicChanged(UUID service, UUID characteristic, byte[] value);
+
+        void onDescriptorRead(UUID service, UUID characteristic, UUID descriptor, byte[] value,
+                              int status);
+
+        void onDescriptorWrite(UUID service, UUID characteristic, UUID descriptor, int status);
+
+        void onReadRemoteRssi(int rssi, int status);
+
+        void onMtuChanged(int mtu, int status);
+
+        void onPhyUpdate(int txPhy, int rxPhy, int status);
+
+        /**
+         * executeReliableWrite 或 abortReliableWrite 的结果, status 非 0 时对端已丢弃所有准备写.
+         */
+        void onReliableWriteCompleted(int status);
+    }
+
+    String getAddress();
+
+    /**
+     * 发起连接.
+     * @param autoConnect 是否后台连接 (设备出现时由协议栈连接, 不超时)
+     */
+    boolean connect(Callback callback, boolean autoConnect);
+
+    void disconnect();
+
+    /**
+     * 释放链路, 之后不再回调.
+     */
+    void close();
+
+    boolean discoverServices();
+
+    /**
+     * 清除服务表缓存 (对端服务变化后).
+     */
+    boolean refreshCache();
+
+    boolean readCharacteristic(UUID service, UUID characteristic);
+
+    /**
+     * 写特征值, value 在返回后可能被缓冲池复用, 需要保留时自行拷贝.
+     */
+    boolean writeCharacteristic(UUID service, UUID characteristic, byte[] value,
+                                boolean withResponse);
+
+    boolean readDescriptor(UUID service, UUID characteristic, UUID descriptor);
+
+    boolean writeDescriptor(UUID service, UUID characteristic, UUID descriptor, byte[] value);
+
+    /**
+     * 打开/关闭本地通知开关 (不访问对端, 需另写 CCCD).
+     */
+    boolean setCharacteristicNotification(UUID service, UUID characteristic, boolean enable);
+
+    boolean requestMtu(int mtu);
+
+    boolean readRemoteRssi();
+
+    /**
+     * 请求连接优先级, 没有回调.
+     */
+    boolean requestConnectionPriority(int priority);
+
+    boolean setPreferredPhy(int phyMask, int options);
+
+    /**
+     * 开始可靠写, 之后的 writeCharacteristic (需要应答) 为准备写, 对端暂存不生效. 没有回调.
+     */
+    boolean beginReliableWrite();
+
+    /**
+     * 提交可靠写, 对端按顺序应用所有准备写, 结果由 onReliableWriteCompleted 回调.
+     */
+    boolean executeReliableWrite();
+
+    /**
+     * 放弃可靠写, 对端丢弃所有准备写, 完成后由 onReliableWriteCompleted 回调.
+     */
+    boolean abortReliableWrite();
+}
@@ -0,0 +1,235 @@
+package com.wsj.blesdk;
+
+import static com.wsj.blesdk.BleConstants.BLE_ERROR_WRITE;
+
+/**
+ * 分包写管道.<br>
+ *     (1) 按 MTU 将数据切分为若干包.
+ *     (2) 同时保持 window 个未确认的包, 每收到一次写回调补发一包.
+ *     (3) 统计进度与速率.
+ *     (4) 数据包取自 BleBufferPool, 写入失败时在这里归还, 写入成功时由写操作完成后归还.
+ *     (5) 锁只保护窗口计数, 写入 (进入操作队列并调用协议栈) 在锁外进行,
+ *         写回调可能在 Binder 线程到达, 不会等待另一个线程的写入.
+ */
+
+final class BleWritePipeline {
+
+    /**
+     * 单包写入接口, 由 BleConnection 绑定到具体的 GATT 特征.
+     */
+    interface ChunkWriter {
+        /**
+         * 写入一包数据.
+         * @param chunk         数据包
+         * @param withResponse  是否需要对端应答
+         * @return
+         *      协议栈是否接受了该请求.
+         */
+        boolean writeChunk(byte[] chunk, boolean withResponse);
+    }
+
+    // 进度回调最小间隔 (毫秒).
+    private static final long PROGRESS_INTERVAL = 100;
+
+    private final BleScheduler mScheduler;
+    private final String mAddress;
+    private final byte[] mData;
+    private final int mChunkSize;
+    private final int mWindow;
+    private final boolean mWithResponse;
+    private final BleBufferPool mPool;
+    private ChunkWriter mWriter;
+    private final BleTransmitListener mListener;
+
+    // 下一包起始位置.
+    private int mOffset = 0;
+    // 已确认字节数.
+    private int mAcked = 0;
+    // 未确认的包数.
+    private int mInFlight = 0;
+    private boolean mFinished = false;
+    // 有线程正在补发, 其它线程不再补发, 保证数据包按顺序写入.
+    private boolean mPumping = false;
+
+    private long mStartTime;
+    private long mLastProgressTime;
+
+    /**
+     * @param scheduler     时钟
+     * @param address       设备地址
+     * @param data          待发送数据
+     * @param mtu           当前 ATT MTU
+     * @param window        最多未确认的包数, 应答模式下固定为 1
+     * @param withResponse  是否使用带应答的写
+     * @param pool          数据包的缓冲池
+     * @param writer        单包写入, 可稍后通过 setWriter 绑定
+     * @param listener      进度监听, 可为 null
+     */
+    BleWritePipeline(BleScheduler scheduler, String address, byte[] data, int mtu, int window,
+                     boolean withResponse, BleBufferPool pool, ChunkWriter writer,
+                     BleTransmitListener listener) {
+        mScheduler = scheduler;
+        mAddress = address;
+        mData = data;
+        mChunkSize = Math.max(1, mtu - BleConstants.BLE_ATT_WRITE_HEADER);
+        mWindow = withResponse ? 1 : Math.max(1, window);
+        mWithResponse = withResponse;
+        mPool = pool;
+        mWriter = writer;
+        mListener = listener;
+    }
+
+    /**
+     * 绑定写入接口, 需在 start 之前调用.
+     */
+    void setWriter(ChunkWriter writer) {
+        mWriter = writer;
+    }
+
+    /**
+     * 开始发送. 首包被拒绝时与其他错误一样通过 onTransmitError 上报.
+     * @return
+     *      首包是否发送成功.
+     */
+    boolean start() {
+        synchronized (this) {
+            mStartTime = mScheduler.now();
+            mLastProgressTime = mStartTime;
+            if (mData.length == 0)
+                mFinished = true;
+        }
+        if (mData.length == 0) {
+            if (mListener != null)
+                mListener.onTransmitComplete(mAddress, 0, 0);
+            return true;
+        }
+        // 协议栈同步拒绝首包时 onChunkWritten 已上报, 这里只上报写入接口不接受的情况.
+        if (pump()) {
+            if (mListener != null)
+                mListener.onTransmitError(mAddress, BLE_ERROR_WRITE);
+            return false;
+        }
+        synchronized (this) {
+            return !mFinished || mAcked >= mData.length;
+        }
+    }
+
+    /**
+     * 写特征回调.
+     * @param success  该包是否写入成功
+     */
+    void onChunkWritten(boolean success) {
+        boolean failed = false;
+        boolean complete = false;
+        boolean progress = false;
+        boolean refill = false;
+        long rate;
+        int acked;
+        synchronized (this) {
+            if (mFinished || mInFlight == 0) {
+                return;
+            }
+            mInFlight--;
+            if (!success) {
+                mFinished = true;
+                failed = true;
+            } else {
+                mAcked += Math.min(mChunkSize, mData.length - mAcked);
+                if (mAcked >= mData.length) {
+                    mFinished = true;
+                    complete = true;
+                } else {
+                    refill = true;
+                }
+            }
+            final long now = mScheduler.now();
+            rate = bytesPerSecond(now);
+            acked = mAcked;
+            if (!mFinished && now - mLastProgressTime >= PROGRESS_INTERVAL) {
+                mLastProgressTime = now;
+                progress = true;
+            }
+        }
+        if (refill && pump())
+            failed = true;
+        if (mListener == null)
+            return;
+        if (failed) {
+            mListener.onTransmitError(mAddress, BLE_ERROR_WRITE);
+        } else if (complete) {
+            mListener.onTransmitComplete(mAddress, acked, rate);
+        } else if (progress) {
+            mListener.onTransmitProgress(mAddress, acked, mData.length, rate);
+        }
+    }
+
+    /**
+     * 取消发送 (如设备断开).
+     * @param code  上报的错误代码
+     */
+    void cancel(int code) {
+        synchronized (this) {
+            if (mFinished)
+                return;
+            mFinished = true;
+        }
+        if (mListener != null)
+            mListener.onTransmitError(mAddress, code);
+    }
+
+    synchronized boolean isFinished() {
+        return mFinished;
+    }
+
+    /**
+     * 补满发送窗口 (不持有锁调用). 在锁内领取下一包的位置并计入窗口, 在锁外写入.<br>
+     *     同一时间只有一个线程补发, 其它线程的写回调只更新窗口, 由补发的线程在下一轮看到.
+     *     写入接口不接受时等待下一次写回调再补发, 若此时没有任何未确认的包则视为失败.
+     *     先计入窗口再写入, 写入失败可能同步回调 onChunkWritten.
+     * @return
+     *      写入接口不接受且窗口为空, 由调用者上报失败.
+     */
+    private boolean pump() {
+        synchronized (this) {
+            if (mPumping)
+                return false;
+            mPumping = true;
+        }
+        while (true) {
+            final int offset;
+            final int len;
+            synchronized (this) {
+                if (mFinished || mInFlight >= mWindow || mOffset >= mData.length) {
+                    mPumping = false;
+                    return false;
+                }
+                offset = mOffset;
+                len = Math.min(mChunkSize, mData.length - offset);
+                mOffset += len;
+                mInFlight++;
+            }
+            final byte[] chunk = mPool.acquireExact(len);
+            System.arraycopy(mData, offset, chunk, 0, len);
+            if (!mWriter.writeChunk(chunk, mWithResponse)) {
+                mPool.release(chunk);
+                synchronized (this) {
+                    mPumping = false;
+                    // 只有补发的线程移动 mOffset, 可以直接退回.
+                    mOffset = offset;
+                    mInFlight--;
+                    if (mInFlight > 0 || mFinished)
+                        return false;
+                    mFinished = true;
+                    return true;
+                }
+            }
+        }
+    }
+
+    private long bytesPerSecond(long now) {
+        final long elapsed = now - mStartTime;
+        if (elapsed <= 0)
+            return 0;
+        return mAcked * 1000L / elapsed;
+    }
+}
@@ -1,17 +1,56 @@
 package com.wsj.blesdk;
 
+import com.wsj.blesdk.utils.MacAddress;
+
 /**
  * 蓝牙设备信息类 <br>
+ *     扫描过程中同一设备复用同一个对象, 只更新信号强度和时间.
+ *     对象由 SDK 线程更新, 信号强度, 时间, 距离和广播数据可以在任意线程读取.
  * Created by WSJ on 2017/2/14.
  */
 
 public class BluetoothInfo {
     private String address;
     private String name;
+    // 地址的 long 形式.
+    private long mac;
+    // 最近一次信号强度.
+    private volatile int rssi;
+    // 最近一次收到广播的时间 (SystemClock.elapsedRealtime).
+    private volatile long lastSeen;
+    // 滤波后的信号强度.
+    private volatile int smoothedRssi;
+    // 估算距离 (米).
+    private volatile double distance = -1;
+    // 广播数据, 内容变化时换成新解析的对象 (发布后不再修改).
+    private volatile BleAdvertisement advertisement = new BleAdvertisement();
+
+    /* 扫描管道内部状态. */
+    // 是否通过过滤.
+    boolean accepted;
+    // 是否已在待回调的批次中.
+    boolean pending;
+    // 上次查询名称的时间.
+    long nameCheckTime;
+    // 在距离估算中的槽位.
+    int proximitySlot = -1;
+    // 最近的 RSSI, 每个 8 位, 最新的在最低字节. 先写历史再写个数, 读取时先读个数.
+    volatile long rssiHistory;
+    volatile int rssiSamples;
+    // 设备表中按最近收到广播时间排列的前后设备.
+    BluetoothInfo olderSeen;
+    BluetoothInfo newerSeen;
+
+    /* 设备表索引, 记录已建立索引的键以便删除. */
+    long[] indexedServices = new long[0];
+    int indexedServiceCount;
+    int[] indexedManufacturers = new int[0];
+    int indexedManufacturerCount;
 
     public BluetoothInfo(String address, String name) {
         this.address = address;
         this.name = name;
+        this.mac = MacAddress.toLong(address);
     }
 
     public String getAddress() {
@@ -20,6 +59,7 @@ public class BluetoothInfo {
 
     public void setAddress(String address) {
         this.address = address;
+        this.mac = MacAddress.toLong(address);
     }
 
     public String getName() {
@@ -29,4 +69,67 @@ public class BluetoothInfo {
     public void setName(String name) {
         this.name = name;
     }
+
+    public long getMac() {
+        return mac;
+    }
+
+    public int getRssi() {
+        return rssi;
+    }
+
+    public void setRssi(int rssi) {
+        this.rssi = rssi;
+    }
+
+    public long getLastSeen() {
+        return lastSeen;
+    }
+
+    public void setLastSeen(long lastSeen) {
+        this.lastSeen = lastSeen;
+    }
+
+    /**
+     * 滤波后的信号强度.
+     */
+    public int getSmoothedRssi() {
+        return smoothedRssi;
+    }
+
+    void setSmoothedRssi(int smoothedRssi) {
+        this.smoothedRssi = smoothedRssi;
+    }
+
+    /**
+     * 估算距离 (米), 尚未估算时返回 -1.
+     */
+    public double getDistance() {
+        return distance;
+    }
+
+    void setDistance(double distance) {
+        this.distance = distance;
+    }
+
+    /**
+     * 最近一次广播的解析结果, 返回的对象不会再被修改.
+     */
+    public BleAdvertisement getAdvertisement() {
+        return advertisement;
+    }
+
+    /**
+     * 解析广播数据 (SDK 线程), 内容相同时不重新解析.
+     * @return
+     *      内容是否与上一次不同.
+     */
+    boolean updateAdvertisement(byte[] record) {
+        if (record == null || advertisement.hasSameRecord(record))
+            return false;
+        final BleAdvertisement next = new BleAdvertisement();
+        next.parse(record);
+        advertisement = next;
+        return true;
+    }
 }
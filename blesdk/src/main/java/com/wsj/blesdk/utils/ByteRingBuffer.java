@@ -0,0 +1,118 @@
+package com.wsj.blesdk.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 单生产者/单消费者定长槽位环形缓冲区.<br>
+ *     (1) 所有内存在构造时分配, 之后的写入和读取不再分配对象.
+ *     (2) 读取时直接把内部数组交给调用者, 不做拷贝.
+ *     (3) 缓冲区满或数据超过槽位大小时丢弃并计数.
+ */
+
+public class ByteRingBuffer {
+
+    /**
+     * 槽位读取接口.<br>
+     *     buffer 为内部数组, 只在回调期间有效, 需要保留数据时自行拷贝.
+     */
+    public interface SlotReader {
+        void onSlot(byte[] buffer, int offset, int length, long timestamp);
+    }
+
+    private final byte[] mData;
+    private final int[] mLengths;
+    private final long[] mTimestamps;
+    private final int mSlotSize;
+    private final int mCapacity;
+    private final int mMask;
+
+    // 下一个写入序号 (生产者).
+    private final AtomicLong mHead = new AtomicLong();
+    // 下一个读取序号 (消费者).
+    private final AtomicLong mTail = new AtomicLong();
+    // 丢弃的数据数.
+    private final AtomicLong mDropped = new AtomicLong();
+
+    /**
+     * @param capacity  槽位数, 向上取整为 2 的幂
+     * @param slotSize  每个槽位的字节数
+     */
+    public ByteRingBuffer(int capacity, int slotSize) {
+        if (capacity <= 0 || slotSize <= 0)
+            throw new IllegalArgumentException("capacity and slotSize must be positive");
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity)
+            size <<= 1;
+        mCapacity = size;
+        mMask = size - 1;
+        mSlotSize = slotSize;
+        mData = new byte[size * slotSize];
+        mLengths = new int[size];
+        mTimestamps = new long[size];
+    }
+
+    /**
+     * 写入一条数据 (仅生产者线程调用).
+     * @return
+     *      缓冲区满或数据过长时返回 false.
+     */
+    public boolean offer(byte[] src, int offset, int length, long timestamp) {
+        final long head = mHead.get();
+        if (length > mSlotSize || head - mTail.get() >= mCapacity) {
+            mDropped.incrementAndGet();
+            return false;
+        }
+        final int index = (int) head & mMask;
+        System.arraycopy(src, offset, mData, index * mSlotSize, length);
+        mLengths[index] = length;
+        mTimestamps[index] = timestamp;
+        mHead.lazySet(head + 1);
+        return true;
+    }
+
+    /**
+     * 批量读取 (仅消费者线程调用).
+     * @param reader  读取回调
+     * @param max     最多读取条数
+     * @return
+     *      读取的条数.
+     */
+    public int drain(SlotReader reader, int max) {
+        final long tail = mTail.get();
+        final int count = (int) Math.min(mHead.get() - tail, max);
+        for (int i = 0; i < count; i++) {
+            final int index = (int) (tail + i) & mMask;
+            reader.onSlot(mData, index * mSlotSize, mLengths[index], mTimestamps[index]);
+        }
+        if (count > 0)
+            mTail.lazySet(tail + count);
+        return count;
+    }
+
+    /**
+     * 丢弃所有未读数据 (仅消费者线程调用).
+     */
+    public void clear() {
+        mTail.lazySet(mHead.get());
+    }
+
+    public int size() {
+        return (int) (mHead.get() - mTail.get());
+    }
+
+    public boolean isEmpty() {
+        return mHead.get() == mTail.get();
+    }
+
+    public int capacity() {
+        return mCapacity;
+    }
+
+    public int slotSize() {
+        return mSlotSize;
+    }
+
+    public long dropped() {
+        return mDropped.get();
+    }
+}
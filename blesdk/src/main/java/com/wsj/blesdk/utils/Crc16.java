@@ -0,0 +1,42 @@
+package com.wsj.blesdk.utils;
+
+/**
+ * CRC-16/CCITT-FALSE (多项式 0x1021, 初值 0xFFFF), 查表计算, 不分配对象.
+ */
+
+public class Crc16 {
+    // 初值.
+    public static final int INITIAL = 0xFFFF;
+
+    private static final char[] TABLE = new char[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i << 8;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 0x8000) != 0 ? (crc << 1) ^ 0x1021 : crc << 1;
+            }
+            TABLE[i] = (char) crc;
+        }
+    }
+
+    private Crc16() {
+    }
+
+    /**
+     * 计算 data[offset, offset + length) 的校验值.
+     */
+    public static int compute(byte[] data, int offset, int length) {
+        return update(INITIAL, data, offset, length);
+    }
+
+    /**
+     * 在 crc 的基础上继续计算.
+     */
+    public static int update(int crc, byte[] data, int offset, int length) {
+        for (int i = offset, end = offset + length; i < end; i++) {
+            crc = ((crc << 8) ^ TABLE[((crc >>> 8) ^ data[i]) & 0xff]) & 0xffff;
+        }
+        return crc;
+    }
+}
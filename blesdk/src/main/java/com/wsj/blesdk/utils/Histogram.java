@@ -0,0 +1,247 @@
+package com.wsj.blesdk.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 对数分桶直方图 (HDR 风格).<br>
+ *     (1) 小于 32 的值每个值一个桶, 之后每个 2 的幂区间分为 16 个桶, 相对误差不超过 1/16.
+ *     (2) 所有桶在构造时分配, record 只做原子加, 任意线程调用, 不加锁也不分配对象.
+ *     (3) 超过 maxValue 的值记入最后一个桶, 负值记为 0.
+ *     (4) snapshot 把计数复制到调用者提供的 Snapshot 中, Snapshot 可重复使用.
+ *     各桶分别读取, 与 record 并发时快照不是严格的同一时刻, 总数以各桶之和为准.
+ */
+
+public class Histogram {
+    // 线性区间的位数: 小于 2^SUB_BITS 的值每个值一个桶.
+    private static final int SUB_BITS  = 5;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int HALF      = SUB_COUNT / 2;
+
+    private final long mMaxValue;
+    private final AtomicLongArray mCounts;
+    private final AtomicLong mSum = new AtomicLong();
+
+    /**
+     * @param maxValue  可区分的最大值, 更大的值记入最后一个桶
+     */
+    public Histogram(long maxValue) {
+        if (maxValue <= 0)
+            throw new IllegalArgumentException("maxValue must be positive");
+        mMaxValue = maxValue;
+        mCounts = new AtomicLongArray(bucketIndex(maxValue) + 1);
+    }
+
+    public long getMaxValue() {
+        return mMaxValue;
+    }
+
+    /**
+     * 桶的个数, 用于创建 Snapshot.
+     */
+    public int getBucketCount() {
+        return mCounts.length();
+    }
+
+    /**
+     * 记录一个值.
+     */
+    public void record(long value) {
+        if (value < 0)
+            value = 0;
+        else if (value > mMaxValue)
+            value = mMaxValue;
+        mCounts.incrementAndGet(bucketIndex(value));
+        mSum.addAndGet(value);
+    }
+
+    /**
+     * 复制当前计数.
+     * @param out  桶个数须与本直方图一致
+     */
+    public void snapshot(Snapshot out) {
+        out.check(mCounts.length());
+        long count = 0;
+        for (int i = 0; i < out.mCounts.length; i++) {
+            final long c = mCounts.get(i);
+            out.mCounts[i] = c;
+            count += c;
+        }
+        out.mCount = count;
+        out.mSum = mSum.get();
+    }
+
+    /**
+     * 清空计数.
+     */
+    public void reset() {
+        for (int i = 0; i < mCounts.length(); i++) {
+            mCounts.set(i, 0);
+        }
+        mSum.set(0);
+    }
+
+    /**
+     * 值所在的桶.
+     */
+    static int bucketIndex(long value) {
+        if (value < SUB_COUNT)
+            return (int) value;
+        // 右移 shift 位后落在 [HALF, SUB_COUNT) 内.
+        final int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return shift * HALF + (int) (value >>> shift);
+    }
+
+    /**
+     * 桶内的最小值.
+     */
+    static long bucketLowerBound(int index) {
+        if (index < SUB_COUNT)
+            return index;
+        final int shift = index / HALF - 1;
+        return (long) (index - shift * HALF) << shift;
+    }
+
+    /**
+     * 桶内的最大值.
+     */
+    static long bucketUpperBound(int index) {
+        return bucketLowerBound(index + 1) - 1;
+    }
+
+    /**
+     * 直方图快照.<br>
+     *     只在一个线程中使用, 除构造外不分配对象.
+     */
+    public static final class Snapshot {
+        private final long[] mCounts;
+        private long mCount;
+        private long mSum;
+
+        /**
+         * @param histogram  按该直方图的桶个数分配
+         */
+        public Snapshot(Histogram histogram) {
+            mCounts = new long[histogram.getBucketCount()];
+        }
+
+        /**
+         * @param maxValue  按 maxValue 相同的直方图分配
+         */
+        public Snapshot(long maxValue) {
+            mCounts = new long[bucketIndex(Math.max(1, maxValue)) + 1];
+        }
+
+        /**
+         * 复制另一个快照.
+         */
+        public void set(Snapshot other) {
+            check(other.mCounts.length);
+            System.arraycopy(other.mCounts, 0, mCounts, 0, mCounts.length);
+            mCount = other.mCount;
+            mSum = other.mSum;
+        }
+
+        /**
+         * 本快照减去较早的快照, 得到两次快照之间记录的值.
+         */
+        public void subtract(Snapshot earlier) {
+            check(earlier.mCounts.length);
+            long count = 0;
+            for (int i = 0; i < mCounts.length; i++) {
+                // 期间 reset 过时按 0 计.
+                final long c = Math.max(0, mCounts[i] - earlier.mCounts[i]);
+                mCounts[i] = c;
+                count += c;
+            }
+            mCount = count;
+            mSum = Math.max(0, mSum - earlier.mSum);
+        }
+
+        public void clear() {
+            for (int i = 0; i < mCounts.length; i++) {
+                mCounts[i] = 0;
+            }
+            mCount = 0;
+            mSum = 0;
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        public long getSum() {
+            return mSum;
+        }
+
+        public long getMean() {
+            return mCount == 0 ? 0 : mSum / mCount;
+        }
+
+        /**
+         * 最小值 (所在桶的下界), 没有记录时返回 0.
+         */
+        public long getMin() {
+            for (int i = 0; i < mCounts.length; i++) {
+                if (mCounts[i] != 0)
+                    return bucketLowerBound(i);
+            }
+            return 0;
+        }
+
+        /**
+         * 最大值 (所在桶的上界), 没有记录时返回 0.
+         */
+        public long getMax() {
+            for (int i = mCounts.length - 1; i >= 0; i--) {
+                if (mCounts[i] != 0)
+                    return bucketUpperBound(i);
+            }
+            return 0;
+        }
+
+        /**
+         * 百分位值 (所在桶的上界).
+         * @param percentile  0 ~ 100, 如 50, 90, 99.9
+         * @return
+         *      没有记录时返回 0.
+         */
+        public long getPercentile(double percentile) {
+            if (mCount == 0)
+                return 0;
+            final double p = Math.min(100, Math.max(0, percentile));
+            // 至少为 1, p = 0 时返回最小值所在桶.
+            final long rank = Math.max(1, (long) Math.ceil(p / 100 * mCount));
+            long seen = 0;
+            for (int i = 0; i < mCounts.length; i++) {
+                seen += mCounts[i];
+                if (seen >= rank)
+                    return bucketUpperBound(i);
+            }
+            return bucketUpperBound(mCounts.length - 1);
+        }
+
+        /**
+         * 桶的个数.
+         */
+        public int getBucketCount() {
+            return mCounts.length;
+        }
+
+        /**
+         * 桶的计数, 与 getLowerBoundAt 一起可导出完整分布.
+         */
+        public long getCountAt(int index) {
+            return mCounts[index];
+        }
+
+        public long getLowerBoundAt(int index) {
+            return bucketLowerBound(index);
+        }
+
+        private void check(int buckets) {
+            if (buckets != mCounts.length)
+                throw new IllegalArgumentException("bucket count mismatch");
+        }
+    }
+}
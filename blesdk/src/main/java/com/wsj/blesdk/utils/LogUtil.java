@@ -2,91 +2,282 @@ package com.wsj.blesdk.utils;
 
 import android.util.Log;
 
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
 
 /**
- * 自定义Log
+ * 自定义Log<br>
+ *     (1) 全局日志级别和按 TAG 的日志级别, 运行时可修改.
+ *     (2) 级别关闭时不拼接消息: 使用格式化参数 (d(tag, "state %d", state))
+ *         或延迟生成的 Message, 只有输出时才格式化.
+ *     (3) 方法跟踪使用 trace 并显式传入方法名, 不查调用栈.
+ *     格式化参数为 int 等基本类型时会装箱, 频繁调用处先用 isLoggable 判断.
  * Created by WSJ on 2016/10/18.
  */
 
 public class LogUtil {
+    /* 日志级别, 与 android.util.Log 一致. */
+    public static final int VERBOSE = 2;
+    public static final int DEBUG   = 3;
+    public static final int INFO    = 4;
+    public static final int WARN    = 5;
+    public static final int ERROR   = 6;
+    // 不输出任何日志.
+    public static final int NONE    = 8;
+
+    /**
+     * 延迟生成的日志消息, 只有级别打开时才调用.
+     */
+    public interface Message {
+        String get();
+    }
+
     /**
      * 允许输出的log日志等级
-     * 当出正式版时,把mLogLevel的值改为 LOG_LEVEL_NONE,
+     * 当出正式版时,把级别设为 NONE,
      * 就不会输出任何的Log日志了.
      */
-    private static boolean logFlag = true;
+    private static volatile int sLevel = DEBUG;
+    // 按 TAG 的日志级别, 修改时整体替换, 读取不加锁.
+    private static volatile Map<String, Integer> sTagLevels = Collections.emptyMap();
+
+    /**
+     * 设置全局日志级别, 没有单独设置级别的 TAG 使用.
+     */
+    public static void setLevel(int level) {
+        sLevel = level;
+    }
+
+    public static int getLevel() {
+        return sLevel;
+    }
+
+    /**
+     * 设置 TAG 的日志级别, 优先于全局级别.
+     */
+    public static synchronized void setLevel(String tag, int level) {
+        final Map<String, Integer> levels = new HashMap<>(sTagLevels);
+        levels.put(tag, level);
+        sTagLevels = levels;
+    }
+
+    /**
+     * 清除 TAG 的日志级别, 恢复使用全局级别.
+     */
+    public static synchronized void clearLevel(String tag) {
+        if (!sTagLevels.containsKey(tag))
+            return;
+        final Map<String, Integer> levels = new HashMap<>(sTagLevels);
+        levels.remove(tag);
+        sTagLevels = levels.isEmpty() ? Collections.<String, Integer>emptyMap() : levels;
+    }
+
+    /**
+     * 该 TAG 是否输出 level 级别的日志.
+     */
+    public static boolean isLoggable(String tag, int level) {
+        final Map<String, Integer> levels = sTagLevels;
+        if (!levels.isEmpty()) {
+            final Integer tagLevel = levels.get(tag);
+            if (tagLevel != null)
+                return level >= tagLevel;
+        }
+        return level >= sLevel;
+    }
+
     /**
      * 以级别为 d 的形式输出LOG,输出debug调试信息
      */
-    public static void d(String tag, String msg)
-    {
-        if (logFlag)
+    public static void d(String tag, String msg) {
+        if (isLoggable(tag, DEBUG))
             Log.d(tag, msg);
     }
+
+    public static void d(String tag, Message msg) {
+        if (isLoggable(tag, DEBUG))
+            Log.d(tag, msg.get());
+    }
+
+    public static void d(String tag, String format, Object arg) {
+        if (isLoggable(tag, DEBUG))
+            Log.d(tag, format(format, arg));
+    }
+
+    public static void d(String tag, String format, Object arg1, Object arg2) {
+        if (isLoggable(tag, DEBUG))
+            Log.d(tag, format(format, arg1, arg2));
+    }
+
+    public static void d(String tag, String format, Object arg1, Object arg2, Object arg3) {
+        if (isLoggable(tag, DEBUG))
+            Log.d(tag, format(format, arg1, arg2, arg3));
+    }
+
     /**
      * 以级别为 i 的形式输出LOG,一般提示性的消息information
      */
-    public static void i(String tag, String msg)
-    {
-        if (logFlag)
+    public static void i(String tag, String msg) {
+        if (isLoggable(tag, INFO))
             Log.i(tag, msg);
     }
+
+    public static void i(String tag, Message msg) {
+        if (isLoggable(tag, INFO))
+            Log.i(tag, msg.get());
+    }
+
+    public static void i(String tag, String format, Object arg) {
+        if (isLoggable(tag, INFO))
+            Log.i(tag, format(format, arg));
+    }
+
+    public static void i(String tag, String format, Object arg1, Object arg2) {
+        if (isLoggable(tag, INFO))
+            Log.i(tag, format(format, arg1, arg2));
+    }
+
+    public static void i(String tag, String format, Object arg1, Object arg2, Object arg3) {
+        if (isLoggable(tag, INFO))
+            Log.i(tag, format(format, arg1, arg2, arg3));
+    }
+
     /**
      * 以级别为 w 的形式输出LOG,显示warning警告，一般是需要我们注意优化Android代码
      */
-    public static void w(String tag, String msg)
-    {
-        if (logFlag)
+    public static void w(String tag, String msg) {
+        if (isLoggable(tag, WARN))
             Log.w(tag, msg);
     }
+
+    public static void w(String tag, Message msg) {
+        if (isLoggable(tag, WARN))
+            Log.w(tag, msg.get());
+    }
+
+    public static void w(String tag, String format, Object arg) {
+        if (isLoggable(tag, WARN))
+            Log.w(tag, format(format, arg));
+    }
+
+    public static void w(String tag, String format, Object arg1, Object arg2) {
+        if (isLoggable(tag, WARN))
+            Log.w(tag, format(format, arg1, arg2));
+    }
+
+    public static void w(String tag, String format, Object arg1, Object arg2, Object arg3) {
+        if (isLoggable(tag, WARN))
+            Log.w(tag, format(format, arg1, arg2, arg3));
+    }
+
     /**
      * 以级别为 e 的形式输出LOG ，红色的错误信息，查看错误源的关键
      */
-    public static void e(String tag, String msg)
-    {
-        if (logFlag)
+    public static void e(String tag, String msg) {
+        if (isLoggable(tag, ERROR))
             Log.e(tag, msg);
     }
+
+    public static void e(String tag, Message msg) {
+        if (isLoggable(tag, ERROR))
+            Log.e(tag, msg.get());
+    }
+
+    public static void e(String tag, String format, Object arg) {
+        if (isLoggable(tag, ERROR))
+            Log.e(tag, format(format, arg));
+    }
+
+    public static void e(String tag, String format, Object arg1, Object arg2) {
+        if (isLoggable(tag, ERROR))
+            Log.e(tag, format(format, arg1, arg2));
+    }
+
+    public static void e(String tag, String format, Object arg1, Object arg2, Object arg3) {
+        if (isLoggable(tag, ERROR))
+            Log.e(tag, format(format, arg1, arg2, arg3));
+    }
+
     /**
      * 以级别为 v 的形式输出LOG ，verbose啰嗦的意思
      *
      */
-    public static void v(String tag, String msg)
-    {
-        if (logFlag)
+    public static void v(String tag, String msg) {
+        if (isLoggable(tag, VERBOSE))
             Log.v(tag, msg);
     }
-    public static void logErrorLine(){
-        if (!logFlag)
+
+    public static void v(String tag, Message msg) {
+        if (isLoggable(tag, VERBOSE))
+            Log.v(tag, msg.get());
+    }
+
+    public static void v(String tag, String format, Object arg) {
+        if (isLoggable(tag, VERBOSE))
+            Log.v(tag, format(format, arg));
+    }
+
+    public static void v(String tag, String format, Object arg1, Object arg2) {
+        if (isLoggable(tag, VERBOSE))
+            Log.v(tag, format(format, arg1, arg2));
+    }
+
+    public static void v(String tag, String format, Object arg1, Object arg2, Object arg3) {
+        if (isLoggable(tag, VERBOSE))
+            Log.v(tag, format(format, arg1, arg2, arg3));
+    }
+
+    /**
+     * 方法跟踪, 以 VERBOSE 级别输出 ">>> method".
+     * @param tag     TAG
+     * @param method  方法名 (常量字符串, 不分配对象)
+     */
+    public static void trace(String tag, String method) {
+        if (isLoggable(tag, VERBOSE))
+            Log.v(tag, ">>> " + method);
+    }
+
+    /**
+     * 输出调用处的文件名和行数 (查调用栈, 只在 ERROR 级别打开时执行).
+     */
+    public static void logErrorLine() {
+        logCaller();
+    }
+
+    public static void logLine() {
+        logCaller();
+    }
+
+    /**
+     * 查调用栈取方法名, 只在该 TAG 打开 VERBOSE 时执行.
+     * @deprecated 查调用栈开销大, 使用 trace(tag, method).
+     */
+    @Deprecated
+    public static void logFunc(String tag) {
+        if (!isLoggable(tag, VERBOSE))
             return;
         /**
          * 在调用栈中 : [getStackTrace],[logFunc],[调用用logFunc 的方法.] , ...
          * */
         StackTraceElement[] stacktrace = Thread.currentThread().getStackTrace();
         StackTraceElement e = stacktrace[3];
-        LogUtil.e("BLX_PKCS"," 文件名 : " + e.getFileName() + " 当前行数 : " + e.getLineNumber());
-
+        Log.v(tag, ">>> " + e.getMethodName());
     }
-    public static void logLine(){
-        if (!logFlag)
+
+    private static void logCaller() {
+        if (!isLoggable("BLX_PKCS", ERROR))
             return;
         /**
-         * 在调用栈中 : [getStackTrace],[logFunc],[调用用logFunc 的方法.] , ...
+         * 在调用栈中 : [getStackTrace],[logCaller],[logLine],[调用用logLine 的方法.] , ...
          * */
         StackTraceElement[] stacktrace = Thread.currentThread().getStackTrace();
-        StackTraceElement e = stacktrace[3];
-        LogUtil.e("BLX_PKCS"," 文件名 : " + e.getFileName() + " 当前行数 : " + e.getLineNumber());
-
-    }
-    private static void logFuncBase(String tag){
-        StackTraceElement[] stacktrace = Thread.currentThread().getStackTrace();
         StackTraceElement e = stacktrace[4];
-        LogUtil.i(tag,">>> " + e.getMethodName());
-    }
-    public static void logFunc(String tag){
-        if (!logFlag)
-            return;
-        logFuncBase(tag);
+        Log.e("BLX_PKCS", " 文件名 : " + e.getFileName() + " 当前行数 : " + e.getLineNumber());
     }
 
+    private static String format(String format, Object... args) {
+        return String.format(Locale.US, format, args);
+    }
 }
@@ -0,0 +1,157 @@
+package com.wsj.blesdk.utils;
+
+import java.util.Arrays;
+
+/**
+ * 以 long 为键的开放寻址哈希表.<br>
+ *     (1) 键不装箱, 查找/更新不分配对象, 只在扩容时分配.
+ *     (2) 线性探测, 删除时后移填补空位, 不使用墓碑.
+ *     (3) 非线程安全.
+ */
+
+public class LongHashMap<V> {
+    private static final float LOAD_FACTOR = 0.5f;
+
+    private long[] mKeys;
+    private Object[] mValues;
+    private int mMask;
+    private int mSize;
+    private int mThreshold;
+
+    public LongHashMap() {
+        this(16);
+    }
+
+    public LongHashMap(int expected) {
+        int capacity = Integer.highestOneBit(Math.max(4, (int) (expected / LOAD_FACTOR)) - 1) << 1;
+        allocate(capacity);
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        int index = indexOf(key);
+        return index < 0 ? null : (V) mValues[index];
+    }
+
+    public boolean containsKey(long key) {
+        return indexOf(key) >= 0;
+    }
+
+    /**
+     * @return
+     *      原来的值.
+     */
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value) {
+        if (value == null)
+            throw new IllegalArgumentException("null value");
+        int index = mix(key) & mMask;
+        while (mValues[index] != null) {
+            if (mKeys[index] == key) {
+                V old = (V) mValues[index];
+                mValues[index] = value;
+                return old;
+            }
+            index = (index + 1) & mMask;
+        }
+        mKeys[index] = key;
+        mValues[index] = value;
+        if (++mSize >= mThreshold)
+            rehash(mKeys.length << 1);
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+        int index = indexOf(key);
+        if (index < 0)
+            return null;
+        V old = (V) mValues[index];
+        mValues[index] = null;
+        mSize--;
+        // 后移填补: 把探测链上后续元素挪到空位.
+        int hole = index;
+        int next = (hole + 1) & mMask;
+        while (mValues[next] != null) {
+            int home = mix(mKeys[next]) & mMask;
+            // home 不在 (hole, next] 区间内时可以填到 hole.
+            if (((next - home) & mMask) >= ((next - hole) & mMask)) {
+                mKeys[hole] = mKeys[next];
+                mValues[hole] = mValues[next];
+                mValues[next] = null;
+                hole = next;
+            }
+            next = (next + 1) & mMask;
+        }
+        return old;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    public void clear() {
+        Arrays.fill(mValues, null);
+        mSize = 0;
+    }
+
+    /**
+     * 遍历所有值, 遍历期间不得修改.
+     */
+    @SuppressWarnings("unchecked")
+    public void forEachValue(Visitor<V> visitor) {
+        for (int i = 0; i < mValues.length; i++) {
+            if (mValues[i] != null)
+                visitor.visit(mKeys[i], (V) mValues[i]);
+        }
+    }
+
+    /**
+     * 遍历回调.
+     */
+    public interface Visitor<V> {
+        void visit(long key, V value);
+    }
+
+    private int indexOf(long key) {
+        int index = mix(key) & mMask;
+        while (mValues[index] != null) {
+            if (mKeys[index] == key)
+                return index;
+            index = (index + 1) & mMask;
+        }
+        return -1;
+    }
+
+    private void allocate(int capacity) {
+        mKeys = new long[capacity];
+        mValues = new Object[capacity];
+        mMask = capacity - 1;
+        mThreshold = (int) (capacity * LOAD_FACTOR);
+    }
+
+    private void rehash(int capacity) {
+        final long[] keys = mKeys;
+        final Object[] values = mValues;
+        allocate(capacity);
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] == null)
+                continue;
+            int index = mix(keys[i]) & mMask;
+            while (mValues[index] != null) {
+                index = (index + 1) & mMask;
+            }
+            mKeys[index] = keys[i];
+            mValues[index] = values[i];
+        }
+    }
+
+    private static int mix(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
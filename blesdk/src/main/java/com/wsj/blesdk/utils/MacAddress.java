@@ -0,0 +1,54 @@
+package com.wsj.blesdk.utils;
+
+/**
+ * MAC 地址与 long 之间的转换, 解析过程不分配对象.
+ */
+
+public class MacAddress {
+    // 非法地址.
+    public static final long INVALID = -1L;
+
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    private MacAddress() {
+    }
+
+    /**
+     * "AA:BB:CC:DD:EE:FF" 转为 0xAABBCCDDEEFFL.
+     * @return
+     *      格式错误时返回 INVALID.
+     */
+    public static long toLong(String address) {
+        if (address == null || address.length() != 17)
+            return INVALID;
+        long value = 0;
+        for (int i = 0; i < 17; i++) {
+            final char c = address.charAt(i);
+            if (i % 3 == 2) {
+                if (c != ':')
+                    return INVALID;
+                continue;
+            }
+            final int digit = Character.digit(c, 16);
+            if (digit < 0)
+                return INVALID;
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
+
+    /**
+     * 0xAABBCCDDEEFFL 转为 "AA:BB:CC:DD:EE:FF".
+     */
+    public static String toString(long value) {
+        final char[] chars = new char[17];
+        for (int i = 0; i < 6; i++) {
+            final int b = (int) (value >>> (40 - i * 8)) & 0xFF;
+            chars[i * 3] = HEX[b >>> 4];
+            chars[i * 3 + 1] = HEX[b & 0x0F];
+            if (i < 5)
+                chars[i * 3 + 2] = ':';
+        }
+        return new String(chars);
+    }
+}
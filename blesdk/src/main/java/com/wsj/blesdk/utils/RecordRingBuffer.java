@@ -0,0 +1,139 @@
+package com.wsj.blesdk.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 多生产者/单消费者定长记录环形缓冲区.<br>
+ *     (1) 每条记录为 recordLongs 个 long, 所有内存在构造时分配.
+ *     (2) 生产者以 CAS 领取序号, 写入记录后发布, 不加锁也不分配对象.
+ *     (3) 消费者按序号顺序读取, 遇到尚未发布的记录即停止.
+ *     (4) 缓冲区满时丢弃并计数.
+ *     写入方式:
+ *         long seq = buffer.claim();
+ *         if (seq >= 0) { 写 buffer.array() 中 buffer.offset(seq) 起的记录; buffer.publish(seq); }
+ */
+
+public class RecordRingBuffer {
+
+    /**
+     * 记录读取接口.<br>
+     *     data 为内部数组, 只在回调期间有效.
+     */
+    public interface RecordReader {
+        void onRecord(long[] data, int offset);
+    }
+
+    private final long[] mData;
+    // 每个槽位已发布的序号, 未发布为 -1 或上一轮的序号.
+    private final AtomicLongArray mPublished;
+    private final int mRecordLongs;
+    private final int mCapacity;
+    private final int mMask;
+
+    // 下一个领取的序号 (生产者).
+    private final AtomicLong mHead = new AtomicLong();
+    // 下一个读取的序号 (消费者).
+    private final AtomicLong mTail = new AtomicLong();
+    // 丢弃的记录数.
+    private final AtomicLong mDropped = new AtomicLong();
+
+    /**
+     * @param capacity     记录数, 向上取整为 2 的幂
+     * @param recordLongs  每条记录的 long 个数
+     */
+    public RecordRingBuffer(int capacity, int recordLongs) {
+        if (capacity <= 0 || recordLongs <= 0)
+            throw new IllegalArgumentException("capacity and recordLongs must be positive");
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity)
+            size <<= 1;
+        mCapacity = size;
+        mMask = size - 1;
+        mRecordLongs = recordLongs;
+        mData = new long[size * recordLongs];
+        mPublished = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            mPublished.set(i, -1);
+        }
+    }
+
+    /**
+     * 领取一条记录的序号 (任意线程).
+     * @return
+     *      序号, 缓冲区满时返回 -1.
+     */
+    public long claim() {
+        while (true) {
+            final long head = mHead.get();
+            if (head - mTail.get() >= mCapacity) {
+                mDropped.incrementAndGet();
+                return -1;
+            }
+            if (mHead.compareAndSet(head, head + 1))
+                return head;
+        }
+    }
+
+    /**
+     * 记录所在的数组, 与 offset 一起使用.
+     */
+    public long[] array() {
+        return mData;
+    }
+
+    /**
+     * 序号对应记录在 array() 中的起始位置.
+     */
+    public int offset(long sequence) {
+        return ((int) sequence & mMask) * mRecordLongs;
+    }
+
+    /**
+     * 发布已写好的记录, 之后消费者可以读取.
+     */
+    public void publish(long sequence) {
+        mPublished.lazySet((int) sequence & mMask, sequence);
+    }
+
+    /**
+     * 按顺序读取已发布的记录 (仅消费者线程调用).
+     * @param reader  读取回调
+     * @param max     最多读取条数
+     * @return
+     *      读取的条数.
+     */
+    public int drain(RecordReader reader, int max) {
+        long tail = mTail.get();
+        int count = 0;
+        while (count < max) {
+            final int index = (int) tail & mMask;
+            if (mPublished.get(index) != tail)
+                break;
+            reader.onRecord(mData, index * mRecordLongs);
+            tail++;
+            count++;
+            // 读完即释放槽位.
+            mTail.lazySet(tail);
+        }
+        return count;
+    }
+
+    public int recordLongs() {
+        return mRecordLongs;
+    }
+
+    /**
+     * 已领取但未读取的记录数 (含尚未发布的).
+     */
+    public int size() {
+        return (int) (mHead.get() - mTail.get());
+    }
+
+    /**
+     * 因缓冲区满而丢弃的记录数.
+     */
+    public long dropped() {
+        return mDropped.get();
+    }
+}
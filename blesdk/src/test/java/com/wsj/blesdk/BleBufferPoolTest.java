@@ -0,0 +1,162 @@
+package com.wsj.blesdk;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 缓冲池: 按长度和 2 的幂分级, 命中统计, 每级上限, 只读视图的归还, 消息通道复用缓冲区 (虚拟时钟).
+ */
+public class BleBufferPoolTest {
+    private static final UUID SERVICE_UUID = SimulatedLink.SERVICE_UUID;
+    private static final UUID NOTIFY_UUID = SimulatedLink.NOTIFY_UUID;
+
+    @Test
+    public void exactAndClassSizing() {
+        final BleBufferPool pool = new BleBufferPool();
+        assertEquals(0, pool.acquireExact(0).length);
+        assertEquals(20, pool.acquireExact(20).length);
+        assertEquals(BleBufferPool.MAX_EXACT_SIZE,
+                pool.acquireExact(BleBufferPool.MAX_EXACT_SIZE).length);
+        assertEquals(600, pool.acquireExact(600).length);
+        assertEquals(16, pool.acquire(3).length);
+        assertEquals(1024, pool.acquire(1000).length);
+        assertEquals(1024, pool.acquire(1024).length);
+        // 超出最大分级时直接分配.
+        assertEquals(100 * 1024, pool.acquire(100 * 1024).length);
+    }
+
+    @Test
+    public void releasedBuffersAreReused() {
+        final BleBufferPool pool = new BleBufferPool();
+        final byte[] chunk = pool.acquireExact(20);
+        final byte[] block = pool.acquire(3000);
+        pool.release(chunk);
+        pool.release(block);
+        assertSame(chunk, pool.acquireExact(20));
+        assertSame(block, pool.acquire(2100));
+        // 长度不同的分级互不影响.
+        pool.release(chunk);
+        assertFalse(pool.acquireExact(19) == chunk);
+
+        final BleBufferPoolStats stats = new BleBufferPoolStats();
+        pool.getStats(stats);
+        assertEquals(2, stats.hits);
+        assertEquals(3, stats.misses);
+        assertEquals(3, stats.recycled);
+        assertEquals(1, stats.pooledBuffers);
+        assertEquals(20, stats.pooledBytes);
+    }
+
+    @Test
+    public void levelsAreBounded() {
+        final BleBufferPool pool = new BleBufferPool();
+        for (int i = 0; i < 100; i++) {
+            pool.release(new byte[20]);
+        }
+        // 不属于任何分级的数组直接丢弃.
+        pool.release(new byte[600]);
+        pool.release(new byte[128 * 1024]);
+        final BleBufferPoolStats stats = new BleBufferPoolStats();
+        pool.getStats(stats);
+        assertEquals(64, stats.pooledBuffers);
+        assertEquals(64, stats.recycled);
+        assertEquals(38, stats.discarded);
+    }
+
+    @Test
+    public void channelMessagesAreViewsOverPooledBuffers() {
+        final VirtualScheduler scheduler = new VirtualScheduler();
+        final BleBufferPool pool = new BleBufferPool();
+        final Loopback toB = new Loopback(scheduler);
+        final Loopback toA = new Loopback(scheduler);
+        final BleMessageChannel a = new BleMessageChannel(scheduler, SimulatedLink.ADDRESS,
+                SERVICE_UUID, NOTIFY_UUID, 8, BleMessageChannel.DEFAULT_CAPACITY, toB, pool);
+        final BleMessageChannel b = new BleMessageChannel(scheduler, SimulatedLink.ADDRESS,
+                SERVICE_UUID, NOTIFY_UUID, 8, BleMessageChannel.DEFAULT_CAPACITY, toA, pool);
+        toB.peer = b;
+        toA.peer = a;
+
+        final byte[] message = new byte[100];
+        for (int i = 0; i < message.length; i++) {
+            message[i] = (byte) i;
+        }
+        for (int round = 0; round < 2; round++) {
+            for (int i = 0; i < 3; i++) {
+                assertTrue(a.send(message));
+            }
+            scheduler.advance(1000);
+            assertEquals(3, b.available());
+            for (int i = 0; i < 3; i++) {
+                final BleBuffer buffer = b.poll();
+                assertNotNull(buffer);
+                assertEquals(message.length, buffer.length());
+                assertEquals(7, buffer.get(7));
+                assertArrayEquals(message, buffer.toByteArray());
+                final ByteBuffer view = buffer.asByteBuffer();
+                assertTrue(view.isReadOnly());
+                assertEquals(message.length, view.remaining());
+                buffer.release();
+                buffer.release();
+                assertTrue(buffer.isReleased());
+                try {
+                    buffer.get(0);
+                    fail();
+                } catch (IllegalStateException expected) {
+                }
+            }
+            assertTrue(b.poll() == null);
+        }
+        scheduler.advance(1000);
+
+        final BleBufferPoolStats stats = new BleBufferPoolStats();
+        pool.getStats(stats);
+        // 第二轮的帧和消息都取自第一轮归还的缓冲区.
+        assertTrue(stats.hits >= stats.misses);
+        assertTrue(stats.pooledBuffers > 0);
+        assertFalse(a.isClosed());
+        assertFalse(b.isClosed());
+    }
+
+    /**
+     * 无损链路, 帧只在调用期间有效, 拷贝后投递.
+     */
+    private static final class Loopback implements BleMessageChannel.Link {
+        private final VirtualScheduler mScheduler;
+        BleMessageChannel peer;
+
+        Loopback(VirtualScheduler scheduler) {
+            mScheduler = scheduler;
+        }
+
+        @Override
+        public boolean writeFrame(byte[] frame, boolean control) {
+            final byte[] value = frame.clone();
+            mScheduler.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    peer.onFrame(value);
+                }
+            }, 10);
+            return true;
+        }
+
+        @Override
+        public int getFrameSize() {
+            return BleConstants.BLE_DEFAULT_MTU - BleConstants.BLE_ATT_WRITE_HEADER;
+        }
+
+        @Override
+        public void onClosed(BleMessageChannel channel, int code) {
+        }
+    }
+}
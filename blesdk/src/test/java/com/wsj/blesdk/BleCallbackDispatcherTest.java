@@ -0,0 +1,188 @@
+package com.wsj.blesdk;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 监听回调分发: 直接回调, 投递到 Executor, 取消监听, 扫描批次复制.
+ */
+public class BleCallbackDispatcherTest {
+    private static final UUID UUID_A = UUID.fromString("0000fff1-0000-1000-8000-00805f9b34fb");
+
+    private final List<String> mEvents = new ArrayList<>();
+    private final List<Runnable> mPending = new ArrayList<>();
+    // 只排队, 由测试决定何时执行.
+    private final Executor mExecutor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            mPending.add(command);
+        }
+    };
+
+    private BleCallbackDispatcher mDispatcher;
+
+    @Before
+    public void setUp() {
+        mDispatcher = new BleCallbackDispatcher(null);
+        mDispatcher.setListener(new BleListener() {
+            @Override
+            public void onBleDiscover(String name, String address) {
+                mEvents.add("discover " + address);
+            }
+
+            @Override
+            public void onBleConnected(String address) {
+                mEvents.add("connected " + address);
+            }
+
+            @Override
+            public void onBleDisconnected(String address) {
+                mEvents.add("disconnected " + address);
+            }
+
+            @Override
+            public void onBleDiscoverServices(String address) {
+                mEvents.add("services " + address);
+            }
+
+            @Override
+            public void onBleError(int code) {
+                mEvents.add("error " + code);
+            }
+        });
+    }
+
+    @Test
+    public void directDeliveryRunsOnCallingThread() {
+        mDispatcher.onBleConnected("A");
+        mDispatcher.onBleError(7);
+        assertEquals("[connected A, error 7]", mEvents.toString());
+        // 没有 GATT 监听时不回调也不分配任务.
+        mDispatcher.setExecutor(mExecutor);
+        mDispatcher.onBleMtuChanged("A", 247, 0);
+        assertTrue(mPending.isEmpty());
+    }
+
+    @Test
+    public void executorDeliveryKeepsOrderAndHonoursRemoval() {
+        mDispatcher.setExecutor(mExecutor);
+        final List<String> transmit = new ArrayList<>();
+        final BleTransmitListener wrapped = mDispatcher.wrap(new BleTransmitListener() {
+            @Override
+            public void onTransmitProgress(String address, int sentBytes, int totalBytes,
+                                           long bytesPerSecond) {
+                transmit.add("progress " + sentBytes);
+            }
+
+            @Override
+            public void onTransmitComplete(String address, int totalBytes,
+                                           long bytesPerSecond) {
+                transmit.add("complete " + totalBytes);
+            }
+
+            @Override
+            public void onTransmitError(String address, int code) {
+                transmit.add("error " + code);
+            }
+        });
+        mDispatcher.onBleConnected("A");
+        mDispatcher.onBleDiscoverServices("A");
+        wrapped.onTransmitProgress("A", 100, 200, 0);
+        wrapped.onTransmitComplete("A", 200, 0);
+        assertTrue(mEvents.isEmpty());
+        assertEquals(4, mPending.size());
+        runPending();
+        assertEquals("[connected A, services A]", mEvents.toString());
+        assertEquals("[progress 100, complete 200]", transmit.toString());
+
+        // 已投递但取消了监听, 不再回调.
+        mDispatcher.onBleDisconnected("A");
+        mDispatcher.setListener(null);
+        runPending();
+        assertEquals(2, mEvents.size());
+    }
+
+    @Test
+    public void scanBatchIsCopiedWhenPosted() {
+        final List<List<BluetoothInfo>> batches = new ArrayList<>();
+        mDispatcher.setScanListener(new BleScanListener() {
+            @Override
+            public void onBleScanBatch(List<BluetoothInfo> discovered,
+                                       List<BluetoothInfo> updated) {
+                batches.add(discovered);
+            }
+        });
+        final List<BluetoothInfo> discovered = new ArrayList<>();
+        discovered.add(new BluetoothInfo("00:11:22:33:44:55", "A"));
+        final List<BluetoothInfo> updated = new ArrayList<>();
+
+        mDispatcher.onBleScanBatch(discovered, updated);
+        assertSame(discovered, batches.get(0));
+
+        mDispatcher.setExecutor(mExecutor);
+        mDispatcher.onBleScanBatch(discovered, updated);
+        // SDK 在回调前就复用了列表.
+        discovered.clear();
+        runPending();
+        assertEquals(1, batches.get(1).size());
+    }
+
+    @Test
+    public void gattEventsCarryAddress() {
+        final List<String> gatt = new ArrayList<>();
+        mDispatcher.setGattListener(new BleGattListener() {
+            @Override
+            public void onBleCharacteristicRead(String address, UUID uuid, byte[] value,
+                                                int status) {
+                gatt.add("read " + address + " " + value.length);
+            }
+
+            @Override
+            public void onBleCharacteristicWrite(String address, UUID uuid, int status) {
+            }
+
+            @Override
+            public void onBleCharacteristicChanged(String address, UUID uuid, byte[] value) {
+            }
+
+            @Override
+            public void onBleDescriptorWrite(String address, UUID uuid, int status) {
+            }
+
+            @Override
+            public void onBleReadRemoteRssi(String address, int rssi, int status) {
+            }
+
+            @Override
+            public void onBleMtuChanged(String address, int mtu, int status) {
+                gatt.add("mtu " + address + " " + mtu);
+            }
+
+            @Override
+            public void onBleError(String address, int code) {
+                gatt.add("error " + address + " " + code);
+            }
+        });
+        mDispatcher.setExecutor(mExecutor);
+        mDispatcher.onBleCharacteristicRead("B", UUID_A, new byte[3], 0);
+        mDispatcher.onBleMtuChanged("B", 185, 0);
+        mDispatcher.onBleError("B", 9);
+        runPending();
+        assertEquals("[read B 3, mtu B 185, error B 9]", gatt.toString());
+    }
+
+    private void runPending() {
+        while (!mPending.isEmpty()) {
+            mPending.remove(0).run();
+        }
+    }
+}
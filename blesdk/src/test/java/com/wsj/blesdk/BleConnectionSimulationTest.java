@@ -0,0 +1,248 @@
+package com.wsj.blesdk;
+
+import com.wsj.blesdk.utils.MacAddress;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import static com.wsj.blesdk.BleConstants.BLE_CONNECTION_PRIORITY_BALANCED;
+import static com.wsj.blesdk.BleConstants.BLE_CONNECTION_PRIORITY_HIGH;
+import static com.wsj.blesdk.BleConstants.BLE_DEFAULT_OPERATION_TIMEOUT;
+import static com.wsj.blesdk.BleConstants.BLE_ERROR_CONNECT;
+import static com.wsj.blesdk.BleConstants.BLE_ERROR_TIMEOUT;
+import static com.wsj.blesdk.BleConstants.BLE_GATT_SUCCESS;
+import static com.wsj.blesdk.BleConstants.BLE_GENERIC_ATTRIBUTE_SERVICE_UUID;
+import static com.wsj.blesdk.BleConstants.BLE_PHY_LE_1M;
+import static com.wsj.blesdk.BleConstants.BLE_PHY_LE_2M;
+import static com.wsj.blesdk.BleConstants.BLE_SERVICE_CHANGED_UUID;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 连接, 参数协商, 服务发现与缓存 (模拟外设, 虚拟时钟).
+ */
+public class BleConnectionSimulationTest {
+    private SimulatedLink mLink;
+
+    @Before
+    public void setUp() throws Exception {
+        mLink = new SimulatedLink();
+    }
+
+    @After
+    public void tearDown() {
+        mLink.release();
+    }
+
+    @Test
+    public void connectNegotiatesLinkParameters() {
+        assertTrue(mLink.connect());
+        assertEquals(247, mLink.recorder.mtu);
+        assertEquals(247, mLink.peripheral.getMtu());
+        assertEquals(BLE_PHY_LE_2M, mLink.peripheral.getTxPhy());
+
+        BleLinkParameters parameters = new BleLinkParameters();
+        mLink.connection.getLinkParameters(parameters);
+        assertEquals(247, parameters.mtu);
+        assertEquals(BLE_PHY_LE_2M, parameters.txPhy);
+        assertEquals(BLE_CONNECTION_PRIORITY_HIGH, parameters.connectionPriority);
+        assertTrue(parameters.bulk);
+
+        // 服务发现后切回空闲优先级.
+        assertTrue(mLink.discover());
+        mLink.connection.getLinkParameters(parameters);
+        assertFalse(parameters.bulk);
+        assertEquals(BLE_CONNECTION_PRIORITY_BALANCED, mLink.peripheral.getConnectionPriority());
+    }
+
+    @Test
+    public void phyFallsBackWhenPeerDoesNotSupport2M() {
+        mLink.peripheral.setSupportedPhy(BLE_PHY_LE_1M);
+        assertTrue(mLink.connect());
+        BleLinkParameters parameters = new BleLinkParameters();
+        mLink.connection.getLinkParameters(parameters);
+        assertEquals(BLE_PHY_LE_1M, parameters.txPhy);
+    }
+
+    @Test
+    public void connectFailureReportsError() {
+        mLink.peripheral.setConnectable(false);
+        assertFalse(mLink.connect());
+        assertEquals(BleConnection.STATE_DISCONNECTED, mLink.connection.getState());
+        assertTrue(mLink.recorder.errors.contains(BLE_ERROR_CONNECT));
+    }
+
+    @Test
+    public void discoveryIsCachedPerConnection() {
+        assertTrue(mLink.connect());
+        assertTrue(mLink.discover());
+        assertEquals(1, mLink.peripheral.getDiscoveryCount());
+        // Service Changed 指示已打开.
+        assertTrue(mLink.peripheral.isNotifying(BLE_GENERIC_ATTRIBUTE_SERVICE_UUID,
+                BLE_SERVICE_CHANGED_UUID));
+
+        // 同一连接再次发现服务不访问对端.
+        assertTrue(mLink.discover());
+        assertEquals(1, mLink.peripheral.getDiscoveryCount());
+        assertEquals(2, mLink.recorder.discoveries);
+
+        long[] cached = mLink.cache.get(MacAddress.toLong(SimulatedLink.ADDRESS));
+        assertNotNull(cached);
+        assertArrayEquals(mLink.connection.getGattTable().toArray(), cached);
+        assertTrue(BleGattTable.fromArray(cached).hasService(SimulatedLink.SERVICE_UUID));
+    }
+
+    @Test
+    public void serviceChangedInvalidatesCacheAndRediscovers() {
+        assertTrue(mLink.connect());
+        assertTrue(mLink.discover());
+
+        final UUID added = UUID.fromString("0000fee0-0000-1000-8000-00805f9b34fb");
+        mLink.peripheral.changeGattTable(
+                SimulatedLink.addService(SimulatedLink.defaultTable(), added).build());
+        assertTrue(mLink.scheduler.runUntil(new VirtualScheduler.Condition() {
+            @Override
+            public boolean isMet() {
+                return mLink.recorder.discoveries == 2;
+            }
+        }, 5000));
+        assertEquals(1, mLink.peripheral.getRefreshCount());
+        assertEquals(2, mLink.peripheral.getDiscoveryCount());
+        assertTrue(mLink.connection.getGattTable().hasService(added));
+        assertTrue(BleGattTable.fromArray(mLink.cache.get(MacAddress.toLong(SimulatedLink.ADDRESS)))
+                .hasService(added));
+    }
+
+    @Test
+    public void discoveryCanBeRetriedAfterTimeout() {
+        assertTrue(mLink.connect());
+        mLink.peripheral.setResponsive(false);
+        assertTrue(mLink.connection.discoverServices());
+        mLink.scheduler.advance(BLE_DEFAULT_OPERATION_TIMEOUT + 100);
+        assertTrue(mLink.recorder.operationFailures.contains(BLE_ERROR_TIMEOUT));
+
+        // 超时的服务发现不再挡住新的请求.
+        mLink.peripheral.setResponsive(true);
+        assertTrue(mLink.discover());
+        assertNotNull(mLink.connection.getGattTable());
+    }
+
+    @Test
+    public void readCharacteristicReturnsValue() {
+        assertTrue(mLink.connect());
+        assertTrue(mLink.discover());
+        byte[] value = {1, 2, 3};
+        mLink.peripheral.setValue(SimulatedLink.SERVICE_UUID, SimulatedLink.NOTIFY_UUID, value);
+        assertTrue(mLink.connection.enqueue(BleOperation.readCharacteristic(
+                SimulatedLink.SERVICE_UUID, SimulatedLink.NOTIFY_UUID)));
+        assertTrue(mLink.idle());
+        assertArrayEquals(value, mLink.recorder.readValue);
+    }
+
+    @Test
+    public void unresponsivePeerTimesOut() {
+        assertTrue(mLink.connect());
+        assertTrue(mLink.discover());
+        mLink.peripheral.setResponsive(false);
+        assertTrue(mLink.connection.enqueue(BleOperation.readCharacteristic(
+                SimulatedLink.SERVICE_UUID, SimulatedLink.NOTIFY_UUID)));
+        final long start = mLink.scheduler.now();
+        assertTrue(mLink.idle());
+        assertTrue(mLink.scheduler.now() - start >= BLE_DEFAULT_OPERATION_TIMEOUT);
+        assertTrue(mLink.recorder.operationFailures.contains(BLE_ERROR_TIMEOUT));
+        assertNull(mLink.recorder.readValue);
+
+        BleQueueStats stats = new BleQueueStats();
+        mLink.connection.getQueueStats(stats);
+        assertEquals(1, stats.timeouts);
+    }
+
+    @Test
+    public void lateCallbackDoesNotCompleteNextOperation() {
+        assertTrue(mLink.connect());
+        assertTrue(mLink.discover());
+        // 第一次写以错误应答, 应答在超时之后才到.
+        mLink.peripheral.setAckLatency(BLE_DEFAULT_OPERATION_TIMEOUT + 5000);
+        mLink.peripheral.setWriteError(SimulatedLink.SERVICE_UUID, SimulatedLink.WRITE_UUID,
+                SimulatedPeripheral.GATT_WRITE_NOT_PERMITTED);
+        final List<Integer> statuses = new ArrayList<>();
+        final BleOperation.Callback callback = new BleOperation.Callback() {
+            @Override
+            public void onOperationComplete(BleOperation operation, int status) {
+                statuses.add(status);
+            }
+        };
+        assertTrue(mLink.connection.enqueue(BleOperation.writeCharacteristic(
+                SimulatedLink.SERVICE_UUID, SimulatedLink.WRITE_UUID, new byte[]{1}, true)
+                .callback(callback)));
+        mLink.scheduler.advance(BLE_DEFAULT_OPERATION_TIMEOUT + 100);
+        assertEquals(Collections.singletonList(BLE_ERROR_TIMEOUT), statuses);
+
+        // 第二次写在第一次的应答到达之后才提交, 结果是自己的应答.
+        mLink.peripheral.setWriteError(SimulatedLink.SERVICE_UUID, SimulatedLink.WRITE_UUID,
+                BLE_GATT_SUCCESS);
+        assertTrue(mLink.connection.enqueue(BleOperation.writeCharacteristic(
+                SimulatedLink.SERVICE_UUID, SimulatedLink.WRITE_UUID, new byte[]{2}, true)
+                .timeout(3 * BLE_DEFAULT_OPERATION_TIMEOUT)
+                .callback(callback)));
+        assertTrue(mLink.scheduler.runUntil(new VirtualScheduler.Condition() {
+            @Override
+            public boolean isMet() {
+                return statuses.size() == 2;
+            }
+        }, 3 * BLE_DEFAULT_OPERATION_TIMEOUT));
+        assertEquals(BLE_GATT_SUCCESS, (int) statuses.get(1));
+        assertTrue(mLink.recorder.operationFailures.isEmpty());
+    }
+
+    @Test
+    public void lateTimeoutCancelDoesNotAffectNextOperation() {
+        assertTrue(mLink.connect());
+        assertTrue(mLink.discover());
+        // 回调线程结束第一个读操作后, 取消超时之前, SDK 线程已经开始执行下一个操作.
+        mLink.scheduler.beforeNextRemove(new Runnable() {
+            @Override
+            public void run() {
+                mLink.peripheral.setResponsive(false);
+                assertTrue(mLink.connection.enqueue(BleOperation.readCharacteristic(
+                        SimulatedLink.SERVICE_UUID, SimulatedLink.NOTIFY_UUID)));
+            }
+        });
+        assertTrue(mLink.connection.enqueue(BleOperation.readCharacteristic(
+                SimulatedLink.SERVICE_UUID, SimulatedLink.NOTIFY_UUID)));
+        // 第二个操作仍然按时超时.
+        assertTrue(mLink.scheduler.runUntil(new VirtualScheduler.Condition() {
+            @Override
+            public boolean isMet() {
+                return mLink.recorder.operationFailures.contains(BLE_ERROR_TIMEOUT);
+            }
+        }, 2 * BLE_DEFAULT_OPERATION_TIMEOUT));
+    }
+
+    @Test
+    public void remoteDisconnectReleasesConnection() {
+        assertTrue(mLink.connect());
+        assertTrue(mLink.discover());
+        mLink.peripheral.disconnectAt(mLink.scheduler.now() + 1000);
+        mLink.scheduler.advance(1000);
+        assertEquals(BleConnection.STATE_DISCONNECTED, mLink.connection.getState());
+        assertNull(mLink.connection.getGattTable());
+        assertFalse(mLink.connection.discoverServices());
+
+        // 断开后可以重新连接.
+        mLink.peripheral.disconnectAt(-1);
+        assertTrue(mLink.connect());
+        assertTrue(mLink.discover());
+        assertEquals(2, mLink.peripheral.getDiscoveryCount());
+    }
+}
@@ -0,0 +1,141 @@
+package com.wsj.blesdk;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.wsj.blesdk.BleConnectionState.CONNECTED;
+import static com.wsj.blesdk.BleConnectionState.CONNECTING;
+import static com.wsj.blesdk.BleConnectionState.DISCONNECTED;
+import static com.wsj.blesdk.BleConnectionState.DISCONNECTING;
+import static com.wsj.blesdk.BleConstants.BLE_DEFAULT_MTU;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 连接状态转换表, CAS 发布与连接池的并发访问.
+ */
+public class BleConnectionStateTest {
+    private static final int THREADS = 8;
+
+    private SimulatedLink mLink;
+
+    @Before
+    public void setUp() throws Exception {
+        mLink = new SimulatedLink();
+    }
+
+    @After
+    public void tearDown() {
+        mLink.release();
+    }
+
+    @Test
+    public void transitionTableRejectsInvalidChanges() {
+        assertTrue(BleConnectionState.canTransition(DISCONNECTED, CONNECTING));
+        assertTrue(BleConnectionState.canTransition(CONNECTING, CONNECTED));
+        assertTrue(BleConnectionState.canTransition(CONNECTED, DISCONNECTING));
+        assertTrue(BleConnectionState.canTransition(DISCONNECTING, DISCONNECTED));
+        assertFalse(BleConnectionState.canTransition(DISCONNECTED, CONNECTED));
+        assertFalse(BleConnectionState.canTransition(DISCONNECTING, CONNECTED));
+        assertFalse(BleConnectionState.canTransition(CONNECTED, CONNECTING));
+        assertFalse(BleConnectionState.canTransition(DISCONNECTED, DISCONNECTED));
+
+        // 断开后协商结果恢复默认值.
+        assertTrue(mLink.connect());
+        final BleConnectionState connected = mLink.connection.getConnectionState();
+        assertEquals(CONNECTED, connected.getState());
+        assertEquals(247, connected.getMtu());
+        mLink.connection.close();
+        final BleConnectionState closed = mLink.connection.getConnectionState();
+        assertEquals(DISCONNECTED, closed.getState());
+        assertEquals(BLE_DEFAULT_MTU, closed.getMtu());
+        assertFalse(closed.isBulk());
+        // 旧快照不受影响.
+        assertEquals(247, connected.getMtu());
+    }
+
+    @Test
+    public void concurrentConnectStartsOnce() throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(THREADS);
+        final AtomicInteger accepted = new AtomicInteger();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        for (int i = 0; i < THREADS; i++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        if (mLink.connection.connect())
+                            accepted.incrementAndGet();
+                    } catch (Throwable t) {
+                        failure.set(t);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        start.countDown();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertNull(failure.get());
+        // 只有一个线程发起连接, 其余看到 CONNECTING 直接返回.
+        assertEquals(THREADS, accepted.get());
+        assertEquals(1, mLink.recorder.states.size());
+        assertEquals(CONNECTING, (int) mLink.recorder.states.get(0));
+        mLink.scheduler.advance(1000);
+        assertEquals(CONNECTED, mLink.connection.getState());
+    }
+
+    @Test
+    public void poolIsSafeForConcurrentAccess() throws Exception {
+        final BleConnectionPool pool = new BleConnectionPool();
+        final BleConnection[] connections = new BleConnection[32];
+        for (int i = 0; i < connections.length; i++) {
+            final String address = String.format("00:11:22:33:44:%02X", i);
+            connections[i] = new BleConnection(new SimulatedPeripheral(address, mLink.scheduler),
+                    mLink.scheduler, mLink.cache, mLink.recorder);
+        }
+        final CountDownLatch done = new CountDownLatch(THREADS);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        for (int t = 0; t < THREADS; t++) {
+            final int seed = t;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < 20000; i++) {
+                            final BleConnection connection =
+                                    connections[(i * 7 + seed) % connections.length];
+                            if ((i & 1) == 0)
+                                pool.putIfAbsent(connection);
+                            else
+                                pool.remove(connection);
+                            // 遍历与修改并发, 不会抛出 ConcurrentModificationException.
+                            if (pool.snapshot().size() > connections.length)
+                                throw new AssertionError("duplicate connection");
+                        }
+                    } catch (Throwable t) {
+                        failure.set(t);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        assertNull(failure.get());
+        final List<BleConnection> all = pool.clear();
+        assertEquals(0, pool.size());
+        assertTrue(all.size() <= connections.length);
+    }
+}
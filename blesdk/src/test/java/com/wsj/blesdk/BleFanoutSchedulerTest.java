@@ -0,0 +1,397 @@
+package com.wsj.blesdk;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import static com.wsj.blesdk.BleConstants.BLE_ERROR_CANCELLED;
+import static com.wsj.blesdk.BleConstants.BLE_ERROR_CONNECT;
+import static com.wsj.blesdk.BleConstants.BLE_SUCCESS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 批量任务: 并发上限, 并发与串行的耗时, 失败重试, 等待扫描, 取消, 复用已有连接 (虚拟时钟, 多台模拟外设).
+ */
+public class BleFanoutSchedulerTest {
+    private static final UUID SERVICE_UUID = SimulatedLink.SERVICE_UUID;
+    private static final UUID WRITE_UUID = SimulatedLink.WRITE_UUID;
+    private static final byte[] COMMAND = {0x10, 0x20, 0x30, 0x40};
+    private static final long MAX_MILLIS = 10 * 60 * 1000;
+
+    private final List<Rack> mRacks = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        for (Rack rack : mRacks) {
+            rack.release();
+        }
+    }
+
+    @Test
+    public void concurrencyIsBoundedAndStatsAddUp() throws IOException {
+        final Rack rack = rack(6);
+        final byte[] data = payload(2000);
+        final BleFanoutJob job = rack.job()
+                .transmit(SERVICE_UUID.toString(), WRITE_UUID.toString(), data, false)
+                .write(SERVICE_UUID.toString(), WRITE_UUID.toString(), COMMAND)
+                .setConcurrency(2);
+        assertTrue(rack.run(job));
+
+        assertEquals(6, rack.results.size());
+        for (BleFanoutResult result : rack.results) {
+            assertTrue(result.toString(), result.isSuccess());
+            assertEquals(1, result.attempts);
+            assertEquals(2, result.completedTasks);
+            assertEquals(data.length + COMMAND.length, result.bytes);
+            assertTrue(result.connectMillis > 0);
+            assertTrue(result.bytesPerSecond > 0);
+            final byte[] received = rack.peripherals.get(result.address)
+                    .getReceived(SERVICE_UUID, WRITE_UUID);
+            assertEquals(data.length + COMMAND.length, received.length);
+            assertEquals(COMMAND[3], received[received.length - 1]);
+        }
+        final BleFanoutStats stats = rack.stats;
+        assertNotNull(stats);
+        assertEquals(6, stats.devices);
+        assertEquals(6, stats.succeeded);
+        assertEquals(0, stats.failed);
+        assertEquals(0, stats.running);
+        assertEquals(0, stats.pending);
+        assertEquals(2, stats.maxConcurrent);
+        assertEquals(6, stats.attempts);
+        assertEquals(6 * (data.length + COMMAND.length), stats.bytes);
+        assertTrue(stats.bytesPerSecond > 0);
+        assertTrue(stats.averageDeviceMillis > 0);
+        assertTrue(stats.averageDeviceMillis < stats.elapsedMillis);
+        assertTrue(job.isFinished());
+        // 任务创建的连接全部断开.
+        assertEquals(0, rack.openConnections());
+    }
+
+    @Test
+    public void parallelDevicesFinishSoonerThanSerial() throws IOException {
+        final byte[] data = payload(4000);
+        final Rack serial = rack(6);
+        assertTrue(serial.run(serial.job()
+                .transmit(SERVICE_UUID.toString(), WRITE_UUID.toString(), data, false)
+                .setConcurrency(1)));
+        final Rack parallel = rack(6);
+        assertTrue(parallel.run(parallel.job()
+                .transmit(SERVICE_UUID.toString(), WRITE_UUID.toString(), data, false)
+                .setConcurrency(3)));
+        assertEquals(6, serial.stats.succeeded);
+        assertEquals(6, parallel.stats.succeeded);
+        assertEquals(1, serial.stats.maxConcurrent);
+        assertEquals(3, parallel.stats.maxConcurrent);
+        assertTrue(serial.stats.elapsedMillis + " / " + parallel.stats.elapsedMillis,
+                serial.stats.elapsedMillis > 2 * parallel.stats.elapsedMillis);
+        assertTrue(parallel.stats.bytesPerSecond > 2 * serial.stats.bytesPerSecond);
+    }
+
+    @Test
+    public void failedAttemptsAreRetriedThenReported() throws IOException {
+        final Rack rack = rack(3);
+        final String dead = rack.addresses.get(0);
+        final String flaky = rack.addresses.get(1);
+        rack.peripherals.get(dead).setConnectable(false);
+        rack.peripherals.get(flaky).disconnectAt(600);
+        final byte[] data = payload(8000);
+        final BleFanoutJob job = rack.job()
+                .write(SERVICE_UUID.toString(), WRITE_UUID.toString(), COMMAND)
+                .transmit(SERVICE_UUID.toString(), WRITE_UUID.toString(), data, false)
+                .setMaxAttempts(3);
+        assertTrue(rack.run(job));
+
+        final BleFanoutResult failed = rack.result(dead);
+        assertEquals(BLE_ERROR_CONNECT, failed.code);
+        assertEquals(3, failed.attempts);
+        assertEquals(0, failed.completedTasks);
+        assertEquals(3, rack.peripherals.get(dead).connectAttempts);
+
+        // 断线后重连, 从未完成的发送继续, 命令不重复写.
+        final BleFanoutResult retried = rack.result(flaky);
+        assertEquals(BLE_SUCCESS, retried.code);
+        assertEquals(2, retried.attempts);
+        assertEquals(COMMAND.length + data.length, retried.bytes);
+        final byte[] received = rack.peripherals.get(flaky).getReceived(SERVICE_UUID, WRITE_UUID);
+        assertEquals(COMMAND[0], received[0]);
+        assertTrue(received.length > COMMAND.length + data.length);
+        assertTrue(endsWith(received, data));
+
+        assertEquals(1, rack.stats.failed);
+        assertEquals(2, rack.stats.succeeded);
+        assertEquals(6, rack.stats.attempts);
+    }
+
+    @Test
+    public void devicesAreConnectedOnceSeenInScan() throws IOException {
+        final Rack rack = rack(3);
+        final String late = rack.addresses.get(2);
+        rack.nearby.add(rack.addresses.get(0));
+        rack.nearby.add(rack.addresses.get(1));
+        final BleFanoutJob job = rack.job()
+                .write(SERVICE_UUID.toString(), WRITE_UUID.toString(), COMMAND)
+                .setRequireScan(true);
+        assertTrue(rack.start(job));
+        rack.scheduler.advance(10 * 1000);
+        assertEquals(1, rack.scanStarts);
+        assertEquals(0, rack.scanStops);
+        assertEquals(2, rack.results.size());
+        assertEquals(0, rack.peripherals.get(late).connectAttempts);
+        assertFalse(job.isFinished());
+        final BleFanoutStats stats = job.getStats();
+        assertEquals(1, stats.pending);
+        assertEquals(0, stats.running);
+
+        // 设备出现后连接, 全部出现后停止扫描.
+        rack.nearby.add(late);
+        assertTrue(rack.await());
+        assertEquals(3, rack.stats.succeeded);
+        assertEquals(1, rack.scanStarts);
+        assertEquals(1, rack.scanStops);
+    }
+
+    @Test
+    public void cancelAbortsRunningAndPendingDevices() throws IOException {
+        final Rack rack = rack(4);
+        final BleFanoutJob job = rack.job()
+                .transmit(SERVICE_UUID.toString(), WRITE_UUID.toString(), payload(50 * 1000), false)
+                .setConcurrency(2);
+        assertTrue(rack.start(job));
+        rack.scheduler.advance(1000);
+        assertEquals(2, job.getStats().running);
+        rack.fanout.cancel();
+        assertTrue(rack.await());
+
+        assertEquals(4, rack.results.size());
+        for (BleFanoutResult result : rack.results) {
+            assertEquals(BLE_ERROR_CANCELLED, result.code);
+        }
+        assertEquals(4, rack.stats.failed);
+        assertEquals(0, rack.openConnections());
+        assertEquals(0, rack.peripherals.get(rack.addresses.get(3)).connectAttempts);
+    }
+
+    @Test
+    public void existingConnectionIsReusedAndKept() throws IOException {
+        final Rack rack = rack(2);
+        final String connected = rack.addresses.get(0);
+        final BleConnection existing = rack.connect(connected);
+        assertTrue(rack.scheduler.runUntil(new VirtualScheduler.Condition() {
+            @Override
+            public boolean isMet() {
+                return existing.isConnected();
+            }
+        }, MAX_MILLIS));
+        assertTrue(rack.run(rack.job()
+                .write(SERVICE_UUID.toString(), WRITE_UUID.toString(), COMMAND)));
+        assertEquals(2, rack.stats.succeeded);
+        assertEquals(1, rack.peripherals.get(connected).connectAttempts);
+        assertTrue(existing.isConnected());
+        assertEquals(1, rack.openConnections());
+    }
+
+    private Rack rack(int devices) throws IOException {
+        final Rack rack = new Rack(devices);
+        mRacks.add(rack);
+        return rack;
+    }
+
+    private static byte[] payload(int length) {
+        final byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 7 + 1);
+        }
+        return data;
+    }
+
+    private static boolean endsWith(byte[] array, byte[] suffix) {
+        final int offset = array.length - suffix.length;
+        if (offset < 0)
+            return false;
+        for (int i = 0; i < suffix.length; i++) {
+            if (array[offset + i] != suffix[i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * 一组模拟外设和一个虚拟时钟, 充当 BleManager 提供连接和扫描.
+     */
+    private static final class Rack implements BleFanoutScheduler.Host, BleFanoutListener {
+        final VirtualScheduler scheduler = new VirtualScheduler();
+        final List<String> addresses = new ArrayList<>();
+        final Map<String, SimulatedPeripheral> peripherals = new HashMap<>();
+        final Map<String, BleConnection> connections = new HashMap<>();
+        final Set<String> nearby = new HashSet<>();
+        final List<BleFanoutResult> results = new ArrayList<>();
+        final BleBufferPool pool = new BleBufferPool();
+        final File cacheDir;
+        final BleGattCache cache = new BleGattCache();
+        BleFanoutScheduler fanout;
+        BleFanoutStats stats;
+        int scanStarts;
+        int scanStops;
+
+        Rack(int devices) throws IOException {
+            cacheDir = File.createTempFile("ble_fanout", "");
+            if (!cacheDir.delete() || !cacheDir.mkdirs())
+                throw new IOException("mkdirs failed : " + cacheDir);
+            for (int i = 0; i < devices; i++) {
+                final String address = String.format("00:11:22:33:44:%02X", i);
+                final SimulatedPeripheral peripheral = new SimulatedPeripheral(address, scheduler);
+                peripheral.setGattTable(SimulatedLink.defaultTable().build());
+                addresses.add(address);
+                peripherals.put(address, peripheral);
+            }
+        }
+
+        BleFanoutJob job() {
+            return new BleFanoutJob().addDevices(addresses).setListener(this);
+        }
+
+        boolean start(BleFanoutJob job) {
+            fanout = new BleFanoutScheduler(scheduler, this, job, this);
+            if (!job.attach(fanout))
+                return false;
+            for (BleConnection connection : connections.values()) {
+                recorderOf(connection).fanout = fanout;
+            }
+            fanout.start();
+            return true;
+        }
+
+        boolean await() {
+            return scheduler.runUntil(new VirtualScheduler.Condition() {
+                @Override
+                public boolean isMet() {
+                    return stats != null;
+                }
+            }, MAX_MILLIS);
+        }
+
+        boolean run(BleFanoutJob job) {
+            return start(job) && await();
+        }
+
+        BleFanoutResult result(String address) {
+            for (BleFanoutResult result : results) {
+                if (result.address.equals(address))
+                    return result;
+            }
+            return null;
+        }
+
+        int openConnections() {
+            // 断开回调之后才从连接表移除.
+            scheduler.advance(1000);
+            int count = 0;
+            for (BleConnection connection : connections.values()) {
+                if (connection.getState() != BleConnection.STATE_DISCONNECTED)
+                    count++;
+            }
+            return count;
+        }
+
+        void release() {
+            for (BleConnection connection : connections.values()) {
+                connection.close();
+            }
+            cache.clear();
+            cacheDir.delete();
+        }
+
+        private final Map<BleConnection, ConnectionRecorder> mRecorders = new HashMap<>();
+
+        private ConnectionRecorder recorderOf(BleConnection connection) {
+            return mRecorders.get(connection);
+        }
+
+        @Override
+        public BleConnection getConnection(String address) {
+            final BleConnection connection = connections.get(address);
+            return connection == null
+                    || connection.getState() == BleConnection.STATE_DISCONNECTED
+                    ? null : connection;
+        }
+
+        @Override
+        public boolean hasFreeSlot() {
+            return true;
+        }
+
+        @Override
+        public BleConnection connect(String address) {
+            final ConnectionRecorder recorder = new ConnectionRecorder();
+            recorder.fanout = fanout;
+            final BleConnection connection = new BleConnection(peripherals.get(address), scheduler,
+                    cache, pool, recorder);
+            mRecorders.put(connection, recorder);
+            connections.put(address, connection);
+            return connection.connect() ? connection : null;
+        }
+
+        @Override
+        public void disconnect(BleConnection connection) {
+            connection.disconnect();
+        }
+
+        @Override
+        public boolean isNearby(String address) {
+            return nearby.contains(address);
+        }
+
+        @Override
+        public boolean startScan() {
+            scanStarts++;
+            return true;
+        }
+
+        @Override
+        public void stopScan() {
+            scanStops++;
+        }
+
+        @Override
+        public int getTransmitWindow() {
+            return 4;
+        }
+
+        @Override
+        public long getOperationTimeout() {
+            return BleConstants.BLE_DEFAULT_OPERATION_TIMEOUT;
+        }
+
+        @Override
+        public BleOtaCheckpoint getCheckpoints() {
+            return new BleOtaCheckpoint(cacheDir, scheduler);
+        }
+
+        @Override
+        public void onJobFinished(BleFanoutScheduler scheduler) {
+        }
+
+        @Override
+        public void onDeviceFinished(BleFanoutJob job, BleFanoutResult result) {
+            results.add(result);
+        }
+
+        @Override
+        public void onJobFinished(BleFanoutJob job, BleFanoutStats stats) {
+            this.stats = stats;
+        }
+    }
+}
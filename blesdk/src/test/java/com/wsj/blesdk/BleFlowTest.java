@@ -0,0 +1,158 @@
+package com.wsj.blesdk;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 事件流: 多订阅者, filter/distinct/sample/buffer, observeOn 的缓冲与丢弃 (虚拟时钟).
+ */
+public class BleFlowTest {
+    private VirtualScheduler mScheduler;
+    private BleSubject<String> mSubject;
+
+    @Before
+    public void setUp() {
+        mScheduler = new VirtualScheduler();
+        mSubject = new BleSubject<>(mScheduler);
+    }
+
+    @Test
+    public void subscribersShareEventsAndCancelIndependently() {
+        final List<Object> first = new ArrayList<>();
+        final List<Object> second = new ArrayList<>();
+        assertFalse(mSubject.hasSubscribers());
+        final BleSubscription a = mSubject.subscribe(collect(first));
+        mSubject.subscribe(collect(second));
+        assertTrue(mSubject.hasSubscribers());
+
+        final String event = new String("A1");
+        mSubject.emit(event);
+        assertSame(event, first.get(0));
+        assertSame(event, second.get(0));
+
+        a.cancel();
+        assertTrue(a.isCancelled());
+        mSubject.emit("A2");
+        assertEquals(1, first.size());
+        assertEquals(2, second.size());
+    }
+
+    @Test
+    public void filterAndDistinctArePerSubscription() {
+        final BleFlow<String> device = mSubject.filter(new BleFlow.Predicate<String>() {
+            @Override
+            public boolean test(String value) {
+                return value.startsWith("A");
+            }
+        }).distinct();
+        final List<Object> first = new ArrayList<>();
+        device.subscribe(collect(first));
+        for (String event : new String[]{"A1", "A1", "B1", "A2", "A2", "A1"}) {
+            mSubject.emit(event);
+        }
+        assertEquals("[A1, A2, A1]", first.toString());
+
+        // 新的订阅从头判断重复.
+        final List<Object> second = new ArrayList<>();
+        final BleSubscription subscription = device.subscribe(collect(second));
+        mSubject.emit("A1");
+        assertEquals("[A1]", second.toString());
+        assertEquals("[A1, A2, A1]", first.toString());
+
+        subscription.cancel();
+        mSubject.emit("A3");
+        assertEquals(1, second.size());
+        assertEquals(4, first.size());
+    }
+
+    @Test
+    public void sampleEmitsLatestPerPeriod() {
+        final List<Object> events = new ArrayList<>();
+        final BleSubscription subscription = mSubject.sample(100).subscribe(collect(events));
+        mSubject.emit("1");
+        mSubject.emit("2");
+        mScheduler.advance(50);
+        mSubject.emit("3");
+        assertTrue(events.isEmpty());
+        mScheduler.advance(50);
+        assertEquals("[3]", events.toString());
+        // 周期内没有事件时不回调.
+        mScheduler.advance(500);
+        assertEquals(1, events.size());
+
+        mSubject.emit("4");
+        subscription.cancel();
+        mScheduler.advance(200);
+        assertEquals(1, events.size());
+        assertFalse(mSubject.hasSubscribers());
+    }
+
+    @Test
+    public void bufferFlushesOnCountOrTime() {
+        final List<Object> batches = new ArrayList<>();
+        mSubject.buffer(3, 200).subscribe(collect(batches));
+        for (int i = 0; i < 4; i++) {
+            mSubject.emit(String.valueOf(i));
+        }
+        assertEquals("[[0, 1, 2]]", batches.toString());
+        mScheduler.advance(199);
+        assertEquals(1, batches.size());
+        mScheduler.advance(1);
+        assertEquals("[[0, 1, 2], [3]]", batches.toString());
+        // 按个数满了之后计时重新开始.
+        mSubject.emit("4");
+        mScheduler.advance(100);
+        mSubject.emit("5");
+        mSubject.emit("6");
+        mScheduler.advance(1000);
+        assertEquals("[[0, 1, 2], [3], [4, 5, 6]]", batches.toString());
+    }
+
+    @Test
+    public void observeOnDropsOldestWhenSubscriberFallsBehind() {
+        final List<Runnable> pending = new ArrayList<>();
+        final Executor executor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                pending.add(command);
+            }
+        };
+        final List<Object> slow = new ArrayList<>();
+        final List<Object> fast = new ArrayList<>();
+        final BleSubscription subscription = mSubject.observeOn(executor, 3)
+                .subscribe(collect(slow));
+        mSubject.subscribe(collect(fast));
+        for (int i = 0; i < 10; i++) {
+            mSubject.emit(String.valueOf(i));
+        }
+        // 一次投递处理所有积压的事件.
+        assertEquals(1, pending.size());
+        assertEquals(10, fast.size());
+        assertEquals(7, subscription.getDropped());
+        pending.remove(0).run();
+        assertEquals("[7, 8, 9]", slow.toString());
+
+        mSubject.emit("10");
+        subscription.cancel();
+        pending.remove(0).run();
+        assertEquals(3, slow.size());
+    }
+
+    private static BleObserver<Object> collect(final List<Object> out) {
+        return new BleObserver<Object>() {
+            @Override
+            public void onEvent(Object event) {
+                out.add(event);
+            }
+        };
+    }
+}
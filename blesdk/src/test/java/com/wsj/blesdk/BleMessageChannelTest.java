@@ -0,0 +1,331 @@
+package com.wsj.blesdk;
+
+import com.wsj.blesdk.utils.Crc16;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import static com.wsj.blesdk.BleConstants.BLE_ERROR_DISCONNECT;
+import static com.wsj.blesdk.BleConstants.BLE_ERROR_TIMEOUT;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 消息通道: 分帧与重组, 丢帧和错帧时的选择重传, 信用流控, 超时关闭, 经模拟外设收发 (虚拟时钟).
+ */
+public class BleMessageChannelTest {
+    private static final String ADDRESS = SimulatedLink.ADDRESS;
+    private static final UUID SERVICE_UUID = SimulatedLink.SERVICE_UUID;
+    private static final UUID NOTIFY_UUID = SimulatedLink.NOTIFY_UUID;
+    // 单向传输延迟 (毫秒).
+    private static final long LATENCY = 15;
+
+    private VirtualScheduler mScheduler;
+    private Wire mToB;
+    private Wire mToA;
+    private BleMessageChannel mA;
+    private BleMessageChannel mB;
+
+    @Before
+    public void setUp() {
+        mScheduler = new VirtualScheduler();
+    }
+
+    @Test
+    public void crcMatchesCcittFalse() {
+        final byte[] check = "123456789".getBytes(Charset.forName("US-ASCII"));
+        assertEquals(0x29B1, Crc16.compute(check, 0, check.length));
+    }
+
+    @Test
+    public void messagesSurviveLossAndCorruption() {
+        pair(BleMessageChannel.DEFAULT_WINDOW, BleMessageChannel.DEFAULT_CAPACITY);
+        mToB.dropEvery = 7;
+        mToB.corruptEvery = 11;
+        mToA.dropEvery = 5;
+
+        final Random random = new Random(3);
+        final List<byte[]> sent = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            final byte[] message = new byte[i == 0 ? 0 : 1000 + random.nextInt(4000)];
+            random.nextBytes(message);
+            sent.add(message);
+            assertTrue(mA.send(message));
+        }
+        // 反方向同时发送.
+        final byte[] reply = new byte[3000];
+        random.nextBytes(reply);
+        assertTrue(mB.send(reply));
+
+        final List<byte[]> received = new ArrayList<>();
+        final List<byte[]> replies = new ArrayList<>();
+        mScheduler.runUntil(new VirtualScheduler.Condition() {
+            @Override
+            public boolean isMet() {
+                mB.drain(collect(received), Integer.MAX_VALUE);
+                mA.drain(collect(replies), Integer.MAX_VALUE);
+                return received.size() == sent.size() && replies.size() == 1;
+            }
+        }, 60 * 1000);
+
+        assertEquals(sent.size(), received.size());
+        for (int i = 0; i < sent.size(); i++) {
+            assertArrayEquals(sent.get(i), received.get(i));
+        }
+        assertArrayEquals(reply, replies.get(0));
+        assertTrue(mA.getRetransmittedFrames() > 0);
+        assertTrue(mB.getCorruptedFrames() > 0);
+        assertFalse(mA.isClosed());
+        assertFalse(mB.isClosed());
+        // 只重传丢失或损坏的帧.
+        assertTrue(mA.getRetransmittedFrames() <= mToB.dropped + mToB.corrupted
+                + mToA.dropped + 1);
+    }
+
+    @Test
+    public void creditsPauseSenderUntilDrained() {
+        // 收件箱只容纳 8 帧, 帧长 20 字节时每条 20 字节的消息占 2 帧.
+        pair(8, 8);
+        final byte[] message = new byte[20];
+        for (int i = 0; i < 10; i++) {
+            message[0] = (byte) i;
+            assertTrue(mA.send(message.clone()));
+        }
+        mScheduler.advance(5 * 1000);
+        assertEquals(4, mB.available());
+        final int frames = mToB.sent;
+        mScheduler.advance(5 * 1000);
+        // 信用为 0 时只发送询问, 没有数据帧.
+        assertEquals(4, mB.available());
+        assertTrue(mToB.sent - frames <= 5 + 1);
+
+        final List<byte[]> received = new ArrayList<>();
+        mScheduler.runUntil(new VirtualScheduler.Condition() {
+            @Override
+            public boolean isMet() {
+                mB.drain(collect(received), 1);
+                return received.size() == 10;
+            }
+        }, 60 * 1000);
+        assertEquals(10, received.size());
+        for (int i = 0; i < 10; i++) {
+            assertEquals(i, received.get(i)[0]);
+        }
+        assertFalse(mA.isClosed());
+        assertEquals(0, mA.getRetransmittedFrames());
+    }
+
+    @Test
+    public void closesAfterRepeatedTimeouts() {
+        pair(BleMessageChannel.DEFAULT_WINDOW, BleMessageChannel.DEFAULT_CAPACITY);
+        mToB.cut = true;
+        assertTrue(mA.send(new byte[100]));
+        mScheduler.advance(60 * 1000);
+        assertTrue(mA.isClosed());
+        assertEquals(BLE_ERROR_TIMEOUT, mA.getError());
+        assertEquals(1, mToB.closed.size());
+        assertEquals(BLE_ERROR_TIMEOUT, (int) mToB.closed.get(0));
+        assertFalse(mA.send(new byte[1]));
+        // 重传次数有限.
+        assertEquals(5, mA.getRetransmittedFrames());
+    }
+
+    @Test
+    public void exchangesMessagesWithPeripheral() throws Exception {
+        final SimulatedLink link = new SimulatedLink();
+        try {
+            assertTrue(link.connect());
+            assertTrue(link.discover());
+            final BleMessageChannel central = link.connection.openChannel(SERVICE_UUID,
+                    SimulatedLink.WRITE_UUID, NOTIFY_UUID, BleMessageChannel.DEFAULT_WINDOW,
+                    BleMessageChannel.DEFAULT_CAPACITY);
+            assertNotNull(central);
+            // 每个连接只有一个通道.
+            assertTrue(link.connection.openChannel(SERVICE_UUID, SimulatedLink.WRITE_UUID,
+                    NOTIFY_UUID, 4, 4) == null);
+
+            // 外设固件一侧的通道, 以通知回复.
+            final BleMessageChannel firmware = new BleMessageChannel(link.scheduler, ADDRESS,
+                    SERVICE_UUID, SimulatedLink.WRITE_UUID, BleMessageChannel.DEFAULT_WINDOW,
+                    BleMessageChannel.DEFAULT_CAPACITY, new BleMessageChannel.Link() {
+                @Override
+                public boolean writeFrame(byte[] frame, boolean control) {
+                    final byte[] value = frame.clone();
+                    link.scheduler.postDelayed(new Runnable() {
+                        @Override
+                        public void run() {
+                            link.peripheral.notifyNow(SERVICE_UUID, NOTIFY_UUID, value);
+                        }
+                    }, LATENCY);
+                    return true;
+                }
+
+                @Override
+                public int getFrameSize() {
+                    return link.peripheral.getMtu() - BleConstants.BLE_ATT_WRITE_HEADER;
+                }
+
+                @Override
+                public void onClosed(BleMessageChannel channel, int code) {
+                }
+            }, new BleBufferPool());
+            link.peripheral.setWriteHandler(new SimulatedPeripheral.WriteHandler() {
+                @Override
+                public void onWrite(UUID service, UUID characteristic, byte[] value) {
+                    firmware.onFrame(value);
+                }
+            });
+
+            final byte[] request = new byte[4096];
+            new Random(5).nextBytes(request);
+            assertTrue(central.send(request));
+            final ByteArrayOutputStream got = new ByteArrayOutputStream();
+            assertTrue(link.scheduler.runUntil(new VirtualScheduler.Condition() {
+                @Override
+                public boolean isMet() {
+                    return firmware.drain(copy(got), 1) > 0;
+                }
+            }, 30 * 1000));
+            assertArrayEquals(request, got.toByteArray());
+            // 帧按协商后的 MTU 分段, 写入的字节只多出帧头和校验.
+            final int written = link.peripheral.getReceived(SERVICE_UUID,
+                    SimulatedLink.WRITE_UUID).length;
+            assertTrue(written < request.length * 11 / 10);
+
+            final byte[] response = "pong".getBytes(Charset.forName("US-ASCII"));
+            assertTrue(firmware.send(response));
+            got.reset();
+            assertTrue(link.scheduler.runUntil(new VirtualScheduler.Condition() {
+                @Override
+                public boolean isMet() {
+                    return central.drain(copy(got), 1) > 0;
+                }
+            }, 30 * 1000));
+            assertArrayEquals(response, got.toByteArray());
+            // 通道的帧不进入通知回调.
+            assertEquals(0, link.recorder.notifications.size());
+
+            // 断开时关闭.
+            link.peripheral.disconnectAt(link.scheduler.now() + 10);
+            link.scheduler.advance(100);
+            assertTrue(central.isClosed());
+            assertEquals(BLE_ERROR_DISCONNECT, central.getError());
+        } finally {
+            link.release();
+        }
+    }
+
+    @Test
+    public void framesAreWrittenOutsideChannelLock() {
+        pair(BleMessageChannel.DEFAULT_WINDOW, BleMessageChannel.DEFAULT_CAPACITY);
+        mToB.dropEvery = 4;
+        final List<byte[]> received = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            assertTrue(mA.send(new byte[600]));
+        }
+        mScheduler.advance(10 * 1000);
+        mB.drain(collect(received), Integer.MAX_VALUE);
+        assertEquals(4, received.size());
+        // 数据帧, 重传和确认帧都在锁外写出.
+        assertTrue(mToB.dropped > 0);
+        assertEquals(0, mToB.writtenUnderLock);
+        assertEquals(0, mToA.writtenUnderLock);
+    }
+
+    /**
+     * 两个直接相连的通道.
+     */
+    private void pair(int window, int capacity) {
+        mToB = new Wire();
+        mToA = new Wire();
+        mA = new BleMessageChannel(mScheduler, ADDRESS, SERVICE_UUID, NOTIFY_UUID, window,
+                capacity, mToB, new BleBufferPool());
+        mB = new BleMessageChannel(mScheduler, ADDRESS, SERVICE_UUID, NOTIFY_UUID, window,
+                capacity, mToA, new BleBufferPool());
+        mToB.peer = mB;
+        mToA.peer = mA;
+        mToB.owner = mA;
+        mToA.owner = mB;
+    }
+
+    /**
+     * 单向链路, 可按次数丢弃或损坏帧.
+     */
+    private final class Wire implements BleMessageChannel.Link {
+        BleMessageChannel peer;
+        // 写入方的通道.
+        BleMessageChannel owner;
+        int dropEvery;
+        int corruptEvery;
+        boolean cut;
+        int sent;
+        int dropped;
+        int corrupted;
+        // 持有写入方通道的锁时写出的帧数.
+        int writtenUnderLock;
+        final List<Integer> closed = new ArrayList<>();
+
+        @Override
+        public boolean writeFrame(byte[] frame, boolean control) {
+            sent++;
+            if (owner != null && Thread.holdsLock(owner))
+                writtenUnderLock++;
+            if (cut || dropEvery > 0 && sent % dropEvery == 0) {
+                dropped++;
+                return true;
+            }
+            final byte[] value = frame.clone();
+            if (corruptEvery > 0 && sent % corruptEvery == 0) {
+                value[value.length / 2] ^= 0x10;
+                corrupted++;
+            }
+            mScheduler.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    peer.onFrame(value);
+                }
+            }, LATENCY);
+            return true;
+        }
+
+        @Override
+        public int getFrameSize() {
+            return BleConstants.BLE_DEFAULT_MTU - BleConstants.BLE_ATT_WRITE_HEADER;
+        }
+
+        @Override
+        public void onClosed(BleMessageChannel channel, int code) {
+            closed.add(code);
+        }
+    }
+
+    private static BleMessageChannel.Consumer collect(final List<byte[]> out) {
+        return new BleMessageChannel.Consumer() {
+            @Override
+            public void onMessage(byte[] buffer, int offset, int length) {
+                final byte[] message = new byte[length];
+                System.arraycopy(buffer, offset, message, 0, length);
+                out.add(message);
+            }
+        };
+    }
+
+    private static BleMessageChannel.Consumer copy(final ByteArrayOutputStream out) {
+        return new BleMessageChannel.Consumer() {
+            @Override
+            public void onMessage(byte[] buffer, int offset, int length) {
+                out.write(buffer, offset, length);
+            }
+        };
+    }
+}
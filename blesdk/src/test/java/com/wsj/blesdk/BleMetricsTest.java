@@ -0,0 +1,128 @@
+package com.wsj.blesdk;
+
+import com.wsj.blesdk.utils.Histogram;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static com.wsj.blesdk.BleConstants.BLE_ERROR_CONNECT;
+import static com.wsj.blesdk.BleConstants.BLE_ERROR_TIMEOUT;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 运行指标: 直方图精度, 连接上的记录点, 导出区间 (模拟外设, 虚拟时钟).
+ */
+public class BleMetricsTest {
+    // 通知间隔 (毫秒) 和长度.
+    private static final long INTERVAL = 5;
+    private static final int SIZE = 20;
+
+    private SimulatedLink mLink;
+    private BleMetrics mMetrics;
+
+    @Before
+    public void setUp() throws Exception {
+        mLink = new SimulatedLink();
+        mMetrics = new BleMetrics(mLink.scheduler);
+        mLink.connection.setMetrics(mMetrics);
+    }
+
+    @After
+    public void tearDown() {
+        mLink.release();
+    }
+
+    @Test
+    public void percentilesAreWithinBucketPrecision() {
+        final Histogram histogram = new Histogram(1000000);
+        for (int i = 1; i <= 10000; i++) {
+            histogram.record(i);
+        }
+        final Histogram.Snapshot snapshot = new Histogram.Snapshot(histogram);
+        histogram.snapshot(snapshot);
+        assertEquals(10000, snapshot.getCount());
+        assertEquals(5000, snapshot.getMean());
+        assertEquals(1, snapshot.getMin());
+        assertWithin(5000, snapshot.getPercentile(50));
+        assertWithin(9900, snapshot.getPercentile(99));
+        assertWithin(10000, snapshot.getMax());
+        assertTrue(snapshot.getMax() >= 10000);
+    }
+
+    @Test
+    public void connectionRecordsLatencyAndThroughput() {
+        mLink.peripheral.addNotificationSource(SimulatedLink.SERVICE_UUID,
+                SimulatedLink.NOTIFY_UUID, INTERVAL, SIZE);
+        assertTrue(mLink.connect());
+        assertTrue(mLink.discover());
+        final byte[] data = new byte[8 * 1024];
+        new Random(1).nextBytes(data);
+        assertTrue(mLink.connection.transmit(data, SimulatedLink.SERVICE_UUID,
+                SimulatedLink.WRITE_UUID, 4, false, mLink.recorder));
+        assertTrue(mLink.awaitTransmit(60 * 1000));
+        assertNotNull(mLink.connection.subscribe(SimulatedLink.SERVICE_UUID,
+                SimulatedLink.NOTIFY_UUID, 4096, 64));
+        mLink.scheduler.advance(3000);
+
+        final BleMetricsSnapshot snapshot = new BleMetricsSnapshot();
+        mMetrics.snapshot(snapshot);
+        // 模拟外设 100 毫秒后连接成功.
+        assertEquals(1, snapshot.connectLatency.getCount());
+        assertWithin(100, snapshot.connectLatency.getPercentile(50));
+        assertEquals(1, snapshot.discoveryTime.getCount());
+        assertTrue(snapshot.discoveryTime.getMin() > 0);
+        // MTU, PHY, CCCD 和分包写都有往返时间.
+        assertTrue(snapshot.roundTrip.getCount() > 4);
+        assertEquals(1, snapshot.writeThroughput.getCount());
+        assertWithin(mLink.recorder.transmitRate, snapshot.writeThroughput.getMax());
+        assertEquals(data.length, snapshot.bytesWritten);
+        assertTrue(snapshot.notifications > 0);
+        assertEquals(snapshot.notifications * SIZE, snapshot.bytesNotified);
+        assertTrue(snapshot.notifyThroughput.getCount() >= 2);
+        assertWithin(SIZE * 1000 / INTERVAL, snapshot.notifyThroughput.getPercentile(50));
+    }
+
+    @Test
+    public void exporterReportsIntervals() {
+        final BleMetricsExporter exporter = new BleMetricsExporter(mMetrics);
+        for (int i = 0; i < 200; i++) {
+            mMetrics.onAdvertisement();
+        }
+        mMetrics.onError(BLE_ERROR_CONNECT);
+        mLink.scheduler.advance(2000);
+        BleMetricsSnapshot snapshot = exporter.poll();
+        assertEquals(200, snapshot.advertisements);
+        assertEquals(100, snapshot.getAdvertisementsPerSecond());
+        assertEquals(1, snapshot.getErrorCount(BLE_ERROR_CONNECT));
+
+        mMetrics.onError(BLE_ERROR_TIMEOUT);
+        mMetrics.onError(BLE_ERROR_TIMEOUT);
+        mMetrics.onOperationComplete(30);
+        mLink.scheduler.advance(1000);
+        snapshot = exporter.poll();
+        assertEquals(1000, snapshot.timeMillis - snapshot.startMillis);
+        assertEquals(0, snapshot.advertisements);
+        assertEquals(0, snapshot.getErrorCount(BLE_ERROR_CONNECT));
+        assertEquals(2, snapshot.getErrorCount(BLE_ERROR_TIMEOUT));
+        assertEquals(1, snapshot.roundTrip.getCount());
+
+        final StringBuilder json = new StringBuilder();
+        BleMetricsExporter.appendJson(snapshot, json);
+        assertTrue(json.toString(), json.indexOf("\"errors\":{\"" + BLE_ERROR_TIMEOUT + "\":2}") > 0);
+        assertTrue(json.toString(), json.indexOf("\"roundTrip\":{\"count\":1,") > 0);
+        assertTrue(json.toString(), json.indexOf("\"buckets\":[[30,1]]") > 0);
+    }
+
+    /**
+     * 直方图的值在一个桶的精度 (1/16) 内.
+     */
+    private static void assertWithin(long expected, long actual) {
+        assertTrue("expected " + expected + " actual " + actual,
+                Math.abs(actual - expected) <= expected / 16 + 1);
+    }
+}
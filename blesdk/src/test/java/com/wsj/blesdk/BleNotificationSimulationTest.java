@@ -0,0 +1,100 @@
+package com.wsj.blesdk;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 通知订阅与数据流 (模拟外设, 虚拟时钟).
+ */
+public class BleNotificationSimulationTest {
+    // 通知间隔 (毫秒) 和长度.
+    private static final long INTERVAL = 5;
+    private static final int SIZE = 20;
+
+    private SimulatedLink mLink;
+
+    @Before
+    public void setUp() throws Exception {
+        mLink = new SimulatedLink();
+        mLink.peripheral.addNotificationSource(SimulatedLink.SERVICE_UUID,
+                SimulatedLink.NOTIFY_UUID, INTERVAL, SIZE);
+    }
+
+    @After
+    public void tearDown() {
+        mLink.release();
+    }
+
+    @Test
+    public void notificationsAreBufferedInOrder() {
+        assertTrue(mLink.connect());
+        assertTrue(mLink.discover());
+        final BleNotificationStream stream = mLink.connection.subscribe(SimulatedLink.SERVICE_UUID,
+                SimulatedLink.NOTIFY_UUID, 1024, 64);
+        assertNotNull(stream);
+        assertTrue(mLink.idle());
+        assertTrue(mLink.peripheral.isNotifying(SimulatedLink.SERVICE_UUID,
+                SimulatedLink.NOTIFY_UUID));
+
+        mLink.scheduler.advance(1000);
+        final int sent = mLink.peripheral.getNotificationsSent();
+        // 每个连接事件送出到期的通知, 平均速率与通知源一致.
+        assertTrue("sent " + sent, Math.abs(sent - 1000 / INTERVAL) <= 1000 / INTERVAL / 10);
+        assertEquals(sent, stream.available());
+
+        final int[] next = {0};
+        final int drained = stream.drain(new BleNotificationStream.Consumer() {
+            @Override
+            public void onNotification(byte[] buffer, int offset, int length, long timestampNanos) {
+                assertEquals(SIZE, length);
+                final int sequence = (buffer[offset] & 0xff) << 24
+                        | (buffer[offset + 1] & 0xff) << 16
+                        | (buffer[offset + 2] & 0xff) << 8
+                        | (buffer[offset + 3] & 0xff);
+                assertEquals(next[0]++, sequence);
+            }
+        }, Integer.MAX_VALUE);
+        assertEquals(sent, drained);
+        assertEquals(0, stream.getDroppedCount());
+        // 订阅后的通知不再逐条回调.
+        assertTrue(mLink.recorder.notifications.isEmpty());
+    }
+
+    @Test
+    public void unsubscribeStopsNotifications() {
+        assertTrue(mLink.connect());
+        assertTrue(mLink.discover());
+        final BleNotificationStream stream = mLink.connection.subscribe(SimulatedLink.SERVICE_UUID,
+                SimulatedLink.NOTIFY_UUID, 1024, 64);
+        assertNotNull(stream);
+        mLink.scheduler.advance(100);
+        assertTrue(mLink.connection.unsubscribe(stream));
+        assertTrue(stream.isClosed());
+        assertTrue(mLink.idle());
+        assertFalse(mLink.peripheral.isNotifying(SimulatedLink.SERVICE_UUID,
+                SimulatedLink.NOTIFY_UUID));
+        final int sent = mLink.peripheral.getNotificationsSent();
+        mLink.scheduler.advance(1000);
+        assertEquals(sent, mLink.peripheral.getNotificationsSent());
+    }
+
+    @Test
+    public void disconnectClosesStream() {
+        assertTrue(mLink.connect());
+        assertTrue(mLink.discover());
+        final BleNotificationStream stream = mLink.connection.subscribe(SimulatedLink.SERVICE_UUID,
+                SimulatedLink.NOTIFY_UUID, 1024, 64);
+        assertNotNull(stream);
+        mLink.peripheral.disconnectAt(mLink.scheduler.now() + 500);
+        mLink.scheduler.advance(1000);
+        assertTrue(stream.isClosed());
+        // 关闭前收到的数据仍可读取.
+        assertTrue(stream.available() > 0);
+    }
+}
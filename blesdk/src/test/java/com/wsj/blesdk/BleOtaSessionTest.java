@@ -0,0 +1,441 @@
+package com.wsj.blesdk;
+
+import com.wsj.blesdk.utils.MacAddress;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+import static com.wsj.blesdk.BleConstants.BLE_CCCD_UUID;
+import static com.wsj.blesdk.BleConstants.BLE_ERROR_DISCONNECT;
+import static com.wsj.blesdk.BleConstants.BLE_ERROR_FIRMWARE;
+import static com.wsj.blesdk.BleConstants.BLE_PROPERTY_NOTIFY;
+import static com.wsj.blesdk.BleConstants.BLE_PROPERTY_WRITE;
+import static com.wsj.blesdk.BleConstants.BLE_PROPERTY_WRITE_NO_RESPONSE;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 固件升级: 映射文件分包上传, 断线重连后续传, 重新开始时从检查点续传, 回执丢失时重新同步,
+ * 镜像校验失败 (模拟外设, 虚拟时钟).
+ */
+public class BleOtaSessionTest {
+    private static final UUID OTA_SERVICE_UUID = UUID.fromString("0000fe59-0000-1000-8000-00805f9b34fb");
+    private static final UUID CONTROL_UUID = UUID.fromString("8ec90001-f315-4f60-9fb8-838830daea50");
+    private static final UUID PACKET_UUID = UUID.fromString("8ec90002-f315-4f60-9fb8-838830daea50");
+    private static final int IMAGE_SIZE = 200 * 1024;
+    // 升级的最长等待时间 (毫秒).
+    private static final long UPDATE_TIMEOUT = 10 * 60 * 1000;
+
+    private SimulatedLink mLink;
+    private File mImageFile;
+    private File mCheckpointDir;
+    private BleOtaCheckpoint mCheckpoints;
+    private byte[] mImage;
+    private Firmware mFirmware;
+    private Progress mProgress;
+
+    @Before
+    public void setUp() throws Exception {
+        mLink = new SimulatedLink();
+        mLink.peripheral.setGattTable(SimulatedLink.addService(SimulatedLink.defaultTable(),
+                OTA_SERVICE_UUID)
+                .addCharacteristic(CONTROL_UUID, BLE_PROPERTY_WRITE | BLE_PROPERTY_NOTIFY, null)
+                .addDescriptor(BLE_CCCD_UUID, null)
+                .addCharacteristic(PACKET_UUID, BLE_PROPERTY_WRITE_NO_RESPONSE, null)
+                .build());
+        mFirmware = new Firmware();
+        mLink.peripheral.setWriteHandler(mFirmware);
+        mProgress = new Progress();
+
+        mImage = new byte[IMAGE_SIZE];
+        new Random(7).nextBytes(mImage);
+        mImageFile = File.createTempFile("ble_ota", ".bin");
+        final FileOutputStream out = new FileOutputStream(mImageFile);
+        try {
+            out.write(mImage);
+        } finally {
+            out.close();
+        }
+        mCheckpointDir = File.createTempFile("ble_ota", "");
+        if (!mCheckpointDir.delete() || !mCheckpointDir.mkdirs())
+            throw new IOException("mkdirs failed : " + mCheckpointDir);
+        mCheckpoints = new BleOtaCheckpoint(mCheckpointDir, mLink.scheduler);
+    }
+
+    @After
+    public void tearDown() {
+        mLink.release();
+        mImageFile.delete();
+        final File[] files = mCheckpointDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mCheckpointDir.delete();
+    }
+
+    @Test
+    public void uploadsMappedImage() {
+        assertTrue(mLink.connect());
+        assertTrue(mLink.discover());
+        final BleOtaSession session = start();
+        assertNotNull(session);
+        // 同一连接同一时间只有一次升级.
+        assertTrue(start() == null);
+        assertTrue(awaitFinished(session));
+
+        assertEquals(BleOtaSession.STATE_COMPLETE, session.getState());
+        assertEquals(0, session.getResumedFrom());
+        assertEquals(IMAGE_SIZE, mProgress.completeBytes);
+        assertTrue(mProgress.progress > 0);
+        assertTrue(mProgress.rate > 0);
+        assertArrayEquals(mImage, mFirmware.image());
+        assertEquals(IMAGE_SIZE, mFirmware.packetBytes);
+        assertEquals(1, mFirmware.validations);
+        // 未确认的包不超过窗口.
+        assertTrue(mFirmware.maxUnconfirmed <= BleOtaSession.DEFAULT_WINDOW);
+        // 完成后删除检查点, 不再占用连接.
+        assertEquals(0, mCheckpoints.get(mac(), IMAGE_SIZE, session.getCrc()));
+        assertTrue(mLink.idle());
+    }
+
+    @Test
+    public void imageCrcIsComputedOnSdkThread() {
+        assertTrue(mLink.connect());
+        assertTrue(mLink.discover());
+        final BleOtaSession session = start();
+        assertNotNull(session);
+        // 调用线程只映射文件, 计算 CRC 和开始都在 SDK 线程.
+        assertEquals(BleOtaSession.STATE_IDLE, session.getState());
+        assertEquals(0, session.getCrc());
+        mLink.scheduler.advance(0);
+        assertEquals(BleOtaSession.STATE_RUNNING, session.getState());
+        final CRC32 crc = new CRC32();
+        crc.update(mImage);
+        assertEquals((int) crc.getValue(), session.getCrc());
+        assertTrue(awaitFinished(session));
+        assertEquals(BleOtaSession.STATE_COMPLETE, session.getState());
+    }
+
+    @Test
+    public void commandsAndPacketsAreWrittenOutsideSessionLock() {
+        final BleOtaSession[] session = new BleOtaSession[1];
+        final int[] packets = new int[1];
+        final boolean[] locked = new boolean[1];
+        session[0] = new BleOtaSession(mLink.scheduler, SimulatedLink.ADDRESS, OTA_SERVICE_UUID,
+                CONTROL_UUID, PACKET_UUID, ByteBuffer.wrap(mImage), BleOtaSession.DEFAULT_WINDOW,
+                new BleBufferPool(), mCheckpoints, mProgress);
+        session[0].setLink(new BleOtaSession.Link() {
+            @Override
+            public boolean writeControl(byte[] command) {
+                // 写入会调用协议栈, 通知线程不能因此等待升级的锁.
+                locked[0] |= Thread.holdsLock(session[0]);
+                return true;
+            }
+
+            @Override
+            public boolean writePacket(byte[] packet) {
+                locked[0] |= Thread.holdsLock(session[0]);
+                packets[0]++;
+                return true;
+            }
+
+            @Override
+            public int getPacketSize() {
+                return 20;
+            }
+
+            @Override
+            public void onFinished(BleOtaSession session, int code) {
+            }
+        });
+        assertTrue(session[0].start());
+        session[0].onControl(new byte[]{(byte) 0x81, 0, 0, 0, 0, 0});
+        assertEquals(BleOtaSession.DEFAULT_WINDOW, packets[0]);
+        // 回执 4 个包, 补发 4 个.
+        session[0].onControl(new byte[]{(byte) 0x82, 80, 0, 0, 0});
+        assertEquals(BleOtaSession.DEFAULT_WINDOW + 4, packets[0]);
+        assertFalse(locked[0]);
+    }
+
+    @Test
+    public void resumesAfterReconnect() {
+        final BleReconnector reconnector = new BleReconnector(mLink.scheduler, new Random(1),
+                new BleReconnector.Callback() {
+                    @Override
+                    public void onReconnectAbandoned(BleConnection connection) {
+                    }
+                });
+        mLink.recorder.reconnector = reconnector;
+        reconnector.track(mLink.connection, new BleReconnectPolicy());
+        try {
+            assertTrue(mLink.connect());
+            assertTrue(mLink.discover());
+            final BleOtaSession session = start();
+            assertNotNull(session);
+            assertTrue(mLink.scheduler.runUntil(new VirtualScheduler.Condition() {
+                @Override
+                public boolean isMet() {
+                    return session.getConfirmedBytes() >= IMAGE_SIZE / 2;
+                }
+            }, UPDATE_TIMEOUT));
+            mLink.peripheral.disconnectAt(mLink.scheduler.now() + 5);
+            mLink.scheduler.advance(10);
+            assertEquals(BleOtaSession.STATE_PAUSED, session.getState());
+            final int confirmed = session.getConfirmedBytes();
+            // 暂停时写入检查点.
+            assertEquals(confirmed, mCheckpoints.get(mac(), IMAGE_SIZE, session.getCrc()));
+
+            assertTrue(awaitFinished(session));
+            assertEquals(BleOtaSession.STATE_COMPLETE, session.getState());
+            assertEquals(0, mProgress.error);
+            assertArrayEquals(mImage, mFirmware.image());
+            assertEquals(2, mFirmware.starts);
+            // 只重发断线时未确认的包.
+            final int packetSize = mLink.connection.getMtu() - BleConstants.BLE_ATT_WRITE_HEADER;
+            assertTrue(mFirmware.packetBytes - IMAGE_SIZE
+                    <= BleOtaSession.DEFAULT_WINDOW * packetSize);
+        } finally {
+            reconnector.clear();
+        }
+    }
+
+    @Test
+    public void restartsFromPersistedCheckpoint() {
+        assertTrue(mLink.connect());
+        assertTrue(mLink.discover());
+        final BleOtaSession first = start();
+        assertNotNull(first);
+        assertTrue(mLink.scheduler.runUntil(new VirtualScheduler.Condition() {
+            @Override
+            public boolean isMet() {
+                return first.getConfirmedBytes() >= IMAGE_SIZE / 3;
+            }
+        }, UPDATE_TIMEOUT));
+        // 没有自动重连时断开即结束.
+        mLink.peripheral.disconnectAt(mLink.scheduler.now() + 5);
+        mLink.scheduler.advance(10);
+        assertEquals(BleOtaSession.STATE_FAILED, first.getState());
+        assertEquals(BLE_ERROR_DISCONNECT, mProgress.error);
+        final int checkpoint = mCheckpoints.get(mac(), IMAGE_SIZE, first.getCrc());
+        assertEquals(first.getConfirmedBytes(), checkpoint);
+        // 检查点已写入文件.
+        mLink.scheduler.advance(0);
+        assertEquals(checkpoint, new BleOtaCheckpoint(mCheckpointDir, mLink.scheduler)
+                .get(mac(), IMAGE_SIZE, first.getCrc()));
+
+        // 外设重启后只保留了检查点之前的数据.
+        mFirmware.truncate(checkpoint);
+        mProgress = new Progress();
+        assertTrue(mLink.connect());
+        assertTrue(mLink.discover());
+        final BleOtaSession second = start();
+        assertNotNull(second);
+        assertTrue(awaitFinished(second));
+        assertEquals(BleOtaSession.STATE_COMPLETE, second.getState());
+        assertEquals(checkpoint, second.getResumedFrom());
+        assertEquals(checkpoint, mFirmware.requestedOffset);
+        assertArrayEquals(mImage, mFirmware.image());
+    }
+
+    @Test
+    public void checkpointIsWrittenOnIoThread() {
+        final VirtualScheduler io = new VirtualScheduler();
+        final BleOtaCheckpoint checkpoints = new BleOtaCheckpoint(mCheckpointDir, io);
+        // 升级的回调线程只更新内存.
+        checkpoints.put(mac(), IMAGE_SIZE, 1, 4096);
+        checkpoints.put(mac(), IMAGE_SIZE, 1, 8192);
+        assertEquals(8192, checkpoints.get(mac(), IMAGE_SIZE, 1));
+        assertEquals(0, new BleOtaCheckpoint(mCheckpointDir, io).get(mac(), IMAGE_SIZE, 1));
+
+        io.advance(0);
+        assertEquals(8192, new BleOtaCheckpoint(mCheckpointDir, io).get(mac(), IMAGE_SIZE, 1));
+        checkpoints.remove(mac());
+        io.advance(0);
+        assertEquals(0, new BleOtaCheckpoint(mCheckpointDir, io).get(mac(), IMAGE_SIZE, 1));
+    }
+
+    @Test
+    public void resyncsWhenPacketsAreLost() {
+        // 外设缓冲区溢出, 丢弃之后的包直到下一次开始命令.
+        mFirmware.overflowAt = IMAGE_SIZE / 4;
+        assertTrue(mLink.connect());
+        assertTrue(mLink.discover());
+        final BleOtaSession session = start();
+        assertNotNull(session);
+        assertTrue(awaitFinished(session));
+        assertEquals(BleOtaSession.STATE_COMPLETE, session.getState());
+        assertEquals(1, session.getResyncs());
+        assertArrayEquals(mImage, mFirmware.image());
+    }
+
+    @Test
+    public void rejectedImageClearsCheckpoint() {
+        mFirmware.rejectImage = true;
+        assertTrue(mLink.connect());
+        assertTrue(mLink.discover());
+        final BleOtaSession session = start();
+        assertNotNull(session);
+        assertTrue(awaitFinished(session));
+        assertEquals(BleOtaSession.STATE_FAILED, session.getState());
+        assertEquals(BLE_ERROR_FIRMWARE, session.getError());
+        assertEquals(BLE_ERROR_FIRMWARE, mProgress.error);
+        assertEquals(0, mCheckpoints.get(mac(), IMAGE_SIZE, session.getCrc()));
+    }
+
+    private BleOtaSession start() {
+        final ByteBuffer image = BleOtaSession.mapImage(mImageFile);
+        assertNotNull(image);
+        return mLink.connection.startOta(OTA_SERVICE_UUID, CONTROL_UUID, PACKET_UUID, image,
+                BleOtaSession.DEFAULT_WINDOW, mCheckpoints, mProgress);
+    }
+
+    private boolean awaitFinished(final BleOtaSession session) {
+        return mLink.scheduler.runUntil(new VirtualScheduler.Condition() {
+            @Override
+            public boolean isMet() {
+                return session.isFinished();
+            }
+        }, UPDATE_TIMEOUT);
+    }
+
+    private static long mac() {
+        return MacAddress.toLong(SimulatedLink.ADDRESS);
+    }
+
+    /**
+     * 外设固件一侧的升级协议, 收到的数据在重连后保留.
+     */
+    private final class Firmware implements SimulatedPeripheral.WriteHandler {
+        private byte[] mStore = new byte[0];
+        private int mReceived;
+        private int mReceipt;
+        private int mSinceReceipt;
+        private int mCrc;
+        private boolean mOverflow;
+
+        int overflowAt = -1;
+        boolean rejectImage;
+        int starts;
+        int requestedOffset = -1;
+        int packetBytes;
+        int validations;
+        int maxUnconfirmed;
+        private int mUnconfirmed;
+
+        @Override
+        public void onWrite(UUID service, UUID characteristic, byte[] value) {
+            if (CONTROL_UUID.equals(characteristic))
+                control(value);
+            else if (PACKET_UUID.equals(characteristic))
+                packet(value);
+        }
+
+        byte[] image() {
+            final byte[] image = new byte[mReceived];
+            System.arraycopy(mStore, 0, image, 0, mReceived);
+            return image;
+        }
+
+        void truncate(int length) {
+            mReceived = Math.min(mReceived, length);
+        }
+
+        private void control(byte[] value) {
+            switch (value[0]) {
+                case 0x01:
+                    starts++;
+                    final int size = getInt(value, 1);
+                    mCrc = getInt(value, 5);
+                    requestedOffset = getInt(value, 9);
+                    mReceipt = (value[13] & 0xff) | (value[14] & 0xff) << 8;
+                    if (mStore.length != size) {
+                        mStore = new byte[size];
+                        mReceived = 0;
+                    }
+                    mSinceReceipt = 0;
+                    mUnconfirmed = 0;
+                    mOverflow = false;
+                    reply(new byte[]{(byte) 0x81, 0, (byte) mReceived, (byte) (mReceived >>> 8),
+                            (byte) (mReceived >>> 16), (byte) (mReceived >>> 24)});
+                    break;
+                case 0x03:
+                    validations++;
+                    final CRC32 crc = new CRC32();
+                    crc.update(mStore, 0, mReceived);
+                    final boolean valid = !rejectImage && mReceived == mStore.length
+                            && (int) crc.getValue() == mCrc;
+                    reply(new byte[]{(byte) 0x83, (byte) (valid ? 0 : 1)});
+                    break;
+            }
+        }
+
+        private void packet(byte[] value) {
+            packetBytes += value.length;
+            if (mOverflow)
+                return;
+            if (overflowAt >= 0 && mReceived >= overflowAt) {
+                overflowAt = -1;
+                mOverflow = true;
+                return;
+            }
+            System.arraycopy(value, 0, mStore, mReceived, value.length);
+            mReceived += value.length;
+            maxUnconfirmed = Math.max(maxUnconfirmed, ++mUnconfirmed);
+            if (++mSinceReceipt >= mReceipt || mReceived == mStore.length) {
+                mSinceReceipt = 0;
+                mUnconfirmed = 0;
+                reply(new byte[]{(byte) 0x82, (byte) mReceived, (byte) (mReceived >>> 8),
+                        (byte) (mReceived >>> 16), (byte) (mReceived >>> 24)});
+            }
+        }
+
+        private void reply(final byte[] value) {
+            if (mLink.peripheral.isNotifying(OTA_SERVICE_UUID, CONTROL_UUID))
+                mLink.peripheral.notifyNow(OTA_SERVICE_UUID, CONTROL_UUID, value);
+        }
+    }
+
+    private static final class Progress implements BleTransmitListener {
+        int progress;
+        long rate;
+        int completeBytes;
+        int error;
+
+        @Override
+        public void onTransmitProgress(String address, int sentBytes, int totalBytes,
+                                       long bytesPerSecond) {
+            progress++;
+            rate = bytesPerSecond;
+        }
+
+        @Override
+        public void onTransmitComplete(String address, int totalBytes, long bytesPerSecond) {
+            completeBytes = totalBytes;
+            rate = bytesPerSecond;
+        }
+
+        @Override
+        public void onTransmitError(String address, int code) {
+            error = code;
+        }
+    }
+
+    private static int getInt(byte[] data, int offset) {
+        return (data[offset] & 0xff) | (data[offset + 1] & 0xff) << 8
+                | (data[offset + 2] & 0xff) << 16 | (data[offset + 3] & 0xff) << 24;
+    }
+}
@@ -0,0 +1,167 @@
+package com.wsj.blesdk;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static com.wsj.blesdk.BleConnection.STATE_CONNECTED;
+import static com.wsj.blesdk.BleConnection.STATE_DISCONNECTED;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 断线自动重连: 恢复订阅和 MTU, 指数退避, 改为后台连接, 放弃 (模拟外设, 虚拟时钟).
+ */
+public class BleReconnectorTest {
+    // 通知间隔 (毫秒) 和长度.
+    private static final long INTERVAL = 10;
+    private static final int SIZE = 20;
+
+    private SimulatedLink mLink;
+    private BleReconnector mReconnector;
+    private final List<BleConnection> mAbandoned = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        mLink = new SimulatedLink();
+        mReconnector = new BleReconnector(mLink.scheduler, new Random(1),
+                new BleReconnector.Callback() {
+                    @Override
+                    public void onReconnectAbandoned(BleConnection connection) {
+                        mAbandoned.add(connection);
+                    }
+                });
+        mLink.recorder.reconnector = mReconnector;
+    }
+
+    @After
+    public void tearDown() {
+        mReconnector.clear();
+        mLink.release();
+    }
+
+    @Test
+    public void linkDropRestoresMtuAndSubscription() {
+        mLink.peripheral.addNotificationSource(SimulatedLink.SERVICE_UUID,
+                SimulatedLink.NOTIFY_UUID, INTERVAL, SIZE);
+        mReconnector.track(mLink.connection, new BleReconnectPolicy());
+        assertTrue(mLink.connect());
+        assertTrue(mLink.discover());
+        final BleNotificationStream stream = mLink.connection.subscribe(
+                SimulatedLink.SERVICE_UUID, SimulatedLink.NOTIFY_UUID, 1024, 64);
+        assertNotNull(stream);
+        assertTrue(mLink.idle());
+        final int discoveries = mLink.recorder.discoveries;
+
+        final long dropAt = mLink.scheduler.now() + 50;
+        mLink.peripheral.disconnectAt(dropAt);
+        mLink.scheduler.advance(60);
+        // 断开后立即发起重连, 连接保留.
+        assertTrue(mLink.recorder.states.contains(STATE_DISCONNECTED));
+        assertEquals(BleConnection.STATE_CONNECTING, mLink.connection.getState());
+        assertFalse(stream.isClosed());
+
+        // 第一次重连不等待, 模拟外设 100 毫秒后连接成功, 随后自动发现服务并恢复订阅.
+        assertTrue(mLink.scheduler.runUntil(new VirtualScheduler.Condition() {
+            @Override
+            public boolean isMet() {
+                return mLink.recorder.discoveries > discoveries
+                        && mLink.peripheral.isNotifying(SimulatedLink.SERVICE_UUID,
+                        SimulatedLink.NOTIFY_UUID);
+            }
+        }, 5000));
+        assertTrue(mLink.scheduler.now() - dropAt < 1000);
+        assertEquals(STATE_CONNECTED, mLink.connection.getState());
+        assertEquals(discoveries + 1, mLink.recorder.discoveries);
+        assertEquals(247, mLink.connection.getMtu());
+        assertEquals(0, mReconnector.getAttempts(SimulatedLink.ADDRESS));
+        assertEquals(0, mLink.peripheral.autoConnectAttempts);
+
+        // 同一个数据流继续收到通知.
+        final int before = stream.available();
+        mLink.scheduler.advance(500);
+        assertTrue(stream.available() > before);
+        // 上层再次发现服务不会重复访问对端.
+        assertTrue(mLink.discover());
+        assertEquals(discoveries + 2, mLink.recorder.discoveries);
+    }
+
+    @Test
+    public void backoffThenFallsBackToAutoConnect() {
+        mReconnector.track(mLink.connection, new BleReconnectPolicy()
+                .setInitialDelay(500)
+                .setJitter(0)
+                .setDirectAttempts(3));
+        assertTrue(mLink.connect());
+        final int connects = mLink.peripheral.connectAttempts;
+        mLink.peripheral.setConnectable(false);
+        mLink.peripheral.disconnectAt(mLink.scheduler.now() + 10);
+        mLink.scheduler.advance(10);
+
+        // 第 1 次立即, 每次失败 100 毫秒, 第 2 次等 500, 第 3 次等 1000.
+        mLink.scheduler.advance(99);
+        assertEquals(connects + 1, mLink.peripheral.connectAttempts);
+        mLink.scheduler.advance(100 + 500);
+        assertEquals(connects + 2, mLink.peripheral.connectAttempts);
+        mLink.scheduler.advance(100 + 900);
+        assertEquals(connects + 2, mLink.peripheral.connectAttempts);
+        mLink.scheduler.advance(100);
+        assertEquals(connects + 3, mLink.peripheral.connectAttempts);
+        assertEquals(0, mLink.peripheral.autoConnectAttempts);
+
+        // 第 3 次失败后改为后台连接, 不再退避.
+        mLink.scheduler.advance(200);
+        assertEquals(connects + 4, mLink.peripheral.connectAttempts);
+        assertEquals(1, mLink.peripheral.autoConnectAttempts);
+        mLink.scheduler.advance(60 * 1000);
+        assertEquals(connects + 4, mLink.peripheral.connectAttempts);
+        assertFalse(mLink.connection.isConnected());
+
+        mLink.peripheral.setConnectable(true);
+        assertTrue(mLink.scheduler.runUntil(new VirtualScheduler.Condition() {
+            @Override
+            public boolean isMet() {
+                return mLink.connection.isConnected();
+            }
+        }, 1000));
+        assertEquals(0, mReconnector.getAttempts(SimulatedLink.ADDRESS));
+    }
+
+    @Test
+    public void gaveUpOrForgottenConnectionsAreReleased() {
+        mReconnector.track(mLink.connection, new BleReconnectPolicy()
+                .setMaxAttempts(2)
+                .setAutoConnectFallback(false)
+                .setInitialDelay(100));
+        assertTrue(mLink.connect());
+        assertTrue(mLink.discover());
+        final BleNotificationStream stream = mLink.connection.subscribe(
+                SimulatedLink.SERVICE_UUID, SimulatedLink.NOTIFY_UUID, 64, 64);
+        assertNotNull(stream);
+        assertTrue(mLink.idle());
+        mLink.peripheral.setConnectable(false);
+        mLink.peripheral.disconnectAt(mLink.scheduler.now() + 10);
+        mLink.scheduler.advance(10 * 1000);
+        assertEquals(2, mLink.peripheral.connectAttempts - 1);
+        assertFalse(mReconnector.isTracked(SimulatedLink.ADDRESS));
+        assertTrue(stream.isClosed());
+
+        // 主动断开后不再重连.
+        mLink.peripheral.setConnectable(true);
+        mReconnector.track(mLink.connection, new BleReconnectPolicy());
+        assertTrue(mLink.connect());
+        final int connects = mLink.peripheral.connectAttempts;
+        mReconnector.forget(SimulatedLink.ADDRESS);
+        assertTrue(mLink.connection.disconnect());
+        mLink.scheduler.advance(10 * 1000);
+        assertEquals(STATE_DISCONNECTED, mLink.connection.getState());
+        assertEquals(connects, mLink.peripheral.connectAttempts);
+        assertTrue(mAbandoned.isEmpty());
+    }
+}
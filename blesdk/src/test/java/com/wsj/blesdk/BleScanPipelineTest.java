@@ -0,0 +1,316 @@
+package com.wsj.blesdk;
+
+import android.bluetooth.BluetoothDevice;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 扫描管道: 广播解析, 过滤, 批次与距离排序.<br>
+ *     BluetoothDevice 只用于读取名称, 测试中传 null.
+ */
+public class BleScanPipelineTest {
+    private static final UUID HEART_RATE_UUID =
+            UUID.fromString("0000180d-0000-1000-8000-00805f9b34fb");
+
+    @Test
+    public void advertisementsAreIndexedAndBatched() {
+        final BleScanPipeline pipeline = new BleScanPipeline();
+        final byte[] record = advertisement(0x180d, -59);
+        assertNotNull(advertise(pipeline, "00:00:00:00:00:01", null, -60, record, 0));
+        assertNotNull(advertise(pipeline, "00:00:00:00:00:02", null, -80, record, 0));
+        assertNull(advertise(pipeline, "bad address", null, -80, record, 0));
+
+        final List<BluetoothInfo> discovered = new ArrayList<>();
+        final List<BluetoothInfo> updated = new ArrayList<>();
+        assertTrue(pipeline.drain(discovered, updated));
+        assertEquals(2, discovered.size());
+        assertTrue(updated.isEmpty());
+        assertFalse(pipeline.drain(discovered, updated));
+
+        // 已知设备再次广播只记入更新批次.
+        discovered.clear();
+        advertise(pipeline, "00:00:00:00:00:01", null, -61, record, 100);
+        advertise(pipeline, "00:00:00:00:00:01", null, -62, record, 200);
+        assertTrue(pipeline.drain(discovered, updated));
+        assertTrue(discovered.isEmpty());
+        assertEquals(1, updated.size());
+
+        final List<BluetoothInfo> found = new ArrayList<>();
+        pipeline.findByService(HEART_RATE_UUID.getMostSignificantBits(),
+                HEART_RATE_UUID.getLeastSignificantBits(), -70, found);
+        assertEquals(1, found.size());
+        assertEquals("00:00:00:00:00:01", found.get(0).getAddress());
+    }
+
+    @Test
+    public void nearestDevicesAreOrderedByDistance() {
+        final BleScanPipeline pipeline = new BleScanPipeline();
+        final byte[] record = advertisement(0x180d, -59);
+        for (int i = 0; i < 10; i++) {
+            advertise(pipeline, "00:00:00:00:00:01", null, -75, record, i * 100);
+            advertise(pipeline, "00:00:00:00:00:02", null, -55, record, i * 100);
+            advertise(pipeline, "00:00:00:00:00:03", null, -65, record, i * 100);
+        }
+        final List<BluetoothInfo> nearest = new ArrayList<>();
+        // 排序在发布之后才可见.
+        pipeline.getNearest(3, nearest);
+        assertTrue(nearest.isEmpty());
+        pipeline.publish();
+        pipeline.getNearest(3, nearest);
+        assertEquals(3, nearest.size());
+        assertEquals("00:00:00:00:00:02", nearest.get(0).getAddress());
+        assertEquals("00:00:00:00:00:03", nearest.get(1).getAddress());
+        assertEquals("00:00:00:00:00:01", nearest.get(2).getAddress());
+        assertTrue(nearest.get(0).getDistance() < nearest.get(2).getDistance());
+    }
+
+    @Test
+    public void nameFilterRejectsUnnamedDevices() {
+        final BleScanPipeline pipeline = new BleScanPipeline();
+        pipeline.setNameFilter("WSJ");
+        assertNull(advertise(pipeline, "00:00:00:00:00:01", null, -60,
+                advertisement(0x180d, -59), 0));
+        assertFalse(pipeline.contains("00:00:00:00:00:01"));
+    }
+
+    @Test
+    public void clearRetainsConnectedDevices() {
+        final BleScanPipeline pipeline = new BleScanPipeline();
+        final byte[] record = advertisement(0x180d, -59);
+        final BluetoothInfo kept = advertise(pipeline, "00:00:00:00:00:01", null, -60,
+                record, 0);
+        advertise(pipeline, "00:00:00:00:00:02", null, -60, record, 0);
+        pipeline.pin("00:00:00:00:00:01");
+        final List<BluetoothInfo> retained = new ArrayList<>();
+        pipeline.clear(retained);
+        assertSame(kept, pipeline.get("00:00:00:00:00:01"));
+        assertNull(pipeline.get("00:00:00:00:00:02"));
+        assertEquals(1, retained.size());
+        assertSame(kept, retained.get(0));
+        // 索引重建.
+        final List<BluetoothInfo> found = new ArrayList<>();
+        pipeline.findByService(HEART_RATE_UUID.getMostSignificantBits(),
+                HEART_RATE_UUID.getLeastSignificantBits(), -100, found);
+        assertEquals(1, found.size());
+    }
+
+    @Test
+    public void expiredDevicesAreReportedLost() {
+        final BleScanPipeline pipeline = new BleScanPipeline();
+        pipeline.setDeviceTtl(1000);
+        final byte[] record = advertisement(0x180d, -59);
+        advertise(pipeline, "00:00:00:00:00:01", null, -60, record, 0);
+        advertise(pipeline, "00:00:00:00:00:02", null, -60, record, 0);
+        advertise(pipeline, "00:00:00:00:00:01", null, -60, record, 900);
+
+        assertEquals(1, pipeline.prune(1000));
+        assertNull(pipeline.get("00:00:00:00:00:02"));
+        assertNotNull(pipeline.get("00:00:00:00:00:01"));
+        final List<BluetoothInfo> lost = new ArrayList<>();
+        assertTrue(pipeline.drainLost(lost));
+        assertEquals(1, lost.size());
+        assertEquals("00:00:00:00:00:02", lost.get(0).getAddress());
+        assertFalse(pipeline.drainLost(lost));
+
+        // 已淘汰的设备不再出现在查询和距离排序中.
+        final List<BluetoothInfo> found = new ArrayList<>();
+        pipeline.findByService(HEART_RATE_UUID.getMostSignificantBits(),
+                HEART_RATE_UUID.getLeastSignificantBits(), -100, found);
+        assertEquals(1, found.size());
+        final List<BluetoothInfo> nearest = new ArrayList<>();
+        pipeline.publish();
+        pipeline.getNearest(10, nearest);
+        assertEquals(1, nearest.size());
+
+        assertEquals(0, pipeline.prune(1899));
+        assertEquals(1, pipeline.prune(1900));
+        assertEquals(0, pipeline.size());
+    }
+
+    @Test
+    public void maxDevicesEvictsLeastRecentlySeen() {
+        final BleScanPipeline pipeline = new BleScanPipeline();
+        pipeline.setMaxDevices(3);
+        final byte[] record = advertisement(0x180d, -59);
+        advertise(pipeline, "00:00:00:00:00:01", null, -60, record, 0);
+        advertise(pipeline, "00:00:00:00:00:02", null, -60, record, 10);
+        advertise(pipeline, "00:00:00:00:00:03", null, -60, record, 20);
+        advertise(pipeline, "00:00:00:00:00:01", null, -60, record, 30);
+        advertise(pipeline, "00:00:00:00:00:04", null, -60, record, 40);
+
+        assertEquals(3, pipeline.size());
+        assertNull(pipeline.get("00:00:00:00:00:02"));
+        final List<BluetoothInfo> lost = new ArrayList<>();
+        assertTrue(pipeline.drainLost(lost));
+        assertEquals("00:00:00:00:00:02", lost.get(0).getAddress());
+
+        // 被淘汰的设备从待回调批次中移除.
+        final List<BluetoothInfo> discovered = new ArrayList<>();
+        final List<BluetoothInfo> updated = new ArrayList<>();
+        assertTrue(pipeline.drain(discovered, updated));
+        assertEquals(3, discovered.size());
+        for (BluetoothInfo info : discovered) {
+            assertFalse("00:00:00:00:00:02".equals(info.getAddress()));
+        }
+
+        // 新的上限在下次处理时生效.
+        pipeline.setMaxDevices(1);
+        pipeline.process();
+        assertEquals(1, pipeline.size());
+        assertNotNull(pipeline.get("00:00:00:00:00:04"));
+    }
+
+    @Test
+    public void pinnedDevicesAreNeverEvicted() {
+        final BleScanPipeline pipeline = new BleScanPipeline();
+        pipeline.setDeviceTtl(1000);
+        pipeline.setMaxDevices(2);
+        final byte[] record = advertisement(0x180d, -59);
+        // 连接前固定, 之后扫描到也不淘汰.
+        pipeline.pin("00:00:00:00:00:01");
+        advertise(pipeline, "00:00:00:00:00:01", null, -60, record, 0);
+        advertise(pipeline, "00:00:00:00:00:02", null, -60, record, 10);
+        advertise(pipeline, "00:00:00:00:00:03", null, -60, record, 20);
+        assertNotNull(pipeline.get("00:00:00:00:00:01"));
+        assertNull(pipeline.get("00:00:00:00:00:02"));
+
+        assertEquals(1, pipeline.prune(10000));
+        assertNotNull(pipeline.get("00:00:00:00:00:01"));
+
+        // 断开后从断开时开始计算 TTL.
+        pipeline.unpin("00:00:00:00:00:01", 10000);
+        assertEquals(0, pipeline.prune(10500));
+        assertEquals(1, pipeline.prune(11000));
+        assertEquals(0, pipeline.size());
+    }
+
+    @Test
+    public void rssiHistoryIsReadWithoutProcessingThread() {
+        final BleScanPipeline pipeline = new BleScanPipeline();
+        final byte[] record = advertisement(0x180d, -59);
+        for (int i = 0; i < 10; i++) {
+            advertise(pipeline, "00:00:00:00:00:01", null, -50 - i, record, i * 100);
+        }
+        final int[] history = new int[BleProximityEngine.HISTORY_SIZE + 2];
+        assertEquals(BleProximityEngine.HISTORY_SIZE,
+                pipeline.getRssiHistory("00:00:00:00:00:01", history));
+        for (int i = 0; i < BleProximityEngine.HISTORY_SIZE; i++) {
+            assertEquals(-52 - i, history[i]);
+        }
+        final int[] last = new int[2];
+        assertEquals(2, pipeline.getRssiHistory("00:00:00:00:00:01", last));
+        assertEquals(-58, last[0]);
+        assertEquals(-59, last[1]);
+    }
+
+    @Test
+    public void scanThreadsOnlyQueueAdvertisements() throws Exception {
+        final BleScanPipeline pipeline = new BleScanPipeline();
+        final byte[] record = advertisement(0x180d, -59);
+        // 第一条广播需要安排处理, 处理之前的广播不再安排.
+        assertTrue(pipeline.onAdvertisement("00:00:00:00:00:01", null, -60, record, 0));
+        assertFalse(pipeline.onAdvertisement("00:00:00:00:00:02", null, -60, record, 0));
+        assertNull(pipeline.get("00:00:00:00:00:01"));
+        assertEquals(2, pipeline.process());
+        assertNotNull(pipeline.get("00:00:00:00:00:01"));
+        assertTrue(pipeline.onAdvertisement("00:00:00:00:00:01", null, -60, record, 10));
+        pipeline.process();
+
+        // 多个扫描线程同时写入, 处理线程同时查询.
+        final int threads = 4;
+        final int devices = 200;
+        final Thread[] producers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int id = t;
+            producers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < devices; i++) {
+                        final String address = String.format("00:00:00:01:%02X:%02X", id, i);
+                        // 队列满时重试, 与扫描回调丢弃不同, 测试需要所有设备.
+                        while (!pipeline.contains(address)) {
+                            pipeline.onAdvertisement(address, null, -60, record, i);
+                            Thread.yield();
+                        }
+                    }
+                }
+            });
+            producers[t].start();
+        }
+        final List<BluetoothInfo> found = new ArrayList<>();
+        boolean running = true;
+        while (running) {
+            pipeline.process();
+            found.clear();
+            pipeline.findByService(HEART_RATE_UUID.getMostSignificantBits(),
+                    HEART_RATE_UUID.getLeastSignificantBits(), -100, found);
+            running = false;
+            for (Thread producer : producers) {
+                if (producer.isAlive())
+                    running = true;
+            }
+        }
+        pipeline.process();
+        found.clear();
+        pipeline.findByService(HEART_RATE_UUID.getMostSignificantBits(),
+                HEART_RATE_UUID.getLeastSignificantBits(), -100, found);
+        assertEquals(threads * devices + 2, found.size());
+    }
+
+    @Test
+    public void changedAdvertisementIsPublishedAsNewObject() {
+        final BleScanPipeline pipeline = new BleScanPipeline();
+        final byte[] record = advertisement(0x180d, -59);
+        final BluetoothInfo info = advertise(pipeline, "00:00:00:00:00:01", null, -60, record, 0);
+        final BleAdvertisement first = info.getAdvertisement();
+        assertTrue(first.hasServiceUuid(HEART_RATE_UUID));
+
+        // 内容相同不重新解析.
+        advertise(pipeline, "00:00:00:00:00:01", null, -61, record.clone(), 100);
+        assertSame(first, info.getAdvertisement());
+
+        // 内容变化时换成新对象, 旧对象保持原样.
+        advertise(pipeline, "00:00:00:00:00:01", null, -62, advertisement(0x180f, -40), 200);
+        final BleAdvertisement second = info.getAdvertisement();
+        assertTrue(first != second);
+        assertTrue(first.hasServiceUuid(HEART_RATE_UUID));
+        assertEquals(-59, first.getTxPower());
+        assertFalse(second.hasServiceUuid(HEART_RATE_UUID));
+        assertEquals(-40, second.getTxPower());
+    }
+
+    /**
+     * 扫描线程写入一条广播后由处理线程处理.
+     * @return
+     *      通过过滤的设备, 否则为 null.
+     */
+    private static BluetoothInfo advertise(BleScanPipeline pipeline, String address,
+                                           BluetoothDevice device, int rssi,
+                                           byte[] record, long now) {
+        pipeline.onAdvertisement(address, device, rssi, record, now);
+        pipeline.process();
+        return pipeline.get(address);
+    }
+
+    /**
+     * Flags + 完整 16 位服务 UUID 列表 + 发射功率.
+     */
+    private static byte[] advertisement(int uuid16, int txPower) {
+        return new byte[]{
+                2, 0x01, 0x06,
+                3, 0x03, (byte) uuid16, (byte) (uuid16 >> 8),
+                2, 0x0A, (byte) txPower,
+        };
+    }
+}
@@ -0,0 +1,149 @@
+package com.wsj.blesdk;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 跟踪记录: 模拟外设的回调写入文件, 解析为时间线; 文件轮转和丢弃计数.
+ */
+public class BleTraceRecorderTest {
+    private File mDir;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = File.createTempFile("ble_trace", "");
+        assertTrue(mDir.delete() && mDir.mkdirs());
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : BleTraceRecorder.listFiles(mDir)) {
+            file.delete();
+        }
+        mDir.delete();
+    }
+
+    @Test
+    public void gattCallbacksAreDecodedInOrder() throws IOException {
+        final BleTraceRecorder recorder = new BleTraceRecorder(mDir).setFlushInterval(5);
+        assertTrue(recorder.start());
+        final SimulatedLink link = new SimulatedLink();
+        try {
+            link.connection.setTraceRecorder(recorder);
+            assertTrue(link.connect());
+            assertTrue(link.discover());
+            assertNotNull(link.connection.subscribe(SimulatedLink.SERVICE_UUID,
+                    SimulatedLink.NOTIFY_UUID, 16, 64));
+            assertTrue(link.idle());
+            final byte[] value = new byte[40];
+            for (int i = 0; i < value.length; i++) {
+                value[i] = (byte) i;
+            }
+            assertTrue(link.peripheral.notifyNow(SimulatedLink.SERVICE_UUID,
+                    SimulatedLink.NOTIFY_UUID, value));
+        } finally {
+            link.release();
+        }
+        recorder.stop();
+
+        final List<BleTraceDecoder.Event> events = readAll();
+        assertEquals(BleTraceRecorder.OP_CONNECTION_STATE, events.get(0).getOp());
+        assertEquals(1, events.get(0).getArgument());
+        assertEquals(SimulatedLink.ADDRESS, events.get(0).getAddress());
+
+        final BleTraceDecoder.Event mtu = find(events, BleTraceRecorder.OP_MTU_CHANGED);
+        assertEquals(link.peripheral.getMtu(), mtu.getArgument());
+        assertEquals(2, find(events, BleTraceRecorder.OP_SERVICES_DISCOVERED).getArgument());
+        assertEquals(0x2902, find(events, BleTraceRecorder.OP_DESCRIPTOR_WRITE).getArgument());
+
+        final BleTraceDecoder.Event changed =
+                find(events, BleTraceRecorder.OP_CHARACTERISTIC_CHANGED);
+        assertEquals(0xfff1, (int) (changed.getCharacteristic() >>> 32));
+        assertEquals(40, changed.getLength());
+        final byte[] expected = new byte[BleTraceRecorder.PAYLOAD_SIZE];
+        for (int i = 0; i < expected.length; i++) {
+            expected[i] = (byte) i;
+        }
+        assertArrayEquals(expected, changed.getPayload());
+
+        long last = Long.MIN_VALUE;
+        for (BleTraceDecoder.Event event : events) {
+            assertTrue(event.getNanos() >= last);
+            last = event.getNanos();
+        }
+    }
+
+    @Test
+    public void filesRotateAndOldestAreDeleted() throws IOException {
+        // 每个文件 4 条记录, 保留 2 个文件.
+        final BleTraceRecorder recorder = new BleTraceRecorder(mDir)
+                .setCapacity(16)
+                .setFileSize(BleTraceRecorder.HEADER_SIZE + 4 * BleTraceRecorder.RECORD_SIZE)
+                .setMaxFiles(2);
+        assertTrue(recorder.start());
+        for (int i = 0; i < 10; i++) {
+            recorder.record(0x001122334455L, BleTraceRecorder.OP_READ_RSSI, 0, i, null, null);
+        }
+        recorder.stop();
+        assertFalse(recorder.isRunning());
+
+        assertEquals(2, BleTraceRecorder.listFiles(mDir).length);
+        final List<BleTraceDecoder.Event> events = readAll();
+        assertEquals(6, events.size());
+        for (int i = 0; i < events.size(); i++) {
+            assertEquals(4 + i, events.get(i).getArgument());
+        }
+    }
+
+    @Test
+    public void droppedRecordsAreCounted() throws IOException {
+        final BleTraceRecorder recorder = new BleTraceRecorder(mDir)
+                .setCapacity(4)
+                .setFlushInterval(60 * 60 * 1000);
+        assertTrue(recorder.start());
+        for (int i = 0; i < 10; i++) {
+            recorder.record(0x001122334455L, BleTraceRecorder.OP_ADVERTISEMENT, 0, -60, null,
+                    new byte[]{0x02, 0x01, 0x06});
+        }
+        recorder.stop();
+
+        int recorded = 0;
+        int dropped = 0;
+        for (BleTraceDecoder.Event event : readAll()) {
+            if (event.getOp() == BleTraceRecorder.OP_DROPPED)
+                dropped += event.getArgument();
+            else
+                recorded++;
+        }
+        assertEquals(10, recorded + dropped);
+        assertEquals(recorder.getDroppedCount(), dropped);
+    }
+
+    private List<BleTraceDecoder.Event> readAll() throws IOException {
+        final List<BleTraceDecoder.Event> events = new ArrayList<>();
+        for (File file : BleTraceDecoder.listFiles(mDir)) {
+            events.addAll(BleTraceDecoder.read(file));
+        }
+        return events;
+    }
+
+    private static BleTraceDecoder.Event find(List<BleTraceDecoder.Event> events, int op) {
+        for (BleTraceDecoder.Event event : events) {
+            if (event.getOp() == op)
+                return event;
+        }
+        throw new AssertionError("no event " + BleTraceDecoder.opName(op));
+    }
+}
@@ -0,0 +1,264 @@
+package com.wsj.blesdk;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static com.wsj.blesdk.BleConstants.BLE_DEFAULT_OPERATION_TIMEOUT;
+import static com.wsj.blesdk.BleConstants.BLE_ERROR_DISCONNECT;
+import static com.wsj.blesdk.BleConstants.BLE_ERROR_WRITE;
+import static com.wsj.blesdk.BleConstants.BLE_PROPERTY_EXTENDED_PROPS;
+import static com.wsj.blesdk.BleConstants.BLE_PROPERTY_READ;
+import static com.wsj.blesdk.BleConstants.BLE_PROPERTY_WRITE;
+import static com.wsj.blesdk.BleConstants.BLE_SUCCESS;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 读写事务: 连续执行, 可靠写, 失败放弃和退回普通写 (模拟外设, 虚拟时钟).
+ */
+public class BleTransactionTest {
+    private static final UUID CONFIG_UUID = UUID.fromString("0000fee0-0000-1000-8000-00805f9b34fb");
+    private static final UUID NAME_UUID   = UUID.fromString("0000fee1-0000-1000-8000-00805f9b34fb");
+    private static final UUID A_UUID      = UUID.fromString("0000fee2-0000-1000-8000-00805f9b34fb");
+    private static final UUID B_UUID      = UUID.fromString("0000fee3-0000-1000-8000-00805f9b34fb");
+    private static final UUID C_UUID      = UUID.fromString("0000fee4-0000-1000-8000-00805f9b34fb");
+    // 只声明写属性, 不能可靠写.
+    private static final UUID PLAIN_UUID  = UUID.fromString("0000fee5-0000-1000-8000-00805f9b34fb");
+
+    private static final String CONFIG = CONFIG_UUID.toString();
+
+    private SimulatedLink mLink;
+    private final List<BleTransactionResult> mResults = new ArrayList<>();
+    private final BleTransactionListener mListener = new BleTransactionListener() {
+        @Override
+        public void onTransactionComplete(BleTransactionResult result) {
+            mResults.add(result);
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        mLink = new SimulatedLink();
+        final int reliable = BLE_PROPERTY_READ | BLE_PROPERTY_WRITE | BLE_PROPERTY_EXTENDED_PROPS;
+        mLink.peripheral.setGattTable(SimulatedLink.addService(SimulatedLink.defaultTable(),
+                CONFIG_UUID)
+                .addCharacteristic(NAME_UUID, BLE_PROPERTY_READ, null)
+                .addCharacteristic(A_UUID, reliable, null)
+                .addCharacteristic(B_UUID, reliable, null)
+                .addCharacteristic(C_UUID, reliable, null)
+                .addCharacteristic(PLAIN_UUID, BLE_PROPERTY_READ | BLE_PROPERTY_WRITE, null)
+                .build());
+        mLink.peripheral.setValue(CONFIG_UUID, NAME_UUID, "sensor".getBytes());
+        assertTrue(mLink.connect());
+        assertTrue(mLink.discover());
+    }
+
+    @After
+    public void tearDown() {
+        mLink.release();
+    }
+
+    @Test
+    public void readsAndReliableWritesCompleteWithOneResult() {
+        BleTransaction transaction = new BleTransaction()
+                .read(CONFIG, NAME_UUID.toString())
+                .write(CONFIG, A_UUID.toString(), new byte[]{1})
+                .write(CONFIG, B_UUID.toString(), new byte[]{2})
+                .write(CONFIG, C_UUID.toString(), new byte[]{3})
+                .read(CONFIG, A_UUID.toString());
+        assertTrue(execute(transaction));
+
+        BleTransactionResult result = mResults.get(0);
+        assertEquals(BLE_SUCCESS, result.code);
+        assertEquals(-1, result.failedIndex);
+        assertEquals(5, result.completedSteps);
+        assertEquals(3, result.reliableWrites);
+        assertArrayEquals("sensor".getBytes(), result.getValue(0));
+        assertNull(result.getValue(1));
+        assertArrayEquals(new byte[]{1}, result.getValue(4));
+        assertEquals(1, mLink.peripheral.getReliableWritesExecuted());
+        assertArrayEquals(new byte[]{2}, mLink.peripheral.getValue(CONFIG_UUID, B_UUID));
+        assertArrayEquals(new byte[]{3}, mLink.peripheral.getValue(CONFIG_UUID, C_UUID));
+    }
+
+    @Test
+    public void failedPreparedWriteAbortsWholeBlock() {
+        mLink.peripheral.setWriteError(CONFIG_UUID, B_UUID,
+                SimulatedPeripheral.GATT_WRITE_NOT_PERMITTED);
+        BleTransaction transaction = new BleTransaction()
+                .read(CONFIG, NAME_UUID.toString())
+                .write(CONFIG, A_UUID.toString(), new byte[]{1})
+                .write(CONFIG, B_UUID.toString(), new byte[]{2})
+                .write(CONFIG, C_UUID.toString(), new byte[]{3});
+        assertTrue(execute(transaction));
+
+        BleTransactionResult result = mResults.get(0);
+        assertEquals(BLE_ERROR_WRITE, result.code);
+        assertEquals(SimulatedPeripheral.GATT_WRITE_NOT_PERMITTED, result.status);
+        assertEquals(1, result.failedIndex);
+        assertEquals(1, result.completedSteps);
+        assertArrayEquals("sensor".getBytes(), result.getValue(0));
+        // 已准备的写没有生效.
+        assertEquals(1, mLink.peripheral.getReliableWritesAborted());
+        assertEquals(0, mLink.peripheral.getReliableWritesExecuted());
+        assertNull(mLink.peripheral.getValue(CONFIG_UUID, A_UUID));
+        assertTrue(mLink.idle());
+
+        // 连接仍可使用.
+        assertTrue(execute(new BleTransaction().read(CONFIG, NAME_UUID.toString())));
+        assertEquals(BLE_SUCCESS, mResults.get(1).code);
+    }
+
+    @Test
+    public void echoMismatchAbortsBlockAfterPeerAcknowledges() {
+        mLink.peripheral.setCorruptEcho(true);
+        final int[] abortedAtResult = {-1};
+        BleTransaction transaction = new BleTransaction()
+                .write(CONFIG, A_UUID.toString(), new byte[]{1})
+                .write(CONFIG, B_UUID.toString(), new byte[]{2});
+        assertTrue(mLink.connection.executeTransaction(transaction, BLE_DEFAULT_OPERATION_TIMEOUT,
+                new BleTransactionListener() {
+                    @Override
+                    public void onTransactionComplete(BleTransactionResult result) {
+                        abortedAtResult[0] = mLink.peripheral.getReliableWritesAborted();
+                        mResults.add(result);
+                    }
+                }));
+        assertTrue(mLink.idle());
+
+        BleTransactionResult result = mResults.get(0);
+        assertEquals(BLE_ERROR_WRITE, result.code);
+        assertEquals(BLE_ERROR_WRITE, result.status);
+        assertEquals(0, result.failedIndex);
+        assertEquals(0, result.completedSteps);
+        // 结果在对端确认放弃之后才回调, 第一个回显不一致就放弃, 没有生效.
+        assertEquals(1, abortedAtResult[0]);
+        assertEquals(0, mLink.peripheral.getReliableWritesExecuted());
+        assertNull(mLink.peripheral.getValue(CONFIG_UUID, A_UUID));
+        assertNull(mLink.peripheral.getValue(CONFIG_UUID, B_UUID));
+    }
+
+    @Test
+    public void unsupportedReliableWriteFallsBackToPlainWrites() {
+        mLink.peripheral.setReliableWriteSupported(false);
+        BleTransaction transaction = new BleTransaction()
+                .write(CONFIG, A_UUID.toString(), new byte[]{1})
+                .write(CONFIG, B_UUID.toString(), new byte[]{2});
+        assertTrue(execute(transaction));
+
+        BleTransactionResult result = mResults.get(0);
+        assertEquals(BLE_SUCCESS, result.code);
+        assertEquals(2, result.completedSteps);
+        assertEquals(0, result.reliableWrites);
+        assertEquals(1, mLink.peripheral.getReliableWritesAborted());
+        assertArrayEquals(new byte[]{1}, mLink.peripheral.getValue(CONFIG_UUID, A_UUID));
+        assertArrayEquals(new byte[]{2}, mLink.peripheral.getValue(CONFIG_UUID, B_UUID));
+    }
+
+    @Test
+    public void reliableWriteOnlyForEligibleRuns() {
+        // 单个写, 不能可靠写的特征值, 以及关闭可靠写时都是普通写.
+        BleTransaction transaction = new BleTransaction()
+                .write(CONFIG, A_UUID.toString(), new byte[]{1})
+                .write(CONFIG, PLAIN_UUID.toString(), new byte[]{2})
+                .write(CONFIG, B_UUID.toString(), new byte[]{3});
+        assertTrue(execute(transaction));
+        assertEquals(0, mResults.get(0).reliableWrites);
+
+        transaction = new BleTransaction()
+                .write(CONFIG, A_UUID.toString(), new byte[]{4})
+                .write(CONFIG, B_UUID.toString(), new byte[]{5})
+                .setReliable(false);
+        assertTrue(execute(transaction));
+        assertEquals(0, mResults.get(1).reliableWrites);
+        assertEquals(0, mLink.peripheral.getReliableWritesExecuted());
+        assertArrayEquals(new byte[]{5}, mLink.peripheral.getValue(CONFIG_UUID, B_UUID));
+    }
+
+    @Test
+    public void stepsAreNotInterleavedWithOtherOperations() {
+        final List<String> order = new ArrayList<>();
+        BleTransaction transaction = new BleTransaction()
+                .read(CONFIG, NAME_UUID.toString())
+                .read(CONFIG, A_UUID.toString())
+                .read(CONFIG, B_UUID.toString());
+        assertTrue(mLink.connection.executeTransaction(transaction, BLE_DEFAULT_OPERATION_TIMEOUT,
+                new BleTransactionListener() {
+                    @Override
+                    public void onTransactionComplete(BleTransactionResult result) {
+                        order.add("transaction");
+                    }
+                }));
+        assertTrue(mLink.connection.enqueue(BleOperation.readCharacteristic(CONFIG_UUID, C_UUID)
+                .priority(BleConstants.BLE_PRIORITY_HIGH)
+                .callback(new BleOperation.Callback() {
+                    @Override
+                    public void onOperationComplete(BleOperation operation, int status) {
+                        order.add("read");
+                    }
+                })));
+        assertTrue(mLink.idle());
+        // 第一步已在执行, 之后的步骤插在高优先级操作之前.
+        assertEquals(2, order.size());
+        assertEquals("transaction", order.get(0));
+        assertEquals("read", order.get(1));
+    }
+
+    @Test
+    public void disconnectEndsTransactionOnce() {
+        BleTransaction transaction = new BleTransaction();
+        for (int i = 0; i < 20; i++) {
+            transaction.read(CONFIG, NAME_UUID.toString());
+        }
+        mLink.peripheral.disconnectAt(mLink.scheduler.now() + 200);
+        assertTrue(execute(transaction));
+        mLink.scheduler.runUntil(new VirtualScheduler.Condition() {
+            @Override
+            public boolean isMet() {
+                return false;
+            }
+        }, 1000);
+
+        assertEquals(1, mResults.size());
+        BleTransactionResult result = mResults.get(0);
+        assertEquals(BLE_ERROR_DISCONNECT, result.code);
+        assertTrue(result.completedSteps > 0 && result.completedSteps < 20);
+        assertEquals(result.completedSteps, result.failedIndex);
+    }
+
+    @Test
+    public void rejectsUnknownCharacteristicAndEmptyTransaction() {
+        assertFalse(mLink.connection.executeTransaction(new BleTransaction(),
+                BLE_DEFAULT_OPERATION_TIMEOUT, mListener));
+        assertFalse(mLink.connection.executeTransaction(new BleTransaction()
+                        .read(CONFIG, NAME_UUID.toString())
+                        .read(CONFIG, "0000fef0-0000-1000-8000-00805f9b34fb"),
+                BLE_DEFAULT_OPERATION_TIMEOUT, mListener));
+        assertTrue(mLink.idle());
+        assertTrue(mResults.isEmpty());
+    }
+
+    /**
+     * 执行事务并等待结果.
+     */
+    private boolean execute(BleTransaction transaction) {
+        final int count = mResults.size();
+        if (!mLink.connection.executeTransaction(transaction, BLE_DEFAULT_OPERATION_TIMEOUT,
+                mListener))
+            return false;
+        return mLink.scheduler.runUntil(new VirtualScheduler.Condition() {
+            @Override
+            public boolean isMet() {
+                return mResults.size() > count;
+            }
+        }, 30 * 1000);
+    }
+}
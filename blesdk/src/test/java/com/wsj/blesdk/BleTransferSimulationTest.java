@@ -0,0 +1,206 @@
+package com.wsj.blesdk;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static com.wsj.blesdk.BleConstants.BLE_ERROR_DISCONNECT;
+import static com.wsj.blesdk.BleConstants.BLE_ERROR_WRITE;
+import static com.wsj.blesdk.BleConstants.BLE_PHY_LE_1M;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 分包发送吞吐量与异常 (模拟外设, 虚拟时钟).<br>
+ *     吞吐量按虚拟时间计算, 与运行测试的机器无关, 可以在 CI 中比较.
+ */
+public class BleTransferSimulationTest {
+    private static final int WINDOW = 4;
+
+    private SimulatedLink mLink;
+
+    @Before
+    public void setUp() throws Exception {
+        mLink = new SimulatedLink();
+    }
+
+    @After
+    public void tearDown() {
+        mLink.release();
+    }
+
+    @Test
+    public void transmitReachesWireThroughput() {
+        assertTrue(mLink.connect());
+        assertTrue(mLink.discover());
+        final byte[] data = randomData(64 * 1024);
+        assertTrue(transmit(data, false));
+        assertTrue(mLink.awaitTransmit(60 * 1000));
+        assertEquals(0, mLink.recorder.transmitError);
+        assertEquals(data.length, mLink.recorder.transmittedBytes);
+        assertArrayEquals(data, awaitReceived(data.length));
+
+        final long expected = mLink.peripheral.getWireThroughput();
+        final long wire = wireThroughput(data.length);
+        assertTrue("wire " + wire + " expected " + expected,
+                wire > expected * 85 / 100 && wire < expected * 115 / 100);
+        assertTrue("reported " + mLink.recorder.transmitRate + " expected " + expected,
+                mLink.recorder.transmitRate > expected * 80 / 100);
+        assertTrue(mLink.recorder.progressCount > 0);
+    }
+
+    @Test
+    public void phy1MIsSlowerThan2M() {
+        assertTrue(mLink.connect());
+        assertTrue(mLink.discover());
+        final byte[] data = randomData(32 * 1024);
+        assertTrue(transmit(data, false));
+        assertTrue(mLink.awaitTransmit(60 * 1000));
+        final long fast = wireThroughput(data.length);
+        mLink.release();
+
+        mLink = new SimulatedLink();
+        mLink.peripheral.setSupportedPhy(BLE_PHY_LE_1M);
+        assertTrue(mLink.connect());
+        assertTrue(mLink.discover());
+        assertTrue(transmit(data, false));
+        assertTrue(mLink.awaitTransmit(60 * 1000));
+        assertArrayEquals(data, awaitReceived(data.length));
+        final long slow = wireThroughput(data.length);
+        assertTrue("1M " + slow + " 2M " + fast, slow < fast);
+    }
+
+    @Test
+    public void packetLossIsRetransmitted() {
+        mLink.peripheral.setLossRate(0.2, 42);
+        assertTrue(mLink.connect());
+        assertTrue(mLink.discover());
+        final byte[] data = randomData(32 * 1024);
+        assertTrue(transmit(data, false));
+        assertTrue(mLink.awaitTransmit(60 * 1000));
+        assertEquals(0, mLink.recorder.transmitError);
+        assertArrayEquals(data, awaitReceived(data.length));
+        assertTrue(mLink.peripheral.getRetransmissions() > 0);
+        assertTrue(wireThroughput(data.length) < mLink.peripheral.getWireThroughput());
+    }
+
+    @Test
+    public void writeWithResponseWaitsForEachAck() {
+        assertTrue(mLink.connect());
+        assertTrue(mLink.discover());
+        final byte[] data = randomData(8 * 1024);
+        final long start = mLink.scheduler.now();
+        assertTrue(transmit(data, true));
+        assertTrue(mLink.awaitTransmit(60 * 1000));
+        assertEquals(0, mLink.recorder.transmitError);
+        assertArrayEquals(data, awaitReceived(data.length));
+        // 每包至少等待发送和应答各一个连接间隔.
+        final int chunks = (data.length + 243) / 244;
+        assertTrue(mLink.scheduler.now() - start >= chunks * 2 * 15L);
+    }
+
+    @Test
+    public void disconnectMidTransferReportsDisconnect() {
+        assertTrue(mLink.connect());
+        assertTrue(mLink.discover());
+        mLink.peripheral.disconnectAt(mLink.scheduler.now() + 200);
+        final byte[] data = randomData(256 * 1024);
+        assertTrue(transmit(data, false));
+        assertTrue(mLink.awaitTransmit(60 * 1000));
+        assertEquals(BLE_ERROR_DISCONNECT, mLink.recorder.transmitError);
+        assertEquals(BleConnection.STATE_DISCONNECTED, mLink.connection.getState());
+        assertTrue(received().length < data.length);
+    }
+
+    @Test
+    public void unacknowledgedWriteFails() {
+        assertTrue(mLink.connect());
+        assertTrue(mLink.discover());
+        mLink.peripheral.setResponsive(false);
+        assertTrue(transmit(randomData(1024), true));
+        assertTrue(mLink.awaitTransmit(60 * 1000));
+        assertEquals(BLE_ERROR_WRITE, mLink.recorder.transmitError);
+    }
+
+    @Test
+    public void rejectedFirstChunkReportsError() {
+        final BleWritePipeline pipeline = new BleWritePipeline(mLink.scheduler,
+                SimulatedLink.ADDRESS, randomData(1024), 23, WINDOW, false, new BleBufferPool(),
+                new BleWritePipeline.ChunkWriter() {
+                    @Override
+                    public boolean writeChunk(byte[] chunk, boolean withResponse) {
+                        return false;
+                    }
+                }, mLink.recorder);
+        assertFalse(pipeline.start());
+        assertTrue(pipeline.isFinished());
+        assertTrue(mLink.recorder.transmitFinished);
+        assertEquals(BLE_ERROR_WRITE, mLink.recorder.transmitError);
+    }
+
+    @Test
+    public void chunksAreWrittenOutsidePipelineLock() {
+        final BleWritePipeline[] pipeline = new BleWritePipeline[1];
+        final int[] written = new int[1];
+        final boolean[] locked = new boolean[1];
+        pipeline[0] = new BleWritePipeline(mLink.scheduler, SimulatedLink.ADDRESS,
+                randomData(1024), 23, WINDOW, false, new BleBufferPool(),
+                new BleWritePipeline.ChunkWriter() {
+                    @Override
+                    public boolean writeChunk(byte[] chunk, boolean withResponse) {
+                        // 写入会调用协议栈, 写回调的线程不能因此等待管道的锁.
+                        locked[0] |= Thread.holdsLock(pipeline[0]);
+                        written[0]++;
+                        return true;
+                    }
+                }, mLink.recorder);
+        assertTrue(pipeline[0].start());
+        assertEquals(WINDOW, written[0]);
+        while (!pipeline[0].isFinished()) {
+            pipeline[0].onChunkWritten(true);
+        }
+        assertFalse(locked[0]);
+        assertEquals(1024, mLink.recorder.transmittedBytes);
+    }
+
+    private boolean transmit(byte[] data, boolean withResponse) {
+        return mLink.connection.transmit(data, SimulatedLink.SERVICE_UUID, SimulatedLink.WRITE_UUID,
+                WINDOW, withResponse, mLink.recorder);
+    }
+
+    /**
+     * 发送完成时最后几包可能还在控制器缓冲区中, 等待对端收齐.
+     */
+    private byte[] awaitReceived(final int length) {
+        mLink.scheduler.runUntil(new VirtualScheduler.Condition() {
+            @Override
+            public boolean isMet() {
+                return received().length >= length;
+            }
+        }, 1000);
+        return received();
+    }
+
+    private byte[] received() {
+        return mLink.peripheral.getReceived(SimulatedLink.SERVICE_UUID, SimulatedLink.WRITE_UUID);
+    }
+
+    /**
+     * 对端收到第一包到最后一包之间的吞吐量 (字节/秒).
+     */
+    private long wireThroughput(int length) {
+        final long elapsed = mLink.peripheral.getLastReceiveTime()
+                - mLink.peripheral.getFirstReceiveTime();
+        return elapsed <= 0 ? 0 : length * 1000L / elapsed;
+    }
+
+    private static byte[] randomData(int length) {
+        final byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+}
@@ -0,0 +1,117 @@
+package com.wsj.blesdk;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * 记录 BleConnection 和发送管道的回调, 供测试断言.
+ */
+
+final class ConnectionRecorder implements BleConnection.Callback, BleTransmitListener {
+    int state = BleConnection.STATE_DISCONNECTED;
+    final List<Integer> states = new ArrayList<>();
+    final List<Integer> errors = new ArrayList<>();
+    final List<Integer> operationFailures = new ArrayList<>();
+    int discoveries;
+    boolean discoverySuccess;
+    int mtu;
+    int rssi;
+    byte[] readValue;
+    final List<byte[]> notifications = new ArrayList<>();
+
+    // 自动重连, 不为 null 时转发连接状态.
+    BleReconnector reconnector;
+    // 批量任务, 不为 null 时转发连接状态和服务发现.
+    BleFanoutScheduler fanout;
+
+    /* 发送结果. */
+    boolean transmitFinished;
+    int transmitError;
+    int transmittedBytes;
+    long transmitRate;
+    int progressCount;
+
+    @Override
+    public void onConnectionStateChanged(BleConnection connection, int oldState, int newState) {
+        state = newState;
+        states.add(newState);
+        if (fanout != null)
+            fanout.onConnectionStateChanged(connection, newState);
+        if (reconnector == null)
+            return;
+        if (newState == BleConnection.STATE_CONNECTED)
+            reconnector.onConnected(connection);
+        else if (newState == BleConnection.STATE_DISCONNECTED)
+            reconnector.onDisconnected(connection, oldState);
+    }
+
+    @Override
+    public void onConnectionError(BleConnection connection, int code) {
+        errors.add(code);
+    }
+
+    @Override
+    public void onOperationFailed(BleConnection connection, BleOperation operation, int code) {
+        operationFailures.add(code);
+    }
+
+    @Override
+    public void onServicesDiscovered(BleConnection connection, boolean success) {
+        discoveries++;
+        discoverySuccess = success;
+        if (fanout != null)
+            fanout.onServicesDiscovered(connection, success);
+    }
+
+    @Override
+    public void onCharacteristicRead(BleConnection connection, UUID service, UUID characteristic,
+                                     byte[] value, int status) {
+        readValue = value;
+    }
+
+    @Override
+    public void onCharacteristicWrite(BleConnection connection, UUID service, UUID characteristic,
+                                      int status) {
+    }
+
+    @Override
+    public void onCharacteristicChanged(BleConnection connection, UUID service,
+                                        UUID characteristic, byte[] value) {
+        notifications.add(value);
+    }
+
+    @Override
+    public void onDescriptorWrite(BleConnection connection, UUID service, UUID characteristic,
+                                  UUID descriptor, int status) {
+    }
+
+    @Override
+    public void onReadRemoteRssi(BleConnection connection, int rssi, int status) {
+        this.rssi = rssi;
+    }
+
+    @Override
+    public void onMtuChanged(BleConnection connection, int mtu, int status) {
+        this.mtu = mtu;
+    }
+
+    @Override
+    public void onTransmitProgress(String address, int sentBytes, int totalBytes,
+                                   long bytesPerSecond) {
+        progressCount++;
+    }
+
+    @Override
+    public void onTransmitComplete(String address, int totalBytes, long bytesPerSecond) {
+        transmitFinished = true;
+        transmittedBytes = totalBytes;
+        transmitRate = bytesPerSecond;
+    }
+
+    @Override
+    public void onTransmitError(String address, int code) {
+        transmitFinished = true;
+        transmitError = code;
+    }
+}
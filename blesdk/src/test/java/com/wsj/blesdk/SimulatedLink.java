@@ -0,0 +1,116 @@
+package com.wsj.blesdk;
+
+import java.util.UUID;
+
+import static com.wsj.blesdk.BleConstants.BLE_CCCD_UUID;
+import static com.wsj.blesdk.BleConstants.BLE_GENERIC_ATTRIBUTE_SERVICE_UUID;
+import static com.wsj.blesdk.BleConstants.BLE_PROPERTY_INDICATE;
+import static com.wsj.blesdk.BleConstants.BLE_PROPERTY_NOTIFY;
+import static com.wsj.blesdk.BleConstants.BLE_PROPERTY_READ;
+import static com.wsj.blesdk.BleConstants.BLE_PROPERTY_WRITE;
+import static com.wsj.blesdk.BleConstants.BLE_PROPERTY_WRITE_NO_RESPONSE;
+import static com.wsj.blesdk.BleConstants.BLE_SERVICE_CHANGED_UUID;
+
+/**
+ * 测试夹具: 虚拟时钟 + 模拟外设 + BleConnection.
+ */
+
+final class SimulatedLink {
+    static final String ADDRESS = "00:11:22:33:44:55";
+
+    static final UUID SERVICE_UUID = UUID.fromString("0000fff0-0000-1000-8000-00805f9b34fb");
+    static final UUID NOTIFY_UUID  = UUID.fromString("0000fff1-0000-1000-8000-00805f9b34fb");
+    static final UUID WRITE_UUID   = UUID.fromString("0000fff2-0000-1000-8000-00805f9b34fb");
+
+    // 服务类型, 与 BluetoothGattService.SERVICE_TYPE_PRIMARY 一致.
+    private static final int SERVICE_TYPE_PRIMARY = 0;
+    // 连接, 服务发现等步骤的最长等待时间 (毫秒).
+    private static final long STEP_TIMEOUT = 30 * 1000;
+
+    final VirtualScheduler scheduler = new VirtualScheduler();
+    final SimulatedPeripheral peripheral = new SimulatedPeripheral(ADDRESS, scheduler);
+    final ConnectionRecorder recorder = new ConnectionRecorder();
+    final BleGattCache cache = new BleGattCache();
+    final BleConnection connection;
+
+    SimulatedLink() {
+        peripheral.setGattTable(defaultTable().build());
+        connection = new BleConnection(peripheral, scheduler, cache, recorder);
+        connection.setThroughputProfile(new BleThroughputProfile());
+    }
+
+    /**
+     * Generic Attribute 服务 (Service Changed) 和一个收发服务.
+     */
+    static BleGattTable.Builder defaultTable() {
+        return new BleGattTable.Builder()
+                .addService(BLE_GENERIC_ATTRIBUTE_SERVICE_UUID, SERVICE_TYPE_PRIMARY, null)
+                .addCharacteristic(BLE_SERVICE_CHANGED_UUID, BLE_PROPERTY_INDICATE, null)
+                .addDescriptor(BLE_CCCD_UUID, null)
+                .addService(SERVICE_UUID, SERVICE_TYPE_PRIMARY, null)
+                .addCharacteristic(NOTIFY_UUID, BLE_PROPERTY_NOTIFY | BLE_PROPERTY_READ, null)
+                .addDescriptor(BLE_CCCD_UUID, null)
+                .addCharacteristic(WRITE_UUID, BLE_PROPERTY_WRITE | BLE_PROPERTY_WRITE_NO_RESPONSE,
+                        null);
+    }
+
+    static BleGattTable.Builder addService(BleGattTable.Builder builder, UUID uuid) {
+        return builder.addService(uuid, SERVICE_TYPE_PRIMARY, null);
+    }
+
+    /**
+     * 连接并等待协商结束.
+     */
+    boolean connect() {
+        if (!connection.connect())
+            return false;
+        final boolean connected = scheduler.runUntil(new VirtualScheduler.Condition() {
+            @Override
+            public boolean isMet() {
+                return recorder.state != BleConnection.STATE_CONNECTING;
+            }
+        }, STEP_TIMEOUT);
+        return connected && connection.isConnected() && idle();
+    }
+
+    /**
+     * 发现服务并等待 Service Changed 订阅结束.
+     */
+    boolean discover() {
+        final int discoveries = recorder.discoveries;
+        if (!connection.discoverServices())
+            return false;
+        return scheduler.runUntil(new VirtualScheduler.Condition() {
+            @Override
+            public boolean isMet() {
+                return recorder.discoveries > discoveries;
+            }
+        }, STEP_TIMEOUT) && recorder.discoverySuccess && idle();
+    }
+
+    /**
+     * 等待操作队列清空.
+     */
+    boolean idle() {
+        return scheduler.runUntil(new VirtualScheduler.Condition() {
+            @Override
+            public boolean isMet() {
+                return connection.isIdle();
+            }
+        }, STEP_TIMEOUT);
+    }
+
+    boolean awaitTransmit(long maxMillis) {
+        return scheduler.runUntil(new VirtualScheduler.Condition() {
+            @Override
+            public boolean isMet() {
+                return recorder.transmitFinished;
+            }
+        }, maxMillis);
+    }
+
+    void release() {
+        connection.close();
+        cache.clear();
+    }
+}
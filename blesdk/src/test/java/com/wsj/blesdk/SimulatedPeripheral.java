@@ -0,0 +1,951 @@
+package com.wsj.blesdk;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+
+import static com.wsj.blesdk.BleConstants.BLE_CCCD_UUID;
+import static com.wsj.blesdk.BleConstants.BLE_DEFAULT_MTU;
+import static com.wsj.blesdk.BleConstants.BLE_GATT_SUCCESS;
+import static com.wsj.blesdk.BleConstants.BLE_GENERIC_ATTRIBUTE_SERVICE_UUID;
+import static com.wsj.blesdk.BleConstants.BLE_PHY_LE_1M;
+import static com.wsj.blesdk.BleConstants.BLE_PHY_LE_2M;
+import static com.wsj.blesdk.BleConstants.BLE_PHY_LE_CODED;
+import static com.wsj.blesdk.BleConstants.BLE_SERVICE_CHANGED_UUID;
+
+/**
+ * 在 JVM 上模拟的 BLE 外设, 代替 BleGattTransport.<br>
+ *     (1) 服务表由 BleGattTable.Builder 编写.
+ *     (2) 链路按连接事件推进: 每个连接间隔一次事件, 事件内可发送的包数由 PHY 和
+ *         数据长度估算 (也可直接指定), 丢包在下一个事件重传.
+ *     (3) 无应答写进入控制器缓冲区即回调, 缓冲区满时等待发送; 请求在发送后
+ *         经过应答延迟回调.
+ *     (4) 可配置通知源, 定时断开, 连接失败和不应答.
+ *     (5) 可靠写: 准备写暂存到执行时一起生效, 放弃或断开时丢弃; 可配置为不支持 (ATT 0x06).
+ *     所有回调都经 VirtualScheduler 异步执行, 与 Binder 线程回调的时序一致.
+ */
+
+final class SimulatedPeripheral implements BleTransport {
+    // GATT 状态.
+    static final int GATT_ERROR                 = 0x85;
+    static final int GATT_CONNECTION_TIMEOUT    = 0x08;
+    static final int GATT_REQUEST_NOT_SUPPORTED = 0x06;
+    static final int GATT_WRITE_NOT_PERMITTED   = 0x03;
+
+    // LE 数据长度扩展后的最大链路层负载.
+    private static final int LL_MAX_PAYLOAD = 251;
+    // L2CAP 头长度.
+    private static final int L2CAP_HEADER   = 4;
+    // 链路层包头, 接入地址和 CRC 等开销.
+    private static final int LL_OVERHEAD    = 10;
+    // 帧间隔 (微秒).
+    private static final int T_IFS_US       = 150;
+
+    private static final int TYPE_WRITE            = 1;
+    private static final int TYPE_READ             = 2;
+    private static final int TYPE_WRITE_DESCRIPTOR = 3;
+    private static final int TYPE_READ_DESCRIPTOR  = 4;
+    private static final int TYPE_MTU              = 5;
+    private static final int TYPE_PHY              = 6;
+    private static final int TYPE_RSSI             = 7;
+    private static final int TYPE_EXECUTE_WRITE    = 8;
+
+    /**
+     * 等待发送的包.
+     */
+    /**
+     * 外设固件收到写入 (在连接事件中回调).
+     */
+    interface WriteHandler {
+        void onWrite(UUID service, UUID characteristic, byte[] value);
+    }
+
+    private static final class Packet {
+        final int type;
+        UUID service;
+        UUID characteristic;
+        UUID descriptor;
+        byte[] value;
+        boolean withResponse;
+        int argument;
+        // 写应答中的值, null 时为写入的值.
+        byte[] echo;
+        // 应答的 GATT 状态.
+        int status = BLE_GATT_SUCCESS;
+        // 提交时间, 最早在下一个连接事件发送.
+        long submitTime;
+        // 已进入控制器缓冲区.
+        boolean accepted;
+
+        Packet(int type) {
+            this.type = type;
+        }
+    }
+
+    /**
+     * 定时通知源.
+     */
+    private static final class NotificationSource {
+        final UUID service;
+        final UUID characteristic;
+        final long interval;
+        final int size;
+        long next;
+        int sequence;
+
+        NotificationSource(UUID service, UUID characteristic, long interval, int size) {
+            this.service = service;
+            this.characteristic = characteristic;
+            this.interval = interval;
+            this.size = size;
+        }
+    }
+
+    private final String mAddress;
+    private final VirtualScheduler mScheduler;
+
+    /* 配置. */
+    private BleGattTable mTable;
+    private long mConnectionInterval = 15;
+    private long mAckLatency = -1;
+    private long mConnectLatency = 100;
+    private int mDiscoveryEvents = 10;
+    private int mMaxPacketsPerEvent = 0;
+    private int mBufferPackets = 8;
+    private double mLossRate = 0;
+    private Random mRandom = new Random(0);
+    private int mMaxMtu = 247;
+    private int mSupportedPhy = BLE_PHY_LE_1M | BLE_PHY_LE_2M;
+    private int mRssi = -60;
+    private boolean mConnectable = true;
+    private boolean mResponsive = true;
+    private long mDisconnectAt = -1;
+    private boolean mReliableWriteSupported = true;
+    private boolean mCorruptEcho;
+    private final Map<String, byte[]> mValues = new HashMap<>();
+    // 写入以指定状态失败的特征值.
+    private final Map<String, Integer> mWriteErrors = new HashMap<>();
+    private final List<NotificationSource> mSources = new ArrayList<>();
+    private WriteHandler mWriteHandler;
+
+    /* 状态. */
+    // 连接请求次数, 其中后台连接的次数.
+    int connectAttempts;
+    int autoConnectAttempts;
+    private Callback mCallback;
+    private boolean mConnected;
+    // 每次连接/断开加一, 旧连接的延迟回调作废.
+    private int mGeneration;
+    private int mMtu = BLE_DEFAULT_MTU;
+    private int mTxPhy = BLE_PHY_LE_1M;
+    private int mRxPhy = BLE_PHY_LE_1M;
+    private int mConnectionPriority = -1;
+    private final ArrayDeque<Packet> mTxQueue = new ArrayDeque<>();
+    private final Set<String> mEnabled = new HashSet<>();
+    // 可靠写模式, 暂存的准备写.
+    private boolean mReliableWrite;
+    private final List<Packet> mPrepared = new ArrayList<>();
+
+    /* 统计. */
+    private final Map<String, ByteArrayOutputStream> mReceived = new HashMap<>();
+    private long mFirstReceiveTime = -1;
+    private long mLastReceiveTime = -1;
+    private int mDiscoveries;
+    private int mRefreshes;
+    private int mRetransmissions;
+    private int mNotificationsSent;
+    private int mReliableWritesExecuted;
+    private int mReliableWritesAborted;
+
+    SimulatedPeripheral(String address, VirtualScheduler scheduler) {
+        mAddress = address;
+        mScheduler = scheduler;
+    }
+
+    SimulatedPeripheral setGattTable(BleGattTable table) {
+        mTable = table;
+        return this;
+    }
+
+    /**
+     * 连接间隔 (毫秒), 默认 15.
+     */
+    SimulatedPeripheral setConnectionInterval(long millis) {
+        mConnectionInterval = Math.max(1, millis);
+        return this;
+    }
+
+    /**
+     * 请求发出到应答回调的延迟 (毫秒), 默认一个连接间隔.
+     */
+    SimulatedPeripheral setAckLatency(long millis) {
+        mAckLatency = millis;
+        return this;
+    }
+
+    SimulatedPeripheral setConnectLatency(long millis) {
+        mConnectLatency = millis;
+        return this;
+    }
+
+    /**
+     * 服务发现占用的连接事件数.
+     */
+    SimulatedPeripheral setDiscoveryEvents(int events) {
+        mDiscoveryEvents = events;
+        return this;
+    }
+
+    /**
+     * 每个连接事件最多发送的链路层包数, 0 表示按 PHY 和数据长度估算.
+     */
+    SimulatedPeripheral setMaxPacketsPerEvent(int packets) {
+        mMaxPacketsPerEvent = packets;
+        return this;
+    }
+
+    /**
+     * 控制器缓冲区可容纳的包数, 默认 8.
+     */
+    SimulatedPeripheral setBufferPackets(int packets) {
+        mBufferPackets = Math.max(1, packets);
+        return this;
+    }
+
+    /**
+     * 丢包率, 丢失的包在下一个连接事件重传.
+     */
+    SimulatedPeripheral setLossRate(double rate, long seed) {
+        mLossRate = rate;
+        mRandom = new Random(seed);
+        return this;
+    }
+
+    SimulatedPeripheral setMaxMtu(int mtu) {
+        mMaxMtu = mtu;
+        return this;
+    }
+
+    SimulatedPeripheral setSupportedPhy(int phyMask) {
+        mSupportedPhy = phyMask;
+        return this;
+    }
+
+    SimulatedPeripheral setRssi(int rssi) {
+        mRssi = rssi;
+        return this;
+    }
+
+    /**
+     * 不可连接时, 连接在 connectLatency 后以 GATT_ERROR 失败.
+     */
+    SimulatedPeripheral setConnectable(boolean connectable) {
+        mConnectable = connectable;
+        return this;
+    }
+
+    /**
+     * 不应答时, 请求被发送但永远不回调.
+     */
+    SimulatedPeripheral setResponsive(boolean responsive) {
+        mResponsive = responsive;
+        return this;
+    }
+
+    /**
+     * 在指定时刻 (虚拟时间, 毫秒) 以连接超时断开.
+     */
+    SimulatedPeripheral disconnectAt(long time) {
+        mDisconnectAt = time;
+        if (mConnected)
+            scheduleDisconnect();
+        return this;
+    }
+
+    SimulatedPeripheral setValue(UUID service, UUID characteristic, byte[] value) {
+        mValues.put(key(service, characteristic), value);
+        return this;
+    }
+
+    /**
+     * 对该特征值的写入 (含准备写) 以 status 失败, 不生效.
+     */
+    SimulatedPeripheral setWriteError(UUID service, UUID characteristic, int status) {
+        mWriteErrors.put(key(service, characteristic), status);
+        return this;
+    }
+
+    /**
+     * 不支持时准备写以 GATT_REQUEST_NOT_SUPPORTED 失败, 默认支持.
+     */
+    SimulatedPeripheral setReliableWriteSupported(boolean supported) {
+        mReliableWriteSupported = supported;
+        return this;
+    }
+
+    /**
+     * 准备写的回显与写入的值不一致 (如传输中出错), 对端仍然暂存写入的值. 默认一致.
+     */
+    SimulatedPeripheral setCorruptEcho(boolean corrupt) {
+        mCorruptEcho = corrupt;
+        return this;
+    }
+
+    byte[] getValue(UUID service, UUID characteristic) {
+        return mValues.get(key(service, characteristic));
+    }
+
+    /**
+     * 每 intervalMillis 发送一条 size 字节的通知 (订阅后),
+     * 前 4 字节为从 0 开始的序号 (大端).
+     */
+    SimulatedPeripheral addNotificationSource(UUID service, UUID characteristic,
+                                              long intervalMillis, int size) {
+        mSources.add(new NotificationSource(service, characteristic, intervalMillis, size));
+        return this;
+    }
+
+    /**
+     * 在调用线程中立即回调一条通知, 不经过连接事件 (模拟 Binder 线程直接回调).
+     * @return
+     *      未连接时返回 false.
+     */
+    boolean notifyNow(UUID service, UUID characteristic, byte[] value) {
+        final Callback callback = mCallback;
+        if (callback == null || !mConnected)
+            return false;
+        callback.onCharacteristicChanged(service, characteristic, value);
+        return true;
+    }
+
+    /**
+     * 服务表变化, 已订阅 Service Changed 时发送指示.
+     */
+    void changeGattTable(BleGattTable table) {
+        mTable = table;
+        if (!mConnected || !mEnabled.contains(key(BLE_GENERIC_ATTRIBUTE_SERVICE_UUID,
+                BLE_SERVICE_CHANGED_UUID)))
+            return;
+        final int generation = mGeneration;
+        mScheduler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                final Callback callback = mCallback;
+                if (callback != null && mConnected && generation == mGeneration)
+                    callback.onCharacteristicChanged(BLE_GENERIC_ATTRIBUTE_SERVICE_UUID,
+                            BLE_SERVICE_CHANGED_UUID, new byte[]{0x01, 0x00, (byte) 0xff, (byte) 0xff});
+            }
+        }, mConnectionInterval);
+    }
+
+    boolean isConnected() {
+        return mConnected;
+    }
+
+    int getMtu() {
+        return mMtu;
+    }
+
+    int getTxPhy() {
+        return mTxPhy;
+    }
+
+    int getConnectionPriority() {
+        return mConnectionPriority;
+    }
+
+    boolean isNotifying(UUID service, UUID characteristic) {
+        return mEnabled.contains(key(service, characteristic));
+    }
+
+    int getDiscoveryCount() {
+        return mDiscoveries;
+    }
+
+    int getRefreshCount() {
+        return mRefreshes;
+    }
+
+    int getRetransmissions() {
+        return mRetransmissions;
+    }
+
+    int getNotificationsSent() {
+        return mNotificationsSent;
+    }
+
+    /**
+     * 已执行 (生效) 的可靠写次数.
+     */
+    int getReliableWritesExecuted() {
+        return mReliableWritesExecuted;
+    }
+
+    /**
+     * 被放弃的可靠写次数.
+     */
+    int getReliableWritesAborted() {
+        return mReliableWritesAborted;
+    }
+
+    /**
+     * 模拟外设固件处理写入, 如实现消息通道的对端.
+     */
+    SimulatedPeripheral setWriteHandler(WriteHandler handler) {
+        mWriteHandler = handler;
+        return this;
+    }
+
+    /**
+     * 收到的写入数据 (按顺序拼接).
+     */
+    byte[] getReceived(UUID service, UUID characteristic) {
+        final ByteArrayOutputStream out = mReceived.get(key(service, characteristic));
+        return out == null ? new byte[0] : out.toByteArray();
+    }
+
+    long getFirstReceiveTime() {
+        return mFirstReceiveTime;
+    }
+
+    long getLastReceiveTime() {
+        return mLastReceiveTime;
+    }
+
+    /**
+     * 当前 MTU 和 PHY 下每个连接事件可发送的链路层包数.
+     */
+    int getPacketsPerEvent() {
+        if (mMaxPacketsPerEvent > 0)
+            return mMaxPacketsPerEvent;
+        final double mbps = mTxPhy == BLE_PHY_LE_2M ? 2.0
+                : (mTxPhy == BLE_PHY_LE_CODED ? 0.125 : 1.0);
+        final int payload = Math.min(LL_MAX_PAYLOAD, mMtu + L2CAP_HEADER);
+        final double packetUs = (payload + LL_OVERHEAD) * 8 / mbps;
+        final double ackUs = LL_OVERHEAD * 8 / mbps;
+        final double pairUs = packetUs + T_IFS_US + ackUs + T_IFS_US;
+        return Math.max(1, (int) (mConnectionInterval * 1000 / pairUs));
+    }
+
+    /**
+     * 理论最大无应答写吞吐量 (字节/秒).
+     */
+    long getWireThroughput() {
+        final int chunk = mMtu - BleConstants.BLE_ATT_WRITE_HEADER;
+        final int perEvent = Math.min(Math.max(1, getPacketsPerEvent() / slotsOf(chunk)),
+                mBufferPackets);
+        return perEvent * chunk * 1000L / mConnectionInterval;
+    }
+
+    @Override
+    public String getAddress() {
+        return mAddress;
+    }
+
+    @Override
+    public boolean connect(final Callback callback, final boolean autoConnect) {
+        if (mConnected)
+            return false;
+        mCallback = callback;
+        final int generation = ++mGeneration;
+        connectAttempts++;
+        if (autoConnect)
+            autoConnectAttempts++;
+        mScheduler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                if (generation != mGeneration || mCallback == null)
+                    return;
+                if (!mConnectable) {
+                    // 后台连接一直等到设备可连接.
+                    if (autoConnect)
+                        mScheduler.postDelayed(this, mConnectLatency);
+                    else
+                        mCallback.onConnectionStateChange(GATT_ERROR, false);
+                    return;
+                }
+                mConnected = true;
+                mMtu = BLE_DEFAULT_MTU;
+                mTxPhy = BLE_PHY_LE_1M;
+                mRxPhy = BLE_PHY_LE_1M;
+                mEnabled.clear();
+                mTxQueue.clear();
+                mReliableWrite = false;
+                mPrepared.clear();
+                mScheduler.postDelayed(mEventRunnable, mConnectionInterval);
+                scheduleDisconnect();
+                mCallback.onConnectionStateChange(BLE_GATT_SUCCESS, true);
+            }
+        }, mConnectLatency);
+        return true;
+    }
+
+    @Override
+    public void disconnect() {
+        if (mCallback == null)
+            return;
+        if (!mConnected) {
+            // 取消正在进行的连接.
+            final int generation = ++mGeneration;
+            mScheduler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (generation == mGeneration && mCallback != null)
+                        mCallback.onConnectionStateChange(BLE_GATT_SUCCESS, false);
+                }
+            });
+            return;
+        }
+        final int generation = mGeneration;
+        mScheduler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                if (generation == mGeneration && mConnected)
+                    linkLost(BLE_GATT_SUCCESS);
+            }
+        }, mConnectionInterval);
+    }
+
+    @Override
+    public void close() {
+        mCallback = null;
+        mConnected = false;
+        mGeneration++;
+        mTxQueue.clear();
+        mScheduler.remove(mEventRunnable);
+        mScheduler.remove(mDisconnectRunnable);
+    }
+
+    @Override
+    public boolean discoverServices() {
+        if (!mConnected)
+            return false;
+        mDiscoveries++;
+        final int generation = mGeneration;
+        final BleGattTable table = mTable;
+        if (!mResponsive)
+            return true;
+        mScheduler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                if (generation == mGeneration && mCallback != null)
+                    mCallback.onServicesDiscovered(table, table == null ? GATT_ERROR
+                            : BLE_GATT_SUCCESS);
+            }
+        }, mDiscoveryEvents * mConnectionInterval);
+        return true;
+    }
+
+    @Override
+    public boolean refreshCache() {
+        mRefreshes++;
+        return true;
+    }
+
+    @Override
+    public boolean readCharacteristic(UUID service, UUID characteristic) {
+        if (!mConnected || !hasCharacteristic(service, characteristic))
+            return false;
+        final Packet packet = new Packet(TYPE_READ);
+        packet.service = service;
+        packet.characteristic = characteristic;
+        return submit(packet);
+    }
+
+    @Override
+    public boolean writeCharacteristic(UUID service, UUID characteristic, byte[] value,
+                                       boolean withResponse) {
+        if (!mConnected || value == null || !hasCharacteristic(service, characteristic))
+            return false;
+        final Packet packet = new Packet(TYPE_WRITE);
+        packet.service = service;
+        packet.characteristic = characteristic;
+        packet.value = value.clone();
+        packet.withResponse = withResponse;
+        return submit(packet);
+    }
+
+    @Override
+    public boolean readDescriptor(UUID service, UUID characteristic, UUID descriptor) {
+        if (!mConnected || mTable == null
+                || !mTable.hasDescriptor(service, characteristic, descriptor))
+            return false;
+        final Packet packet = new Packet(TYPE_READ_DESCRIPTOR);
+        packet.service = service;
+        packet.characteristic = characteristic;
+        packet.descriptor = descriptor;
+        return submit(packet);
+    }
+
+    @Override
+    public boolean writeDescriptor(UUID service, UUID characteristic, UUID descriptor,
+                                   byte[] value) {
+        if (!mConnected || value == null || mTable == null
+                || !mTable.hasDescriptor(service, characteristic, descriptor))
+            return false;
+        final Packet packet = new Packet(TYPE_WRITE_DESCRIPTOR);
+        packet.service = service;
+        packet.characteristic = characteristic;
+        packet.descriptor = descriptor;
+        packet.value = value.clone();
+        return submit(packet);
+    }
+
+    @Override
+    public boolean setCharacteristicNotification(UUID service, UUID characteristic,
+                                                 boolean enable) {
+        return mConnected && hasCharacteristic(service, characteristic);
+    }
+
+    @Override
+    public boolean requestMtu(int mtu) {
+        if (!mConnected)
+            return false;
+        final Packet packet = new Packet(TYPE_MTU);
+        packet.argument = mtu;
+        return submit(packet);
+    }
+
+    @Override
+    public boolean readRemoteRssi() {
+        return mConnected && submit(new Packet(TYPE_RSSI));
+    }
+
+    @Override
+    public boolean requestConnectionPriority(int priority) {
+        if (!mConnected)
+            return false;
+        mConnectionPriority = priority;
+        return true;
+    }
+
+    @Override
+    public boolean setPreferredPhy(int phyMask, int options) {
+        if (!mConnected)
+            return false;
+        final Packet packet = new Packet(TYPE_PHY);
+        packet.argument = phyMask;
+        return submit(packet);
+    }
+
+    @Override
+    public boolean beginReliableWrite() {
+        if (!mConnected)
+            return false;
+        mReliableWrite = true;
+        mPrepared.clear();
+        return true;
+    }
+
+    @Override
+    public boolean executeReliableWrite() {
+        if (!mConnected || !mReliableWrite)
+            return false;
+        mReliableWrite = false;
+        final Packet packet = new Packet(TYPE_EXECUTE_WRITE);
+        packet.argument = 1;
+        return submit(packet);
+    }
+
+    @Override
+    public boolean abortReliableWrite() {
+        if (!mConnected)
+            return false;
+        // 取消的执行写 (flags 0), 对端应答后回调.
+        mReliableWrite = false;
+        return submit(new Packet(TYPE_EXECUTE_WRITE));
+    }
+
+    private boolean hasCharacteristic(UUID service, UUID characteristic) {
+        return mTable != null && mTable.getProperties(service, characteristic) >= 0;
+    }
+
+    private boolean submit(Packet packet) {
+        packet.submitTime = mScheduler.now();
+        mTxQueue.addLast(packet);
+        acceptPending();
+        return true;
+    }
+
+    /**
+     * 进入控制器缓冲区的无应答写立即回调.
+     */
+    private void acceptPending() {
+        int index = 0;
+        for (Packet packet : mTxQueue) {
+            if (index++ >= mBufferPackets)
+                break;
+            if (packet.accepted)
+                continue;
+            packet.accepted = true;
+            if (packet.type == TYPE_WRITE && !packet.withResponse)
+                respond(packet, 0);
+        }
+    }
+
+    /**
+     * 一个连接事件: 按顺序发送缓冲区中的包, 然后发送到期的通知.
+     */
+    private void connectionEvent() {
+        final int packetsPerEvent = getPacketsPerEvent();
+        final long now = mScheduler.now();
+        int budget = packetsPerEvent;
+        while (!mTxQueue.isEmpty() && mTxQueue.peekFirst().accepted
+                && mTxQueue.peekFirst().submitTime < now) {
+            final Packet packet = mTxQueue.peekFirst();
+            final int slots = packet.type == TYPE_WRITE ? slotsOf(packet.value.length) : 1;
+            // 超过一个事件容量的包独占整个事件.
+            if (slots > budget && budget < packetsPerEvent)
+                break;
+            budget -= slots;
+            if (mLossRate > 0 && mRandom.nextDouble() < mLossRate) {
+                mRetransmissions++;
+                break;
+            }
+            mTxQueue.pollFirst();
+            transmitted(packet);
+        }
+        acceptPending();
+        sendNotifications(budget);
+        mScheduler.postDelayed(mEventRunnable, mConnectionInterval);
+    }
+
+    private void transmitted(Packet packet) {
+        switch (packet.type) {
+            case TYPE_WRITE:
+                final Integer error = mWriteErrors.get(key(packet.service, packet.characteristic));
+                if (error != null) {
+                    packet.status = error;
+                } else if (mReliableWrite && packet.withResponse) {
+                    // 准备写暂存, 执行时生效.
+                    if (mReliableWriteSupported) {
+                        mPrepared.add(packet);
+                        if (mCorruptEcho) {
+                            packet.echo = packet.value.clone();
+                            packet.echo[0] ^= 0xFF;
+                        }
+                    } else
+                        packet.status = GATT_REQUEST_NOT_SUPPORTED;
+                } else {
+                    receive(packet);
+                }
+                if (packet.withResponse)
+                    respond(packet, ackLatency());
+                break;
+            case TYPE_EXECUTE_WRITE:
+                if (packet.argument != 0) {
+                    for (Packet prepared : mPrepared) {
+                        receive(prepared);
+                    }
+                    mReliableWritesExecuted++;
+                } else {
+                    mReliableWritesAborted++;
+                }
+                mPrepared.clear();
+                respond(packet, ackLatency());
+                break;
+            case TYPE_WRITE_DESCRIPTOR:
+                if (BLE_CCCD_UUID.equals(packet.descriptor)) {
+                    final String cccd = key(packet.service, packet.characteristic);
+                    if (packet.value.length > 0 && packet.value[0] != 0) {
+                        // 通知源从订阅时开始计时.
+                        if (mEnabled.add(cccd))
+                            restartSources(packet.service, packet.characteristic);
+                    } else {
+                        mEnabled.remove(cccd);
+                    }
+                }
+                respond(packet, ackLatency());
+                break;
+            case TYPE_MTU:
+                mMtu = Math.max(BLE_DEFAULT_MTU, Math.min(packet.argument, mMaxMtu));
+                respond(packet, ackLatency());
+                break;
+            case TYPE_PHY:
+                final int phy = packet.argument & mSupportedPhy;
+                mTxPhy = (phy & BLE_PHY_LE_2M) != 0 ? BLE_PHY_LE_2M
+                        : ((phy & BLE_PHY_LE_CODED) != 0 ? BLE_PHY_LE_CODED : BLE_PHY_LE_1M);
+                mRxPhy = mTxPhy;
+                respond(packet, ackLatency());
+                break;
+            default:
+                respond(packet, ackLatency());
+                break;
+        }
+    }
+
+    /**
+     * 写入生效.
+     */
+    private void receive(Packet packet) {
+        final String key = key(packet.service, packet.characteristic);
+        ByteArrayOutputStream out = mReceived.get(key);
+        if (out == null) {
+            out = new ByteArrayOutputStream();
+            mReceived.put(key, out);
+        }
+        out.write(packet.value, 0, packet.value.length);
+        mValues.put(key, packet.value);
+        final long now = mScheduler.now();
+        if (mFirstReceiveTime < 0)
+            mFirstReceiveTime = now;
+        mLastReceiveTime = now;
+        if (mWriteHandler != null)
+            mWriteHandler.onWrite(packet.service, packet.characteristic, packet.value);
+    }
+
+    /**
+     * 延迟回调请求结果, 不应答或连接已变化时丢弃.
+     */
+    private void respond(final Packet packet, long delay) {
+        if (!mResponsive)
+            return;
+        final int generation = mGeneration;
+        final int mtu = mMtu;
+        final int txPhy = mTxPhy;
+        final int rxPhy = mRxPhy;
+        mScheduler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                final Callback callback = mCallback;
+                if (callback == null || !mConnected || generation != mGeneration)
+                    return;
+                switch (packet.type) {
+                    case TYPE_WRITE:
+                        callback.onCharacteristicWrite(packet.service, packet.characteristic,
+                                packet.echo != null ? packet.echo : packet.value.clone(),
+                                packet.status);
+                        break;
+                    case TYPE_READ:
+                        final byte[] value = mValues.get(key(packet.service, packet.characteristic));
+                        callback.onCharacteristicRead(packet.service, packet.characteristic,
+                                value == null ? new byte[0] : value.clone(), BLE_GATT_SUCCESS);
+                        break;
+                    case TYPE_WRITE_DESCRIPTOR:
+                        callback.onDescriptorWrite(packet.service, packet.characteristic,
+                                packet.descriptor, BLE_GATT_SUCCESS);
+                        break;
+                    case TYPE_READ_DESCRIPTOR:
+                        final boolean enabled = mEnabled.contains(key(packet.service,
+                                packet.characteristic));
+                        callback.onDescriptorRead(packet.service, packet.characteristic,
+                                packet.descriptor, new byte[]{(byte) (enabled ? 1 : 0), 0},
+                                BLE_GATT_SUCCESS);
+                        break;
+                    case TYPE_MTU:
+                        callback.onMtuChanged(mtu, BLE_GATT_SUCCESS);
+                        break;
+                    case TYPE_PHY:
+                        callback.onPhyUpdate(txPhy, rxPhy, BLE_GATT_SUCCESS);
+                        break;
+                    case TYPE_RSSI:
+                        callback.onReadRemoteRssi(mRssi, BLE_GATT_SUCCESS);
+                        break;
+                    case TYPE_EXECUTE_WRITE:
+                        callback.onReliableWriteCompleted(packet.status);
+                        break;
+                }
+            }
+        }, delay);
+    }
+
+    /**
+     * 发送到期的通知, 占用本事件剩余的包数.
+     * @return
+     *      剩余的包数.
+     */
+    private int sendNotifications(int budget) {
+        final long now = mScheduler.now();
+        final Callback callback = mCallback;
+        for (NotificationSource source : mSources) {
+            if (!mEnabled.contains(key(source.service, source.characteristic)))
+                continue;
+            while (source.next <= now && budget > 0) {
+                final int size = Math.max(4, Math.min(source.size,
+                        mMtu - BleConstants.BLE_ATT_WRITE_HEADER));
+                final byte[] value = new byte[size];
+                final int sequence = source.sequence++;
+                value[0] = (byte) (sequence >>> 24);
+                value[1] = (byte) (sequence >>> 16);
+                value[2] = (byte) (sequence >>> 8);
+                value[3] = (byte) sequence;
+                source.next += source.interval;
+                budget--;
+                mNotificationsSent++;
+                if (callback != null)
+                    callback.onCharacteristicChanged(source.service, source.characteristic, value);
+            }
+        }
+        return budget;
+    }
+
+    private void restartSources(UUID service, UUID characteristic) {
+        final long now = mScheduler.now();
+        for (NotificationSource source : mSources) {
+            if (source.service.equals(service) && source.characteristic.equals(characteristic)) {
+                source.next = now;
+                source.sequence = 0;
+            }
+        }
+    }
+
+    private void linkLost(int status) {
+        mConnected = false;
+        mGeneration++;
+        mTxQueue.clear();
+        mReliableWrite = false;
+        mPrepared.clear();
+        mScheduler.remove(mEventRunnable);
+        mScheduler.remove(mDisconnectRunnable);
+        final Callback callback = mCallback;
+        if (callback != null)
+            callback.onConnectionStateChange(status, false);
+    }
+
+    private void scheduleDisconnect() {
+        mScheduler.remove(mDisconnectRunnable);
+        if (mDisconnectAt >= 0)
+            mScheduler.postDelayed(mDisconnectRunnable, mDisconnectAt - mScheduler.now());
+    }
+
+    private long ackLatency() {
+        return mAckLatency >= 0 ? mAckLatency : mConnectionInterval;
+    }
+
+    /**
+     * 一个 ATT 写占用的链路层包数.
+     */
+    private static int slotsOf(int valueLength) {
+        final int l2cap = BleConstants.BLE_ATT_WRITE_HEADER + valueLength + L2CAP_HEADER;
+        return (l2cap + LL_MAX_PAYLOAD - 1) / LL_MAX_PAYLOAD;
+    }
+
+    private static String key(UUID service, UUID characteristic) {
+        return service + "/" + characteristic;
+    }
+
+    private final Runnable mEventRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mConnected)
+                connectionEvent();
+        }
+    };
+
+    private final Runnable mDisconnectRunnable = new Runnable() {
+        @Override
+        public void run() {
+            // 只断开一次, 重连后不再断开.
+            mDisconnectAt = -1;
+            if (mConnected)
+                linkLost(GATT_CONNECTION_TIMEOUT);
+        }
+    };
+}
@@ -0,0 +1,120 @@
+package com.wsj.blesdk;
+
+import java.util.Iterator;
+import java.util.PriorityQueue;
+
+/**
+ * 虚拟时钟.<br>
+ *     任务按 (执行时间, 提交顺序) 在调用 advance 的线程中执行, 时间只由测试推进,
+ *     连接间隔和超时可以按真实数值模拟而不需要真实等待.
+ */
+
+final class VirtualScheduler implements BleScheduler {
+
+    private static final class Task implements Comparable<Task> {
+        final long time;
+        final long sequence;
+        final Runnable runnable;
+
+        Task(long time, long sequence, Runnable runnable) {
+            this.time = time;
+            this.sequence = sequence;
+            this.runnable = runnable;
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            if (time != other.time)
+                return time < other.time ? -1 : 1;
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+
+    /**
+     * 等待的条件.
+     */
+    interface Condition {
+        boolean isMet();
+    }
+
+    private final PriorityQueue<Task> mTasks = new PriorityQueue<>();
+    private long mNow;
+    private long mSequence;
+    // 下一次 remove 之前执行一次, 模拟其它线程恰好在此时插入.
+    private Runnable mBeforeRemove;
+
+    @Override
+    public long now() {
+        return mNow;
+    }
+
+    @Override
+    public void post(Runnable task) {
+        postDelayed(task, 0);
+    }
+
+    @Override
+    public void postDelayed(Runnable task, long delayMillis) {
+        mTasks.add(new Task(mNow + Math.max(0, delayMillis), mSequence++, task));
+    }
+
+    @Override
+    public void remove(Runnable task) {
+        final Runnable hook = mBeforeRemove;
+        if (hook != null) {
+            mBeforeRemove = null;
+            hook.run();
+        }
+        final Iterator<Task> it = mTasks.iterator();
+        while (it.hasNext()) {
+            if (it.next().runnable == task)
+                it.remove();
+        }
+    }
+
+    /**
+     * 在下一次 remove 之前执行 hook (一次).
+     */
+    void beforeNextRemove(Runnable hook) {
+        mBeforeRemove = hook;
+    }
+
+    /**
+     * 推进时钟, 执行期间到期的所有任务 (包括执行中新提交的).
+     */
+    void advance(long millis) {
+        final long target = mNow + millis;
+        while (!mTasks.isEmpty() && mTasks.peek().time <= target) {
+            final Task task = mTasks.poll();
+            mNow = task.time;
+            task.runnable.run();
+        }
+        mNow = target;
+    }
+
+    /**
+     * 推进时钟直到条件成立.
+     * @return
+     *      条件是否在 maxMillis 内成立.
+     */
+    boolean runUntil(Condition condition, long maxMillis) {
+        final long deadline = mNow + maxMillis;
+        while (!condition.isMet()) {
+            if (mNow >= deadline)
+                return false;
+            if (mTasks.isEmpty()) {
+                mNow = deadline;
+                return condition.isMet();
+            }
+            final Task task = mTasks.peek();
+            if (task.time > deadline) {
+                mNow = deadline;
+                return condition.isMet();
+            }
+            mTasks.poll();
+            mNow = task.time;
+            task.runnable.run();
+        }
+        return true;
+    }
+}
@@ -0,0 +1,85 @@
+package com.wsj.blesdk.utils;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 日志级别: 全局/按 TAG 设置, 级别关闭时不生成消息.
+ */
+public class LogUtilTest {
+    private static final String TAG   = "LogUtilTest";
+    private static final String OTHER = "Other";
+
+    /**
+     * 记录被调用次数的消息和格式化参数.
+     */
+    private static final class Counter implements LogUtil.Message {
+        int calls;
+
+        @Override
+        public String get() {
+            calls++;
+            return "message";
+        }
+
+        @Override
+        public String toString() {
+            calls++;
+            return "argument";
+        }
+    }
+
+    @After
+    public void tearDown() {
+        LogUtil.setLevel(LogUtil.DEBUG);
+        LogUtil.clearLevel(TAG);
+        LogUtil.clearLevel(OTHER);
+    }
+
+    @Test
+    public void disabledLevelDoesNotBuildMessage() {
+        LogUtil.setLevel(LogUtil.WARN);
+        final Counter counter = new Counter();
+        LogUtil.d(TAG, counter);
+        LogUtil.i(TAG, "value : %s", counter);
+        LogUtil.v(TAG, "values : %s %s %s", counter, counter, counter);
+        assertEquals(0, counter.calls);
+
+        LogUtil.w(TAG, counter);
+        LogUtil.e(TAG, "value : %s", counter);
+        assertEquals(2, counter.calls);
+    }
+
+    @Test
+    public void tagLevelOverridesGlobalLevel() {
+        LogUtil.setLevel(LogUtil.ERROR);
+        LogUtil.setLevel(TAG, LogUtil.VERBOSE);
+        LogUtil.setLevel(OTHER, LogUtil.NONE);
+        assertTrue(LogUtil.isLoggable(TAG, LogUtil.VERBOSE));
+        assertFalse(LogUtil.isLoggable(OTHER, LogUtil.ERROR));
+        assertFalse(LogUtil.isLoggable("Unknown", LogUtil.WARN));
+        assertTrue(LogUtil.isLoggable("Unknown", LogUtil.ERROR));
+
+        LogUtil.clearLevel(TAG);
+        assertFalse(LogUtil.isLoggable(TAG, LogUtil.VERBOSE));
+        assertTrue(LogUtil.isLoggable(TAG, LogUtil.ERROR));
+    }
+
+    @Test
+    public void traceFollowsVerboseLevel() {
+        final Counter counter = new Counter();
+        LogUtil.setLevel(TAG, LogUtil.DEBUG);
+        assertFalse(LogUtil.isLoggable(TAG, LogUtil.VERBOSE));
+        LogUtil.v(TAG, counter);
+        assertEquals(0, counter.calls);
+
+        LogUtil.setLevel(TAG, LogUtil.VERBOSE);
+        LogUtil.trace(TAG, "traceFollowsVerboseLevel");
+        LogUtil.v(TAG, counter);
+        assertEquals(1, counter.calls);
+    }
+}